@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.config;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.utils.Utils;
+
+
+/**
+ * Lookups in the default {@code core.json}, which the components do while they configure themselves and some of
+ * them on every request, and storing it, which happens whenever a setting is changed.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class JSONConfigBenchmark {
+    private static final String STORE = "core";
+
+    private JSONConfig _config;
+    private Path _directory;
+    private ConfigurationStoreAdaptorJSONFile _store;
+
+    @Setup
+    public void setUp() throws IOException {
+        String json;
+        try (InputStream stream = JSONConfigBenchmark.class.getResourceAsStream("/core.json")) {
+            json = Utils.streamToString(stream);
+        }
+        _config = new JSONConfigImpl(json);
+        _directory = Files.createTempDirectory("agora-config-benchmark");
+        _store = new ConfigurationStoreAdaptorJSONFile();
+        _store.setConfigurationDirectory(_directory);
+        _store.createStore(STORE, json);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(_directory.resolve(STORE + ".json"));
+        Files.delete(_directory);
+    }
+
+    @Benchmark
+    public JSONConfig get() {
+        return _config.get("adaptors").get("network").get("tcp").get("port");
+    }
+
+    @Benchmark
+    public JSONConfig getMissing() {
+        return _config.get("adaptors").get("network").get("sctp").get("port");
+    }
+
+    @Benchmark
+    public JSONConfig getPath() {
+        return _config.getPath("adaptors/network/tcp/port");
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public void store() throws IOException {
+        _store.save(STORE);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.crypto;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * The primitives of {@link CryptoEngine} on their own, {@code SessionHandshakeBenchmark} measures them combined into
+ * handshakes. {@code streamCrypt} and {@code mac} run once per frame of {@code _frameSize} bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class CryptoEngineBenchmark {
+    @Param({"64", "1024", "65536"})
+    public int _frameSize;
+
+    private CryptoEngine _crypto;
+    private byte[] _streamKey;
+    private byte[] _iv;
+    private byte[] _macKey;
+    private ByteBuffer _input;
+    private ByteBuffer _output;
+    private KeyPair _keyPair;
+    private byte[] _peerPublicKey;
+    private byte[] _secret;
+
+    @Setup
+    public void setUp() {
+        _crypto = new CryptoEngine();
+        _streamKey = _crypto.getRandomBytes(CryptoEngine.STREAM_KEY_SIZE);
+        _iv = _crypto.getRandomBytes(CryptoEngine.STREAM_IV_SIZE);
+        _macKey = _crypto.getRandomBytes(CryptoEngine.MAC_KEY_SIZE);
+        _input = ByteBuffer.wrap(_crypto.getRandomBytes(_frameSize));
+        _output = ByteBuffer.allocate(_frameSize);
+        _keyPair = _crypto.generateKeyAgreementKeyPair();
+        _peerPublicKey = _crypto.generateKeyAgreementKeyPair().getPublic().getEncoded();
+        _secret = _crypto.getRandomBytes(32);
+    }
+
+    @Benchmark
+    public ByteBuffer streamCrypt() {
+        _output.clear();
+        _crypto.streamCrypt(_streamKey, _iv, _input.duplicate(), _output);
+        return _output;
+    }
+
+    @Benchmark
+    public byte[] mac() {
+        return _crypto.mac(_macKey, 16, _input);
+    }
+
+    @Benchmark
+    public byte[] deriveKeys() {
+        return _crypto.deriveKeys(_secret, _iv, _macKey, 2 * CryptoEngine.STREAM_KEY_SIZE + 2 * CryptoEngine.MAC_KEY_SIZE);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public byte[] agree() throws GeneralSecurityException {
+        return _crypto.agree(_keyPair.getPrivate(), _peerPublicKey);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MICROSECONDS)
+    public KeyPair generateKeyPair() {
+        return _crypto.generateKeyAgreementKeyPair();
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.events;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.lorenzquack.code.agora.core.api.EventChannel;
+import de.lorenzquack.code.agora.core.api.EventFactory;
+import de.lorenzquack.code.agora.core.api.EventHandler;
+import de.lorenzquack.code.agora.core.api.EventTranslator;
+import de.lorenzquack.code.agora.core.api.WaitStrategy;
+
+
+/**
+ * Events per second published into one channel by one thread while {@code _subscribers} subscribers consume them.
+ * Publishing waits whenever the slowest subscriber is a buffer behind, so this is the end to end throughput.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class EventBusBenchmark {
+    private static final EventFactory<LongEvent> FACTORY = new EventFactory<LongEvent>() {
+        @Override
+        public LongEvent newInstance() {
+            return new LongEvent();
+        }
+    };
+    private static final EventTranslator<LongEvent, Object> TRANSLATOR = new EventTranslator<LongEvent, Object>() {
+        @Override
+        public void translateTo(LongEvent event, long sequence, Object argument) {
+            event._value = sequence;
+        }
+    };
+
+    @Param({"1", "2", "4"})
+    public int _subscribers;
+
+    @Param({"BLOCKING", "YIELDING"})
+    public WaitStrategy _waitStrategy;
+
+    private EventBusImpl _bus;
+    private EventChannel<LongEvent> _channel;
+
+    @Setup
+    public void setUp() {
+        _bus = new EventBusImpl();
+        _channel = _bus.createChannel("benchmark", LongEvent.class, FACTORY, 4096, _waitStrategy);
+        for (int i = 0; i < _subscribers; i++) {
+            _channel.subscribe(new EventHandler<LongEvent>() {
+                private long _sum;
+
+                @Override
+                public void onEvent(LongEvent event, long sequence, boolean endOfBatch) {
+                    _sum += event._value;
+                }
+            });
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        _bus.stop();
+    }
+
+    @Benchmark
+    public void publish() {
+        _channel.publish(TRANSLATOR, null);
+    }
+
+    private static class LongEvent {
+        private long _value;
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+
+/**
+ * Chunks per second read by four threads at random positions of a pack file that is in the page cache, through
+ * {@link MappedPackCache} windows and with positional reads.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Threads(4)
+public class ChunkReadBenchmark {
+    private static final int PACK_SIZE = 256 * 1024 * 1024;
+
+    @Param({"16384", "65536"})
+    public int _chunkSize;
+
+    private Path _directory;
+    private PackFile _pack;
+    private MappedPackCache _mapped;
+    private MappedPackCache _positional;
+
+    @Setup
+    public void setUp() throws IOException {
+        _directory = Files.createTempDirectory("agora-pack");
+        _pack = new PackFile(1, _directory.resolve("pack-000001.dat"), PACK_SIZE);
+        byte[] content = new byte[1024 * 1024];
+        new Random(0).nextBytes(content);
+        for (int written = 0; written < PACK_SIZE; written += content.length) {
+            _pack.write(ByteBuffer.wrap(content), _pack.reserve(content.length));
+        }
+        _mapped = new MappedPackCache(64 * 1024 * 1024, 1024 * 1024 * 1024, 0);
+        _positional = new MappedPackCache(64 * 1024 * 1024, 0, 0);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        _mapped.clear();
+        _pack.close();
+        Files.delete(_pack.getPath());
+        Files.delete(_directory);
+    }
+
+    @State(Scope.Thread)
+    public static class Destination {
+        ByteBuffer _buffer;
+
+        @Setup
+        public void setUp(ChunkReadBenchmark benchmark) {
+            _buffer = ByteBuffer.allocate(benchmark._chunkSize);
+        }
+    }
+
+    @Benchmark
+    public ByteBuffer mapped(Destination destination) throws IOException {
+        return read(_mapped, destination._buffer);
+    }
+
+    @Benchmark
+    public ByteBuffer positional(Destination destination) throws IOException {
+        return read(_positional, destination._buffer);
+    }
+
+    private ByteBuffer read(MappedPackCache reads, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        long position = (long) ThreadLocalRandom.current().nextInt(PACK_SIZE / _chunkSize) * _chunkSize;
+        reads.read(_pack, buffer, position);
+        return buffer;
+    }
+}
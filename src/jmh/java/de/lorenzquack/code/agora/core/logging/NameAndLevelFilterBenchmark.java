@@ -0,0 +1,111 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.logging;
+
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.spi.FilterReply;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+
+/**
+ * The cost per event of the three filters that {@code logback.xml} chains on the console appender, compared with
+ * running their expressions on every event as the filters did before they remembered their decisions.
+ * <ul>
+ *   <li>{@code agora}: a debug event of the core, accepted by the first filter</li>
+ *   <li>{@code jetty}: a debug event of Jetty, which passes all three filters and is denied by the last</li>
+ *   <li>{@code trace}: a trace event of the core, which every filter rejects by its level</li>
+ * </ul>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NameAndLevelFilterBenchmark {
+    private static final String[] NAMES = {"de.lorenzquack.code.*", "org.eclipse.jetty.*", ".*"};
+    private static final Level[] LEVELS = {Level.DEBUG, Level.WARN, Level.ERROR};
+
+    @Param({"agora", "jetty", "trace"})
+    public String _event;
+
+    private final NameAndLevelFilter[] _filters = new NameAndLevelFilter[NAMES.length];
+    private final Pattern[] _patterns = new Pattern[NAMES.length];
+    private ILoggingEvent _loggingEvent;
+
+    @Setup
+    public void setUp() {
+        for (int i = 0; i < NAMES.length; i++) {
+            _filters[i] = new NameAndLevelFilter(NAMES[i], LEVELS[i]);
+            _patterns[i] = Pattern.compile(NAMES[i]);
+        }
+        _filters[NAMES.length - 1].setOnMismatch(FilterReply.DENY);
+        LoggerContext context = new LoggerContext();
+        switch (_event) {
+            case "agora":
+                _loggingEvent = createEvent(context, "de.lorenzquack.code.agora.core.network.MessageDispatcher",
+                        Level.DEBUG);
+                break;
+            case "jetty":
+                _loggingEvent = createEvent(context, "org.eclipse.jetty.server.HttpChannel", Level.DEBUG);
+                break;
+            default:
+                _loggingEvent = createEvent(context, "de.lorenzquack.code.agora.core.network.MessageDispatcher",
+                        Level.TRACE);
+        }
+    }
+
+    @Benchmark
+    public FilterReply filterChain() {
+        for (NameAndLevelFilter filter : _filters) {
+            FilterReply reply = filter.decide(_loggingEvent);
+            if (reply != FilterReply.NEUTRAL) {
+                return reply;
+            }
+        }
+        return FilterReply.NEUTRAL;
+    }
+
+    @Benchmark
+    public FilterReply uncachedChain() {
+        for (int i = 0; i < _patterns.length; i++) {
+            if (_loggingEvent.getLevel().isGreaterOrEqual(LEVELS[i])
+                    && _patterns[i].matcher(_loggingEvent.getLoggerName()).matches()) {
+                return FilterReply.ACCEPT;
+            }
+        }
+        return FilterReply.DENY;
+    }
+
+    private static ILoggingEvent createEvent(LoggerContext context, String loggerName, Level level) {
+        Logger logger = context.getLogger(loggerName);
+        return new LoggingEvent(Logger.class.getName(), logger, level, "message {}", null, new Object[]{1});
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.logging;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.encoder.PatternLayoutEncoder;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.FileAppender;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.ui.UIAdapterREST;
+
+
+/**
+ * Latency of requests for {@code /index.html} from several threads while the web UI logs every request at debug
+ * level, as it does with the shipped {@code logback.xml}.
+ * <ul>
+ *   <li>{@code off}: debug logging is disabled</li>
+ *   <li>{@code sync}: the request threads write to the log file themselves and wait for each other</li>
+ *   <li>{@code async}: a {@link DroppingAsyncAppender} writes to the log file</li>
+ * </ul>
+ * The log goes to a temporary file rather than the console, whose output JMH would have to forward.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(4)
+public class RequestLoggingBenchmark {
+    @Param({"off", "sync", "async"})
+    public String _logging;
+
+    private Server _server;
+    private URL _url;
+    private File _logFile;
+
+    @Setup
+    public void setUp() throws Exception {
+        _logFile = File.createTempFile("agora-benchmark", ".log");
+        configureLogging();
+        _server = new Server();
+        ServerConnector connector = new ServerConnector(_server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        _server.addConnector(connector);
+        ServletContextHandler servletHandler = new ServletContextHandler();
+        servletHandler.addServlet(new ServletHolder(new UIAdapterREST.StaticHandler()), "/*");
+        _server.setHandler(servletHandler);
+        _server.start();
+        _url = new URL("http", "127.0.0.1", connector.getLocalPort(), "/index.html");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        _server.stop();
+        ((LoggerContext) LoggerFactory.getILoggerFactory()).stop();
+        if (!_logFile.delete()) {
+            _logFile.deleteOnExit();
+        }
+    }
+
+    @Benchmark
+    public int serve(Buffer buffer) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) _url.openConnection();
+        int length = 0;
+        // reading the whole body lets the JDK reuse the connection
+        try (InputStream body = connection.getInputStream()) {
+            for (int read = body.read(buffer._bytes); read != -1; read = body.read(buffer._bytes)) {
+                length += read;
+            }
+        }
+        return length;
+    }
+
+    @State(Scope.Thread)
+    public static class Buffer {
+        private final byte[] _bytes = new byte[8192];
+    }
+
+    private void configureLogging() {
+        LoggerContext context = (LoggerContext) LoggerFactory.getILoggerFactory();
+        context.reset();
+        PatternLayoutEncoder encoder = new PatternLayoutEncoder();
+        encoder.setContext(context);
+        encoder.setPattern("%d{HH:mm:ss.SSS} [%thread] %-5level %logger{36} - %msg%n");
+        encoder.start();
+        FileAppender<ILoggingEvent> file = new FileAppender<>();
+        file.setContext(context);
+        file.setName("FILE");
+        file.setFile(_logFile.getPath());
+        file.setEncoder(encoder);
+        file.start();
+        Logger root = context.getLogger(Logger.ROOT_LOGGER_NAME);
+        root.setLevel(Level.INFO);
+        context.getLogger("de.lorenzquack.code").setLevel("off".equals(_logging) ? Level.INFO : Level.DEBUG);
+        if ("async".equals(_logging)) {
+            DroppingAsyncAppender async = new DroppingAsyncAppender();
+            async.setContext(context);
+            async.setName("ASYNC");
+            async.setQueueSize(8192);
+            async.addAppender(file);
+            async.start();
+            root.addAppender(async);
+        } else {
+            root.addAppender(file);
+        }
+    }
+}
@@ -0,0 +1,190 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import de.lorenzquack.code.agora.core.api.FileRegion;
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+import de.lorenzquack.code.agora.core.network.session.EphemeralKeys;
+import de.lorenzquack.code.agora.core.network.session.Handshake;
+import de.lorenzquack.code.agora.core.network.session.HandshakeResponder;
+import de.lorenzquack.code.agora.core.network.session.ResumptionTickets;
+import de.lorenzquack.code.agora.core.network.session.Session;
+
+
+/**
+ * Chunks per second served from a pack file over a localhost TCP connection whose other end discards everything.
+ * {@code transferTo} and {@code sealedPooled} are the paths {@link MessageDispatcher} takes without and with
+ * sessions; {@code heapCopy} and {@code sealedHeap} read the chunk into a heap buffer first, as messages did before.
+ * After every iteration the sending thread's CPU time per GB is printed, which is what the zero-copy paths save.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FileServingBenchmark {
+    private static final int FILE_SIZE = 64 * 1024 * 1024;
+    private static final int HEADER_SIZE = Message.HEADER_SIZE + 33;
+
+    @Param({"65536", "262144"})
+    public int _chunkSize;
+
+    private Path _file;
+    private FileChannel _fileChannel;
+    private ServerSocketChannel _server;
+    private SocketChannel _sender;
+    private Thread _drain;
+    private CryptoEngine _crypto;
+    private Session _session;
+    private BufferPool _buffers;
+    private long _position;
+    private long _bytes;
+    private long _cpuNanos;
+    private ThreadMXBean _threads;
+
+    @Setup
+    public void setUp() throws IOException {
+        _file = Files.createTempFile("agora-pack", ".dat");
+        byte[] content = new byte[1024 * 1024];
+        new Random(0).nextBytes(content);
+        _fileChannel = FileChannel.open(_file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        for (int written = 0; written < FILE_SIZE; written += content.length) {
+            _fileChannel.write(ByteBuffer.wrap(content));
+        }
+        _server = ServerSocketChannel.open();
+        _server.bind(new InetSocketAddress("127.0.0.1", 0));
+        _sender = SocketChannel.open(_server.getLocalAddress());
+        final SocketChannel receiver = _server.accept();
+        _drain = new Thread("drain") {
+            @Override
+            public void run() {
+                ByteBuffer sink = ByteBuffer.allocateDirect(1024 * 1024);
+                try {
+                    while (receiver.read(sink) >= 0) {
+                        sink.clear();
+                    }
+                } catch (IOException e) {
+                    // closed by tearDown
+                }
+            }
+        };
+        _drain.setDaemon(true);
+        _drain.start();
+
+        _crypto = new CryptoEngine();
+        InetSocketAddress peer = new InetSocketAddress("127.0.0.1", 7071);
+        HandshakeResponder responder = new HandshakeResponder(_crypto,
+                new ResumptionTickets(_crypto, TimeUnit.DAYS.toMillis(1)), new EphemeralKeys(_crypto, 0));
+        Handshake handshake = Handshake.full(_crypto, peer, 7072, new EphemeralKeys(_crypto, 0));
+        _session = handshake.complete(responder.respond(handshake.getHello(), peer, 7071).getReply());
+        _buffers = new BufferPool(64 * 1024, 4);
+        _threads = ManagementFactory.getThreadMXBean();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        _sender.close();
+        _server.close();
+        _fileChannel.close();
+        Files.delete(_file);
+    }
+
+    @Setup(Level.Iteration)
+    public void startIteration() {
+        _bytes = 0;
+        _cpuNanos = _threads.getCurrentThreadCpuTime();
+    }
+
+    @TearDown(Level.Iteration)
+    public void reportCpu() {
+        long cpuNanos = _threads.getCurrentThreadCpuTime() - _cpuNanos;
+        System.out.printf("  sender cpu: %.0f ms/GB%n", cpuNanos / 1e6 / (_bytes / 1e9));
+    }
+
+    @Benchmark
+    public void transferTo() throws IOException {
+        new FileRegionFrame(header(), nextRegion()).writeTo(_sender);
+    }
+
+    @Benchmark
+    public void heapCopy() throws IOException {
+        writeFully(readIntoHeap(nextRegion()));
+    }
+
+    @Benchmark
+    public void sealedPooled() throws IOException {
+        _session.seal(_crypto, 7072, header(), nextRegion(), _buffers).writeTo(_sender);
+    }
+
+    @Benchmark
+    public void sealedHeap() throws IOException {
+        writeFully(_session.seal(_crypto, 7072, readIntoHeap(nextRegion())));
+    }
+
+    private FileRegion nextRegion() {
+        if (_position + _chunkSize > FILE_SIZE) {
+            _position = 0;
+        }
+        FileRegion region = new FileRegion(_fileChannel, _position, _chunkSize);
+        _position += _chunkSize;
+        _bytes += _chunkSize;
+        return region;
+    }
+
+    private static ByteBuffer header() {
+        return ByteBuffer.allocate(HEADER_SIZE);
+    }
+
+    private static ByteBuffer readIntoHeap(FileRegion region) throws IOException {
+        ByteBuffer message = ByteBuffer.allocate(HEADER_SIZE + region.getLength());
+        message.position(HEADER_SIZE);
+        region.read(0, message);
+        message.flip();
+        return message;
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            _sender.write(buffer);
+        }
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+
+
+/**
+ * Handshakes per second and core, counting the work of both sides. Compare {@code fullHandshake} with
+ * {@code resumedHandshake} to see what the ticket cache saves, and {@code sealFrame} for the per-frame cost of
+ * an established session.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SessionHandshakeBenchmark {
+    private static final InetSocketAddress INITIATOR = new InetSocketAddress("127.0.0.1", 7071);
+    private static final InetSocketAddress RESPONDER = new InetSocketAddress("127.0.0.1", 7072);
+
+    /**
+     * 0 generates a fresh key pair for every handshake.
+     */
+    @Param({"0", "60000"})
+    public long _ephemeralKeyLifetimeMillis;
+
+    @Param({"1024"})
+    public int _frameSize;
+
+    private CryptoEngine _crypto;
+    private EphemeralKeys _initiatorKeys;
+    private HandshakeResponder _responder;
+    private Session _session;
+    private ByteBuffer _frame;
+
+    @Setup
+    public void setUp() throws IOException {
+        _crypto = new CryptoEngine();
+        _initiatorKeys = new EphemeralKeys(_crypto, _ephemeralKeyLifetimeMillis);
+        _responder = new HandshakeResponder(_crypto, new ResumptionTickets(_crypto, TimeUnit.DAYS.toMillis(1)),
+                new EphemeralKeys(_crypto, _ephemeralKeyLifetimeMillis));
+        _session = fullHandshake();
+        _frame = ByteBuffer.allocate(_frameSize);
+    }
+
+    @Benchmark
+    public Session fullHandshake() throws IOException {
+        return handshake(Handshake.full(_crypto, RESPONDER, INITIATOR.getPort(), _initiatorKeys));
+    }
+
+    @Benchmark
+    public Session resumedHandshake() throws IOException {
+        return handshake(Handshake.resume(_crypto, RESPONDER, INITIATOR.getPort(), _session.getResumptionTicket()));
+    }
+
+    @Benchmark
+    public ByteBuffer sealFrame() {
+        return _session.seal(_crypto, INITIATOR.getPort(), _frame.duplicate());
+    }
+
+    private Session handshake(Handshake handshake) throws IOException {
+        HandshakeResponder.Response response = _responder.respond(handshake.getHello(), INITIATOR, RESPONDER.getPort());
+        return handshake.complete(response.getReply());
+    }
+}
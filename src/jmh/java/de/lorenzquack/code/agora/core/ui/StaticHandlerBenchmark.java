@@ -0,0 +1,88 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.ui;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.concurrent.TimeUnit;
+
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+
+/**
+ * Requests for the files of the web UI served by {@link UIAdapterREST.StaticHandler} over a kept alive loopback
+ * connection, so the numbers include Jetty parsing the request and writing the response.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class StaticHandlerBenchmark {
+    @Param({"/index.html", "/login.html"})
+    public String _path;
+
+    private Server _server;
+    private URL _url;
+    private final byte[] _buffer = new byte[8192];
+
+    @Setup
+    public void setUp() throws Exception {
+        _server = new Server();
+        ServerConnector connector = new ServerConnector(_server);
+        connector.setHost("127.0.0.1");
+        connector.setPort(0);
+        _server.addConnector(connector);
+        ServletContextHandler servletHandler = new ServletContextHandler();
+        servletHandler.addServlet(new ServletHolder(new UIAdapterREST.StaticHandler()), "/*");
+        _server.setHandler(servletHandler);
+        _server.start();
+        _url = new URL("http", "127.0.0.1", connector.getLocalPort(), _path);
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        _server.stop();
+    }
+
+    @Benchmark
+    public int serve() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) _url.openConnection();
+        int length = 0;
+        // reading the whole body lets the JDK reuse the connection
+        try (InputStream body = connection.getInputStream()) {
+            for (int read = body.read(_buffer); read != -1; read = body.read(_buffer)) {
+                length += read;
+            }
+        }
+        return length;
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.ui;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mindrot.jbcrypt.BCrypt;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import de.lorenzquack.code.agora.core.api.exceptions.AuthorizationException;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+
+
+/**
+ * {@code login} is dominated by BCrypt with the cost {@link UIPortImpl} hashes passwords with, the other benchmarks
+ * measure the token check that picks the delegate on every UI call.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class UIPortBenchmark {
+    private static final String USERNAME = "admin";
+    private static final String PASSWORD = "benchmark";
+
+    private UIPortImpl _port;
+    private Object _token;
+
+    @Setup
+    public void setUp() {
+        _port = new UIPortImpl();
+        _port.initialize();
+        _port.configure(new JSONConfigImpl("{\"username\": \"" + USERNAME + "\", \"password\": \""
+                + BCrypt.hashpw(PASSWORD, BCrypt.gensalt(10)) + "\"}"));
+        _token = _port.login(USERNAME, PASSWORD);
+    }
+
+    @Benchmark
+    @OutputTimeUnit(TimeUnit.MILLISECONDS)
+    public Object login() {
+        Object token = _port.login(USERNAME, PASSWORD);
+        _port.logout(token);
+        return token;
+    }
+
+    @Benchmark
+    public String authorizedCall() {
+        return _port.getVersionString(_token);
+    }
+
+    @Benchmark
+    public Object unauthorizedCall() {
+        try {
+            return _port.getVersionString(Long.valueOf(0));
+        } catch (AuthorizationException e) {
+            return e;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.utils;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+
+/**
+ * Time to serve {@code _concurrency} requests that arrive at once and each block for {@code BLOCK_MILLIS}, as REST
+ * requests, plugin calls and peer handlers do while they wait for I/O.
+ * <ul>
+ *   <li>{@code pool}: 200 platform threads, the size of Jetty's default pool, so the requests queue</li>
+ *   <li>{@code platform}: a platform thread per request</li>
+ *   <li>{@code virtual}: a virtual thread per request, which falls back to platform threads before Java 21</li>
+ * </ul>
+ * After every iteration the peak number of requests that were blocked at the same time, the peak number of live
+ * platform threads and the resident memory that was added while the requests were blocked are printed. Resident
+ * memory is read from {@code /proc/self/status} and therefore only known on Linux.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VirtualThreadsBenchmark {
+    private static final long BLOCK_MILLIS = 50;
+    private static final int POOL_SIZE = 200;
+
+    @Param({"pool", "platform", "virtual"})
+    public String _mode;
+
+    @Param({"1000", "10000"})
+    public int _concurrency;
+
+    private ExecutorService _executor;
+    private final Object _lock = new Object();
+    private int _blocked;
+    private int _peakBlocked;
+    private long _baseRssKiB;
+    private long _peakRssKiB;
+
+    @Setup(Level.Iteration)
+    public void setUp() {
+        switch (_mode) {
+            case "pool":
+                _executor = Executors.newFixedThreadPool(POOL_SIZE, VirtualThreads.newThreadFactory("pool-", false));
+                break;
+            case "platform":
+                _executor = VirtualThreads.newPerTaskExecutor("platform-", false);
+                break;
+            default:
+                _executor = VirtualThreads.newPerTaskExecutor("virtual-", true);
+        }
+        _blocked = 0;
+        _peakBlocked = 0;
+        ManagementFactory.getThreadMXBean().resetPeakThreadCount();
+        _baseRssKiB = readRssKiB();
+        _peakRssKiB = _baseRssKiB;
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        _executor.shutdown();
+        _executor.awaitTermination(1, TimeUnit.MINUTES);
+        System.out.printf("%n%s: %d blocked at once, %d platform threads, %+d KiB resident%n", _mode, _peakBlocked,
+                ManagementFactory.getThreadMXBean().getPeakThreadCount(),
+                _baseRssKiB < 0 ? -1 : _peakRssKiB - _baseRssKiB);
+    }
+
+    @Benchmark
+    public void blockingRequests() throws InterruptedException {
+        final CountDownLatch done = new CountDownLatch(_concurrency);
+        for (int i = 0; i < _concurrency; i++) {
+            _executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (_lock) {
+                        _blocked++;
+                        _peakBlocked = Math.max(_peakBlocked, _blocked);
+                    }
+                    try {
+                        Thread.sleep(BLOCK_MILLIS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        synchronized (_lock) {
+                            _blocked--;
+                        }
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        // halfway through the first requests as many are blocked as the mode allows, which takes no longer than
+        // waiting for them
+        Thread.sleep(BLOCK_MILLIS / 2);
+        _peakRssKiB = Math.max(_peakRssKiB, readRssKiB());
+        done.await();
+    }
+
+    private static long readRssKiB() {
+        Path status = Paths.get("/proc/self/status");
+        if (!Files.isReadable(status)) {
+            return -1;
+        }
+        try {
+            for (String line : Files.readAllLines(status, StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.substring("VmRSS:".length()).replace("kB", "").trim());
+                }
+            }
+        } catch (IOException | NumberFormatException e) {
+            return -1;
+        }
+        return -1;
+    }
+}
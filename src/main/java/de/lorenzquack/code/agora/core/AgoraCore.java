@@ -23,7 +23,10 @@ import java.io.InputStream;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -36,8 +39,11 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.lorenzquack.code.agora.core.api.EventBus;
+import de.lorenzquack.code.agora.core.api.FilePort;
 import de.lorenzquack.code.agora.core.api.JSONConfig;
 import de.lorenzquack.code.agora.core.api.LifeCycle;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
 import de.lorenzquack.code.agora.core.api.NetworkAdaptor;
 import de.lorenzquack.code.agora.core.api.NetworkPort;
 import de.lorenzquack.code.agora.core.api.PluginPort;
@@ -45,7 +51,14 @@ import de.lorenzquack.code.agora.core.api.UIAdaptor;
 import de.lorenzquack.code.agora.core.api.UIPort;
 import de.lorenzquack.code.agora.core.api.ConfigurationStoreAdaptor;
 import de.lorenzquack.code.agora.core.config.ConfigurationStoreAdaptorJSONFile;
+import de.lorenzquack.code.agora.core.events.EventBusImpl;
+import de.lorenzquack.code.agora.core.files.FilePortImpl;
+import de.lorenzquack.code.agora.core.jfr.FlightEvent;
+import de.lorenzquack.code.agora.core.jfr.FlightEvents;
+import de.lorenzquack.code.agora.core.logging.DroppingAsyncAppender;
+import de.lorenzquack.code.agora.core.metrics.MetricRegistryImpl;
 import de.lorenzquack.code.agora.core.network.NetworkAdaptorTCP;
+import de.lorenzquack.code.agora.core.network.NetworkAdaptorUDP;
 import de.lorenzquack.code.agora.core.network.NetworkPortImpl;
 import de.lorenzquack.code.agora.core.plugins.PluginPortImpl;
 import de.lorenzquack.code.agora.core.ui.UIAdapterREST;
@@ -57,34 +70,43 @@ import static de.lorenzquack.code.agora.core.utils.Utils.streamToString;
 public class AgoraCore {
     private static final Logger LOGGER = LoggerFactory.getLogger(AgoraCore.class);
 
-    private static final ExecutorService MAIN_LOOP_EXECUTOR = Executors.newSingleThreadExecutor();
+    private final ExecutorService _mainLoopExecutor = Executors.newSingleThreadExecutor();
     private final List<LifeCycle> _managedObjects = new ArrayList<>();
 
     private final NetworkPort _networkPort;
+    private final FilePort _filePort;
     private final PluginPort _pluginsPort;
     private final UIPort _uiPort;
+    private final EventBusImpl _eventBus;
+    private final MetricRegistry _metrics;
 
     private final ConfigurationStoreAdaptor _configurationStoreAdaptor;
-    private final NetworkAdaptor _networkAdaptor;
-    private final UIAdaptor _uiAdaptorREST;
+    private final Map<String, NetworkAdaptor> _networkAdaptors;
+    private final Map<String, UIAdaptor> _uiAdaptors;
 
     private volatile boolean _quit = false;
     private Path _configurationDirectory;
     private JSONConfig _config;
+    private Future<Void> _mainLoop;
 
-    private AgoraCore() {
-        installShutdownHook();
+    private AgoraCore(Map<String, NetworkAdaptor> networkAdaptors, Map<String, UIAdaptor> uiAdaptors) {
         _networkPort = new NetworkPortImpl();
+        _filePort = new FilePortImpl();
         _pluginsPort = new PluginPortImpl();
         _uiPort = new UIPortImpl();
+        _eventBus = new EventBusImpl();
+        _metrics = new MetricRegistryImpl();
         _configurationStoreAdaptor = new ConfigurationStoreAdaptorJSONFile();
-        _networkAdaptor = new NetworkAdaptorTCP();
-        _uiAdaptorREST = new UIAdapterREST();
+        _networkAdaptors = networkAdaptors;
+        _uiAdaptors = uiAdaptors;
+        _managedObjects.addAll(_networkAdaptors.values());
         _managedObjects.add(_networkPort);
+        _managedObjects.add(_filePort);
         _managedObjects.add(_pluginsPort);
         _managedObjects.add(_uiPort);
-        _managedObjects.add(_networkAdaptor);
-        _managedObjects.add(_uiAdaptorREST);
+        _managedObjects.addAll(_uiAdaptors.values());
+        // stopped last so that no one publishes to a closed channel
+        _managedObjects.add(_eventBus);
     }
 
     private void installShutdownHook() {
@@ -103,17 +125,71 @@ public class AgoraCore {
     }
 
     static AgoraCore create() {
-        return new AgoraCore();
+        Map<String, NetworkAdaptor> networkAdaptors = new LinkedHashMap<>();
+        networkAdaptors.put("tcp", new NetworkAdaptorTCP());
+        networkAdaptors.put("udp", new NetworkAdaptorUDP());
+        Map<String, UIAdaptor> uiAdaptors = new LinkedHashMap<>();
+        uiAdaptors.put("rest", new UIAdapterREST());
+        AgoraCore core = new AgoraCore(networkAdaptors, uiAdaptors);
+        core.installShutdownHook();
+        return core;
+    }
+
+    /**
+     * Creates a core without UI adaptors and shutdown hook that only uses the given network adaptors.
+     * Lets many nodes share one JVM, e.g. in a {@link Simulation}.
+     */
+    static AgoraCore createEmbedded(Map<String, NetworkAdaptor> networkAdaptors) {
+        return new AgoraCore(networkAdaptors, Collections.<String, UIAdaptor>emptyMap());
+    }
+
+    NetworkPort getNetworkPort() {
+        return _networkPort;
     }
 
     void initialize() {
         for (LifeCycle object : _managedObjects) {
-            object.initialize();
+            FlightEvent event = FlightEvents.beginLifeCycle(object, "initialize");
+            try {
+                object.initialize();
+                event.setOutcome(FlightEvents.OUTCOME_OK);
+            } finally {
+                event.commit();
+            }
         }
-        _uiAdaptorREST.setUICore(_uiPort);
+        for (UIAdaptor uiAdaptor : _uiAdaptors.values()) {
+            uiAdaptor.setUICore(_uiPort);
+        }
+        for (Map.Entry<String, NetworkAdaptor> entry : _networkAdaptors.entrySet()) {
+            entry.getValue().setNetworkCore(_networkPort);
+            _networkPort.addNetworkAdaptor(entry.getKey(), entry.getValue());
+        }
+        DroppingAsyncAppender.registerMetrics(_metrics);
+        _configurationStoreAdaptor.setMetricRegistry(_metrics);
+        _networkPort.setMetricRegistry(_metrics);
+        _uiPort.setMetricRegistry(_metrics);
+        _networkPort.setConfigurationStore(_configurationStoreAdaptor);
+        _networkPort.setFilePort(_filePort);
+        _filePort.setNetworkPort(_networkPort);
+        _pluginsPort.setNetworkPort(_networkPort);
+        _uiPort.setNetworkPort(_networkPort);
+        _pluginsPort.setFilePort(_filePort);
+        _pluginsPort.setEventBus(_eventBus);
+        _uiPort.setEventBus(_eventBus);
+        _uiPort.setPluginPort(_pluginsPort);
     }
 
     void configure(String config) throws IOException {
+        FlightEvent event = FlightEvents.beginLifeCycle(this, "configure");
+        try {
+            configureComponents(config);
+            event.setOutcome(FlightEvents.OUTCOME_OK);
+        } finally {
+            event.commit();
+        }
+    }
+
+    private void configureComponents(String config) throws IOException {
         ObjectMapper jsonMapper = new ObjectMapper();
         JsonNode jsonRootNode;
         try {
@@ -130,20 +206,34 @@ public class AgoraCore {
             String defaultCoreConfigString = streamToString(defaultCoreConfigStream);
             _config = _configurationStoreAdaptor.createStore("core", defaultCoreConfigString);
         }
+        for (Map.Entry<String, NetworkAdaptor> entry : _networkAdaptors.entrySet()) {
+            entry.getValue().configure(_config.getPath("adaptors/network/" + entry.getKey()));
+        }
+        _eventBus.configure(_config.get("events"));
         _networkPort.configure(_config.get("network"));
+        _filePort.setDataDirectory(_configurationDirectory);
+        _filePort.configure(_config.get("files"));
+        _pluginsPort.setDataDirectory(_configurationDirectory);
         _pluginsPort.configure(_config.get("plugins"));
         _uiPort.configure(_config.get("ui"));
-        _uiAdaptorREST.configure(_config.getPath("adaptors/ui/rest"));
-        _networkAdaptor.configure(_config.get("adaptors/network/tcp"));
+        for (Map.Entry<String, UIAdaptor> entry : _uiAdaptors.entrySet()) {
+            entry.getValue().configure(_config.getPath("adaptors/ui/" + entry.getKey()));
+        }
     }
 
     void start() {
         for (LifeCycle object : _managedObjects) {
-            object.start();
+            FlightEvent event = FlightEvents.beginLifeCycle(object, "start");
+            try {
+                object.start();
+                event.setOutcome(FlightEvents.OUTCOME_OK);
+            } finally {
+                event.commit();
+            }
         }
         final AgoraCore core = this;
 
-        Future<Void> future = MAIN_LOOP_EXECUTOR.submit(new Callable<Void>() {
+        _mainLoop = _mainLoopExecutor.submit(new Callable<Void>() {
             @Override
             public Void call() throws Exception {
                 try {
@@ -158,8 +248,14 @@ public class AgoraCore {
                 return null;
             }
         });
+    }
+
+    /**
+     * Blocks until the main loop has terminated and all managed objects are stopped.
+     */
+    void awaitTermination() {
         try {
-            future.get();
+            _mainLoop.get();
         } catch (InterruptedException e) {
             e.printStackTrace();
         } catch (ExecutionException e) {
@@ -189,19 +285,31 @@ public class AgoraCore {
     private void stop() {
         LOGGER.info("Agora stop()");
         for (LifeCycle object : _managedObjects) {
-            object.stop();
+            FlightEvent event = FlightEvents.beginLifeCycle(object, "stop");
+            try {
+                object.stop();
+                event.setOutcome(FlightEvents.OUTCOME_OK);
+            } finally {
+                event.commit();
+            }
         }
 
         _quit = true;
-        MAIN_LOOP_EXECUTOR.shutdown();
+        _mainLoopExecutor.shutdown();
         try {
-            MAIN_LOOP_EXECUTOR.awaitTermination(1, TimeUnit.SECONDS);
+            _mainLoopExecutor.awaitTermination(1, TimeUnit.SECONDS);
         } catch (InterruptedException e) {
-            MAIN_LOOP_EXECUTOR.shutdownNow();
+            _mainLoopExecutor.shutdownNow();
         }
 
         for (LifeCycle object : _managedObjects) {
-            object.cleanup();
+            FlightEvent event = FlightEvents.beginLifeCycle(object, "cleanup");
+            try {
+                object.cleanup();
+                event.setOutcome(FlightEvents.OUTCOME_OK);
+            } finally {
+                event.commit();
+            }
         }
         try {
             _configurationStoreAdaptor.saveAll();
@@ -0,0 +1,269 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asStringOrDefault;
+
+
+/**
+ * Sends requests to the REST adaptor of a running Agora instance at a constant rate and reports the latency
+ * distribution.
+ * <p>
+ * The schedule is open loop: request {@code i} is due at {@code start + i / rate} no matter how many earlier ones are
+ * still outstanding, and its latency is measured from that time rather than from when a connection was free to send
+ * it. A server that stalls therefore shows up with the latency every request due during the stall experienced, and
+ * not with a single slow request, which is what a closed loop that waits for responses would report (coordinated
+ * omission). The uncorrected service time of the completed requests is reported alongside for comparison.
+ * <p>
+ * Failed requests, i.e. errors and statuses other than 2xx, count towards the latency too, so that a server that
+ * fails fast under load does not look faster than one that keeps up; their latency is also reported on its own.
+ * Requests that are still waiting for a connection when the run ends count as failed, with the latency from their
+ * due time to the end of the run.
+ */
+class LoadTest {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoadTest.class);
+    private static final int TIMEOUT_MILLIS = 10000;
+    private static final String ENDPOINT_LOGIN = "login";
+    private static final String ENDPOINT_STATIC = "static";
+
+    private final Histogram _latencyNanos = new ConcurrentHistogram(3);
+    private final Histogram _serviceTimeNanos = new ConcurrentHistogram(3);
+    private final Histogram _failedLatencyNanos = new ConcurrentHistogram(3);
+    private String _target;
+    private String _endpoint;
+    private String _username;
+    private String _password;
+    private int _connections;
+    private long _warmupSeconds;
+    private long _durationSeconds;
+    private int _requestsPerSecond;
+    private URL _url;
+    private byte[] _loginForm;
+
+    void configure(JSONConfig config) {
+        _target = asStringOrDefault(config.get("target"), "http://127.0.0.1:8080");
+        _endpoint = asStringOrDefault(config.get("endpoint"), ENDPOINT_STATIC);
+        _username = asStringOrDefault(config.get("username"), "admin");
+        _password = asStringOrDefault(config.get("password"), "");
+        _connections = Math.max(1, asIntOrDefault(config.get("connections"), 64));
+        _warmupSeconds = asLongOrDefault(config.get("warmup"), 5);
+        _durationSeconds = asLongOrDefault(config.get("duration"), 30);
+        _requestsPerSecond = Math.max(1, asIntOrDefault(config.get("rate"), 1000));
+    }
+
+    void run() throws IOException, InterruptedException {
+        if (ENDPOINT_LOGIN.equals(_endpoint)) {
+            _url = new URL(_target + "/api/login");
+            _loginForm = ("username=" + encode(_username) + "&password=" + encode(_password))
+                    .getBytes(StandardCharsets.US_ASCII);
+        } else if (ENDPOINT_STATIC.equals(_endpoint)) {
+            _url = new URL(_target + "/index.html");
+        } else {
+            throw new IllegalArgumentException("unknown endpoint " + _endpoint + ", expected "
+                    + ENDPOINT_STATIC + " or " + ENDPOINT_LOGIN);
+        }
+        // the JDK keeps only 5 idle connections per server alive unless told otherwise
+        if (System.getProperty("http.maxConnections") == null) {
+            System.setProperty("http.maxConnections", String.valueOf(_connections));
+        }
+        ExecutorService connections = Executors.newFixedThreadPool(_connections,
+                new ThreadFactoryBuilder().setNameFormat("agora-loadtest-%d").setDaemon(true).build());
+        LOGGER.info("sending {} requests/s to {} for {}s after {}s warmup over up to {} connections",
+                _requestsPerSecond, _url, _durationSeconds, _warmupSeconds, _connections);
+        long elapsedNanos;
+        try {
+            elapsedNanos = driveLoad(connections);
+        } finally {
+            connections.shutdown();
+            if (!connections.awaitTermination(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) {
+                List<Runnable> unsent = connections.shutdownNow();
+                long now = System.nanoTime();
+                for (Runnable request : unsent) {
+                    ((ScheduledRequest) request).abandon(now);
+                }
+                LOGGER.warn("{} requests were never sent and count as failed", unsent.size());
+            }
+        }
+        report(elapsedNanos);
+    }
+
+    /**
+     * @return the length of the measured period
+     */
+    private long driveLoad(ExecutorService connections) {
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / _requestsPerSecond;
+        long start = System.nanoTime();
+        long measureStart = start + TimeUnit.SECONDS.toNanos(_warmupSeconds);
+        long end = measureStart + TimeUnit.SECONDS.toNanos(_durationSeconds);
+        long lagNanos = 0;
+        for (long i = 0; ; i++) {
+            long due = start + i * intervalNanos;
+            if (due >= end) {
+                break;
+            }
+            long now = System.nanoTime();
+            while (now < due) {
+                LockSupport.parkNanos(due - now);
+                now = System.nanoTime();
+            }
+            lagNanos = Math.max(lagNanos, now - due);
+            connections.execute(new ScheduledRequest(due, due >= measureStart));
+        }
+        if (lagNanos > TimeUnit.MILLISECONDS.toNanos(10)) {
+            LOGGER.warn("the schedule fell up to {} ms behind, the load generator is short of CPU",
+                    TimeUnit.NANOSECONDS.toMillis(lagNanos));
+        }
+        return end - measureStart;
+    }
+
+    private void sendRequest(long due, boolean measured) {
+        long sentAt = System.nanoTime();
+        boolean ok;
+        try {
+            ok = exchange();
+        } catch (IOException e) {
+            LOGGER.debug("request to {} failed", _url, e);
+            ok = false;
+        }
+        if (!measured) {
+            return;
+        }
+        long now = System.nanoTime();
+        _latencyNanos.recordValue(now - due);
+        if (ok) {
+            _serviceTimeNanos.recordValue(now - sentAt);
+        } else {
+            _failedLatencyNanos.recordValue(now - due);
+        }
+    }
+
+    /**
+     * @return whether the server answered with a 2xx status
+     */
+    private boolean exchange() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) _url.openConnection();
+        connection.setConnectTimeout(TIMEOUT_MILLIS);
+        connection.setReadTimeout(TIMEOUT_MILLIS);
+        if (_loginForm != null) {
+            connection.setRequestMethod("POST");
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+            connection.setFixedLengthStreamingMode(_loginForm.length);
+            try (OutputStream body = connection.getOutputStream()) {
+                body.write(_loginForm);
+            }
+        }
+        int status = connection.getResponseCode();
+        // the body has to be read to the end for the connection to be reused
+        try (InputStream body = status < 400 ? connection.getInputStream() : connection.getErrorStream()) {
+            if (body != null) {
+                byte[] buffer = new byte[4096];
+                while (body.read(buffer) != -1) {
+                    // discard
+                }
+            }
+        }
+        return status / 100 == 2;
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        LOGGER.info("of the requests due in {}s {} completed and {} failed", String.format("%.1f", seconds),
+                _serviceTimeNanos.getTotalCount(), _failedLatencyNanos.getTotalCount());
+        logPercentiles("latency of all requests", _latencyNanos);
+        if (_failedLatencyNanos.getTotalCount() > 0) {
+            logPercentiles("latency of failed requests", _failedLatencyNanos);
+        }
+        logPercentiles("uncorrected service time of completed requests", _serviceTimeNanos);
+        _latencyNanos.outputPercentileDistribution(System.out, (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static void logPercentiles(String name, Histogram histogram) {
+        LOGGER.info("{} ms: p50={} p90={} p99={} p99.9={} max={}", name,
+                toMillis(histogram.getValueAtPercentile(50)),
+                toMillis(histogram.getValueAtPercentile(90)),
+                toMillis(histogram.getValueAtPercentile(99)),
+                toMillis(histogram.getValueAtPercentile(99.9)),
+                toMillis(histogram.getMaxValue()));
+    }
+
+    /**
+     * A request due at a fixed point of the schedule, waiting for a free connection.
+     */
+    private final class ScheduledRequest implements Runnable {
+        private final long _due;
+        private final boolean _measured;
+
+        private ScheduledRequest(long due, boolean measured) {
+            _due = due;
+            _measured = measured;
+        }
+
+        @Override
+        public void run() {
+            sendRequest(_due, _measured);
+        }
+
+        /**
+         * Counts the request as failed when the run ended at {@code now} before a connection was free to send it.
+         */
+        void abandon(long now) {
+            if (_measured) {
+                _latencyNanos.recordValue(now - _due);
+                _failedLatencyNanos.recordValue(now - _due);
+            }
+        }
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
@@ -28,6 +28,8 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+
 
 public class Main {
     private static final Logger LOGGER = LoggerFactory.getLogger(Main.class);
@@ -39,6 +41,12 @@ public class Main {
         for (String command : options._commands) {
             if ("help".equals(command)) {
                 parser.usage();
+            } else if ("simulate".equals(command)) {
+                simulate(options);
+                return;
+            } else if ("loadtest".equals(command)) {
+                loadTest(options);
+                return;
             } else {
                 LOGGER.info("Ignoring unsupported argument {}", command);
             }
@@ -53,13 +61,64 @@ public class Main {
             System.exit(1);
         }
         core.start();
+        core.awaitTermination();
         LOGGER.debug("Main#main() is exiting");
     }
 
+    private static void simulate(CommandlineOptions options) {
+        Simulation simulation = new Simulation();
+        try {
+            ObjectMapper jsonMapper = new ObjectMapper();
+            simulation.configure(new JSONConfigImpl(jsonMapper.writeValueAsString(options)));
+            simulation.run();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
+    private static void loadTest(CommandlineOptions options) {
+        LoadTest loadTest = new LoadTest();
+        try {
+            ObjectMapper jsonMapper = new ObjectMapper();
+            loadTest.configure(new JSONConfigImpl(jsonMapper.writeValueAsString(options)));
+            loadTest.run();
+        } catch (IOException | InterruptedException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+    }
+
     static class CommandlineOptions {
         @Parameter(description = "agora command to execute")
         public List<String> _commands = new ArrayList<>();
         @Parameter(names = { "--config-dir", "-c" })
         public String configurationDirectory = "~/.config/agora";
+        @Parameter(names = "--nodes", description = "simulate: number of nodes")
+        public int nodes = 20;
+        @Parameter(names = "--warmup", description = "simulate: seconds to wait for the cluster to form, loadtest: seconds of load before measuring")
+        public long warmup = 5;
+        @Parameter(names = "--duration", description = "simulate, loadtest: seconds to send requests for")
+        public long duration = 30;
+        @Parameter(names = "--rate", description = "simulate: requests per second across all nodes, loadtest: requests per second")
+        public int rate = 1000;
+        @Parameter(names = "--latency", description = "simulate: one way link latency in milliseconds")
+        public long latency = 1;
+        @Parameter(names = "--jitter", description = "simulate: maximum additional random latency in milliseconds")
+        public long jitter = 0;
+        @Parameter(names = "--bandwidth", description = "simulate: outgoing bandwidth per node in bytes per second, 0 for unlimited")
+        public long bandwidth = 0;
+        @Parameter(names = "--loss", description = "simulate: probability that an unacknowledged frame is lost")
+        public double loss = 0;
+        @Parameter(names = "--target", description = "loadtest: base URL of the REST adaptor")
+        public String target = "http://127.0.0.1:8080";
+        @Parameter(names = "--endpoint", description = "loadtest: static (GET /index.html) or login (POST /api/login)")
+        public String endpoint = "static";
+        @Parameter(names = "--connections", description = "loadtest: maximum number of concurrent requests")
+        public int connections = 64;
+        @Parameter(names = "--username", description = "loadtest: user to log in as")
+        public String username = "admin";
+        @Parameter(names = "--password", description = "loadtest: password to log in with")
+        public String password = "";
     }
 }
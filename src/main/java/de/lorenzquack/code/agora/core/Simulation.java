@@ -0,0 +1,278 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.NetworkAdaptor;
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.network.LoopbackNetwork;
+import de.lorenzquack.code.agora.core.network.Message;
+import de.lorenzquack.code.agora.core.network.MessageDispatcher;
+import de.lorenzquack.code.agora.core.network.MessageType;
+import de.lorenzquack.code.agora.core.network.NetworkAdaptorLoopback;
+import de.lorenzquack.code.agora.core.network.NetworkPortImpl;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asDoubleOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.streamToString;
+
+
+/**
+ * Boots a number of {@link AgoraCore} nodes in this JVM, connected through a {@link LoopbackNetwork}.
+ * After a warmup period every node's membership view is checked, then PING requests are sent between random
+ * members at a fixed rate and the throughput and round trip time distribution are reported.
+ */
+class Simulation {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Simulation.class);
+    private static final int PORT = 7070;
+    private static final long TICK_MILLIS = 10;
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final List<AgoraCore> _nodes = new ArrayList<>();
+    private final List<Path> _configurationDirectories = new ArrayList<>();
+    private final Histogram _roundTripNanos = new ConcurrentHistogram(TimeUnit.SECONDS.toNanos(60), 3);
+    private final AtomicLong _requestsSent = new AtomicLong();
+    private final AtomicLong _requestsFailed = new AtomicLong();
+    private int _nodeCount;
+    private long _warmupSeconds;
+    private long _durationSeconds;
+    private int _requestsPerSecond;
+    private long _latencyMillis;
+    private long _jitterMillis;
+    private long _bandwidthBytesPerSecond;
+    private double _lossRate;
+    private LoopbackNetwork _network;
+
+    void configure(JSONConfig config) {
+        _nodeCount = asIntOrDefault(config.get("nodes"), 20);
+        _warmupSeconds = asLongOrDefault(config.get("warmup"), 5);
+        _durationSeconds = asLongOrDefault(config.get("duration"), 30);
+        _requestsPerSecond = asIntOrDefault(config.get("rate"), 1000);
+        _latencyMillis = asLongOrDefault(config.get("latency"), 1);
+        _jitterMillis = asLongOrDefault(config.get("jitter"), 0);
+        _bandwidthBytesPerSecond = asLongOrDefault(config.get("bandwidth"), 0);
+        _lossRate = asDoubleOrDefault(config.get("loss"), 0);
+    }
+
+    void run() throws IOException, InterruptedException {
+        _network = new LoopbackNetwork(Runtime.getRuntime().availableProcessors());
+        try {
+            bootNodes();
+            TimeUnit.SECONDS.sleep(_warmupSeconds);
+            reportMembership();
+            long elapsedNanos = driveLoad();
+            report(elapsedNanos);
+        } finally {
+            shutdownNodes();
+            _network.shutdown();
+            deleteConfigurationDirectories();
+        }
+    }
+
+    private void bootNodes() throws IOException {
+        ObjectMapper jsonMapper = new ObjectMapper();
+        String defaultCoreConfig;
+        try (InputStream stream = getClass().getResourceAsStream("/core.json")) {
+            defaultCoreConfig = streamToString(stream);
+        }
+        for (int i = 0; i < _nodeCount; i++) {
+            Path configurationDirectory = Files.createTempDirectory("agora-simulation-");
+            _configurationDirectories.add(configurationDirectory);
+            ObjectNode coreConfig = (ObjectNode) jsonMapper.readTree(defaultCoreConfig);
+            ObjectNode network = (ObjectNode) coreConfig.get("network");
+            network.putObject("transports").put("control", "loopback").put("bulk", "loopback");
+            if (i > 0) {
+                network.putArray("bootstrap").add(hostOf(0) + ":" + PORT);
+            }
+            ((ObjectNode) coreConfig.get("adaptors")).putObject("network").putObject("loopback")
+                    .put("host", hostOf(i))
+                    .put("port", PORT)
+                    .put("latencyMillis", _latencyMillis)
+                    .put("jitterMillis", _jitterMillis)
+                    .put("bandwidthBytesPerSecond", _bandwidthBytesPerSecond)
+                    .put("lossRate", _lossRate);
+            Files.write(configurationDirectory.resolve("core.json"),
+                    jsonMapper.writeValueAsString(coreConfig).getBytes(StandardCharsets.UTF_8));
+
+            Map<String, NetworkAdaptor> networkAdaptors =
+                    Collections.<String, NetworkAdaptor>singletonMap("loopback", new NetworkAdaptorLoopback(_network));
+            AgoraCore core = AgoraCore.createEmbedded(networkAdaptors);
+            core.initialize();
+            ObjectNode options = jsonMapper.createObjectNode()
+                    .put("configurationDirectory", configurationDirectory.toString());
+            core.configure(jsonMapper.writeValueAsString(options));
+            core.start();
+            _nodes.add(core);
+        }
+        LOGGER.info("booted {} nodes", _nodeCount);
+    }
+
+    private static String hostOf(int node) {
+        int address = node + 1;
+        return "10." + ((address >> 16) & 0xff) + "." + ((address >> 8) & 0xff) + "." + (address & 0xff);
+    }
+
+    private void reportMembership() {
+        int minMembers = Integer.MAX_VALUE;
+        long totalMembers = 0;
+        for (AgoraCore node : _nodes) {
+            int members = node.getNetworkPort().getMembers().size();
+            minMembers = Math.min(minMembers, members);
+            totalMembers += members;
+        }
+        LOGGER.info("after {}s warmup nodes know on average {} and at least {} of {} other members",
+                _warmupSeconds, totalMembers / (double) _nodeCount, minMembers, _nodeCount - 1);
+    }
+
+    /**
+     * Sends requests open loop, i.e. at the configured rate regardless of how many are still outstanding.
+     */
+    private long driveLoad() throws InterruptedException {
+        ScheduledExecutorService loadGenerator = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("agora-simulation-%d").setDaemon(true).build());
+        final double requestsPerTick = _requestsPerSecond * TICK_MILLIS / 1000.0;
+        long start = System.nanoTime();
+        loadGenerator.scheduleAtFixedRate(new Runnable() {
+            private double _owed;
+
+            @Override
+            public void run() {
+                _owed += requestsPerTick;
+                while (_owed >= 1) {
+                    _owed -= 1;
+                    sendRandomRequest();
+                }
+            }
+        }, 0, TICK_MILLIS, TimeUnit.MILLISECONDS);
+        TimeUnit.SECONDS.sleep(_durationSeconds);
+        loadGenerator.shutdownNow();
+        long elapsedNanos = System.nanoTime() - start;
+        // give outstanding requests the chance to complete or time out
+        TimeUnit.MILLISECONDS.sleep(2500);
+        return elapsedNanos;
+    }
+
+    private void sendRandomRequest() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        AgoraCore node = _nodes.get(random.nextInt(_nodes.size()));
+        List<Peer> members = node.getNetworkPort().getMembers();
+        if (members.isEmpty()) {
+            return;
+        }
+        Peer target = members.get(random.nextInt(members.size()));
+        MessageDispatcher dispatcher = ((NetworkPortImpl) node.getNetworkPort()).getDispatcher();
+        final long sentAt = System.nanoTime();
+        _requestsSent.incrementAndGet();
+        Futures.addCallback(dispatcher.request(target.getAddress(), MessageType.PING, EMPTY),
+                new FutureCallback<Message>() {
+                    @Override
+                    public void onSuccess(Message result) {
+                        _roundTripNanos.recordValue(System.nanoTime() - sentAt);
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        _requestsFailed.incrementAndGet();
+                    }
+                });
+    }
+
+    private void report(long elapsedNanos) {
+        double seconds = elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1);
+        LOGGER.info("{} nodes, {} requests sent, {} completed, {} failed in {}s",
+                _nodeCount, _requestsSent.get(), _roundTripNanos.getTotalCount(), _requestsFailed.get(),
+                String.format("%.1f", seconds));
+        LOGGER.info("throughput: {} requests/s, {} frames/s, {} frames dropped",
+                String.format("%.0f", _roundTripNanos.getTotalCount() / seconds),
+                String.format("%.0f", _network.getFramesDelivered() / seconds), _network.getFramesDropped());
+        LOGGER.info("round trip ms: p50={} p90={} p99={} p99.9={} max={}",
+                toMillis(_roundTripNanos.getValueAtPercentile(50)),
+                toMillis(_roundTripNanos.getValueAtPercentile(90)),
+                toMillis(_roundTripNanos.getValueAtPercentile(99)),
+                toMillis(_roundTripNanos.getValueAtPercentile(99.9)),
+                toMillis(_roundTripNanos.getMaxValue()));
+        _roundTripNanos.outputPercentileDistribution(System.out, (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / 1e6);
+    }
+
+    private void shutdownNodes() {
+        // signal all nodes first so that they wind down in parallel
+        for (AgoraCore node : _nodes) {
+            node.shutdown();
+        }
+        for (AgoraCore node : _nodes) {
+            node.awaitTermination();
+        }
+    }
+
+    private void deleteConfigurationDirectories() {
+        for (Path directory : _configurationDirectories) {
+            try {
+                Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+                    @Override
+                    public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) throws IOException {
+                        Files.delete(file);
+                        return FileVisitResult.CONTINUE;
+                    }
+
+                    @Override
+                    public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                        Files.delete(dir);
+                        return FileVisitResult.CONTINUE;
+                    }
+                });
+            } catch (IOException e) {
+                LOGGER.warn("could not delete {}", directory, e);
+            }
+        }
+    }
+}
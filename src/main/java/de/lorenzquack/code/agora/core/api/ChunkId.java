@@ -0,0 +1,112 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import com.google.common.io.BaseEncoding;
+
+
+/**
+ * SHA-256 digest of a chunk's content, which is also its address in the chunk store.
+ */
+public final class ChunkId {
+    public static final int SIZE_IN_BYTES = 32;
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 is not available", e);
+            }
+        }
+    };
+
+    private final byte[] _bytes;
+    private final int _hashCode;
+
+    private ChunkId(byte[] bytes) {
+        _bytes = bytes;
+        _hashCode = Arrays.hashCode(bytes);
+    }
+
+    /**
+     * Hashes the remaining bytes of {@code data} without consuming them.
+     */
+    public static ChunkId of(ByteBuffer data) {
+        MessageDigest digest = DIGEST.get();
+        digest.update(data.duplicate());
+        return new ChunkId(digest.digest());
+    }
+
+    public static ChunkId fromBytes(byte[] bytes) {
+        if (bytes.length != SIZE_IN_BYTES) {
+            throw new IllegalArgumentException("ChunkId must be " + SIZE_IN_BYTES + " bytes long but was " + bytes.length);
+        }
+        return new ChunkId(bytes.clone());
+    }
+
+    public static ChunkId fromHex(String hex) {
+        return fromBytes(HEX.decode(hex.toLowerCase()));
+    }
+
+    public static ChunkId readFrom(ByteBuffer buffer) {
+        byte[] bytes = new byte[SIZE_IN_BYTES];
+        buffer.get(bytes);
+        return new ChunkId(bytes);
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(_bytes);
+    }
+
+    public byte[] toBytes() {
+        return _bytes.clone();
+    }
+
+    public String toHex() {
+        return HEX.encode(_bytes);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof ChunkId)) {
+            return false;
+        }
+        return Arrays.equals(_bytes, ((ChunkId) o)._bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return _hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
@@ -27,6 +27,8 @@ import de.lorenzquack.code.agora.core.api.JSONConfig;
 public interface ConfigurationStoreAdaptor {
     void setConfigurationDirectory(Path configurationDirectory);
 
+    void setMetricRegistry(MetricRegistry metrics);
+
     JSONConfig openStore(String storeName) throws IOException;
     JSONConfig createStore(String storeName, String initialContent) throws IOException;
     JSONConfig createStore(String storeName) throws IOException;
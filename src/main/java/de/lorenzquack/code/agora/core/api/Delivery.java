@@ -0,0 +1,29 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+public enum Delivery {
+    /** the frame may be lost, duplicated or reordered; the sender deals with it (e.g. by request timeouts) */
+    BEST_EFFORT,
+    /**
+     * the adaptor retransmits the frame until the remote adaptor acknowledged it, but gives up after a configured
+     * number of retransmits; the frame is then lost without the sender being told, and the adaptor only counts it
+     */
+    RELIABLE
+}
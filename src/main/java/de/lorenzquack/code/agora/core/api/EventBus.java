@@ -0,0 +1,46 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+/**
+ * Named, typed channels through which the core, plugins and UI adaptors publish events to each other. Each channel
+ * is a ring buffer of pre-allocated events that publishers fill in place, so publishing allocates nothing.
+ */
+public interface EventBus {
+    /**
+     * Creates a channel with the configured buffer size and wait strategy.
+     *
+     * @throws IllegalStateException if a channel of that name exists already
+     */
+    <T> EventChannel<T> createChannel(String name, Class<T> eventType, EventFactory<T> factory);
+
+    /**
+     * @param bufferSize rounded up to a power of two; publishers wait when the slowest subscriber is that many
+     *                   events behind
+     * @throws IllegalStateException if a channel of that name exists already
+     */
+    <T> EventChannel<T> createChannel(String name, Class<T> eventType, EventFactory<T> factory, int bufferSize,
+                                      WaitStrategy waitStrategy);
+
+    /**
+     * @return {@code null} if there is no such channel
+     * @throws IllegalArgumentException if the channel carries events of another type
+     */
+    <T> EventChannel<T> getChannel(String name, Class<T> eventType);
+}
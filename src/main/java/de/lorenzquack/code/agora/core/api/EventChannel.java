@@ -0,0 +1,43 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+/**
+ * A channel of an {@link EventBus}. Any number of threads may publish. Every subscriber sees every event published
+ * after it subscribed, in order, on its own thread.
+ */
+public interface EventChannel<T> {
+    String getName();
+
+    /**
+     * Claims the next event, lets {@code translator} fill it with {@code argument} and publishes it. Waits while
+     * the buffer is full.
+     */
+    <A> void publish(EventTranslator<T, A> translator, A argument);
+
+    /**
+     * Like {@link #publish} but does not wait.
+     *
+     * @return {@code false} if the buffer was full and the event was not published
+     */
+    <A> boolean tryPublish(EventTranslator<T, A> translator, A argument);
+
+    void subscribe(EventHandler<? super T> handler);
+    void unsubscribe(EventHandler<? super T> handler);
+}
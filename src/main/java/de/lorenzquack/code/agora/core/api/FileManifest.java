@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Describes a file as the ordered list of its chunks. Manifests are stored as chunks themselves, so the
+ * {@link ChunkId} of the encoded manifest identifies the file's content.
+ * Encoding: {@code [version:1][file size:8][chunk count:4][merkle root:32]} followed by
+ * {@code [chunk id:32][length:4]} per chunk. The root is that of the {@link MerkleTree} over the chunks; version 1
+ * manifests without it are still read.
+ */
+public final class FileManifest {
+    public static final int ENTRY_SIZE = ChunkId.SIZE_IN_BYTES + 4;
+    private static final byte VERSION = 2;
+    private static final byte VERSION_WITHOUT_ROOT = 1;
+    private static final int HEADER_SIZE = 1 + 8 + 4 + MerkleTree.HASH_SIZE;
+
+    private final long _size;
+    private final List<Chunk> _chunks;
+    private final byte[] _merkleRoot;
+
+    public FileManifest(List<Chunk> chunks) {
+        this(chunks, MerkleTree.build(chunks, null));
+    }
+
+    /**
+     * @param tree the tree over {@code chunks}, e.g. built in parallel
+     */
+    public FileManifest(List<Chunk> chunks, MerkleTree tree) {
+        this(chunks, tree.getRoot());
+    }
+
+    private FileManifest(List<Chunk> chunks, byte[] merkleRoot) {
+        long size = 0;
+        for (Chunk chunk : chunks) {
+            size += chunk.getLength();
+        }
+        _size = size;
+        _chunks = Collections.unmodifiableList(new ArrayList<>(chunks));
+        _merkleRoot = merkleRoot;
+    }
+
+    public static FileManifest decode(ByteBuffer buffer) {
+        byte version = buffer.get();
+        if (version != VERSION && version != VERSION_WITHOUT_ROOT) {
+            throw new IllegalArgumentException("unsupported manifest version " + version);
+        }
+        long size = buffer.getLong();
+        int count = buffer.getInt();
+        byte[] merkleRoot = null;
+        if (version == VERSION) {
+            merkleRoot = new byte[MerkleTree.HASH_SIZE];
+            buffer.get(merkleRoot);
+        }
+        if (count < 0 || (long) count * ENTRY_SIZE > buffer.remaining()) {
+            throw new IllegalArgumentException("invalid chunk count " + count);
+        }
+        List<Chunk> chunks = new ArrayList<>(count);
+        long offset = 0;
+        for (int i = 0; i < count; i++) {
+            ChunkId id = ChunkId.readFrom(buffer);
+            int length = buffer.getInt();
+            chunks.add(new Chunk(id, offset, length));
+            offset += length;
+        }
+        if (offset != size) {
+            throw new IllegalArgumentException("chunks add up to " + offset + " bytes but file has " + size);
+        }
+        return merkleRoot != null ? new FileManifest(chunks, merkleRoot) : new FileManifest(chunks);
+    }
+
+    public ByteBuffer encode() {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + _chunks.size() * ENTRY_SIZE);
+        buffer.put(VERSION);
+        buffer.putLong(_size);
+        buffer.putInt(_chunks.size());
+        buffer.put(_merkleRoot);
+        for (Chunk chunk : _chunks) {
+            chunk.getId().writeTo(buffer);
+            buffer.putInt(chunk.getLength());
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public long getSize() {
+        return _size;
+    }
+
+    public List<Chunk> getChunks() {
+        return _chunks;
+    }
+
+    public byte[] getMerkleRoot() {
+        return _merkleRoot.clone();
+    }
+
+    public static final class Chunk {
+        private final ChunkId _id;
+        private final long _offset;
+        private final int _length;
+
+        public Chunk(ChunkId id, long offset, int length) {
+            _id = id;
+            _offset = offset;
+            _length = length;
+        }
+
+        public ChunkId getId() {
+            return _id;
+        }
+
+        /**
+         * @return the position of the chunk's first byte in the file
+         */
+        public long getOffset() {
+            return _offset;
+        }
+
+        public int getLength() {
+            return _length;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+
+/**
+ * Content addressed file storage. Files are split into chunks that are stored once under their {@link ChunkId},
+ * so identical data in different files or versions of a file only takes up space once.
+ * All methods may be called concurrently.
+ */
+public interface FilePort extends LifeCycle {
+    /**
+     * Sets the directory relative paths in the configuration are resolved against.
+     */
+    void setDataDirectory(Path dataDirectory);
+
+    /**
+     * Chunks are downloaded from other nodes through {@code networkPort}.
+     */
+    void setNetworkPort(NetworkPort networkPort);
+
+    /**
+     * Splits {@code file} into chunks and stores them together with the file's manifest.
+     *
+     * @return the id of the manifest
+     */
+    ChunkId importFile(Path file) throws IOException;
+
+    /**
+     * Reassembles the file described by the manifest {@code manifestId} at {@code destination}.
+     *
+     * @throws java.nio.file.NoSuchFileException if the manifest or one of its chunks is not stored
+     */
+    void exportFile(ChunkId manifestId, Path destination) throws IOException;
+
+    /**
+     * Fetches the manifest {@code manifestId} and all of its chunks that are not stored yet from {@code peers},
+     * requesting different chunks from different peers in parallel. Chunks are verified and stored as they
+     * arrive, so calling this again after a failure only fetches what is still missing.
+     *
+     * @return a future for the manifest that completes once every chunk is stored and the file can be exported
+     */
+    ListenableFuture<FileManifest> download(ChunkId manifestId, Collection<InetSocketAddress> peers);
+
+    /**
+     * Like {@link #download(ChunkId, Collection)} for a new version of the local file {@code baseManifestId}: only
+     * the parts of the manifest whose {@link MerkleTree} differs from the base are transferred, and chunks the
+     * versions share are already stored.
+     */
+    ListenableFuture<FileManifest> download(ChunkId manifestId, ChunkId baseManifestId,
+                                            Collection<InetSocketAddress> peers);
+
+    /**
+     * Downloads are recorded in a checkpoint file as they progress; downloads that were interrupted by a restart
+     * are resumed when the port starts.
+     *
+     * @return the downloads in progress by manifest id
+     */
+    Map<ChunkId, ListenableFuture<FileManifest>> getDownloads();
+
+    FileManifest getManifest(ChunkId manifestId) throws IOException;
+
+    MerkleTree getMerkleTree(ChunkId manifestId) throws IOException;
+
+    /**
+     * Rehashes the chunks of the file in parallel. Corrupt chunks are discarded, so downloading the file again
+     * fetches only them.
+     *
+     * @return the chunks that were missing or corrupt
+     */
+    List<ChunkId> verify(ChunkId manifestId) throws IOException;
+
+    boolean hasChunk(ChunkId id);
+
+    /**
+     * @throws java.nio.file.NoSuchFileException if the chunk is not stored
+     */
+    ByteBuffer readChunk(ChunkId id) throws IOException;
+
+    /**
+     * @return where the chunk's bytes are stored, valid until the port is stopped
+     * @throws java.nio.file.NoSuchFileException if the chunk is not stored
+     */
+    FileRegion getChunkRegion(ChunkId id) throws IOException;
+
+    /**
+     * Stores the remaining bytes of {@code data} unless a chunk with the same content is already stored.
+     */
+    ChunkId writeChunk(ByteBuffer data) throws IOException;
+
+    FileStoreStatistics getStatistics();
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A range of bytes in an open file, e.g. a chunk inside a pack file. Handing regions instead of buffers to the
+ * network lets stream adaptors send file content without copying it through the heap.
+ */
+public final class FileRegion {
+    private final FileChannel _channel;
+    private final long _position;
+    private final int _length;
+
+    public FileRegion(FileChannel channel, long position, int length) {
+        _channel = channel;
+        _position = position;
+        _length = length;
+    }
+
+    public int getLength() {
+        return _length;
+    }
+
+    /**
+     * Fills {@code destination} with the region's bytes starting at {@code offset} using positional reads.
+     *
+     * @return the number of bytes read, less than {@code destination.remaining()} only at the end of the region
+     */
+    public int read(long offset, ByteBuffer destination) throws IOException {
+        int count = (int) Math.min(destination.remaining(), _length - offset);
+        int limit = destination.limit();
+        destination.limit(destination.position() + count);
+        try {
+            long position = _position + offset;
+            while (destination.hasRemaining()) {
+                int read = _channel.read(destination, position);
+                if (read < 0) {
+                    throw new EOFException("file region ends before " + (offset + count));
+                }
+                position += read;
+            }
+        } finally {
+            destination.limit(limit);
+        }
+        return count;
+    }
+
+    /**
+     * Sends the whole region to {@code target}, letting the kernel copy the bytes directly where it can.
+     */
+    public void transferTo(WritableByteChannel target) throws IOException {
+        long position = _position;
+        long end = _position + _length;
+        while (position < end) {
+            long transferred = _channel.transferTo(position, end - position, target);
+            if (transferred <= 0 && position >= _channel.size()) {
+                throw new EOFException("file region ends at " + _channel.size());
+            }
+            position += transferred;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+
+/**
+ * A snapshot of the counters of the local chunk store.
+ */
+public final class FileStoreStatistics {
+    private final int _chunkCount;
+    private final long _storedBytes;
+    private final long _deduplicatedBytes;
+    private final long _mappedBytes;
+    private final long _mappedReads;
+    private final long _mappingMisses;
+    private final long _positionalReads;
+    private final long _minorPageFaults;
+    private final long _majorPageFaults;
+
+    public FileStoreStatistics(int chunkCount, long storedBytes, long deduplicatedBytes, long mappedBytes,
+                               long mappedReads, long mappingMisses, long positionalReads, long minorPageFaults,
+                               long majorPageFaults) {
+        _chunkCount = chunkCount;
+        _storedBytes = storedBytes;
+        _deduplicatedBytes = deduplicatedBytes;
+        _mappedBytes = mappedBytes;
+        _mappedReads = mappedReads;
+        _mappingMisses = mappingMisses;
+        _positionalReads = positionalReads;
+        _minorPageFaults = minorPageFaults;
+        _majorPageFaults = majorPageFaults;
+    }
+
+    public int getChunkCount() {
+        return _chunkCount;
+    }
+
+    public long getStoredBytes() {
+        return _storedBytes;
+    }
+
+    /**
+     * @return the bytes of written chunks that were not stored because the store already had them
+     */
+    public long getDeduplicatedBytes() {
+        return _deduplicatedBytes;
+    }
+
+    /**
+     * @return the bytes of pack files currently mapped into memory
+     */
+    public long getMappedBytes() {
+        return _mappedBytes;
+    }
+
+    /**
+     * @return the reads served from a window that was already mapped
+     */
+    public long getMappedReads() {
+        return _mappedReads;
+    }
+
+    /**
+     * @return the reads that had to map a window first
+     */
+    public long getMappingMisses() {
+        return _mappingMisses;
+    }
+
+    public long getPositionalReads() {
+        return _positionalReads;
+    }
+
+    /**
+     * @return the share of reads served from an already mapped window, or 0 before the first read
+     */
+    public double getMappingHitRate() {
+        long reads = _mappedReads + _mappingMisses + _positionalReads;
+        return reads == 0 ? 0 : (double) _mappedReads / reads;
+    }
+
+    /**
+     * @return the page faults of the whole process that did not need disk I/O, or -1 where the platform does not
+     *         report them (only Linux does)
+     */
+    public long getMinorPageFaults() {
+        return _minorPageFaults;
+    }
+
+    /**
+     * @return the page faults of the whole process that read from disk, or -1 where the platform does not report them
+     */
+    public long getMajorPageFaults() {
+        return _majorPageFaults;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%d chunks, %d bytes stored, %d bytes mapped, %.1f%% mapping hits, %d major page faults",
+                _chunkCount, _storedBytes, _mappedBytes, 100 * getMappingHitRate(), _majorPageFaults);
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+public final class MembershipEvent {
+    public enum Type {
+        /** a node we did not know before is alive */
+        JOINED,
+        /** a node did not answer probes and is suspected to have failed */
+        SUSPECTED,
+        /** a suspected node refuted the suspicion */
+        RECOVERED,
+        /** a node was confirmed to have failed */
+        FAILED
+    }
+
+    private final Type _type;
+    private final Peer _peer;
+    private final int _incarnation;
+
+    public MembershipEvent(Type type, Peer peer, int incarnation) {
+        _type = type;
+        _peer = peer;
+        _incarnation = incarnation;
+    }
+
+    public Type getType() {
+        return _type;
+    }
+
+    public Peer getPeer() {
+        return _peer;
+    }
+
+    public int getIncarnation() {
+        return _incarnation;
+    }
+
+    @Override
+    public String toString() {
+        return _type + " " + _peer + " (incarnation " + _incarnation + ")";
+    }
+}
@@ -0,0 +1,294 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * Binary hash tree over the chunks of a {@link FileManifest}. Level 0 holds one leaf per chunk,
+ * {@code SHA-256(0x00 || chunk id || length:4)}; every node above is {@code SHA-256(0x01 || left || right)} and the
+ * last node of a level without a sibling is carried up unchanged. Node {@code i} of level {@code l} covers the chunks
+ * {@code [i * 2^l, (i + 1) * 2^l)}, so two versions of a file are compared from the root down, skipping every subtree
+ * whose hashes are equal, in time proportional to the number of changed chunks instead of the file size.
+ */
+public final class MerkleTree {
+    public static final int HASH_SIZE = 32;
+    private static final byte LEAF = 0;
+    private static final byte NODE = 1;
+    private static final int PARALLEL_THRESHOLD = 2048;
+    private static final ThreadLocal<MessageDigest> DIGEST = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException("SHA-256 is not available", e);
+            }
+        }
+    };
+
+    private final int _leafCount;
+    /** the concatenated hashes of each level, leaves first */
+    private final byte[][] _levels;
+
+    private MerkleTree(int leafCount, byte[][] levels) {
+        _leafCount = leafCount;
+        _levels = levels;
+    }
+
+    /**
+     * @param pool hashes large levels in parallel if not {@code null}
+     */
+    public static MerkleTree build(List<FileManifest.Chunk> chunks, ForkJoinPool pool) {
+        int leafCount = chunks.size();
+        byte[][] levels = new byte[getLevelCount(leafCount)][];
+        if (leafCount == 0) {
+            return new MerkleTree(0, levels);
+        }
+        levels[0] = new byte[leafCount * HASH_SIZE];
+        run(pool, new HashLeaves(chunks, levels[0], 0, leafCount));
+        for (int level = 1; level < levels.length; level++) {
+            byte[] nodes = new byte[getLevelSize(leafCount, level) * HASH_SIZE];
+            levels[level] = nodes;
+            run(pool, new HashNodes(levels[level - 1], nodes, 0, nodes.length / HASH_SIZE));
+        }
+        return new MerkleTree(leafCount, levels);
+    }
+
+    public static int getLevelCount(int leafCount) {
+        int levels = 1;
+        for (int size = leafCount; size > 1; size = (size + 1) / 2) {
+            levels++;
+        }
+        return leafCount == 0 ? 0 : levels;
+    }
+
+    public static int getLevelSize(int leafCount, int level) {
+        return (int) ((leafCount + (1L << level) - 1) >> level);
+    }
+
+    public static byte[] leafHash(ChunkId id, int length) {
+        byte[] hash = new byte[HASH_SIZE];
+        leafHash(id, length, DIGEST.get(), hash, 0);
+        return hash;
+    }
+
+    /**
+     * @return the root hash; for an empty file the hash of no input
+     */
+    public byte[] getRoot() {
+        if (_leafCount == 0) {
+            return DIGEST.get().digest();
+        }
+        return getHash(_levels.length - 1, 0);
+    }
+
+    public int getLeafCount() {
+        return _leafCount;
+    }
+
+    public int getLevelCount() {
+        return _levels.length;
+    }
+
+    public int getLevelSize(int level) {
+        return getLevelSize(_leafCount, level);
+    }
+
+    public byte[] getHash(int level, int index) {
+        byte[] hash = new byte[HASH_SIZE];
+        System.arraycopy(_levels[level], index * HASH_SIZE, hash, 0, HASH_SIZE);
+        return hash;
+    }
+
+    /**
+     * @return whether this tree has node {@code index} on {@code level} and its hash equals the one at the position of
+     *         {@code hash}, which is not consumed
+     */
+    public boolean hasHash(int level, int index, ByteBuffer hash) {
+        if (level >= _levels.length || index >= getLevelSize(level)) {
+            return false;
+        }
+        byte[] hashes = _levels[level];
+        int position = hash.position();
+        for (int i = 0; i < HASH_SIZE; i++) {
+            if (hashes[index * HASH_SIZE + i] != hash.get(position + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public void writeHashes(int level, int first, int count, ByteBuffer destination) {
+        destination.put(_levels[level], first * HASH_SIZE, count * HASH_SIZE);
+    }
+
+    /**
+     * @return the indices of the chunks of {@code other} that differ from the chunk at the same position in this tree
+     */
+    public List<Integer> getDifferingLeaves(MerkleTree other) {
+        List<Integer> differing = new ArrayList<>();
+        if (other._leafCount > 0) {
+            collectDifferences(other, other._levels.length - 1, 0, differing);
+        }
+        return differing;
+    }
+
+    private void collectDifferences(MerkleTree other, int level, int index, List<Integer> differing) {
+        if (hasHash(level, index, ByteBuffer.wrap(other._levels[level], index * HASH_SIZE, HASH_SIZE))) {
+            return;
+        }
+        if (level == 0) {
+            differing.add(index);
+            return;
+        }
+        for (int child = 2 * index; child <= 2 * index + 1 && child < other.getLevelSize(level - 1); child++) {
+            collectDifferences(other, level - 1, child, differing);
+        }
+    }
+
+    private static void leafHash(ChunkId id, int length, MessageDigest digest, byte[] destination, int offset) {
+        digest.update(LEAF);
+        digest.update(id.toBytes());
+        digest.update((byte) (length >>> 24));
+        digest.update((byte) (length >>> 16));
+        digest.update((byte) (length >>> 8));
+        digest.update((byte) length);
+        digestInto(digest, destination, offset);
+    }
+
+    private static void digestInto(MessageDigest digest, byte[] destination, int offset) {
+        try {
+            digest.digest(destination, offset, HASH_SIZE);
+        } catch (DigestException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void run(ForkJoinPool pool, HashLevel task) {
+        if (pool == null || task._to - task._from <= PARALLEL_THRESHOLD) {
+            task.compute();
+        } else {
+            pool.invoke(task);
+        }
+    }
+
+    /**
+     * Hashes the nodes {@code [from, to)} of one level, splitting the range until it is small enough.
+     */
+    private abstract static class HashLevel extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int _from;
+        private final int _to;
+
+        private HashLevel(int from, int to) {
+            _from = from;
+            _to = to;
+        }
+
+        abstract void hash(int index, MessageDigest digest);
+
+        /**
+         * @return a task hashing the nodes {@code [from, to)} of the same level
+         */
+        abstract HashLevel split(int from, int to);
+
+        @Override
+        protected void compute() {
+            if (_to - _from <= PARALLEL_THRESHOLD || getPool() == null) {
+                MessageDigest digest = DIGEST.get();
+                for (int index = _from; index < _to; index++) {
+                    hash(index, digest);
+                }
+                return;
+            }
+            int middle = (_from + _to) >>> 1;
+            invokeAll(split(_from, middle), split(middle, _to));
+        }
+    }
+
+    /**
+     * Hashes the chunks into the leaves.
+     */
+    private static final class HashLeaves extends HashLevel {
+        private static final long serialVersionUID = 1L;
+
+        private final List<FileManifest.Chunk> _chunks;
+        private final byte[] _leaves;
+
+        private HashLeaves(List<FileManifest.Chunk> chunks, byte[] leaves, int from, int to) {
+            super(from, to);
+            _chunks = chunks;
+            _leaves = leaves;
+        }
+
+        @Override
+        void hash(int index, MessageDigest digest) {
+            FileManifest.Chunk chunk = _chunks.get(index);
+            leafHash(chunk.getId(), chunk.getLength(), digest, _leaves, index * HASH_SIZE);
+        }
+
+        @Override
+        HashLevel split(int from, int to) {
+            return new HashLeaves(_chunks, _leaves, from, to);
+        }
+    }
+
+    /**
+     * Hashes pairs of children into their parents, a lone last child is carried up unchanged.
+     */
+    private static final class HashNodes extends HashLevel {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[] _children;
+        private final byte[] _nodes;
+
+        private HashNodes(byte[] children, byte[] nodes, int from, int to) {
+            super(from, to);
+            _children = children;
+            _nodes = nodes;
+        }
+
+        @Override
+        void hash(int index, MessageDigest digest) {
+            int left = 2 * index;
+            if (left + 1 == _children.length / HASH_SIZE) {
+                System.arraycopy(_children, left * HASH_SIZE, _nodes, index * HASH_SIZE, HASH_SIZE);
+            } else {
+                digest.update(NODE);
+                digest.update(_children, left * HASH_SIZE, 2 * HASH_SIZE);
+                digestInto(digest, _nodes, index * HASH_SIZE);
+            }
+        }
+
+        @Override
+        HashLevel split(int from, int to) {
+            return new HashNodes(_children, _nodes, from, to);
+        }
+    }
+}
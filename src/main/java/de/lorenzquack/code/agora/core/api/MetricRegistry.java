@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.io.IOException;
+
+/**
+ * Counters, timers and gauges that the core reports about itself. Metrics are identified by name and labels; asking
+ * twice for the same metric returns the same instance, so callers look their metrics up once and keep them.
+ * Names follow the Prometheus conventions, e.g. {@code agora_ui_logins_total} or
+ * {@code agora_rest_request_duration_seconds}.
+ */
+public interface MetricRegistry {
+    /**
+     * @param labels alternating label names and values
+     * @throws IllegalArgumentException if the name is used by a metric of another type or the labels are not pairs
+     */
+    Counter counter(String name, String help, String... labels);
+
+    /**
+     * @see #counter
+     */
+    Timer timer(String name, String help, String... labels);
+
+    /**
+     * Registers a gauge that is read whenever the metrics are written. A gauge registered again replaces the
+     * previous one.
+     *
+     * @see #counter
+     */
+    void gauge(String name, String help, Gauge gauge, String... labels);
+
+    /**
+     * Writes all metrics in the Prometheus text exposition format.
+     */
+    void writeTextFormat(Appendable out) throws IOException;
+}
@@ -18,5 +18,33 @@
  */
 package de.lorenzquack.code.agora.core.api;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
 public interface NetworkAdaptor extends LifeCycle {
+    void setNetworkCore(NetworkPort core);
+
+    /**
+     * @return the address remote nodes can reach this adaptor on. Only valid after start().
+     */
+    InetSocketAddress getLocalAddress();
+
+    /**
+     * @return the largest frame {@link #send} accepts
+     */
+    int getMaxFrameSize();
+
+    /**
+     * Sends a single frame to the remote node. The adaptor takes care of framing on the wire;
+     * the remote {@link NetworkPort#receive} gets exactly the remaining bytes of {@code frame}.
+     * Stream based adaptors are always reliable and may ignore {@code delivery}.
+     */
+    void send(InetSocketAddress destination, ByteBuffer frame, Delivery delivery) throws IOException;
+
+    /**
+     * Like {@link #send(InetSocketAddress, ByteBuffer, Delivery)}, but stream based adaptors let {@code frame}
+     * write itself to the connection. Others may copy it into a buffer first.
+     */
+    void send(InetSocketAddress destination, StreamedFrame frame, Delivery delivery) throws IOException;
 }
@@ -18,5 +18,83 @@
  */
 package de.lorenzquack.code.agora.core.api;
 
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
 public interface NetworkPort extends LifeCycle {
+    /**
+     * Registers a transport under the name used by the "transports" section of the network configuration.
+     */
+    void addNetworkAdaptor(String name, NetworkAdaptor adaptor);
+    void setConfigurationStore(ConfigurationStoreAdaptor configurationStore);
+
+    /**
+     * Chunks of this store are served to remote nodes that request them.
+     */
+    void setFilePort(FilePort filePort);
+
+    void setMetricRegistry(MetricRegistry metrics);
+
+    NodeId getLocalNodeId();
+
+    /**
+     * Called by the {@link NetworkAdaptor} for every frame received from a remote node.
+     */
+    void receive(InetSocketAddress source, ByteBuffer frame);
+
+    /**
+     * Iteratively looks up the nodes closest to {@code target} in the network.
+     *
+     * @return the (up to) k closest live peers known after the lookup converged, ordered by distance
+     */
+    ListenableFuture<List<Peer>> lookup(NodeId target);
+
+    /**
+     * @return the members of the cluster currently believed to be alive (not including this node)
+     */
+    List<Peer> getMembers();
+
+    /**
+     * Requests a chunk from {@code peer}. The future fails if the peer does not have the chunk, does not answer in
+     * time or sends data that does not hash to {@code id}.
+     */
+    ListenableFuture<ByteBuffer> fetchChunk(InetSocketAddress peer, ChunkId id);
+
+    /**
+     * Asks {@code peer} which chunks of the manifest {@code manifestId} it has.
+     *
+     * @return a future for a set with bit {@code i} set if the peer has the manifest's {@code i}-th chunk; empty if
+     *         the peer does not know the manifest
+     */
+    ListenableFuture<BitSet> queryChunks(InetSocketAddress peer, ChunkId manifestId);
+
+    /**
+     * Rebuilds the manifest {@code manifestId} from the local manifest {@code baseManifestId} by descending
+     * {@code peer}'s {@link MerkleTree} only where it differs from the base's. The result is verified against
+     * {@code manifestId}.
+     */
+    ListenableFuture<FileManifest> syncManifest(InetSocketAddress peer, ChunkId manifestId, ChunkId baseManifestId);
+
+    /**
+     * @return the outbound bandwidth limits in bytes per second, 0 meaning unlimited, by scope: {@code global} for
+     *         the whole node, {@code peer} for each destination and {@code flow/<name>} for a traffic flow such as
+     *         {@code flow/control} or {@code flow/files}
+     */
+    Map<String, Long> getBandwidthLimits();
+
+    /**
+     * Changes an outbound bandwidth limit at runtime.
+     *
+     * @param scope as in {@link #getBandwidthLimits()}
+     * @param bytesPerSecond 0 removes the limit
+     */
+    void setBandwidthLimit(String scope, long bytesPerSecond);
+
+    void addMembershipListener(MembershipListener listener);
+    void removeMembershipListener(MembershipListener listener);
 }
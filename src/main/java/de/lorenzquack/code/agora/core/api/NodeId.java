@@ -0,0 +1,160 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import com.google.common.io.BaseEncoding;
+
+
+/**
+ * 160 bit identifier of an Agora node.
+ * The distance between two ids is their XOR interpreted as an unsigned integer (Kademlia metric).
+ */
+public final class NodeId implements Comparable<NodeId> {
+    public static final int SIZE_IN_BITS = 160;
+    public static final int SIZE_IN_BYTES = SIZE_IN_BITS / Byte.SIZE;
+    private static final BaseEncoding HEX = BaseEncoding.base16().lowerCase();
+
+    private final byte[] _bytes;
+    private final int _hashCode;
+
+    private NodeId(byte[] bytes) {
+        _bytes = bytes;
+        _hashCode = Arrays.hashCode(bytes);
+    }
+
+    public static NodeId random(Random random) {
+        byte[] bytes = new byte[SIZE_IN_BYTES];
+        random.nextBytes(bytes);
+        return new NodeId(bytes);
+    }
+
+    public static NodeId fromBytes(byte[] bytes) {
+        if (bytes.length != SIZE_IN_BYTES) {
+            throw new IllegalArgumentException("NodeId must be " + SIZE_IN_BYTES + " bytes long but was " + bytes.length);
+        }
+        return new NodeId(bytes.clone());
+    }
+
+    public static NodeId fromHex(String hex) {
+        return fromBytes(HEX.decode(hex.toLowerCase()));
+    }
+
+    public static NodeId readFrom(ByteBuffer buffer) {
+        byte[] bytes = new byte[SIZE_IN_BYTES];
+        buffer.get(bytes);
+        return new NodeId(bytes);
+    }
+
+    /**
+     * @return a random id whose distance to this id has its highest set bit at {@code bucketIndex}
+     */
+    public NodeId randomInBucket(int bucketIndex, Random random) {
+        byte[] distance = new byte[SIZE_IN_BYTES];
+        random.nextBytes(distance);
+        int byteIndex = SIZE_IN_BYTES - 1 - bucketIndex / Byte.SIZE;
+        int bitInByte = bucketIndex % Byte.SIZE;
+        for (int i = 0; i < byteIndex; i++) {
+            distance[i] = 0;
+        }
+        int mask = (1 << bitInByte);
+        distance[byteIndex] = (byte) ((distance[byteIndex] & (mask - 1)) | mask);
+        byte[] bytes = new byte[SIZE_IN_BYTES];
+        for (int i = 0; i < SIZE_IN_BYTES; i++) {
+            bytes[i] = (byte) (_bytes[i] ^ distance[i]);
+        }
+        return new NodeId(bytes);
+    }
+
+    public void writeTo(ByteBuffer buffer) {
+        buffer.put(_bytes);
+    }
+
+    public byte[] toBytes() {
+        return _bytes.clone();
+    }
+
+    public String toHex() {
+        return HEX.encode(_bytes);
+    }
+
+    /**
+     * @return the index of the highest bit in which the two ids differ, or -1 if they are equal.
+     *         This is the index of the k-bucket {@code other} belongs into from the point of view of this id.
+     */
+    public int bucketIndexOf(NodeId other) {
+        for (int i = 0; i < SIZE_IN_BYTES; i++) {
+            int xor = (_bytes[i] ^ other._bytes[i]) & 0xff;
+            if (xor != 0) {
+                return (SIZE_IN_BYTES - 1 - i) * Byte.SIZE + (31 - Integer.numberOfLeadingZeros(xor));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the distances of {@code a} and {@code b} to this id.
+     */
+    public int compareDistance(NodeId a, NodeId b) {
+        for (int i = 0; i < SIZE_IN_BYTES; i++) {
+            int distanceA = (_bytes[i] ^ a._bytes[i]) & 0xff;
+            int distanceB = (_bytes[i] ^ b._bytes[i]) & 0xff;
+            if (distanceA != distanceB) {
+                return distanceA < distanceB ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public int compareTo(NodeId other) {
+        for (int i = 0; i < SIZE_IN_BYTES; i++) {
+            int a = _bytes[i] & 0xff;
+            int b = other._bytes[i] & 0xff;
+            if (a != b) {
+                return a < b ? -1 : 1;
+            }
+        }
+        return 0;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof NodeId)) {
+            return false;
+        }
+        return Arrays.equals(_bytes, ((NodeId) o)._bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return _hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.net.InetSocketAddress;
+
+
+/**
+ * A remote Agora node: its id and the address it listens on.
+ */
+public final class Peer {
+    private final NodeId _nodeId;
+    private final InetSocketAddress _address;
+
+    public Peer(NodeId nodeId, InetSocketAddress address) {
+        _nodeId = nodeId;
+        _address = address;
+    }
+
+    public NodeId getNodeId() {
+        return _nodeId;
+    }
+
+    public InetSocketAddress getAddress() {
+        return _address;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Peer)) {
+            return false;
+        }
+        Peer other = (Peer) o;
+        return _nodeId.equals(other._nodeId) && _address.equals(other._address);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * _nodeId.hashCode() + _address.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return _nodeId.toHex().substring(0, 8) + "@" + _address.getHostString() + ":" + _address.getPort();
+    }
+}
@@ -18,5 +18,85 @@
  */
 package de.lorenzquack.code.agora.core.api;
 
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Plugins are installed as directories below the {@code directory} of the plugins configuration, each with a
+ * {@code plugin.json} manifest. Only the manifests are read when the core starts; a plugin is loaded in its own
+ * class loader and started when it is first used.
+ */
 public interface PluginPort extends LifeCycle {
+    /**
+     * Sets the directory relative paths in the configuration are resolved against.
+     */
+    void setDataDirectory(Path dataDirectory);
+    void setNetworkPort(NetworkPort networkPort);
+    void setFilePort(FilePort filePort);
+
+    /**
+     * @return the content addressed file store plugins share and exchange files through
+     */
+    FilePort getFilePort();
+
+    void setEventBus(EventBus eventBus);
+
+    /**
+     * @return the bus through which the core, plugins and UI adaptors publish events to each other
+     */
+    EventBus getEventBus();
+
+    /**
+     * Registers a listener that is informed whenever a remote node joins, is suspected to have failed,
+     * recovers or is confirmed to have failed. Events are delivered on a plugin event thread, never on a
+     * network thread, so listeners may block briefly without disturbing failure detection.
+     */
+    void addMembershipListener(MembershipListener listener);
+    void removeMembershipListener(MembershipListener listener);
+
+    /**
+     * @return the names of the installed plugins, whether active or not
+     */
+    List<String> getInstalledPlugins();
+
+    boolean isPluginActive(String name);
+
+    /**
+     * Returns the plugin, loading and starting it first if it is not active yet. Calls on the returned adaptor run on
+     * the plugin's own threads and wait for them.
+     *
+     * @return {@code null} if no such plugin is installed
+     * @throws de.lorenzquack.code.agora.core.api.exceptions.AgoraException if the plugin cannot be loaded or started
+     */
+    PluginAdaptor getPlugin(String name);
+
+    /**
+     * Calls into a plugin run on the plugin's own threads within a CPU quota; see the plugins section of the
+     * developer documentation.
+     *
+     * @return the status of every installed plugin
+     */
+    List<PluginStatus> getPluginStatus();
+
+    /**
+     * Lifts the suspension of a plugin that exceeded its CPU quota too often.
+     *
+     * @throws IllegalArgumentException if no such plugin is installed
+     */
+    void resumePlugin(String name);
+
+    /**
+     * Shows {@code control} in the UI, replacing the control with the same id; plugins should use their name as the
+     * id. UIs receive only what changed since the version they show.
+     */
+    void publishUIControl(UIControl control);
+
+    void removeUIControl(String id);
+
+    /**
+     * Waits up to {@code timeoutMillis} for the controls to change after {@code sinceVersion}.
+     *
+     * @param sinceVersion the version the UI shows, 0 if it shows nothing yet
+     */
+    UIControlUpdate getUIControlUpdate(long sinceVersion, long timeoutMillis);
 }
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+
+/**
+ * A snapshot of how an installed plugin uses its share of the node.
+ */
+public final class PluginStatus {
+    public enum State {
+        /** installed but not loaded yet */
+        INACTIVE,
+        RUNNING,
+        /** used more than its CPU quota; its calls wait for the next quota window */
+        THROTTLED,
+        /** exceeded its quota repeatedly; its calls are dropped until it is resumed */
+        SUSPENDED
+    }
+
+    private final String _name;
+    private final State _state;
+    private final long _calls;
+    private final long _droppedCalls;
+    private final long _budgetViolations;
+    private final long _cpuNanos;
+    private final int _queuedCalls;
+
+    public PluginStatus(String name, State state, long calls, long droppedCalls, long budgetViolations,
+                        long cpuNanos, int queuedCalls) {
+        _name = name;
+        _state = state;
+        _calls = calls;
+        _droppedCalls = droppedCalls;
+        _budgetViolations = budgetViolations;
+        _cpuNanos = cpuNanos;
+        _queuedCalls = queuedCalls;
+    }
+
+    public String getName() {
+        return _name;
+    }
+
+    public State getState() {
+        return _state;
+    }
+
+    /**
+     * @return the calls into the plugin that completed
+     */
+    public long getCalls() {
+        return _calls;
+    }
+
+    /**
+     * @return the calls that were dropped because the plugin's mailbox was full or the plugin was suspended
+     */
+    public long getDroppedCalls() {
+        return _droppedCalls;
+    }
+
+    /**
+     * @return the calls that took longer than the per call time budget and were interrupted
+     */
+    public long getBudgetViolations() {
+        return _budgetViolations;
+    }
+
+    /**
+     * @return the CPU time the plugin's calls used, or -1 if the JVM does not measure thread CPU time
+     */
+    public long getCpuNanos() {
+        return _cpuNanos;
+    }
+
+    public int getQueuedCalls() {
+        return _queuedCalls;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s %s: %d calls, %d dropped, %d over budget, %d ms CPU", _name, _state, _calls,
+                _droppedCalls, _budgetViolations, _cpuNanos / 1000000);
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+
+
+/**
+ * A frame whose bytes are produced while it is being written instead of being assembled in a buffer first,
+ * e.g. file content sent with {@link FileRegion#transferTo}.
+ */
+public interface StreamedFrame {
+    int size();
+
+    /**
+     * Writes exactly {@link #size()} bytes to {@code channel}. Called at most once.
+     */
+    void writeTo(WritableByteChannel channel) throws IOException;
+}
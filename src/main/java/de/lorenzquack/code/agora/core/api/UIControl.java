@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * An immutable node of a control tree that a plugin shows in the UI, e.g. a {@code list} of {@code label}s. What
+ * the {@code type} and {@code properties} mean is up to the UI. Children are identified by their {@code id}, which
+ * must be unique among their siblings; when the plugin publishes a new version of the tree, the UI receives only
+ * the changes, and reusing unchanged subtrees makes computing them cheap.
+ */
+public final class UIControl {
+    private final String _id;
+    private final String _type;
+    private final Map<String, String> _properties;
+    private final List<UIControl> _children;
+
+    public UIControl(String id, String type, Map<String, String> properties, List<UIControl> children) {
+        _id = id;
+        _type = type;
+        _properties = Collections.unmodifiableMap(new LinkedHashMap<>(properties));
+        _children = Collections.unmodifiableList(new ArrayList<>(children));
+    }
+
+    public UIControl(String id, String type, Map<String, String> properties) {
+        this(id, type, properties, Collections.<UIControl>emptyList());
+    }
+
+    public String getId() {
+        return _id;
+    }
+
+    public String getType() {
+        return _type;
+    }
+
+    public Map<String, String> getProperties() {
+        return _properties;
+    }
+
+    public List<UIControl> getChildren() {
+        return _children;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || getClass() != o.getClass()) {
+            return false;
+        }
+        UIControl other = (UIControl) o;
+        return _id.equals(other._id) && _type.equals(other._type) && _properties.equals(other._properties)
+                && _children.equals(other._children);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * _id.hashCode() + _type.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return _type + "#" + _id;
+    }
+}
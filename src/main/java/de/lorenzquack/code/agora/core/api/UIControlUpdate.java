@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * The patches that bring a UI from one version of the plugins' controls to {@link #getVersion()}.
+ */
+public final class UIControlUpdate {
+    private final long _version;
+    private final boolean _full;
+    private final List<UIPatch> _patches;
+
+    public UIControlUpdate(long version, boolean full, List<UIPatch> patches) {
+        _version = version;
+        _full = full;
+        _patches = Collections.unmodifiableList(patches);
+    }
+
+    public long getVersion() {
+        return _version;
+    }
+
+    /**
+     * @return {@code true} if the UI must drop all controls before applying the patches, because the version it
+     *         had is no longer known
+     */
+    public boolean isFull() {
+        return _full;
+    }
+
+    public List<UIPatch> getPatches() {
+        return _patches;
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.api;
+
+
+/**
+ * One change to the controls shown in the UI, in the spirit of JSON Patch. The path addresses a control by the ids
+ * from its root down, {@code /<root>/children/<child>}, or a property of it, {@code /<root>/properties/<key>}. Ids
+ * and keys are escaped as in JSON Pointer: {@code ~} as {@code ~0} and {@code /} as {@code ~1}.
+ */
+public final class UIPatch {
+    public enum Op {
+        /** inserts {@link #getControl()} at {@link #getIndex()} among its siblings, or sets a property */
+        ADD,
+        REMOVE,
+        /** replaces a control or the value of a property */
+        REPLACE
+    }
+
+    private final Op _op;
+    private final String _path;
+    private final int _index;
+    private final UIControl _control;
+    private final String _value;
+
+    private UIPatch(Op op, String path, int index, UIControl control, String value) {
+        _op = op;
+        _path = path;
+        _index = index;
+        _control = control;
+        _value = value;
+    }
+
+    public static UIPatch addControl(String path, int index, UIControl control) {
+        return new UIPatch(Op.ADD, path, index, control, null);
+    }
+
+    public static UIPatch replaceControl(String path, UIControl control) {
+        return new UIPatch(Op.REPLACE, path, -1, control, null);
+    }
+
+    public static UIPatch setProperty(String path, boolean exists, String value) {
+        return new UIPatch(exists ? Op.REPLACE : Op.ADD, path, -1, null, value);
+    }
+
+    public static UIPatch remove(String path) {
+        return new UIPatch(Op.REMOVE, path, -1, null, null);
+    }
+
+    public Op getOp() {
+        return _op;
+    }
+
+    public String getPath() {
+        return _path;
+    }
+
+    /**
+     * @return the position of an added control among its siblings, -1 for other patches
+     */
+    public int getIndex() {
+        return _index;
+    }
+
+    /**
+     * @return the added or replacing control, {@code null} for property patches and removals
+     */
+    public UIControl getControl() {
+        return _control;
+    }
+
+    /**
+     * @return the new value of a property, {@code null} for control patches and removals
+     */
+    public String getValue() {
+        return _value;
+    }
+
+    @Override
+    public String toString() {
+        return _op + " " + _path + (_control != null ? " " + _control : "") + (_value != null ? " = " + _value : "");
+    }
+}
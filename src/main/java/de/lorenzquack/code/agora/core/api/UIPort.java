@@ -18,6 +18,9 @@
  */
 package de.lorenzquack.code.agora.core.api;
 
+import java.util.List;
+import java.util.Map;
+
 public interface UIPort extends LifeCycle {
     /**
      * Login as a UI user.
@@ -38,4 +41,44 @@ public interface UIPort extends LifeCycle {
     void setPassword(Object token, String oldPassword, String newPassword);
 
     String getVersionString(Object token);
+
+    void setNetworkPort(NetworkPort networkPort);
+    void setEventBus(EventBus eventBus);
+    void setPluginPort(PluginPort pluginPort);
+    void setMetricRegistry(MetricRegistry metrics);
+
+    /**
+     * @return the bus through which the core, plugins and UI adaptors publish events to each other
+     */
+    EventBus getEventBus();
+
+    /**
+     * @return the metrics of the core, which UI adaptors also record their own into
+     */
+    MetricRegistry getMetricRegistry();
+
+    /**
+     * @see NetworkPort#getBandwidthLimits()
+     */
+    Map<String, Long> getBandwidthLimits(Object token);
+
+    /**
+     * @see NetworkPort#setBandwidthLimit(String, long)
+     */
+    void setBandwidthLimit(Object token, String scope, long bytesPerSecond);
+
+    /**
+     * @see PluginPort#getPluginStatus()
+     */
+    List<PluginStatus> getPluginStatus(Object token);
+
+    /**
+     * @see PluginPort#resumePlugin(String)
+     */
+    void resumePlugin(Object token, String name);
+
+    /**
+     * @see PluginPort#getUIControlUpdate(long, long)
+     */
+    UIControlUpdate getUIControlUpdate(Object token, long sinceVersion, long timeoutMillis);
 }
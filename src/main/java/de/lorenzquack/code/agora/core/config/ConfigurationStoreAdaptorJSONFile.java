@@ -19,9 +19,9 @@
 package de.lorenzquack.code.agora.core.config;
 
 import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStream;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
@@ -31,23 +31,50 @@ import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.CountingOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import de.lorenzquack.code.agora.core.api.ConfigurationStoreAdaptor;
+import de.lorenzquack.code.agora.core.api.Counter;
 import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+import de.lorenzquack.code.agora.core.jfr.FlightEvent;
+import de.lorenzquack.code.agora.core.jfr.FlightEvents;
+import de.lorenzquack.code.agora.core.metrics.NoopMetricRegistry;
 
 
 public class ConfigurationStoreAdaptorJSONFile implements ConfigurationStoreAdaptor {
     private static final Logger LOGGER = LoggerFactory.getLogger(ConfigurationStoreAdaptorJSONFile.class);
     private Path _configurationDirectory;
     private ConcurrentHashMap<String, ConfigFile> _configFileMap = new ConcurrentHashMap<>();
+    private Counter _loads;
+    private Counter _saves;
+    private Counter _bytesRead;
+    private Counter _bytesWritten;
+
+    public ConfigurationStoreAdaptorJSONFile() {
+        registerMetrics(NoopMetricRegistry.INSTANCE);
+    }
 
     @Override
     public void setConfigurationDirectory(Path configurationDirectory) {
         _configurationDirectory = configurationDirectory;
     }
 
+    @Override
+    public void setMetricRegistry(MetricRegistry metrics) {
+        registerMetrics(metrics);
+    }
+
+    private void registerMetrics(MetricRegistry metrics) {
+        _loads = metrics.counter("agora_config_loads_total", "Configuration stores read from disk");
+        _saves = metrics.counter("agora_config_saves_total", "Configuration stores written to disk");
+        _bytesRead = metrics.counter("agora_config_read_bytes_total", "Bytes of configuration read");
+        _bytesWritten = metrics.counter("agora_config_written_bytes_total", "Bytes of configuration written");
+    }
+
     @Override
     public synchronized JSONConfig openStore(String storeName) throws IOException {
         ConfigFile configFile = new ConfigFile(_configurationDirectory, storeName);
@@ -125,8 +152,19 @@ public class ConfigurationStoreAdaptorJSONFile implements ConfigurationStoreAdap
 
         private synchronized void load() throws IOException {
             if (!_loaded) {
-                ObjectMapper jsonMapper = new ObjectMapper();
-                _jsonRoot = jsonMapper.readTree(asFile());
+                FlightEvent event = FlightEvents.beginConfigLoad(_name);
+                try {
+                    ObjectMapper jsonMapper = new ObjectMapper();
+                    try (CountingInputStream inputStream = new CountingInputStream(new FileInputStream(asFile()))) {
+                        _jsonRoot = jsonMapper.readTree(inputStream);
+                        _bytesRead.add(inputStream.getCount());
+                        event.setSize(inputStream.getCount());
+                    }
+                    event.setOutcome(FlightEvents.OUTCOME_OK);
+                } finally {
+                    event.commit();
+                }
+                _loads.increment();
                 _loaded = true;
             }
         }
@@ -153,12 +191,19 @@ public class ConfigurationStoreAdaptorJSONFile implements ConfigurationStoreAdap
 
         public void store() throws IOException {
             if (_loaded) {
-                try (OutputStream outputStream = new FileOutputStream(asFile())) {
+                FlightEvent event = FlightEvents.beginConfigStore(_name);
+                try (CountingOutputStream outputStream = new CountingOutputStream(new FileOutputStream(asFile()))) {
                     ObjectMapper jsonMapper = new ObjectMapper();
                     JsonFactory jsonFactory = new JsonFactory();
                     JsonGenerator jsonGenerator = jsonFactory.createGenerator(outputStream);
                     jsonMapper.writerWithDefaultPrettyPrinter().writeValue(jsonGenerator, _jsonRoot);
+                    _bytesWritten.add(outputStream.getCount());
+                    event.setSize(outputStream.getCount());
+                    event.setOutcome(FlightEvents.OUTCOME_OK);
+                } finally {
+                    event.commit();
                 }
+                _saves.increment();
             }
         }
 
@@ -339,7 +339,7 @@ public class JSONConfigImpl implements JSONConfig {
     }
 
     private void assertIsArray() {
-        if (!isObject()) {
+        if (!isArray()) {
             throw new JSONConfigException("JSONConfig is not a JSON array.");
         }
     }
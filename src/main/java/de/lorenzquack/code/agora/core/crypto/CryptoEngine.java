@@ -18,14 +18,67 @@
  */
 package de.lorenzquack.code.agora.core.crypto;
 
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyFactory;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
 import java.security.SecureRandom;
+import java.security.spec.ECGenParameterSpec;
+import java.security.spec.X509EncodedKeySpec;
+import javax.crypto.Cipher;
+import javax.crypto.KeyAgreement;
+import javax.crypto.Mac;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
 
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 
 public class CryptoEngine {
+    public static final int STREAM_KEY_SIZE = 16;
+    public static final int STREAM_IV_SIZE = 16;
+    public static final int MAC_KEY_SIZE = 32;
+    private static final String MAC_ALGORITHM = "HmacSHA256";
+    private static final String KEY_AGREEMENT_CURVE = "secp256r1";
+
     private final SecureRandom _random;
+    // Cipher and Mac instances are not thread safe but expensive to look up, so every thread gets its own
+    private final ThreadLocal<Cipher> _streamCipher = new ThreadLocal<Cipher>() {
+        @Override
+        protected Cipher initialValue() {
+            try {
+                return Cipher.getInstance("AES/CTR/NoPadding");
+            } catch (GeneralSecurityException e) {
+                throw new RuntimeException("AES/CTR is not available", e);
+            }
+        }
+    };
+    private final ThreadLocal<Mac> _mac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(MAC_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(MAC_ALGORITHM + " is not available", e);
+            }
+        }
+    };
+    // separate from _mac so that one-shot macs do not disturb an incremental one in progress
+    private final ThreadLocal<Mac> _incrementalMac = new ThreadLocal<Mac>() {
+        @Override
+        protected Mac initialValue() {
+            try {
+                return Mac.getInstance(MAC_ALGORITHM);
+            } catch (NoSuchAlgorithmException e) {
+                throw new RuntimeException(MAC_ALGORITHM + " is not available", e);
+            }
+        }
+    };
     //private final Cipher _cipher;
 
     public CryptoEngine() {
@@ -51,4 +104,121 @@ public class CryptoEngine {
     public byte[] blockEncrypt(byte[] data, byte[] key) {
         throw new NotImplementedException();
     }
+
+    public byte[] getRandomBytes(int size) {
+        byte[] bytes = new byte[size];
+        _random.nextBytes(bytes);
+        return bytes;
+    }
+
+    public long getRandomLong() {
+        return _random.nextLong();
+    }
+
+    /**
+     * @return a fresh elliptic curve key pair for {@link #agree}
+     */
+    public KeyPair generateKeyAgreementKeyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec(KEY_AGREEMENT_CURVE), _random);
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("elliptic curve key agreement is not available", e);
+        }
+    }
+
+    /**
+     * Elliptic curve Diffie-Hellman between our private key and the X.509 encoded public key of the peer.
+     */
+    public byte[] agree(PrivateKey privateKey, byte[] encodedPeerPublicKey) throws GeneralSecurityException {
+        PublicKey peerPublicKey = KeyFactory.getInstance("EC").generatePublic(new X509EncodedKeySpec(encodedPeerPublicKey));
+        KeyAgreement keyAgreement = KeyAgreement.getInstance("ECDH");
+        keyAgreement.init(privateKey);
+        keyAgreement.doPhase(peerPublicKey, true);
+        return keyAgreement.generateSecret();
+    }
+
+    /**
+     * HKDF with HMAC-SHA256 (RFC 5869): expands {@code secret} into {@code length} bytes of key material.
+     */
+    public byte[] deriveKeys(byte[] secret, byte[] salt, byte[] info, int length) {
+        try {
+            Mac mac = _mac.get();
+            mac.init(new SecretKeySpec(salt.length == 0 ? new byte[MAC_KEY_SIZE] : salt, MAC_ALGORITHM));
+            byte[] pseudoRandomKey = mac.doFinal(secret);
+            mac.init(new SecretKeySpec(pseudoRandomKey, MAC_ALGORITHM));
+            byte[] output = new byte[length];
+            byte[] block = new byte[0];
+            for (int offset = 0, counter = 1; offset < length; counter++) {
+                mac.update(block);
+                mac.update(info);
+                mac.update((byte) counter);
+                block = mac.doFinal();
+                int size = Math.min(block.length, length - offset);
+                System.arraycopy(block, 0, output, offset, size);
+                offset += size;
+            }
+            return output;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("could not derive keys", e);
+        }
+    }
+
+    /**
+     * Encrypts or decrypts (the operation is the same) {@code input} into {@code output} with AES in counter mode.
+     * The caller must never reuse an iv with the same key.
+     */
+    public void streamCrypt(byte[] key, byte[] iv, ByteBuffer input, ByteBuffer output) {
+        try {
+            Cipher cipher = _streamCipher.get();
+            cipher.init(Cipher.ENCRYPT_MODE, new SecretKeySpec(key, "AES"), new IvParameterSpec(iv));
+            cipher.doFinal(input, output);
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("stream cipher failed", e);
+        }
+    }
+
+    /**
+     * @return the HMAC-SHA256 of the concatenated {@code parts}, truncated to {@code length} bytes
+     */
+    public byte[] mac(byte[] key, int length, ByteBuffer... parts) {
+        try {
+            Mac mac = _mac.get();
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            for (ByteBuffer part : parts) {
+                mac.update(part.duplicate());
+            }
+            byte[] tag = mac.doFinal();
+            if (length == tag.length) {
+                return tag;
+            }
+            byte[] truncated = new byte[length];
+            System.arraycopy(tag, 0, truncated, 0, length);
+            return truncated;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("mac failed", e);
+        }
+    }
+
+    /**
+     * @return this thread's HMAC-SHA256 initialized with {@code key} for data that arrives piece by piece. Only
+     *         valid on the calling thread until its next call of this method.
+     */
+    public Mac startMac(byte[] key) {
+        try {
+            Mac mac = _incrementalMac.get();
+            mac.init(new SecretKeySpec(key, MAC_ALGORITHM));
+            return mac;
+        } catch (GeneralSecurityException e) {
+            throw new RuntimeException("mac failed", e);
+        }
+    }
+
+    /**
+     * Compares two tags in constant time.
+     */
+    public static boolean tagsEqual(byte[] a, byte[] b) {
+        return MessageDigest.isEqual(a, b);
+    }
 }
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.events;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.EventHandler;
+
+
+/**
+ * Runs one subscriber of a {@link RingBufferChannel}: waits for events and hands every event that is available to
+ * the handler in one batch before it publishes its progress, which saves a volatile write per event.
+ */
+final class BatchEventProcessor<T> implements Runnable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(BatchEventProcessor.class);
+
+    private final RingBufferChannel<T> _channel;
+    private final EventHandler<? super T> _handler;
+    private final Sequence _sequence;
+    private volatile boolean _running = true;
+
+    BatchEventProcessor(RingBufferChannel<T> channel, EventHandler<? super T> handler, Sequence sequence) {
+        _channel = channel;
+        _handler = handler;
+        _sequence = sequence;
+    }
+
+    EventHandler<? super T> getHandler() {
+        return _handler;
+    }
+
+    Sequence getSequence() {
+        return _sequence;
+    }
+
+    boolean isRunning() {
+        return _running;
+    }
+
+    void halt() {
+        _running = false;
+    }
+
+    @Override
+    public void run() {
+        long next = _sequence.get() + 1;
+        while (_running) {
+            long available;
+            try {
+                available = _channel.waitFor(next, this);
+            } catch (InterruptedException e) {
+                break;
+            }
+            for (; next <= available && _running; next++) {
+                try {
+                    _handler.onEvent(_channel.get(next), next, next == available);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("event handler {} failed on event {} of {}", _handler, next, _channel.getName(), e);
+                }
+            }
+            _sequence.set(next - 1);
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.events;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.EventBus;
+import de.lorenzquack.code.agora.core.api.EventChannel;
+import de.lorenzquack.code.agora.core.api.EventFactory;
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.LifeCycle;
+import de.lorenzquack.code.agora.core.api.WaitStrategy;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asStringOrDefault;
+
+
+public class EventBusImpl implements EventBus, LifeCycle {
+    private static final Logger LOGGER = LoggerFactory.getLogger(EventBusImpl.class);
+    private static final int DEFAULT_BUFFER_SIZE = 1024;
+
+    private final ConcurrentMap<String, Channel<?>> _channels = new ConcurrentHashMap<>();
+    private int _bufferSize = DEFAULT_BUFFER_SIZE;
+    private WaitStrategy _waitStrategy = WaitStrategy.BLOCKING;
+
+    @Override
+    public void initialize() {
+    }
+
+    /**
+     * Reads the defaults {@code bufferSize} and {@code waitStrategy}, one of {@code blocking}, {@code sleeping},
+     * {@code yielding} and {@code busy_spin}.
+     */
+    @Override
+    public void configure(JSONConfig config) {
+        _bufferSize = asIntOrDefault(config.get("bufferSize"), DEFAULT_BUFFER_SIZE);
+        _waitStrategy = WaitStrategy.valueOf(
+                asStringOrDefault(config.get("waitStrategy"), "blocking").toUpperCase(Locale.ROOT));
+    }
+
+    @Override
+    public void start() {
+    }
+
+    @Override
+    public void stop() {
+        for (Channel<?> channel : _channels.values()) {
+            channel._ring.close();
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        _channels.clear();
+    }
+
+    @Override
+    public <T> EventChannel<T> createChannel(String name, Class<T> eventType, EventFactory<T> factory) {
+        return createChannel(name, eventType, factory, _bufferSize, _waitStrategy);
+    }
+
+    @Override
+    public <T> EventChannel<T> createChannel(String name, Class<T> eventType, EventFactory<T> factory,
+                                             int bufferSize, WaitStrategy waitStrategy) {
+        RingBufferChannel<T> ring = new RingBufferChannel<>(name, factory, bufferSize, waitStrategy);
+        if (_channels.putIfAbsent(name, new Channel<>(eventType, ring)) != null) {
+            throw new IllegalStateException("event channel " + name + " exists already");
+        }
+        LOGGER.debug("created event channel {} of {} {} events", name, ring.getBufferSize(),
+                eventType.getSimpleName());
+        return ring;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> EventChannel<T> getChannel(String name, Class<T> eventType) {
+        Channel<?> channel = _channels.get(name);
+        if (channel == null) {
+            return null;
+        }
+        if (channel._eventType != eventType) {
+            throw new IllegalArgumentException("event channel " + name + " carries "
+                    + channel._eventType.getName() + ", not " + eventType.getName());
+        }
+        return (EventChannel<T>) channel._ring;
+    }
+
+    private static final class Channel<T> {
+        private final Class<T> _eventType;
+        private final RingBufferChannel<T> _ring;
+
+        private Channel(Class<T> eventType, RingBufferChannel<T> ring) {
+            _eventType = eventType;
+            _ring = ring;
+        }
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.events;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.locks.LockSupport;
+
+import de.lorenzquack.code.agora.core.api.EventChannel;
+import de.lorenzquack.code.agora.core.api.EventFactory;
+import de.lorenzquack.code.agora.core.api.EventHandler;
+import de.lorenzquack.code.agora.core.api.EventTranslator;
+import de.lorenzquack.code.agora.core.api.WaitStrategy;
+
+
+/**
+ * An {@link EventChannel} on a ring buffer of pre-allocated events, in the style of the LMAX Disruptor.
+ * <p>
+ * Publishers claim the next sequence with a CAS on the cursor, fill the event in place and then mark the slot as
+ * published in {@code _available} with the round of the buffer it belongs to; so publishers never lock and slots
+ * may be published out of order. Every subscriber has a {@link Sequence} of the last event it processed, and a
+ * publisher only claims a slot once all subscribers are past its previous round. Subscribers read every published
+ * event up to the first gap, in batches.
+ */
+final class RingBufferChannel<T> implements EventChannel<T> {
+    private static final Sequence[] NO_SEQUENCES = new Sequence[0];
+
+    private final String _name;
+    private final Object[] _events;
+    private final int _mask;
+    private final int _indexShift;
+    private final AtomicIntegerArray _available;
+    /** the highest claimed sequence */
+    private final Sequence _cursor = new Sequence();
+    /** the slowest subscriber as last seen by a publisher, to avoid scanning all subscribers for every claim */
+    private final Sequence _gatingCache = new Sequence();
+    private final Waiter _waiter;
+    private final AtomicInteger _threadCount = new AtomicInteger();
+    private final List<BatchEventProcessor<T>> _processors = new ArrayList<>();
+    private volatile Sequence[] _gatingSequences = NO_SEQUENCES;
+    private boolean _closed;
+
+    RingBufferChannel(String name, EventFactory<T> factory, int bufferSize, WaitStrategy waitStrategy) {
+        if (bufferSize < 1 || bufferSize > 1 << 30) {
+            throw new IllegalArgumentException("invalid buffer size " + bufferSize);
+        }
+        int size = Integer.highestOneBit(bufferSize);
+        size = size < bufferSize ? size << 1 : size;
+        _name = name;
+        _events = new Object[size];
+        for (int i = 0; i < size; i++) {
+            _events[i] = factory.newInstance();
+        }
+        _mask = size - 1;
+        _indexShift = Integer.numberOfTrailingZeros(size);
+        _available = new AtomicIntegerArray(size);
+        for (int i = 0; i < size; i++) {
+            _available.set(i, -1);
+        }
+        _waiter = new Waiter(waitStrategy);
+    }
+
+    @Override
+    public String getName() {
+        return _name;
+    }
+
+    int getBufferSize() {
+        return _events.length;
+    }
+
+    @Override
+    public <A> void publish(EventTranslator<T, A> translator, A argument) {
+        long sequence;
+        while ((sequence = tryClaim()) < 0) {
+            LockSupport.parkNanos(1);
+        }
+        translateAndPublish(translator, argument, sequence);
+    }
+
+    @Override
+    public <A> boolean tryPublish(EventTranslator<T, A> translator, A argument) {
+        long sequence = tryClaim();
+        if (sequence < 0) {
+            return false;
+        }
+        translateAndPublish(translator, argument, sequence);
+        return true;
+    }
+
+    @Override
+    public synchronized void subscribe(EventHandler<? super T> handler) {
+        if (_closed) {
+            throw new IllegalStateException("channel " + _name + " is closed");
+        }
+        Sequence sequence = new Sequence(_cursor.get());
+        Sequence[] gating = Arrays.copyOf(_gatingSequences, _gatingSequences.length + 1);
+        gating[gating.length - 1] = sequence;
+        _gatingSequences = gating;
+        // publishers may have claimed past the cursor we read before they saw the new sequence
+        sequence.set(_cursor.get());
+        BatchEventProcessor<T> processor = new BatchEventProcessor<>(this, handler, sequence);
+        _processors.add(processor);
+        Thread thread = new Thread(processor, "agora-events-" + _name + "-" + _threadCount.incrementAndGet());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    @Override
+    public synchronized void unsubscribe(EventHandler<? super T> handler) {
+        for (BatchEventProcessor<T> processor : new ArrayList<>(_processors)) {
+            if (processor.getHandler() == handler) {
+                halt(processor);
+            }
+        }
+    }
+
+    /**
+     * Halts all subscribers; later subscriptions fail.
+     */
+    synchronized void close() {
+        _closed = true;
+        for (BatchEventProcessor<T> processor : new ArrayList<>(_processors)) {
+            halt(processor);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    T get(long sequence) {
+        return (T) _events[(int) sequence & _mask];
+    }
+
+    /**
+     * @return the highest sequence up to which all events are published, which is at least {@code sequence} unless
+     *         the processor was halted
+     */
+    long waitFor(long sequence, BatchEventProcessor<T> processor) throws InterruptedException {
+        long available = _waiter.waitFor(sequence, _cursor, processor);
+        for (long next = sequence; next <= available; next++) {
+            if (!isPublished(next)) {
+                return next - 1;
+            }
+        }
+        return available;
+    }
+
+    private <A> void translateAndPublish(EventTranslator<T, A> translator, A argument, long sequence) {
+        try {
+            translator.translateTo(get(sequence), sequence, argument);
+        } finally {
+            // an unpublished slot would stall every subscriber, so publish even if the translator failed
+            _available.lazySet((int) sequence & _mask, (int) (sequence >>> _indexShift));
+            _waiter.signalPublished();
+        }
+    }
+
+    /**
+     * @return the claimed sequence or -1 if the buffer is full
+     */
+    private long tryClaim() {
+        while (true) {
+            long current = _cursor.get();
+            long next = current + 1;
+            long wrapPoint = next - _events.length;
+            long cachedGating = _gatingCache.get();
+            if (wrapPoint > cachedGating || cachedGating > current) {
+                long gating = Sequence.minimum(_gatingSequences, current);
+                if (wrapPoint > gating) {
+                    return -1;
+                }
+                _gatingCache.set(gating);
+            } else if (_cursor.compareAndSet(current, next)) {
+                return next;
+            }
+        }
+    }
+
+    private boolean isPublished(long sequence) {
+        return _available.get((int) sequence & _mask) == (int) (sequence >>> _indexShift);
+    }
+
+    private void halt(BatchEventProcessor<T> processor) {
+        processor.halt();
+        _waiter.signalAll();
+        _processors.remove(processor);
+        List<Sequence> gating = new ArrayList<>(Arrays.asList(_gatingSequences));
+        gating.remove(processor.getSequence());
+        _gatingSequences = gating.toArray(new Sequence[gating.size()]);
+    }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.events;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+
+class LeftPadding {
+    protected long _p1, _p2, _p3, _p4, _p5, _p6, _p7;
+}
+
+
+class Value extends LeftPadding {
+    protected volatile long _value;
+}
+
+
+/**
+ * A counter that is read and written by different threads. The padding keeps it on a cache line of its own, so
+ * threads updating neighbouring sequences do not invalidate each other's caches.
+ */
+final class Sequence extends Value {
+    static final long INITIAL = -1;
+    private static final AtomicLongFieldUpdater<Value> UPDATER = AtomicLongFieldUpdater.newUpdater(Value.class,
+            "_value");
+
+    protected long _p9, _p10, _p11, _p12, _p13, _p14, _p15;
+
+    Sequence() {
+        this(INITIAL);
+    }
+
+    Sequence(long value) {
+        UPDATER.lazySet(this, value);
+    }
+
+    long get() {
+        return _value;
+    }
+
+    /**
+     * An ordered write: it becomes visible after all earlier writes, without the cost of a full fence.
+     */
+    void set(long value) {
+        UPDATER.lazySet(this, value);
+    }
+
+    boolean compareAndSet(long expected, long value) {
+        return UPDATER.compareAndSet(this, expected, value);
+    }
+
+    static long minimum(Sequence[] sequences, long minimum) {
+        for (Sequence sequence : sequences) {
+            minimum = Math.min(minimum, sequence.get());
+        }
+        return minimum;
+    }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.events;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantLock;
+
+import de.lorenzquack.code.agora.core.api.WaitStrategy;
+
+
+/**
+ * Implements a {@link WaitStrategy} for the subscribers of one channel.
+ */
+final class Waiter {
+    private static final int SPIN_TRIES = 100;
+    private static final int YIELD_TRIES = 100;
+    private static final long PARK_NANOS = 100;
+
+    private final WaitStrategy _strategy;
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _published = _lock.newCondition();
+    /** set by blocked subscribers, so that publishers only take the lock when someone waits */
+    private final AtomicBoolean _signalNeeded = new AtomicBoolean();
+
+    Waiter(WaitStrategy strategy) {
+        _strategy = strategy;
+    }
+
+    /**
+     * @return the cursor once it reached {@code sequence}, or earlier if {@code processor} was halted
+     */
+    long waitFor(long sequence, Sequence cursor, BatchEventProcessor<?> processor) throws InterruptedException {
+        long available = cursor.get();
+        if (available >= sequence) {
+            return available;
+        }
+        if (_strategy == WaitStrategy.BLOCKING) {
+            _lock.lock();
+            try {
+                while (processor.isRunning()) {
+                    _signalNeeded.set(true);
+                    available = cursor.get();
+                    if (available >= sequence) {
+                        break;
+                    }
+                    _published.await();
+                }
+            } finally {
+                _lock.unlock();
+            }
+            return available;
+        }
+        int tries = 0;
+        while ((available = cursor.get()) < sequence && processor.isRunning()) {
+            tries++;
+            if (_strategy == WaitStrategy.BUSY_SPIN || tries < SPIN_TRIES) {
+                continue;
+            }
+            if (_strategy == WaitStrategy.YIELDING || tries < SPIN_TRIES + YIELD_TRIES) {
+                Thread.yield();
+            } else {
+                LockSupport.parkNanos(PARK_NANOS);
+            }
+        }
+        return available;
+    }
+
+    void signalPublished() {
+        if (_strategy == WaitStrategy.BLOCKING && _signalNeeded.getAndSet(false)) {
+            signalAll();
+        }
+    }
+
+    /**
+     * Wakes all waiting subscribers, e.g. to let them notice that they were halted.
+     */
+    void signalAll() {
+        _lock.lock();
+        try {
+            _published.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+}
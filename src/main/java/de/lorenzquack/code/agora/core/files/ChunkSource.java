@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.BitSet;
+
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.lorenzquack.code.agora.core.api.ChunkId;
+import de.lorenzquack.code.agora.core.api.FileManifest;
+
+
+/**
+ * Where a {@link Download} gets chunks from, usually the {@link de.lorenzquack.code.agora.core.api.NetworkPort}.
+ */
+interface ChunkSource {
+    /**
+     * @return bit {@code i} is set if {@code peer} has chunk {@code i} of the manifest
+     */
+    ListenableFuture<BitSet> queryChunks(InetSocketAddress peer, ChunkId manifestId);
+
+    /**
+     * @return the chunk's content, verified against {@code id}
+     */
+    ListenableFuture<ByteBuffer> fetchChunk(InetSocketAddress peer, ChunkId id);
+
+    /**
+     * @return the manifest {@code manifestId}, rebuilt from the local manifest {@code baseManifestId} and the
+     *         parts of {@code peer}'s Merkle tree that differ from it
+     */
+    ListenableFuture<FileManifest> syncManifest(InetSocketAddress peer, ChunkId manifestId, ChunkId baseManifestId);
+}
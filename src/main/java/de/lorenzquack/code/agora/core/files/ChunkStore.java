@@ -0,0 +1,275 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.ChunkId;
+import de.lorenzquack.code.agora.core.api.FileRegion;
+import de.lorenzquack.code.agora.core.api.FileStoreStatistics;
+
+import static de.lorenzquack.code.agora.core.files.PackFile.RECORD_HEADER_SIZE;
+
+
+/**
+ * Stores chunks in a directory of {@link PackFile}s and keeps an in-memory index from {@link ChunkId} to the
+ * chunk's location. The index is rebuilt by scanning the packs on {@link #open()}, so there is no index file that
+ * could get out of sync with the packs. A new pack is started once the current one exceeds {@code maxPackSize}.
+ * Chunks are read through a {@link MappedPackCache}.
+ */
+public class ChunkStore implements Flushable {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkStore.class);
+    private static final String PACK_PREFIX = "pack-";
+    private static final String PACK_SUFFIX = ".dat";
+    /** marks discarded records; nobody can produce data with this SHA-256 */
+    private static final ChunkId DISCARDED = ChunkId.fromBytes(new byte[ChunkId.SIZE_IN_BYTES]);
+
+    private final Path _directory;
+    private final long _maxPackSize;
+    private final MappedPackCache _mappedReads;
+    private final ConcurrentHashMap<ChunkId, Location> _index = new ConcurrentHashMap<>();
+    private final List<PackFile> _packs = new ArrayList<>();
+    private final AtomicLong _storedBytes = new AtomicLong();
+    private final AtomicLong _deduplicatedChunks = new AtomicLong();
+    private final AtomicLong _deduplicatedBytes = new AtomicLong();
+    private volatile PackFile _currentPack;
+
+    public ChunkStore(Path directory, long maxPackSize, MappedPackCache mappedReads) {
+        _directory = directory;
+        _maxPackSize = maxPackSize;
+        _mappedReads = mappedReads;
+    }
+
+    public synchronized void open() throws IOException {
+        Files.createDirectories(_directory);
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(_directory, PACK_PREFIX + "*" + PACK_SUFFIX)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        Collections.sort(paths);
+        for (Path path : paths) {
+            String name = path.getFileName().toString();
+            int number = Integer.parseInt(name.substring(PACK_PREFIX.length(), name.length() - PACK_SUFFIX.length()));
+            PackFile pack = new PackFile(number, path, _maxPackSize);
+            scan(pack);
+            _packs.add(pack);
+        }
+        if (_packs.isEmpty()) {
+            _packs.add(createPack(1));
+        }
+        _currentPack = _packs.get(_packs.size() - 1);
+        LOGGER.info("opened chunk store {} with {} chunks in {} packs", _directory, _index.size(), _packs.size());
+    }
+
+    public synchronized void close() throws IOException {
+        _mappedReads.clear();
+        IOException failure = null;
+        for (PackFile pack : _packs) {
+            try {
+                pack.force();
+                pack.close();
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+        _packs.clear();
+        _index.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Forces all written chunks to disk.
+     */
+    @Override
+    public synchronized void flush() throws IOException {
+        for (PackFile pack : _packs) {
+            pack.force();
+        }
+    }
+
+    public boolean contains(ChunkId id) {
+        return _index.containsKey(id);
+    }
+
+    public ByteBuffer read(ChunkId id) throws IOException {
+        Location location = getLocation(id);
+        ByteBuffer data = ByteBuffer.allocate(location._length);
+        _mappedReads.read(location._pack, data, location._position);
+        data.flip();
+        return data;
+    }
+
+    public FileRegion getRegion(ChunkId id) throws NoSuchFileException {
+        Location location = getLocation(id);
+        return new FileRegion(location._pack.getChannel(), location._position, location._length);
+    }
+
+    /**
+     * Stores the remaining bytes of {@code data} under {@code id}, which the caller computed from them.
+     *
+     * @return {@code false} if the chunk was already stored
+     */
+    public boolean write(ChunkId id, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (_index.containsKey(id)) {
+            _deduplicatedChunks.incrementAndGet();
+            _deduplicatedBytes.addAndGet(length);
+            return false;
+        }
+        PackFile pack = _currentPack;
+        long position = pack.reserve(RECORD_HEADER_SIZE + length);
+        while (position < 0) {
+            pack = rollOver(pack);
+            position = pack.reserve(RECORD_HEADER_SIZE + length);
+        }
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        id.writeTo(header);
+        header.putInt(length);
+        header.flip();
+        pack.write(header, position);
+        pack.write(data.duplicate(), position + RECORD_HEADER_SIZE);
+        // two writers racing on the same new chunk both store it; the loser's copy is dead weight in the pack
+        if (_index.putIfAbsent(id, new Location(pack, position + RECORD_HEADER_SIZE, length)) != null) {
+            return false;
+        }
+        _storedBytes.addAndGet(length);
+        return true;
+    }
+
+    /**
+     * Forgets a chunk whose stored data turned out to be corrupt, so that the next write of the chunk stores a good
+     * copy. The record's id is overwritten in the pack so that it is not indexed again on the next open.
+     */
+    public void discard(ChunkId id) throws IOException {
+        Location location = _index.remove(id);
+        if (location == null) {
+            return;
+        }
+        _storedBytes.addAndGet(-location._length);
+        ByteBuffer discarded = ByteBuffer.allocate(ChunkId.SIZE_IN_BYTES);
+        DISCARDED.writeTo(discarded);
+        discarded.flip();
+        location._pack.write(discarded, location._position - RECORD_HEADER_SIZE);
+        LOGGER.info("discarded corrupt chunk {}", id);
+    }
+
+    public int getChunkCount() {
+        return _index.size();
+    }
+
+    public long getStoredBytes() {
+        return _storedBytes.get();
+    }
+
+    public long getDeduplicatedChunks() {
+        return _deduplicatedChunks.get();
+    }
+
+    public long getDeduplicatedBytes() {
+        return _deduplicatedBytes.get();
+    }
+
+    public FileStoreStatistics getStatistics() {
+        long[] pageFaults = PageFaults.read();
+        return new FileStoreStatistics(_index.size(), _storedBytes.get(), _deduplicatedBytes.get(),
+                _mappedReads.getMappedBytes(), _mappedReads.getHits(), _mappedReads.getMisses(),
+                _mappedReads.getPositionalReads(), pageFaults[0], pageFaults[1]);
+    }
+
+    Location getLocation(ChunkId id) throws NoSuchFileException {
+        Location location = _index.get(id);
+        if (location == null) {
+            throw new NoSuchFileException(id.toHex());
+        }
+        return location;
+    }
+
+    private synchronized PackFile rollOver(PackFile full) throws IOException {
+        if (_currentPack == full) {
+            PackFile pack = createPack(full.getNumber() + 1);
+            _packs.add(pack);
+            _currentPack = pack;
+        }
+        return _currentPack;
+    }
+
+    private PackFile createPack(int number) throws IOException {
+        return new PackFile(number, _directory.resolve(String.format("%s%06d%s", PACK_PREFIX, number, PACK_SUFFIX)),
+                _maxPackSize);
+    }
+
+    /**
+     * Indexes all complete records of {@code pack}. Concurrent writers fill their reserved regions in any order, so
+     * a crash can leave a gap of zeros; everything from the first incomplete record on is discarded.
+     */
+    private void scan(PackFile pack) throws IOException {
+        long size = pack.getSize();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(RECORD_HEADER_SIZE);
+        while (position + RECORD_HEADER_SIZE <= size) {
+            header.clear();
+            pack.read(header, position);
+            header.flip();
+            ChunkId id = ChunkId.readFrom(header);
+            int length = header.getInt();
+            if (length <= 0 || position + RECORD_HEADER_SIZE + length > size) {
+                break;
+            }
+            if (!id.equals(DISCARDED)
+                    && _index.putIfAbsent(id, new Location(pack, position + RECORD_HEADER_SIZE, length)) == null) {
+                _storedBytes.addAndGet(length);
+            }
+            position += RECORD_HEADER_SIZE + length;
+        }
+        if (position < size) {
+            LOGGER.warn("discarding {} bytes of incomplete records at the end of {}", size - position, pack.getPath());
+            pack.truncate(position);
+        }
+    }
+
+    static final class Location {
+        final PackFile _pack;
+        final long _position;
+        final int _length;
+
+        private Location(PackFile pack, long position, int length) {
+            _pack = pack;
+            _position = position;
+            _length = length;
+        }
+    }
+}
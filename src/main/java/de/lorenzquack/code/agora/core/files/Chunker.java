@@ -0,0 +1,63 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.nio.ByteBuffer;
+
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.exceptions.AgoraException;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asStringOrDefault;
+
+
+/**
+ * Decides where a file is split into chunks. Every node must split identical data identically for chunks to be
+ * shared, so chunking parameters are part of the protocol rather than a local tuning knob.
+ */
+public abstract class Chunker {
+    private static final int DEFAULT_MIN_SIZE = 16 * 1024;
+    private static final int DEFAULT_AVERAGE_SIZE = 64 * 1024;
+    private static final int DEFAULT_MAX_SIZE = 256 * 1024;
+
+    public static Chunker create(JSONConfig config) {
+        String mode = asStringOrDefault(config.get("chunking"), "cdc");
+        int minSize = asIntOrDefault(config.get("minChunkSize"), DEFAULT_MIN_SIZE);
+        int averageSize = asIntOrDefault(config.get("averageChunkSize"), DEFAULT_AVERAGE_SIZE);
+        int maxSize = asIntOrDefault(config.get("maxChunkSize"), DEFAULT_MAX_SIZE);
+        switch (mode) {
+            case "fixed":
+                return new FixedSizeChunker(averageSize);
+            case "cdc":
+                return new ContentDefinedChunker(minSize, averageSize, maxSize);
+            default:
+                throw new AgoraException("unknown chunking mode '" + mode + "'");
+        }
+    }
+
+    public abstract int getMaxChunkSize();
+
+    /**
+     * Looks for the end of the chunk starting at {@code data}'s position without consuming any bytes.
+     *
+     * @param endOfInput whether {@code data} holds the rest of the file
+     * @return the length of the chunk, or -1 if more data is needed to decide
+     */
+    public abstract int nextChunkLength(ByteBuffer data, boolean endOfInput);
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+
+/**
+ * Content defined chunking with a gear rolling hash (FastCDC). A boundary is placed where the hash of the last
+ * bytes matches a mask, so boundaries move with the content and an insertion only changes the chunks around it.
+ * Below the average size a stricter mask is used and above it a looser one, which keeps chunk sizes close to the
+ * average. No boundary is looked for in the first {@code minSize} bytes of a chunk.
+ */
+public class ContentDefinedChunker extends Chunker {
+    private static final long GEAR_SEED = 0x61676f7261L;
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(GEAR_SEED);
+        for (int i = 0; i < GEAR.length; i++) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    private final int _minSize;
+    private final int _averageSize;
+    private final int _maxSize;
+    private final long _strictMask;
+    private final long _looseMask;
+
+    public ContentDefinedChunker(int minSize, int averageSize, int maxSize) {
+        if (!(0 < minSize && minSize <= averageSize && averageSize <= maxSize)) {
+            throw new IllegalArgumentException("chunk sizes must satisfy 0 < min <= average <= max");
+        }
+        _minSize = minSize;
+        _averageSize = averageSize;
+        _maxSize = maxSize;
+        int bits = 31 - Integer.numberOfLeadingZeros(averageSize);
+        _strictMask = topBits(bits + 1);
+        _looseMask = topBits(bits - 1);
+    }
+
+    @Override
+    public int getMaxChunkSize() {
+        return _maxSize;
+    }
+
+    @Override
+    public int nextChunkLength(ByteBuffer data, boolean endOfInput) {
+        int remaining = data.remaining();
+        if (remaining <= _minSize) {
+            return endOfInput && remaining > 0 ? remaining : -1;
+        }
+        int start = data.position();
+        int end = start + Math.min(remaining, _maxSize);
+        int normal = start + Math.min(remaining, _averageSize);
+        long hash = 0;
+        int i = start + _minSize;
+        for (; i < normal; i++) {
+            hash = (hash << 1) + GEAR[data.get(i) & 0xff];
+            if ((hash & _strictMask) == 0) {
+                return i + 1 - start;
+            }
+        }
+        for (; i < end; i++) {
+            hash = (hash << 1) + GEAR[data.get(i) & 0xff];
+            if ((hash & _looseMask) == 0) {
+                return i + 1 - start;
+            }
+        }
+        if (remaining >= _maxSize) {
+            return _maxSize;
+        }
+        return endOfInput ? remaining : -1;
+    }
+
+    private static long topBits(int count) {
+        return count <= 0 ? 0 : -1L << (Long.SIZE - count);
+    }
+}
@@ -0,0 +1,425 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.ChunkId;
+import de.lorenzquack.code.agora.core.api.FileManifest;
+
+
+/**
+ * Downloads the missing chunks of one file from all peers that have them at once. Every peer is first asked which
+ * chunks of the manifest it has. Then each peer with a free request slot is given the missing chunk the fewest
+ * peers have (rarest first), so rare chunks are fetched while their holders are still around and the common ones
+ * keep all peers busy towards the end. Peers that fail repeatedly or deliver at a fraction of the fastest peer's
+ * rate are dropped, unless they are the last source of a missing chunk.
+ * Chunks are verified by the {@link ChunkSource} and stored as they arrive, so an interrupted download resumes
+ * where it stopped; the progress is recorded in the {@link TransferLog} so that this also holds after a restart.
+ */
+class Download {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Download.class);
+    private static final int MIN_RATE_SAMPLES = 3;
+    private static final double RATE_SMOOTHING = 0.3;
+
+    private final ChunkSource _source;
+    private final ChunkStore _store;
+    private final ChunkId _manifestId;
+    private final FileManifest _manifest;
+    private final int _maxRequestsPerPeer;
+    private final int _maxPeerFailures;
+    private final double _slowPeerRatio;
+    private final TransferLog.Transfer _checkpoint;
+    private final SettableFuture<FileManifest> _result = SettableFuture.create();
+    /** the distinct chunks of the manifest and the index into them of each manifest entry */
+    private final ChunkId[] _chunks;
+    private final int[] _chunkOfEntry;
+    private final int[] _availability;
+    private final boolean[] _requested;
+    private final boolean[] _done;
+    private final Integer[] _rarestFirst;
+    private final int[] _tieBreak;
+    private final Map<InetSocketAddress, PeerState> _peers = new LinkedHashMap<>();
+    private int _remaining;
+    private int _pendingQueries;
+    private int _inFlight;
+    private int _droppedPeers;
+
+    /**
+     * @param checkpoint where the progress is recorded, may be {@code null}
+     */
+    Download(ChunkSource source, ChunkStore store, ChunkId manifestId, FileManifest manifest, int maxRequestsPerPeer,
+             int maxPeerFailures, double slowPeerRatio, TransferLog.Transfer checkpoint) {
+        _source = source;
+        _store = store;
+        _manifestId = manifestId;
+        _manifest = manifest;
+        _maxRequestsPerPeer = maxRequestsPerPeer;
+        _maxPeerFailures = maxPeerFailures;
+        _slowPeerRatio = slowPeerRatio;
+        _checkpoint = checkpoint;
+        List<FileManifest.Chunk> entries = manifest.getChunks();
+        List<ChunkId> chunks = getDistinctChunks(manifest);
+        Map<ChunkId, Integer> indices = new HashMap<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            indices.put(chunks.get(i), i);
+        }
+        _chunkOfEntry = new int[entries.size()];
+        for (int i = 0; i < entries.size(); i++) {
+            _chunkOfEntry[i] = indices.get(entries.get(i).getId());
+        }
+        _chunks = chunks.toArray(new ChunkId[chunks.size()]);
+        _availability = new int[_chunks.length];
+        _requested = new boolean[_chunks.length];
+        _done = new boolean[_chunks.length];
+        _rarestFirst = new Integer[_chunks.length];
+        _tieBreak = new int[_chunks.length];
+        Random random = new Random();
+        for (int i = 0; i < _chunks.length; i++) {
+            _done[i] = store.contains(_chunks[i]);
+            _remaining += _done[i] ? 0 : 1;
+            _rarestFirst[i] = i;
+            // peers downloading the same file should not all start with the same chunk
+            _tieBreak[i] = random.nextInt();
+        }
+    }
+
+    /**
+     * @return the chunks of {@code manifest} without repetitions, in order of their first appearance
+     */
+    static List<ChunkId> getDistinctChunks(FileManifest manifest) {
+        Set<ChunkId> chunks = new LinkedHashSet<>();
+        for (FileManifest.Chunk chunk : manifest.getChunks()) {
+            chunks.add(chunk.getId());
+        }
+        return new ArrayList<>(chunks);
+    }
+
+    ListenableFuture<FileManifest> start(Collection<InetSocketAddress> peers) {
+        if (_checkpoint != null) {
+            BitSet stored = new BitSet(_chunks.length);
+            for (int i = 0; i < _chunks.length; i++) {
+                stored.set(i, _done[i]);
+            }
+            try {
+                _checkpoint.progress(stored);
+            } catch (IOException e) {
+                LOGGER.warn("could not record the progress of {}", _manifestId, e);
+            }
+        }
+        if (_remaining == 0) {
+            finish();
+            return _result;
+        }
+        synchronized (this) {
+            _pendingQueries = peers.size();
+        }
+        for (final InetSocketAddress peer : peers) {
+            Futures.addCallback(_source.queryChunks(peer, _manifestId), new FutureCallback<BitSet>() {
+                @Override
+                public void onSuccess(BitSet entries) {
+                    addPeer(peer, entries);
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    LOGGER.debug("could not query {} for chunks of {}", peer, _manifestId, t);
+                    addPeer(peer, new BitSet());
+                }
+            });
+        }
+        schedule();
+        return _result;
+    }
+
+    synchronized int getDroppedPeers() {
+        return _droppedPeers;
+    }
+
+    private void addPeer(InetSocketAddress address, BitSet entries) {
+        synchronized (this) {
+            _pendingQueries--;
+            BitSet has = new BitSet(_chunks.length);
+            for (int entry = entries.nextSetBit(0); entry >= 0 && entry < _chunkOfEntry.length;
+                 entry = entries.nextSetBit(entry + 1)) {
+                has.set(_chunkOfEntry[entry]);
+            }
+            if (!has.isEmpty() && !_result.isDone()) {
+                PeerState peer = new PeerState(address, has);
+                _peers.put(address, peer);
+                updateAvailability(peer, 1);
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Hands out free request slots one per peer and round, so the rarest chunks spread over all peers.
+     */
+    private void schedule() {
+        List<Request> requests = new ArrayList<>();
+        IOException failure = null;
+        synchronized (this) {
+            if (_result.isDone()) {
+                return;
+            }
+            boolean assigned = true;
+            while (assigned) {
+                assigned = false;
+                for (PeerState peer : _peers.values()) {
+                    if (peer._inFlight >= _maxRequestsPerPeer) {
+                        continue;
+                    }
+                    int chunk = rarestChunkOf(peer);
+                    if (chunk >= 0) {
+                        _requested[chunk] = true;
+                        peer._inFlight++;
+                        _inFlight++;
+                        requests.add(new Request(peer, chunk));
+                        assigned = true;
+                    }
+                }
+            }
+            if (_remaining > 0 && _inFlight == 0 && _pendingQueries == 0) {
+                failure = new NoSuchFileException(_manifestId.toHex(), null,
+                        _remaining + " chunks are not available from any peer");
+            }
+        }
+        if (failure != null) {
+            _result.setException(failure);
+        }
+        for (Request request : requests) {
+            send(request);
+        }
+    }
+
+    private int rarestChunkOf(PeerState peer) {
+        for (Integer chunk : _rarestFirst) {
+            if (!_done[chunk] && !_requested[chunk] && peer._has.get(chunk)) {
+                return chunk;
+            }
+        }
+        return -1;
+    }
+
+    private void send(final Request request) {
+        final ChunkId id = _chunks[request._chunk];
+        final long startNanos = System.nanoTime();
+        Futures.addCallback(_source.fetchChunk(request._peer._address, id), new FutureCallback<ByteBuffer>() {
+            @Override
+            public void onSuccess(ByteBuffer data) {
+                int length = data.remaining();
+                try {
+                    _store.write(id, data);
+                    if (_checkpoint != null) {
+                        _checkpoint.verified(request._chunk);
+                    }
+                } catch (IOException e) {
+                    _result.setException(e);
+                    return;
+                }
+                completed(request, length, System.nanoTime() - startNanos);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOGGER.debug("could not fetch {} from {}", id, request._peer._address, t);
+                failed(request, t);
+            }
+        });
+    }
+
+    private void completed(Request request, int length, long elapsedNanos) {
+        boolean finished;
+        synchronized (this) {
+            PeerState peer = request._peer;
+            peer._inFlight--;
+            _inFlight--;
+            _requested[request._chunk] = false;
+            if (!_done[request._chunk]) {
+                _done[request._chunk] = true;
+                _remaining--;
+            }
+            peer._failures = 0;
+            double bytesPerSecond = length * 1e9 / Math.max(1, elapsedNanos);
+            peer._bytesPerSecond = peer._samples == 0 ? bytesPerSecond
+                    : RATE_SMOOTHING * bytesPerSecond + (1 - RATE_SMOOTHING) * peer._bytesPerSecond;
+            peer._samples++;
+            peer._chunks++;
+            finished = _remaining == 0;
+            if (!finished) {
+                dropSlowPeers();
+            }
+        }
+        if (finished) {
+            finish();
+        } else {
+            schedule();
+        }
+    }
+
+    private void failed(Request request, Throwable cause) {
+        synchronized (this) {
+            PeerState peer = request._peer;
+            peer._inFlight--;
+            _inFlight--;
+            _requested[request._chunk] = false;
+            if (_peers.get(peer._address) == peer) {
+                if (cause instanceof NoSuchFileException) {
+                    // the peer no longer has the chunk, e.g. because it deleted the file
+                    peer._has.clear(request._chunk);
+                    _availability[request._chunk]--;
+                    sortByRarity();
+                }
+                if (++peer._failures >= _maxPeerFailures) {
+                    drop(peer, "failed " + peer._failures + " times in a row");
+                }
+            }
+        }
+        schedule();
+    }
+
+    /**
+     * Requests are issued with the same concurrency to every peer, so the rate of single requests is comparable.
+     */
+    private void dropSlowPeers() {
+        double fastest = 0;
+        for (PeerState peer : _peers.values()) {
+            if (peer._samples >= MIN_RATE_SAMPLES) {
+                fastest = Math.max(fastest, peer._bytesPerSecond);
+            }
+        }
+        for (PeerState peer : new ArrayList<>(_peers.values())) {
+            if (peer._samples >= MIN_RATE_SAMPLES && peer._bytesPerSecond < fastest * _slowPeerRatio
+                    && !isLastSource(peer)) {
+                drop(peer, String.format("is slow (%.0f of %.0f bytes/s)", peer._bytesPerSecond, fastest));
+            }
+        }
+    }
+
+    private boolean isLastSource(PeerState peer) {
+        for (int chunk = peer._has.nextSetBit(0); chunk >= 0; chunk = peer._has.nextSetBit(chunk + 1)) {
+            if (!_done[chunk] && _availability[chunk] <= 1) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Requests already sent to the peer are still accepted.
+     */
+    private void drop(PeerState peer, String reason) {
+        _peers.remove(peer._address);
+        updateAvailability(peer, -1);
+        _droppedPeers++;
+        LOGGER.debug("dropping {} from download of {}: {}", peer._address, _manifestId, reason);
+    }
+
+    private void updateAvailability(PeerState peer, int delta) {
+        for (int chunk = peer._has.nextSetBit(0); chunk >= 0; chunk = peer._has.nextSetBit(chunk + 1)) {
+            _availability[chunk] += delta;
+        }
+        sortByRarity();
+    }
+
+    private void sortByRarity() {
+        Arrays.sort(_rarestFirst, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                if (_availability[a] != _availability[b]) {
+                    return _availability[a] < _availability[b] ? -1 : 1;
+                }
+                return Integer.compare(_tieBreak[a], _tieBreak[b]);
+            }
+        });
+    }
+
+    private void finish() {
+        if (_checkpoint != null) {
+            try {
+                _checkpoint.finished();
+            } catch (IOException e) {
+                LOGGER.warn("could not record the end of {}", _manifestId, e);
+            }
+        }
+        if (_result.set(_manifest)) {
+            logSummary();
+        }
+    }
+
+    private synchronized void logSummary() {
+        if (!LOGGER.isDebugEnabled()) {
+            return;
+        }
+        StringBuilder perPeer = new StringBuilder();
+        for (PeerState peer : _peers.values()) {
+            perPeer.append(' ').append(peer._address).append('=').append(peer._chunks);
+        }
+        LOGGER.debug("downloaded {} chunks of {}, dropped {} peers, chunks per remaining peer:{}", _chunks.length,
+                _manifestId, _droppedPeers, perPeer);
+    }
+
+    private static class PeerState {
+        private final InetSocketAddress _address;
+        private final BitSet _has;
+        private int _inFlight;
+        private int _failures;
+        private int _samples;
+        private int _chunks;
+        private double _bytesPerSecond;
+
+        private PeerState(InetSocketAddress address, BitSet has) {
+            _address = address;
+            _has = has;
+        }
+    }
+
+    private static class Request {
+        private final PeerState _peer;
+        private final int _chunk;
+
+        private Request(PeerState peer, int chunk) {
+            _peer = peer;
+            _chunk = chunk;
+        }
+    }
+}
@@ -0,0 +1,514 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.FutureFallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.ChunkId;
+import de.lorenzquack.code.agora.core.api.FileManifest;
+import de.lorenzquack.code.agora.core.api.FilePort;
+import de.lorenzquack.code.agora.core.api.FileRegion;
+import de.lorenzquack.code.agora.core.api.FileStoreStatistics;
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MerkleTree;
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.exceptions.AgoraException;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asDoubleOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asStringOrDefault;
+
+
+public class FilePortImpl implements FilePort {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FilePortImpl.class);
+    private static final long DEFAULT_MAX_PACK_SIZE = 256L * 1024 * 1024;
+    private static final long DEFAULT_MAP_WINDOW_SIZE = 64L * 1024 * 1024;
+    private static final long DEFAULT_MAX_MAPPED_BYTES = 1024L * 1024 * 1024;
+    private static final long DEFAULT_MIN_MAPPED_PACK_SIZE = 16L * 1024 * 1024;
+    private static final int DEFAULT_MAX_REQUESTS_PER_PEER = 4;
+    private static final int DEFAULT_MAX_PEER_FAILURES = 3;
+    private static final double DEFAULT_SLOW_PEER_RATIO = 0.2;
+    private static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+    private static final String TRANSFER_LOG = "transfers.log";
+    private static final int MAX_CACHED_TREE_LEAVES = 1 << 20;
+    private static final int VERIFY_BATCH_SIZE = 16;
+
+    private Path _dataDirectory = Paths.get(".");
+    private Chunker _chunker;
+    private ChunkStore _store;
+    private TransferLog _transferLog;
+    private final ConcurrentHashMap<ChunkId, ListenableFuture<FileManifest>> _downloads = new ConcurrentHashMap<>();
+    private ChunkSource _chunkSource;
+    private ForkJoinPool _hashingPool;
+    private final Cache<ChunkId, MerkleTree> _trees = CacheBuilder.newBuilder()
+            .maximumWeight(MAX_CACHED_TREE_LEAVES)
+            .weigher(new Weigher<ChunkId, MerkleTree>() {
+                @Override
+                public int weigh(ChunkId manifestId, MerkleTree tree) {
+                    return tree.getLeafCount();
+                }
+            })
+            .build();
+    private int _maxRequestsPerPeer;
+    private int _maxPeerFailures;
+    private double _slowPeerRatio;
+
+    @Override
+    public void initialize() {
+        _hashingPool = new ForkJoinPool();
+    }
+
+    @Override
+    public void configure(JSONConfig config) {
+        Path directory = _dataDirectory.resolve(asStringOrDefault(config.get("directory"), "files"));
+        _chunker = Chunker.create(config);
+        JSONConfig mmap = config.get("mmap");
+        MappedPackCache mappedReads = new MappedPackCache(
+                asLongOrDefault(mmap.get("windowSize"), DEFAULT_MAP_WINDOW_SIZE),
+                asLongOrDefault(mmap.get("maxMappedBytes"), DEFAULT_MAX_MAPPED_BYTES),
+                asLongOrDefault(mmap.get("minPackSize"), DEFAULT_MIN_MAPPED_PACK_SIZE));
+        _store = new ChunkStore(directory, asLongOrDefault(config.get("maxPackSize"), DEFAULT_MAX_PACK_SIZE),
+                mappedReads);
+        JSONConfig download = config.get("download");
+        _transferLog = new TransferLog(directory.resolve(TRANSFER_LOG), _store,
+                asIntOrDefault(download.get("checkpointInterval"), DEFAULT_CHECKPOINT_INTERVAL));
+        _maxRequestsPerPeer = asIntOrDefault(download.get("maxRequestsPerPeer"), DEFAULT_MAX_REQUESTS_PER_PEER);
+        _maxPeerFailures = asIntOrDefault(download.get("maxPeerFailures"), DEFAULT_MAX_PEER_FAILURES);
+        _slowPeerRatio = asDoubleOrDefault(download.get("slowPeerRatio"), DEFAULT_SLOW_PEER_RATIO);
+    }
+
+    @Override
+    public void start() {
+        Map<ChunkId, TransferLog.Checkpoint> unfinished;
+        try {
+            _store.open();
+            unfinished = _transferLog.open();
+        } catch (IOException e) {
+            throw new AgoraException("could not open chunk store", e);
+        }
+        for (Map.Entry<ChunkId, TransferLog.Checkpoint> entry : unfinished.entrySet()) {
+            resume(entry.getKey(), entry.getValue());
+        }
+    }
+
+    @Override
+    public void stop() {
+        LOGGER.info("chunk store: {}", _store.getStatistics());
+        try {
+            _transferLog.close();
+        } catch (IOException e) {
+            LOGGER.warn("error closing transfer log", e);
+        }
+        try {
+            _store.close();
+        } catch (IOException e) {
+            LOGGER.warn("error closing chunk store", e);
+        }
+    }
+
+    @Override
+    public void cleanup() {
+        _hashingPool.shutdownNow();
+    }
+
+    @Override
+    public void setDataDirectory(Path dataDirectory) {
+        _dataDirectory = dataDirectory;
+    }
+
+    @Override
+    public void setNetworkPort(final NetworkPort networkPort) {
+        setChunkSource(new ChunkSource() {
+            @Override
+            public ListenableFuture<BitSet> queryChunks(InetSocketAddress peer, ChunkId manifestId) {
+                return networkPort.queryChunks(peer, manifestId);
+            }
+
+            @Override
+            public ListenableFuture<ByteBuffer> fetchChunk(InetSocketAddress peer, ChunkId id) {
+                return networkPort.fetchChunk(peer, id);
+            }
+
+            @Override
+            public ListenableFuture<FileManifest> syncManifest(InetSocketAddress peer, ChunkId manifestId,
+                                                               ChunkId baseManifestId) {
+                return networkPort.syncManifest(peer, manifestId, baseManifestId);
+            }
+        });
+    }
+
+    void setChunkSource(ChunkSource chunkSource) {
+        _chunkSource = chunkSource;
+    }
+
+    @Override
+    public ChunkId importFile(Path file) throws IOException {
+        List<FileManifest.Chunk> chunks = new ArrayList<>();
+        long offset = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            // twice the maximum chunk size so that the chunker can always cut at least one chunk
+            ByteBuffer buffer = ByteBuffer.allocate(2 * _chunker.getMaxChunkSize());
+            boolean endOfInput = false;
+            while (true) {
+                while (!endOfInput && buffer.hasRemaining()) {
+                    endOfInput = channel.read(buffer) < 0;
+                }
+                buffer.flip();
+                int length;
+                while ((length = _chunker.nextChunkLength(buffer, endOfInput)) > 0) {
+                    ByteBuffer chunk = buffer.slice();
+                    chunk.limit(length);
+                    chunks.add(new FileManifest.Chunk(writeChunk(chunk), offset, length));
+                    offset += length;
+                    buffer.position(buffer.position() + length);
+                }
+                if (endOfInput && !buffer.hasRemaining()) {
+                    break;
+                }
+                buffer.compact();
+            }
+        }
+        ChunkId manifestId = writeChunk(new FileManifest(chunks, MerkleTree.build(chunks, _hashingPool)).encode());
+        _store.flush();
+        LOGGER.debug("imported {} as {} ({} bytes in {} chunks)", file, manifestId, offset, chunks.size());
+        return manifestId;
+    }
+
+    @Override
+    public void exportFile(ChunkId manifestId, Path destination) throws IOException {
+        FileManifest manifest = getManifest(manifestId);
+        try (FileChannel channel = FileChannel.open(destination, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (FileManifest.Chunk chunk : manifest.getChunks()) {
+                ByteBuffer data = _store.read(chunk.getId());
+                while (data.hasRemaining()) {
+                    channel.write(data);
+                }
+            }
+        }
+    }
+
+    @Override
+    public ListenableFuture<FileManifest> download(ChunkId manifestId, Collection<InetSocketAddress> peers) {
+        return download(manifestId, null, peers);
+    }
+
+    @Override
+    public ListenableFuture<FileManifest> download(ChunkId manifestId, ChunkId baseManifestId,
+                                                   Collection<InetSocketAddress> peers) {
+        return startDownload(manifestId, baseManifestId, peers, null);
+    }
+
+    @Override
+    public Map<ChunkId, ListenableFuture<FileManifest>> getDownloads() {
+        return Collections.unmodifiableMap(new HashMap<>(_downloads));
+    }
+
+    /**
+     * Continues a download the transfer log says was interrupted. Chunks stored after its last checkpoint may have
+     * been lost in a crash, so they are verified before they count.
+     */
+    private void resume(ChunkId manifestId, TransferLog.Checkpoint checkpoint) {
+        if (_chunkSource == null) {
+            LOGGER.warn("cannot resume download of {} without network", manifestId);
+            return;
+        }
+        LOGGER.info("resuming download of {} from {}", manifestId, checkpoint.getPeers());
+        startDownload(manifestId, null, checkpoint.getPeers(),
+                checkpoint.getProgress() != null ? checkpoint.getProgress() : new BitSet());
+    }
+
+    /**
+     * @param verified for resumed downloads the chunks the checkpoint says are stored, otherwise {@code null}
+     */
+    private ListenableFuture<FileManifest> startDownload(final ChunkId manifestId, ChunkId baseManifestId,
+                                                         final Collection<InetSocketAddress> peers,
+                                                         final BitSet verified) {
+        final SettableFuture<FileManifest> result = SettableFuture.create();
+        ListenableFuture<FileManifest> running = _downloads.putIfAbsent(manifestId, result);
+        if (running != null) {
+            return running;
+        }
+        final TransferLog.Transfer checkpoint;
+        try {
+            checkpoint = _transferLog.begin(manifestId, peers);
+            if (verified != null) {
+                verifyManifestChunk(manifestId);
+            }
+        } catch (IOException e) {
+            _downloads.remove(manifestId);
+            result.setException(e);
+            return result;
+        }
+        ListenableFuture<FileManifest> manifest;
+        if (_store.contains(manifestId)) {
+            try {
+                manifest = Futures.immediateFuture(getManifest(manifestId));
+            } catch (IOException e) {
+                return Futures.immediateFailedFuture(e);
+            }
+        } else if (baseManifestId != null && _store.contains(baseManifestId) && !peers.isEmpty()) {
+            manifest = syncManifest(manifestId, baseManifestId, peers);
+        } else {
+            manifest = fetchManifest(manifestId, peers.iterator());
+        }
+        ListenableFuture<FileManifest> download = Futures.transform(manifest,
+                new AsyncFunction<FileManifest, FileManifest>() {
+                    @Override
+                    public ListenableFuture<FileManifest> apply(FileManifest manifest) {
+                        if (verified != null) {
+                            verifyUncheckpointedChunks(manifest, verified);
+                        }
+                        return new Download(_chunkSource, _store, manifestId, manifest, _maxRequestsPerPeer,
+                                _maxPeerFailures, _slowPeerRatio, checkpoint).start(peers);
+                    }
+                });
+        Futures.addCallback(download, new FutureCallback<FileManifest>() {
+            @Override
+            public void onSuccess(FileManifest manifest) {
+                _downloads.remove(manifestId);
+                result.set(manifest);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                _downloads.remove(manifestId);
+                result.setException(t);
+            }
+        });
+        return result;
+    }
+
+    private void verifyManifestChunk(ChunkId manifestId) throws IOException {
+        if (_store.contains(manifestId) && !manifestId.equals(ChunkId.of(_store.read(manifestId)))) {
+            _store.discard(manifestId);
+        }
+    }
+
+    private void verifyUncheckpointedChunks(FileManifest manifest, BitSet verified) {
+        List<ChunkId> chunks = Download.getDistinctChunks(manifest);
+        List<ChunkId> unverified = new ArrayList<>();
+        for (int i = 0; i < chunks.size(); i++) {
+            if (!verified.get(i) && _store.contains(chunks.get(i))) {
+                unverified.add(chunks.get(i));
+            }
+        }
+        for (ChunkId id : _hashingPool.invoke(new VerifyChunks(unverified))) {
+            try {
+                _store.discard(id);
+            } catch (IOException e) {
+                LOGGER.warn("could not discard corrupt chunk {}", id, e);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the manifest from the base version and the parts of the first peer's Merkle tree that differ, and
+     * falls back to fetching it whole.
+     */
+    private ListenableFuture<FileManifest> syncManifest(final ChunkId manifestId, ChunkId baseManifestId,
+                                                        final Collection<InetSocketAddress> peers) {
+        ListenableFuture<FileManifest> synced = Futures.transform(
+                _chunkSource.syncManifest(peers.iterator().next(), manifestId, baseManifestId),
+                new AsyncFunction<FileManifest, FileManifest>() {
+                    @Override
+                    public ListenableFuture<FileManifest> apply(FileManifest manifest) throws IOException {
+                        _store.write(manifestId, manifest.encode());
+                        return Futures.immediateFuture(manifest);
+                    }
+                });
+        return Futures.withFallback(synced, new FutureFallback<FileManifest>() {
+            @Override
+            public ListenableFuture<FileManifest> create(Throwable t) {
+                LOGGER.debug("could not sync manifest {}, fetching it whole", manifestId, t);
+                return fetchManifest(manifestId, peers.iterator());
+            }
+        });
+    }
+
+    /**
+     * Tries the peers one after the other until one of them has the manifest.
+     */
+    private ListenableFuture<FileManifest> fetchManifest(final ChunkId manifestId,
+                                                         final Iterator<InetSocketAddress> peers) {
+        if (!peers.hasNext()) {
+            return Futures.immediateFailedFuture(new NoSuchFileException(manifestId.toHex(), null,
+                    "no peer has the manifest"));
+        }
+        ListenableFuture<ByteBuffer> data = _chunkSource.fetchChunk(peers.next(), manifestId);
+        ListenableFuture<FileManifest> manifest = Futures.transform(data,
+                new AsyncFunction<ByteBuffer, FileManifest>() {
+                    @Override
+                    public ListenableFuture<FileManifest> apply(ByteBuffer data) throws IOException {
+                        _store.write(manifestId, data.duplicate());
+                        return Futures.immediateFuture(getManifest(manifestId));
+                    }
+                });
+        return Futures.withFallback(manifest, new FutureFallback<FileManifest>() {
+            @Override
+            public ListenableFuture<FileManifest> create(Throwable t) {
+                LOGGER.debug("could not fetch manifest {}", manifestId, t);
+                return fetchManifest(manifestId, peers);
+            }
+        });
+    }
+
+    @Override
+    public FileManifest getManifest(ChunkId manifestId) throws IOException {
+        try {
+            return FileManifest.decode(_store.read(manifestId));
+        } catch (IllegalArgumentException | BufferUnderflowException e) {
+            throw new IOException(manifestId + " is not a manifest", e);
+        }
+    }
+
+    @Override
+    public MerkleTree getMerkleTree(final ChunkId manifestId) throws IOException {
+        MerkleTree tree = _trees.getIfPresent(manifestId);
+        if (tree == null) {
+            tree = MerkleTree.build(getManifest(manifestId).getChunks(), _hashingPool);
+            _trees.put(manifestId, tree);
+        }
+        return tree;
+    }
+
+    @Override
+    public List<ChunkId> verify(ChunkId manifestId) throws IOException {
+        Set<ChunkId> distinct = new LinkedHashSet<>();
+        for (FileManifest.Chunk chunk : getManifest(manifestId).getChunks()) {
+            distinct.add(chunk.getId());
+        }
+        List<ChunkId> corrupt;
+        try {
+            corrupt = _hashingPool.submit(new VerifyChunks(new ArrayList<>(distinct))).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while verifying " + manifestId, e);
+        } catch (ExecutionException e) {
+            throw new IOException("could not verify " + manifestId, e.getCause());
+        }
+        for (ChunkId id : corrupt) {
+            _store.discard(id);
+        }
+        return corrupt;
+    }
+
+    @Override
+    public FileStoreStatistics getStatistics() {
+        return _store.getStatistics();
+    }
+
+    @Override
+    public boolean hasChunk(ChunkId id) {
+        return _store.contains(id);
+    }
+
+    @Override
+    public ByteBuffer readChunk(ChunkId id) throws IOException {
+        return _store.read(id);
+    }
+
+    @Override
+    public FileRegion getChunkRegion(ChunkId id) throws IOException {
+        return _store.getRegion(id);
+    }
+
+    @Override
+    public ChunkId writeChunk(ByteBuffer data) throws IOException {
+        ChunkId id = ChunkId.of(data);
+        _store.write(id, data);
+        return id;
+    }
+
+    public ChunkStore getChunkStore() {
+        return _store;
+    }
+
+    /**
+     * Rehashes chunks and returns those that are missing or whose content does not match their id.
+     */
+    private class VerifyChunks extends RecursiveTask<List<ChunkId>> {
+        private static final long serialVersionUID = 1L;
+
+        private final List<ChunkId> _ids;
+
+        private VerifyChunks(List<ChunkId> ids) {
+            _ids = ids;
+        }
+
+        @Override
+        protected List<ChunkId> compute() {
+            if (_ids.size() > VERIFY_BATCH_SIZE) {
+                int middle = _ids.size() / 2;
+                VerifyChunks second = new VerifyChunks(_ids.subList(middle, _ids.size()));
+                second.fork();
+                List<ChunkId> corrupt = new ArrayList<>(new VerifyChunks(_ids.subList(0, middle)).compute());
+                corrupt.addAll(second.join());
+                return corrupt;
+            }
+            List<ChunkId> corrupt = new ArrayList<>();
+            for (ChunkId id : _ids) {
+                try {
+                    if (!id.equals(ChunkId.of(_store.read(id)))) {
+                        corrupt.add(id);
+                    }
+                } catch (IOException e) {
+                    LOGGER.debug("could not read chunk {}", id, e);
+                    corrupt.add(id);
+                }
+            }
+            return corrupt;
+        }
+    }
+}
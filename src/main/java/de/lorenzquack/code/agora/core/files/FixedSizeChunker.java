@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.nio.ByteBuffer;
+
+
+/**
+ * Cuts every {@code chunkSize} bytes. Cheap, but inserting a single byte shifts all following chunk boundaries.
+ */
+public class FixedSizeChunker extends Chunker {
+    private final int _chunkSize;
+
+    public FixedSizeChunker(int chunkSize) {
+        _chunkSize = chunkSize;
+    }
+
+    @Override
+    public int getMaxChunkSize() {
+        return _chunkSize;
+    }
+
+    @Override
+    public int nextChunkLength(ByteBuffer data, boolean endOfInput) {
+        int remaining = data.remaining();
+        if (remaining >= _chunkSize) {
+            return _chunkSize;
+        }
+        return endOfInput && remaining > 0 ? remaining : -1;
+    }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.cache.Weigher;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Serves reads from {@link PackFile}s through memory mapped windows of {@code windowSize} bytes, which saves the
+ * read syscall per chunk. At most {@code maxMappedBytes} are mapped at a time; the least recently used windows are
+ * unmapped once no reader uses them any more. Packs smaller than {@code minPackSize}, windows the pack does not
+ * fill completely yet and chunks that cross a window boundary are read with positional I/O instead.
+ */
+public class MappedPackCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MappedPackCache.class);
+    /** weights are counted in pages so that they fit an int */
+    private static final int WEIGHT_SHIFT = 12;
+    private static final Unmapper UNMAPPER = Unmapper.find();
+
+    private final long _windowSize;
+    private final long _minPackSize;
+    private final Cache<Long, Mapping> _mappings;
+    private final AtomicLong _mappedBytes = new AtomicLong();
+    private final AtomicLong _hits = new AtomicLong();
+    private final AtomicLong _misses = new AtomicLong();
+    private final AtomicLong _positionalReads = new AtomicLong();
+
+    /**
+     * @param maxMappedBytes 0 disables mapping
+     */
+    public MappedPackCache(long windowSize, long maxMappedBytes, long minPackSize) {
+        if (windowSize <= 0 || windowSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("invalid window size " + windowSize);
+        }
+        _windowSize = windowSize;
+        _minPackSize = maxMappedBytes > 0 ? minPackSize : Long.MAX_VALUE;
+        // a single segment: Guava splits the weight limit between segments, which could leave less than one window each
+        _mappings = CacheBuilder.newBuilder()
+                .concurrencyLevel(1)
+                .maximumWeight(maxMappedBytes >>> WEIGHT_SHIFT)
+                .weigher(new Weigher<Long, Mapping>() {
+                    @Override
+                    public int weigh(Long key, Mapping mapping) {
+                        return mapping._buffer.capacity() >>> WEIGHT_SHIFT;
+                    }
+                })
+                .removalListener(new RemovalListener<Long, Mapping>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Long, Mapping> notification) {
+                        notification.getValue().release();
+                    }
+                })
+                .build();
+    }
+
+    /**
+     * Fills {@code destination} from {@code pack} starting at {@code position}.
+     */
+    void read(PackFile pack, ByteBuffer destination, long position) throws IOException {
+        long window = position / _windowSize;
+        long offset = position - window * _windowSize;
+        Mapping mapping = null;
+        if (pack.getSize() >= _minPackSize && offset + destination.remaining() <= _windowSize) {
+            mapping = acquire(pack, window);
+        }
+        if (mapping == null) {
+            _positionalReads.incrementAndGet();
+            pack.read(destination, position);
+            return;
+        }
+        try {
+            ByteBuffer source = mapping._buffer.duplicate();
+            source.position((int) offset);
+            source.limit((int) offset + destination.remaining());
+            destination.put(source);
+        } finally {
+            mapping.release();
+        }
+    }
+
+    void clear() {
+        _mappings.invalidateAll();
+    }
+
+    long getMappedBytes() {
+        return _mappedBytes.get();
+    }
+
+    long getHits() {
+        return _hits.get();
+    }
+
+    long getMisses() {
+        return _misses.get();
+    }
+
+    long getPositionalReads() {
+        return _positionalReads.get();
+    }
+
+    /**
+     * @return the window with a reference for the caller, or {@code null} if it cannot be mapped
+     */
+    private Mapping acquire(final PackFile pack, final long window) throws IOException {
+        final long start = window * _windowSize;
+        Long key = key(pack, window);
+        Mapping mapping = _mappings.getIfPresent(key);
+        if (mapping != null && mapping.acquire()) {
+            _hits.incrementAndGet();
+            return mapping;
+        }
+        // reserved regions may not be written yet and mapping a region the file does not cover would fail
+        if (pack.getSize() < start + _windowSize || pack.getChannel().size() < start + _windowSize) {
+            return null;
+        }
+        try {
+            mapping = _mappings.get(key, new Callable<Mapping>() {
+                @Override
+                public Mapping call() throws IOException {
+                    _misses.incrementAndGet();
+                    MappedByteBuffer buffer = pack.getChannel().map(FileChannel.MapMode.READ_ONLY, start, _windowSize);
+                    _mappedBytes.addAndGet(_windowSize);
+                    return new Mapping(buffer);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IOException("could not map " + pack.getPath() + " at " + start, e.getCause());
+        }
+        // null if it was evicted in the meantime; the caller then reads positionally
+        return mapping.acquire() ? mapping : null;
+    }
+
+    private static long key(PackFile pack, long window) {
+        return (long) pack.getNumber() << 32 | window;
+    }
+
+    private final class Mapping {
+        private final MappedByteBuffer _buffer;
+        /** one reference is held by the cache and one by every reader */
+        private final AtomicInteger _references = new AtomicInteger(1);
+
+        private Mapping(MappedByteBuffer buffer) {
+            _buffer = buffer;
+        }
+
+        private boolean acquire() {
+            while (true) {
+                int references = _references.get();
+                if (references == 0) {
+                    return false;
+                }
+                if (_references.compareAndSet(references, references + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        private void release() {
+            if (_references.decrementAndGet() == 0) {
+                _mappedBytes.addAndGet(-_buffer.capacity());
+                UNMAPPER.unmap(_buffer);
+            }
+        }
+    }
+
+    /**
+     * Releases a mapping right away instead of when the buffer is garbage collected. There is no public API for
+     * this: Java 9 and later offer {@code Unsafe#invokeCleaner}, older versions the buffer's {@code cleaner()}.
+     */
+    private abstract static class Unmapper {
+        abstract void unmap(MappedByteBuffer buffer);
+
+        static Unmapper find() {
+            try {
+                Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+                final Method invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+                Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+                theUnsafe.setAccessible(true);
+                final Object unsafe = theUnsafe.get(null);
+                return new Unmapper() {
+                    @Override
+                    void unmap(MappedByteBuffer buffer) {
+                        invoke(invokeCleaner, unsafe, buffer);
+                    }
+                };
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.trace("Unsafe#invokeCleaner is not available", e);
+            }
+            return new Unmapper() {
+                @Override
+                void unmap(MappedByteBuffer buffer) {
+                    try {
+                        Method cleanerMethod = buffer.getClass().getMethod("cleaner");
+                        cleanerMethod.setAccessible(true);
+                        Object cleaner = cleanerMethod.invoke(buffer);
+                        invoke(cleaner.getClass().getMethod("clean"), cleaner);
+                    } catch (ReflectiveOperationException | RuntimeException e) {
+                        LOGGER.debug("could not unmap buffer, leaving it to the garbage collector", e);
+                    }
+                }
+            };
+        }
+
+        private static void invoke(Method method, Object target, Object... arguments) {
+            try {
+                method.invoke(target, arguments);
+            } catch (ReflectiveOperationException | RuntimeException e) {
+                LOGGER.debug("could not unmap buffer, leaving it to the garbage collector", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * An append-only file of chunk records {@code [chunk id:32][length:4][data]}.
+ * Writers reserve their region with an atomic add and then write it with positional I/O, so neither concurrent
+ * writers nor readers need a lock.
+ */
+class PackFile {
+    static final int RECORD_HEADER_SIZE = 32 + 4;
+
+    private final int _number;
+    private final Path _path;
+    private final FileChannel _channel;
+    private final long _maxSize;
+    private final AtomicLong _size;
+
+    PackFile(int number, Path path, long maxSize) throws IOException {
+        _number = number;
+        _path = path;
+        _channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        _maxSize = maxSize;
+        _size = new AtomicLong(_channel.size());
+    }
+
+    int getNumber() {
+        return _number;
+    }
+
+    Path getPath() {
+        return _path;
+    }
+
+    FileChannel getChannel() {
+        return _channel;
+    }
+
+    long getSize() {
+        return _size.get();
+    }
+
+    /**
+     * @return the position of the reserved region, or -1 if the pack is full
+     */
+    long reserve(int length) {
+        while (true) {
+            long position = _size.get();
+            if (position > 0 && position + length > _maxSize) {
+                return -1;
+            }
+            if (_size.compareAndSet(position, position + length)) {
+                return position;
+            }
+        }
+    }
+
+    void write(ByteBuffer data, long position) throws IOException {
+        while (data.hasRemaining()) {
+            position += _channel.write(data, position);
+        }
+    }
+
+    void read(ByteBuffer destination, long position) throws IOException {
+        while (destination.hasRemaining()) {
+            int read = _channel.read(destination, position);
+            if (read < 0) {
+                throw new EOFException("unexpected end of " + _path + " at " + position);
+            }
+            position += read;
+        }
+    }
+
+    /**
+     * Forgets a torn record at the end of the file so that the next write starts behind the last complete one.
+     */
+    void truncate(long size) throws IOException {
+        _channel.truncate(size);
+        _size.set(size);
+    }
+
+    void force() throws IOException {
+        _channel.force(false);
+    }
+
+    void close() throws IOException {
+        _channel.close();
+    }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+
+/**
+ * Reads the page fault counters of this process from {@code /proc/self/stat}, which only exists on Linux.
+ */
+final class PageFaults {
+    private static final Path STAT = Paths.get("/proc/self/stat");
+    // field numbers of proc(5) minus the three fields up to and including the command name
+    private static final int MINOR_FIELD = 10 - 3;
+    private static final int MAJOR_FIELD = 12 - 3;
+
+    private PageFaults() {
+    }
+
+    /**
+     * @return {@code [minor, major]}, both -1 if not available
+     */
+    static long[] read() {
+        try {
+            String stat = new String(Files.readAllBytes(STAT), StandardCharsets.US_ASCII);
+            // the command name in parentheses may contain spaces
+            String[] fields = stat.substring(stat.lastIndexOf(')') + 2).split(" ");
+            return new long[]{Long.parseLong(fields[MINOR_FIELD]), Long.parseLong(fields[MAJOR_FIELD])};
+        } catch (IOException | RuntimeException e) {
+            return new long[]{-1, -1};
+        }
+    }
+}
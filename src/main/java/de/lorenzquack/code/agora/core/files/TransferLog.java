@@ -0,0 +1,299 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.ChunkId;
+
+
+/**
+ * Append-only checkpoint file of the downloads in progress, so that they resume after a restart. Records are
+ * {@code [type:1][length:4][manifest id:32][payload]}:
+ * <ul>
+ *   <li>{@code START} {@code [peer count:2]([host length:1][host][port:2])*} when a download begins</li>
+ *   <li>{@code PROGRESS} {@code [bitmap]} the chunks that were stored when the manifest was known</li>
+ *   <li>{@code VERIFIED} {@code [chunk index:4]*} chunks that were received and verified since</li>
+ *   <li>{@code DONE} once every chunk is stored</li>
+ * </ul>
+ * Chunk indices count the distinct chunks of the manifest in order of appearance. {@code VERIFIED} records are
+ * collected and written {@code batchSize} at a time, after the chunk store was forced to disk, so a record never
+ * claims a chunk that a crash could still lose. Chunks stored after the last batch are not in the checkpoint and
+ * must be verified again on resumption. The file is compacted to the unfinished downloads when it is opened.
+ */
+class TransferLog {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TransferLog.class);
+    private static final byte START = 1;
+    private static final byte PROGRESS = 2;
+    private static final byte VERIFIED = 3;
+    private static final byte DONE = 4;
+    private static final int RECORD_HEADER_SIZE = 1 + 4;
+
+    private final Path _path;
+    private final Flushable _store;
+    private final int _batchSize;
+    private final Map<ChunkId, List<Integer>> _pending = new LinkedHashMap<>();
+    private int _pendingCount;
+    private FileChannel _channel;
+
+    /**
+     * @param store is flushed before chunks are recorded as verified
+     */
+    TransferLog(Path path, Flushable store, int batchSize) {
+        _path = path;
+        _store = store;
+        _batchSize = batchSize;
+    }
+
+    /**
+     * @return the downloads that were started but not finished, in the order they were started
+     */
+    synchronized Map<ChunkId, Checkpoint> open() throws IOException {
+        Map<ChunkId, Checkpoint> unfinished = new LinkedHashMap<>();
+        if (Files.exists(_path)) {
+            read(ByteBuffer.wrap(Files.readAllBytes(_path)), unfinished);
+        }
+        Path compacted = _path.resolveSibling(_path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (Map.Entry<ChunkId, Checkpoint> entry : unfinished.entrySet()) {
+                write(channel, start(entry.getKey(), entry.getValue()._peers));
+                if (entry.getValue()._progress != null) {
+                    write(channel, progress(entry.getKey(), entry.getValue()._progress));
+                }
+            }
+            channel.force(true);
+        }
+        Files.move(compacted, _path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        _channel = FileChannel.open(_path, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        if (!unfinished.isEmpty()) {
+            LOGGER.info("{} unfinished downloads in {}", unfinished.size(), _path);
+        }
+        return unfinished;
+    }
+
+    synchronized void close() throws IOException {
+        if (_channel == null) {
+            return;
+        }
+        try {
+            writePending();
+        } finally {
+            _channel.close();
+            _channel = null;
+        }
+    }
+
+    /**
+     * Records the start of a download.
+     */
+    synchronized Transfer begin(ChunkId manifestId, Collection<InetSocketAddress> peers) throws IOException {
+        record(start(manifestId, peers));
+        return new Transfer(manifestId);
+    }
+
+    private synchronized void verified(ChunkId manifestId, int chunk) throws IOException {
+        if (_channel == null) {
+            return;
+        }
+        List<Integer> chunks = _pending.get(manifestId);
+        if (chunks == null) {
+            chunks = new ArrayList<>();
+            _pending.put(manifestId, chunks);
+        }
+        chunks.add(chunk);
+        if (++_pendingCount >= _batchSize) {
+            writePending();
+        }
+    }
+
+    private synchronized void record(ByteBuffer record) throws IOException {
+        if (_channel != null) {
+            writePending();
+            write(_channel, record);
+        }
+    }
+
+    private void writePending() throws IOException {
+        if (_pending.isEmpty()) {
+            return;
+        }
+        _store.flush();
+        for (Map.Entry<ChunkId, List<Integer>> entry : _pending.entrySet()) {
+            ByteBuffer record = allocate(VERIFIED, entry.getKey(), 4 * entry.getValue().size());
+            for (int chunk : entry.getValue()) {
+                record.putInt(chunk);
+            }
+            write(_channel, record);
+        }
+        _pending.clear();
+        _pendingCount = 0;
+    }
+
+    private static void read(ByteBuffer log, Map<ChunkId, Checkpoint> unfinished) {
+        while (log.remaining() >= RECORD_HEADER_SIZE) {
+            byte type = log.get();
+            int length = log.getInt();
+            if (length < ChunkId.SIZE_IN_BYTES || length > log.remaining()) {
+                break;
+            }
+            ByteBuffer record = log.slice();
+            record.limit(length);
+            log.position(log.position() + length);
+            ChunkId manifestId = ChunkId.readFrom(record);
+            Checkpoint checkpoint = unfinished.get(manifestId);
+            if (type == START) {
+                List<InetSocketAddress> peers = new ArrayList<>();
+                int count = record.getShort() & 0xffff;
+                for (int i = 0; i < count; i++) {
+                    byte[] host = new byte[record.get() & 0xff];
+                    record.get(host);
+                    int port = record.getShort() & 0xffff;
+                    peers.add(new InetSocketAddress(new String(host, StandardCharsets.UTF_8), port));
+                }
+                unfinished.put(manifestId, new Checkpoint(peers, checkpoint != null ? checkpoint._progress : null));
+            } else if (checkpoint == null) {
+                continue;
+            } else if (type == PROGRESS) {
+                checkpoint._progress = BitSet.valueOf(record);
+            } else if (type == VERIFIED) {
+                if (checkpoint._progress == null) {
+                    checkpoint._progress = new BitSet();
+                }
+                while (record.remaining() >= 4) {
+                    checkpoint._progress.set(record.getInt());
+                }
+            } else if (type == DONE) {
+                unfinished.remove(manifestId);
+            }
+        }
+        if (log.hasRemaining()) {
+            LOGGER.warn("ignoring {} bytes of incomplete records at the end of the transfer log", log.remaining());
+        }
+    }
+
+    private static ByteBuffer start(ChunkId manifestId, Collection<InetSocketAddress> peers) {
+        List<byte[]> hosts = new ArrayList<>();
+        int size = 2;
+        for (InetSocketAddress peer : peers) {
+            byte[] host = peer.getHostString().getBytes(StandardCharsets.UTF_8);
+            hosts.add(host);
+            size += 1 + host.length + 2;
+        }
+        ByteBuffer record = allocate(START, manifestId, size);
+        record.putShort((short) peers.size());
+        int i = 0;
+        for (InetSocketAddress peer : peers) {
+            record.put((byte) hosts.get(i).length);
+            record.put(hosts.get(i++));
+            record.putShort((short) peer.getPort());
+        }
+        return record;
+    }
+
+    private static ByteBuffer progress(ChunkId manifestId, BitSet progress) {
+        byte[] bitmap = progress.toByteArray();
+        return allocate(PROGRESS, manifestId, bitmap.length).put(bitmap);
+    }
+
+    private static ByteBuffer allocate(byte type, ChunkId manifestId, int payloadSize) {
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + ChunkId.SIZE_IN_BYTES + payloadSize);
+        record.put(type);
+        record.putInt(ChunkId.SIZE_IN_BYTES + payloadSize);
+        manifestId.writeTo(record);
+        return record;
+    }
+
+    private static void write(FileChannel channel, ByteBuffer record) throws IOException {
+        record.flip();
+        while (record.hasRemaining()) {
+            channel.write(record);
+        }
+    }
+
+    /**
+     * What is known about an unfinished download.
+     */
+    static final class Checkpoint {
+        private final List<InetSocketAddress> _peers;
+        private BitSet _progress;
+
+        private Checkpoint(List<InetSocketAddress> peers, BitSet progress) {
+            _peers = peers;
+            _progress = progress;
+        }
+
+        List<InetSocketAddress> getPeers() {
+            return Collections.unmodifiableList(_peers);
+        }
+
+        /**
+         * @return the chunks known to be stored and verified, or {@code null} if the download stopped before its
+         *         manifest was known
+         */
+        BitSet getProgress() {
+            return _progress;
+        }
+    }
+
+    /**
+     * Records the progress of one download.
+     */
+    final class Transfer {
+        private final ChunkId _manifestId;
+
+        private Transfer(ChunkId manifestId) {
+            _manifestId = manifestId;
+        }
+
+        /**
+         * @param stored the chunks that are stored and trusted when the manifest is known
+         */
+        void progress(BitSet stored) throws IOException {
+            record(TransferLog.progress(_manifestId, stored));
+        }
+
+        void verified(int chunk) throws IOException {
+            TransferLog.this.verified(_manifestId, chunk);
+        }
+
+        void finished() throws IOException {
+            record(allocate(DONE, _manifestId, 0));
+        }
+    }
+}
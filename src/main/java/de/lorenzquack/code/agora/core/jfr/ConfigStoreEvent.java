@@ -0,0 +1,53 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("agora.ConfigStore")
+@Label("Config Store")
+@Category({"Agora", "Configuration"})
+@Description("A configuration store written to disk")
+final class ConfigStoreEvent extends Event implements FlightEvent {
+    @Label("Store")
+    String store;
+
+    @Label("Bytes Written")
+    @DataAmount
+    long size;
+
+    @Label("Outcome")
+    String outcome = FlightEvents.OUTCOME_FAILED;
+
+    @Override
+    public void setSize(long size) {
+        this.size = size;
+    }
+
+    @Override
+    public void setOutcome(String outcome) {
+        this.outcome = outcome;
+    }
+}
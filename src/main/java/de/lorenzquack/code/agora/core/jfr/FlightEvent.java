@@ -0,0 +1,42 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.jfr;
+
+
+/**
+ * An operation that is being recorded by the Java Flight Recorder. It started when it was handed out by
+ * {@link FlightEvents} and is committed by {@link #commit()}, which has to be called in a {@code finally} block.
+ */
+public interface FlightEvent {
+    /**
+     * @param size the number of bytes the operation read or wrote
+     */
+    void setSize(long size);
+
+    /**
+     * @param outcome how the operation ended, e.g. the HTTP status of a REST request, an event that ends without one
+     *                is recorded as {@link FlightEvents#OUTCOME_FAILED}
+     */
+    void setOutcome(String outcome);
+
+    /**
+     * Ends the operation and records it if it took longer than the threshold of the recording.
+     */
+    void commit();
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.jfr;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Begins the Java Flight Recorder events of the core, which are enabled with the {@code agora.jfc} settings that
+ * ship with the distribution:
+ * <pre>java -XX:StartFlightRecording=settings=default,settings=agora.jfc,filename=agora.jfr ...</pre>
+ * Unless a recording has enabled an event type, beginning it only reads a flag and returns {@link #NONE}, so the call
+ * sites need not check themselves. On JVMs without the {@code jdk.jfr} API all events are {@link #NONE}.
+ */
+public final class FlightEvents {
+    public static final FlightEvent NONE = new FlightEvent() {
+        @Override
+        public void setSize(long size) {
+        }
+
+        @Override
+        public void setOutcome(String outcome) {
+        }
+
+        @Override
+        public void commit() {
+        }
+    };
+    public static final String OUTCOME_OK = "ok";
+    public static final String OUTCOME_FAILED = "failed";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(FlightEvents.class);
+    private static final boolean AVAILABLE = isJfrAvailable();
+
+    private FlightEvents() {
+    }
+
+    public static boolean isAvailable() {
+        return AVAILABLE;
+    }
+
+    public static FlightEvent beginConfigLoad(String store) {
+        return AVAILABLE ? Recorder.beginConfigLoad(store) : NONE;
+    }
+
+    public static FlightEvent beginConfigStore(String store) {
+        return AVAILABLE ? Recorder.beginConfigStore(store) : NONE;
+    }
+
+    /**
+     * @param rounds the log2 of the bcrypt rounds of the stored password hash, 0 if no password is set
+     */
+    public static FlightEvent beginLogin(String username, long rounds) {
+        return AVAILABLE ? Recorder.beginLogin(username, rounds) : NONE;
+    }
+
+    /**
+     * @param component named after its class
+     */
+    public static FlightEvent beginLifeCycle(Object component, String phase) {
+        return AVAILABLE ? Recorder.beginLifeCycle(component, phase) : NONE;
+    }
+
+    public static FlightEvent beginRestRequest(String method, String path) {
+        return AVAILABLE ? Recorder.beginRestRequest(method, path) : NONE;
+    }
+
+    public static FlightEvent beginMessageSend(Object peer, Object type) {
+        return AVAILABLE ? Recorder.beginMessageSend(peer, type) : NONE;
+    }
+
+    public static FlightEvent beginMessageReceive(Object peer, Object type) {
+        return AVAILABLE ? Recorder.beginMessageReceive(peer, type) : NONE;
+    }
+
+    /**
+     * The event classes extend {@code jdk.jfr.Event}, so {@link Recorder} is only loaded once it is known to exist.
+     */
+    private static boolean isJfrAvailable() {
+        try {
+            Class.forName("jdk.jfr.Event", false, FlightEvents.class.getClassLoader());
+        } catch (ClassNotFoundException e) {
+            LOGGER.debug("no flight recorder events on {}", System.getProperty("java.version"));
+            return false;
+        }
+        try {
+            return Recorder.isAvailable();
+        } catch (LinkageError e) {
+            LOGGER.debug("could not register the flight recorder events", e);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+
+@Name("agora.Login")
+@Label("Login")
+@Category({"Agora", "UI"})
+@Description("A UI login including the bcrypt check of the password")
+final class LoginEvent extends Event implements FlightEvent {
+    @Label("Username")
+    String username;
+
+    @Label("BCrypt Rounds")
+    @Description("The log2 of the rounds of the stored password hash, 0 if no password is set")
+    long rounds;
+
+    @Label("Outcome")
+    String outcome = FlightEvents.OUTCOME_FAILED;
+
+    @Override
+    public void setSize(long size) {
+        // nothing is read or written, the work of a login is the cost of its hash
+    }
+
+    @Override
+    public void setOutcome(String outcome) {
+        this.outcome = outcome;
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.jfr;
+
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+
+
+/**
+ * Hands out an event only when a recording has enabled its type. The {@link EventType} is looked up once, checking it
+ * is a volatile read, and a disabled event is neither allocated nor timed. Peers and message types are only turned
+ * into strings for enabled events.
+ */
+final class Recorder {
+    private static final EventType CONFIG_LOAD = EventType.getEventType(ConfigLoadEvent.class);
+    private static final EventType CONFIG_STORE = EventType.getEventType(ConfigStoreEvent.class);
+    private static final EventType LOGIN = EventType.getEventType(LoginEvent.class);
+    private static final EventType LIFE_CYCLE = EventType.getEventType(LifeCycleEvent.class);
+    private static final EventType REST_REQUEST = EventType.getEventType(RestRequestEvent.class);
+    private static final EventType MESSAGE_SEND = EventType.getEventType(MessageSendEvent.class);
+    private static final EventType MESSAGE_RECEIVE = EventType.getEventType(MessageReceiveEvent.class);
+
+    private Recorder() {
+    }
+
+    static boolean isAvailable() {
+        return FlightRecorder.isAvailable();
+    }
+
+    static FlightEvent beginConfigLoad(String store) {
+        if (!CONFIG_LOAD.isEnabled()) {
+            return FlightEvents.NONE;
+        }
+        ConfigLoadEvent event = new ConfigLoadEvent();
+        event.store = store;
+        event.begin();
+        return event;
+    }
+
+    static FlightEvent beginConfigStore(String store) {
+        if (!CONFIG_STORE.isEnabled()) {
+            return FlightEvents.NONE;
+        }
+        ConfigStoreEvent event = new ConfigStoreEvent();
+        event.store = store;
+        event.begin();
+        return event;
+    }
+
+    static FlightEvent beginLogin(String username, long rounds) {
+        if (!LOGIN.isEnabled()) {
+            return FlightEvents.NONE;
+        }
+        LoginEvent event = new LoginEvent();
+        event.username = username;
+        event.rounds = rounds;
+        event.begin();
+        return event;
+    }
+
+    static FlightEvent beginLifeCycle(Object component, String phase) {
+        if (!LIFE_CYCLE.isEnabled()) {
+            return FlightEvents.NONE;
+        }
+        LifeCycleEvent event = new LifeCycleEvent();
+        event.component = component.getClass().getSimpleName();
+        event.phase = phase;
+        event.begin();
+        return event;
+    }
+
+    static FlightEvent beginRestRequest(String method, String path) {
+        if (!REST_REQUEST.isEnabled()) {
+            return FlightEvents.NONE;
+        }
+        RestRequestEvent event = new RestRequestEvent();
+        event.method = method;
+        event.path = path;
+        event.begin();
+        return event;
+    }
+
+    static FlightEvent beginMessageSend(Object peer, Object type) {
+        if (!MESSAGE_SEND.isEnabled()) {
+            return FlightEvents.NONE;
+        }
+        MessageSendEvent event = new MessageSendEvent();
+        event.peer = String.valueOf(peer);
+        event.messageType = String.valueOf(type);
+        event.begin();
+        return event;
+    }
+
+    static FlightEvent beginMessageReceive(Object peer, Object type) {
+        if (!MESSAGE_RECEIVE.isEnabled()) {
+            return FlightEvents.NONE;
+        }
+        MessageReceiveEvent event = new MessageReceiveEvent();
+        event.peer = String.valueOf(peer);
+        event.messageType = String.valueOf(type);
+        event.begin();
+        return event;
+    }
+}
@@ -0,0 +1,276 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.logging;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.Appender;
+import ch.qos.logback.core.UnsynchronizedAppenderBase;
+import ch.qos.logback.core.spi.AppenderAttachable;
+import ch.qos.logback.core.spi.AppenderAttachableImpl;
+import org.slf4j.ILoggerFactory;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.Gauge;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+
+
+/**
+ * Hands events to its appenders on a thread of its own, so that logging threads never wait for the console. The
+ * events wait in a queue of {@code queueSize}; when it is full new events are dropped and counted instead of blocking
+ * the caller, and the number dropped is logged once the queue drains. Logback's own {@code AsyncAppender} blocks when
+ * its queue is full.
+ * <p>
+ * Filters of this appender run on the calling thread, before an event is queued, so rejected events cost no more than
+ * the filters.
+ */
+public class DroppingAsyncAppender extends UnsynchronizedAppenderBase<ILoggingEvent>
+        implements AppenderAttachable<ILoggingEvent> {
+    public static final int DEFAULT_QUEUE_SIZE = 1024;
+    private static final long MAX_FLUSH_MILLIS = 1000;
+
+    private final AppenderAttachableImpl<ILoggingEvent> _appenders = new AppenderAttachableImpl<>();
+    private final AtomicLong _droppedEvents = new AtomicLong();
+    private int _queueSize = DEFAULT_QUEUE_SIZE;
+    private boolean _includeCallerData;
+    private BlockingQueue<ILoggingEvent> _queue;
+    private Thread _worker;
+    private Thread _shutdownHook;
+
+    /**
+     * Registers gauges for the dropped and queued events of every {@link DroppingAsyncAppender} that logback was
+     * configured with.
+     */
+    public static void registerMetrics(MetricRegistry metrics) {
+        ILoggerFactory loggerFactory = LoggerFactory.getILoggerFactory();
+        if (!(loggerFactory instanceof LoggerContext)) {
+            return;
+        }
+        for (Logger logger : ((LoggerContext) loggerFactory).getLoggerList()) {
+            Iterator<Appender<ILoggingEvent>> appenders = logger.iteratorForAppenders();
+            while (appenders.hasNext()) {
+                Appender<ILoggingEvent> appender = appenders.next();
+                if (appender instanceof DroppingAsyncAppender) {
+                    ((DroppingAsyncAppender) appender).registerGauges(metrics);
+                }
+            }
+        }
+    }
+
+    public void setQueueSize(int queueSize) {
+        _queueSize = queueSize;
+    }
+
+    public int getQueueSize() {
+        return _queueSize;
+    }
+
+    /**
+     * @param includeCallerData whether to capture the caller's stack frame before the event is queued, which is
+     *                          expensive and only needed by layouts that print the caller
+     */
+    public void setIncludeCallerData(boolean includeCallerData) {
+        _includeCallerData = includeCallerData;
+    }
+
+    public boolean isIncludeCallerData() {
+        return _includeCallerData;
+    }
+
+    public long getDroppedEvents() {
+        return _droppedEvents.get();
+    }
+
+    public int getQueuedEvents() {
+        BlockingQueue<ILoggingEvent> queue = _queue;
+        return queue != null ? queue.size() : 0;
+    }
+
+    @Override
+    public void start() {
+        if (isStarted()) {
+            return;
+        }
+        if (_queueSize < 1) {
+            addError("queueSize of appender " + getName() + " is " + _queueSize + ", it has to be at least 1");
+            return;
+        }
+        if (!_appenders.iteratorForAppenders().hasNext()) {
+            addError("no appenders attached to " + getName());
+            return;
+        }
+        _queue = new ArrayBlockingQueue<>(_queueSize);
+        _worker = new Thread(new Worker(), "agora-log-" + getName());
+        _worker.setDaemon(true);
+        // the worker is a daemon, without the hook the last events would be lost when the JVM exits
+        _shutdownHook = new Thread("agora-log-" + getName() + "-flush") {
+            @Override
+            public void run() {
+                DroppingAsyncAppender.this.stop();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(_shutdownHook);
+        super.start();
+        _worker.start();
+    }
+
+    @Override
+    public void stop() {
+        if (!isStarted()) {
+            return;
+        }
+        super.stop();
+        if (Thread.currentThread() != _shutdownHook) {
+            try {
+                Runtime.getRuntime().removeShutdownHook(_shutdownHook);
+            } catch (IllegalStateException e) {
+                // the JVM is shutting down already
+            }
+        }
+        _worker.interrupt();
+        try {
+            _worker.join(MAX_FLUSH_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (_worker.isAlive()) {
+            addWarn("appender " + getName() + " could not flush its queue in " + MAX_FLUSH_MILLIS + " ms, "
+                    + _queue.size() + " events are lost");
+        }
+    }
+
+    @Override
+    protected void append(ILoggingEvent event) {
+        // checked first so that events that are dropped are not prepared
+        if (_queue.remainingCapacity() == 0) {
+            _droppedEvents.incrementAndGet();
+            return;
+        }
+        event.prepareForDeferredProcessing();
+        if (_includeCallerData) {
+            event.getCallerData();
+        }
+        if (!_queue.offer(event)) {
+            _droppedEvents.incrementAndGet();
+        }
+    }
+
+    @Override
+    public void addAppender(Appender<ILoggingEvent> appender) {
+        _appenders.addAppender(appender);
+    }
+
+    @Override
+    public Iterator<Appender<ILoggingEvent>> iteratorForAppenders() {
+        return _appenders.iteratorForAppenders();
+    }
+
+    @Override
+    public Appender<ILoggingEvent> getAppender(String name) {
+        return _appenders.getAppender(name);
+    }
+
+    @Override
+    public boolean isAttached(Appender<ILoggingEvent> appender) {
+        return _appenders.isAttached(appender);
+    }
+
+    @Override
+    public void detachAndStopAllAppenders() {
+        _appenders.detachAndStopAllAppenders();
+    }
+
+    @Override
+    public boolean detachAppender(Appender<ILoggingEvent> appender) {
+        return _appenders.detachAppender(appender);
+    }
+
+    @Override
+    public boolean detachAppender(String name) {
+        return _appenders.detachAppender(name);
+    }
+
+    private void registerGauges(MetricRegistry metrics) {
+        metrics.gauge("agora_log_dropped_events", "Log events dropped because the queue was full", new Gauge() {
+            @Override
+            public long getValue() {
+                return getDroppedEvents();
+            }
+        }, "appender", getName());
+        metrics.gauge("agora_log_queued_events", "Log events waiting to be written", new Gauge() {
+            @Override
+            public long getValue() {
+                return getQueuedEvents();
+            }
+        }, "appender", getName());
+    }
+
+    private class Worker implements Runnable {
+        private final List<ILoggingEvent> _batch = new ArrayList<>();
+        private long _reportedDrops;
+
+        @Override
+        public void run() {
+            while (isStarted()) {
+                try {
+                    _batch.add(_queue.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+                _queue.drainTo(_batch);
+                appendBatch();
+            }
+            // stopped, write what is left
+            _queue.drainTo(_batch);
+            appendBatch();
+        }
+
+        private void appendBatch() {
+            for (ILoggingEvent event : _batch) {
+                _appenders.appendLoopOnAppenders(event);
+            }
+            _batch.clear();
+            long dropped = _droppedEvents.get();
+            if (dropped > _reportedDrops) {
+                reportDrops(dropped - _reportedDrops);
+                _reportedDrops = dropped;
+            }
+        }
+
+        private void reportDrops(long count) {
+            if (!(getContext() instanceof LoggerContext)) {
+                return;
+            }
+            Logger logger = ((LoggerContext) getContext()).getLogger(DroppingAsyncAppender.class);
+            _appenders.appendLoopOnAppenders(new LoggingEvent(DroppingAsyncAppender.class.getName(), logger,
+                    Level.WARN, "dropped {} log events, the queue of {} was full", null,
+                    new Object[]{count, _queueSize}));
+        }
+    }
+}
@@ -18,7 +18,8 @@
  */
 package de.lorenzquack.code.agora.core.logging;
 
-import java.util.regex.Matcher;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.regex.Pattern;
 
 import ch.qos.logback.classic.Level;
@@ -27,9 +28,16 @@ import ch.qos.logback.core.filter.AbstractMatcherFilter;
 import ch.qos.logback.core.spi.FilterReply;
 
 
+/**
+ * Matches events at or above a level from loggers whose name matches a regular expression. Whether a name matches is
+ * remembered, so the expression only runs on the first event of every logger.
+ */
 public class NameAndLevelFilter extends AbstractMatcherFilter<ILoggingEvent> {
-    private Pattern _loggerNamePattern;
-    private Level _level;
+    /** loggers are usually named after classes, this only guards against names made up at runtime */
+    private static final int MAX_CACHED_NAMES = 4096;
+    private final ConcurrentMap<String, Boolean> _nameMatches = new ConcurrentHashMap<>();
+    private volatile Pattern _loggerNamePattern;
+    private volatile Level _level;
 
     public NameAndLevelFilter() {
         this(".*", Level.DEBUG);
@@ -45,22 +53,29 @@ public class NameAndLevelFilter extends AbstractMatcherFilter<ILoggingEvent> {
 
     @Override
     public FilterReply decide(ILoggingEvent event) {
-        if (!event.getLevel().isGreaterOrEqual(_level)) {
+        if (!event.getLevel().isGreaterOrEqual(_level) || !nameMatches(event.getLoggerName())) {
             return getOnMismatch();
-        } else {
-            Matcher loggerNameMatcher = _loggerNamePattern.matcher(event.getLoggerName());
-            if (!loggerNameMatcher.matches()) {
-                return getOnMismatch();
-            }
         }
         return getOnMatch();
     }
 
     public void setLoggerName(String loggerName) {
         _loggerNamePattern = Pattern.compile(loggerName);
+        _nameMatches.clear();
     }
 
     public void setLevel(Level level) {
         _level = level;
     }
+
+    private boolean nameMatches(String loggerName) {
+        Boolean matches = _nameMatches.get(loggerName);
+        if (matches == null) {
+            matches = _loggerNamePattern.matcher(loggerName).matches();
+            if (_nameMatches.size() < MAX_CACHED_NAMES) {
+                _nameMatches.put(loggerName, matches);
+            }
+        }
+        return matches;
+    }
 }
@@ -0,0 +1,62 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.HdrHistogram.AtomicHistogram;
+
+import de.lorenzquack.code.agora.core.api.Timer;
+
+
+/**
+ * Records into an {@link AtomicHistogram}, which counts with atomic increments and takes no lock. Durations are
+ * kept with two significant digits from a microsecond to ten minutes, longer ones are recorded as ten minutes.
+ */
+final class HistogramTimer implements Timer {
+    static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final long LOWEST_NANOS = TimeUnit.MICROSECONDS.toNanos(1);
+    private static final long HIGHEST_NANOS = TimeUnit.MINUTES.toNanos(10);
+
+    private final AtomicHistogram _histogram = new AtomicHistogram(LOWEST_NANOS, HIGHEST_NANOS, 2);
+    private final StripedCounter _sumNanos = new StripedCounter();
+
+    @Override
+    public void record(long nanos) {
+        long value = Math.max(0, Math.min(nanos, HIGHEST_NANOS));
+        _histogram.recordValue(value);
+        _sumNanos.add(value);
+    }
+
+    @Override
+    public long getCount() {
+        return _histogram.getTotalCount();
+    }
+
+    long getSumNanos() {
+        return _sumNanos.get();
+    }
+
+    /**
+     * @return the duration below which {@code quantile} of the recorded ones are, 0 if there are none
+     */
+    long getValueAtQuantile(double quantile) {
+        return _histogram.getValueAtPercentile(quantile * 100);
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.metrics;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.Counter;
+import de.lorenzquack.code.agora.core.api.Gauge;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+import de.lorenzquack.code.agora.core.api.Timer;
+
+
+/**
+ * Keeps the metrics in families of one name, type and help text, each with one metric per set of labels. Looking a
+ * metric up builds its label string, so the instrumented code looks its metrics up once; recording into them takes
+ * no lock.
+ */
+public class MetricRegistryImpl implements MetricRegistry {
+    private static final Logger LOGGER = LoggerFactory.getLogger(MetricRegistryImpl.class);
+    private static final Pattern METRIC_NAME = Pattern.compile("[a-zA-Z_:][a-zA-Z0-9_:]*");
+    private static final Pattern LABEL_NAME = Pattern.compile("[a-zA-Z_][a-zA-Z0-9_]*");
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private final ConcurrentHashMap<String, Family> _families = new ConcurrentHashMap<>();
+
+    @Override
+    public Counter counter(String name, String help, String... labels) {
+        ConcurrentMap<String, Object> metrics = getFamily(name, help, Type.COUNTER)._metrics;
+        String key = toLabelString(labels);
+        Object counter = metrics.get(key);
+        if (counter == null) {
+            Object created = new StripedCounter();
+            counter = metrics.putIfAbsent(key, created);
+            counter = counter != null ? counter : created;
+        }
+        return (Counter) counter;
+    }
+
+    @Override
+    public Timer timer(String name, String help, String... labels) {
+        ConcurrentMap<String, Object> metrics = getFamily(name, help, Type.SUMMARY)._metrics;
+        String key = toLabelString(labels);
+        Object timer = metrics.get(key);
+        if (timer == null) {
+            Object created = new HistogramTimer();
+            timer = metrics.putIfAbsent(key, created);
+            timer = timer != null ? timer : created;
+        }
+        return (Timer) timer;
+    }
+
+    @Override
+    public void gauge(String name, String help, Gauge gauge, String... labels) {
+        getFamily(name, help, Type.GAUGE)._metrics.put(toLabelString(labels), gauge);
+    }
+
+    @Override
+    public void writeTextFormat(Appendable out) throws IOException {
+        for (Family family : new TreeMap<>(_families).values()) {
+            family.write(out);
+        }
+    }
+
+    private Family getFamily(String name, String help, Type type) {
+        Family family = _families.get(name);
+        if (family == null) {
+            if (!METRIC_NAME.matcher(name).matches()) {
+                throw new IllegalArgumentException("invalid metric name " + name);
+            }
+            Family created = new Family(name, help, type);
+            family = _families.putIfAbsent(name, created);
+            family = family != null ? family : created;
+        }
+        if (family._type != type) {
+            throw new IllegalArgumentException("metric " + name + " is a " + family._type.getName() + ", not a "
+                    + type.getName());
+        }
+        return family;
+    }
+
+    /**
+     * @return the labels as they appear between the braces, e.g. {@code path="/api/login",status="2xx"}
+     */
+    private static String toLabelString(String... labels) {
+        if (labels.length % 2 != 0) {
+            throw new IllegalArgumentException("labels must be pairs of name and value");
+        }
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < labels.length; i += 2) {
+            if (!LABEL_NAME.matcher(labels[i]).matches()) {
+                throw new IllegalArgumentException("invalid label name " + labels[i]);
+            }
+            if (i > 0) {
+                builder.append(',');
+            }
+            builder.append(labels[i]).append("=\"");
+            String value = labels[i + 1];
+            for (int j = 0; j < value.length(); j++) {
+                char c = value.charAt(j);
+                if (c == '\\' || c == '"') {
+                    builder.append('\\').append(c);
+                } else if (c == '\n') {
+                    builder.append("\\n");
+                } else {
+                    builder.append(c);
+                }
+            }
+            builder.append('"');
+        }
+        return builder.toString();
+    }
+
+    private static String format(double value) {
+        return value == Math.rint(value) && !Double.isInfinite(value) ? Long.toString((long) value)
+                : Double.toString(value);
+    }
+
+    private enum Type {
+        COUNTER, SUMMARY, GAUGE;
+
+        String getName() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static final class Family {
+        private final String _name;
+        private final String _help;
+        private final Type _type;
+        /** sorted, so that the output is stable from one scrape to the next */
+        private final ConcurrentMap<String, Object> _metrics = new ConcurrentSkipListMap<>();
+
+        private Family(String name, String help, Type type) {
+            _name = name;
+            _help = help.replace("\\", "\\\\").replace("\n", "\\n");
+            _type = type;
+        }
+
+        private void write(Appendable out) throws IOException {
+            out.append("# HELP ").append(_name).append(' ').append(_help).append('\n');
+            out.append("# TYPE ").append(_name).append(' ').append(_type.getName()).append('\n');
+            for (Map.Entry<String, Object> metric : _metrics.entrySet()) {
+                String labels = metric.getKey();
+                switch (_type) {
+                    case COUNTER:
+                        writeSample(out, _name, labels, Long.toString(((Counter) metric.getValue()).get()));
+                        break;
+                    case GAUGE:
+                        try {
+                            writeSample(out, _name, labels, Long.toString(((Gauge) metric.getValue()).getValue()));
+                        } catch (RuntimeException e) {
+                            LOGGER.debug("could not read gauge {}{{}}", _name, labels, e);
+                        }
+                        break;
+                    default:
+                        HistogramTimer timer = (HistogramTimer) metric.getValue();
+                        String separator = labels.isEmpty() ? "" : ",";
+                        for (double quantile : HistogramTimer.QUANTILES) {
+                            writeSample(out, _name, labels + separator + "quantile=\"" + quantile + "\"",
+                                    format(timer.getValueAtQuantile(quantile) / NANOS_PER_SECOND));
+                        }
+                        writeSample(out, _name + "_sum", labels, format(timer.getSumNanos() / NANOS_PER_SECOND));
+                        writeSample(out, _name + "_count", labels, Long.toString(timer.getCount()));
+                }
+            }
+        }
+
+        private static void writeSample(Appendable out, String name, String labels, String value) throws IOException {
+            out.append(name);
+            if (!labels.isEmpty()) {
+                out.append('{').append(labels).append('}');
+            }
+            out.append(' ').append(value).append('\n');
+        }
+    }
+}
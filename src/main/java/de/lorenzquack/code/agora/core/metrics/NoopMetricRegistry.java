@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.metrics;
+
+import de.lorenzquack.code.agora.core.api.Counter;
+import de.lorenzquack.code.agora.core.api.Gauge;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+import de.lorenzquack.code.agora.core.api.Timer;
+
+
+/**
+ * Discards everything recorded into it. Components that are handed the registry of the node after they were created
+ * count into this one until then, instead of each keeping a registry of its own that nobody reads.
+ */
+public final class NoopMetricRegistry implements MetricRegistry {
+    public static final NoopMetricRegistry INSTANCE = new NoopMetricRegistry();
+
+    private static final Counter COUNTER = new Counter() {
+        @Override
+        public void increment() {
+        }
+
+        @Override
+        public void add(long delta) {
+        }
+
+        @Override
+        public long get() {
+            return 0;
+        }
+    };
+
+    private static final Timer TIMER = new Timer() {
+        @Override
+        public void record(long nanos) {
+        }
+
+        @Override
+        public long getCount() {
+            return 0;
+        }
+    };
+
+    private NoopMetricRegistry() {
+    }
+
+    @Override
+    public Counter counter(String name, String help, String... labels) {
+        return COUNTER;
+    }
+
+    @Override
+    public Timer timer(String name, String help, String... labels) {
+        return TIMER;
+    }
+
+    @Override
+    public void gauge(String name, String help, Gauge gauge, String... labels) {
+    }
+
+    @Override
+    public void writeTextFormat(Appendable out) {
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import de.lorenzquack.code.agora.core.api.Counter;
+
+
+/**
+ * A counter spread over one cell per stripe, like Java 8's {@code LongAdder}. A thread adds to the cell its probe
+ * points at and moves its probe on when the CAS finds another thread in the same cell, so threads that count often
+ * end up in different cells. Cells are a cache line apart so that they do not share lines.
+ */
+final class StripedCounter implements Counter {
+    /** eight longs make a cache line of 64 bytes */
+    private static final int PADDING = 8;
+    private static final int STRIPES = stripes();
+    private static final ThreadLocal<int[]> PROBE = new ThreadLocal<int[]>() {
+        @Override
+        protected int[] initialValue() {
+            // spread the threads by id, the golden ratio scatters consecutive ids
+            return new int[] {(int) (Thread.currentThread().getId() * 0x9E3779B9L)};
+        }
+    };
+
+    private final AtomicLongArray _cells = new AtomicLongArray(STRIPES * PADDING);
+
+    @Override
+    public void increment() {
+        add(1);
+    }
+
+    @Override
+    public void add(long delta) {
+        int[] probe = PROBE.get();
+        int index = (probe[0] & (STRIPES - 1)) * PADDING;
+        long value = _cells.get(index);
+        if (!_cells.compareAndSet(index, value, value + delta)) {
+            // contended, move on for next time (xorshift) and add without retrying the CAS
+            int next = probe[0];
+            next ^= next << 13;
+            next ^= next >>> 17;
+            next ^= next << 5;
+            probe[0] = next;
+            _cells.getAndAdd((next & (STRIPES - 1)) * PADDING, delta);
+        }
+    }
+
+    @Override
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++) {
+            sum += _cells.get(i * PADDING);
+        }
+        return sum;
+    }
+
+    private static int stripes() {
+        // a power of two of at least twice the processors, to keep collisions rare
+        int processors = Runtime.getRuntime().availableProcessors();
+        return Math.min(64, Integer.highestOneBit(2 * processors - 1) << 1);
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * A pool of equally sized direct buffers. Direct buffers are expensive to allocate and free but let the
+ * channels read and write without an intermediate copy, so we keep them around.
+ */
+public class BufferPool {
+    private final int _bufferSize;
+    private final int _maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> _buffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger _pooled = new AtomicInteger();
+
+    public BufferPool(int bufferSize, int maxPooled) {
+        _bufferSize = bufferSize;
+        _maxPooled = maxPooled;
+    }
+
+    public int getBufferSize() {
+        return _bufferSize;
+    }
+
+    /**
+     * @return a cleared buffer of {@link #getBufferSize()} bytes
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = _buffers.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(_bufferSize);
+        }
+        _pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer.capacity() != _bufferSize || !buffer.isDirect()) {
+            throw new IllegalArgumentException("buffer does not belong to this pool");
+        }
+        if (_pooled.incrementAndGet() <= _maxPooled) {
+            _buffers.offer(buffer);
+        } else {
+            _pooled.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import de.lorenzquack.code.agora.core.api.FileRegion;
+import de.lorenzquack.code.agora.core.api.StreamedFrame;
+
+
+/**
+ * A plaintext frame of a buffered message header followed by file content. The content goes from the page cache
+ * to the socket with {@link java.nio.channels.FileChannel#transferTo} (sendfile) without passing the heap.
+ */
+public class FileRegionFrame implements StreamedFrame {
+    private final ByteBuffer _header;
+    private final FileRegion _region;
+
+    public FileRegionFrame(ByteBuffer header, FileRegion region) {
+        _header = header;
+        _region = region;
+    }
+
+    @Override
+    public int size() {
+        return _header.remaining() + _region.getLength();
+    }
+
+    @Override
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        while (_header.hasRemaining()) {
+            channel.write(_header);
+        }
+        _region.transferTo(channel);
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * An in-memory network connecting {@link NetworkAdaptorLoopback}s in the same JVM.
+ * Frames are handed to the receiving adaptor after the delay computed by the sending adaptor; no sockets involved.
+ */
+public class LoopbackNetwork {
+    private static final Logger LOGGER = LoggerFactory.getLogger(LoopbackNetwork.class);
+
+    private final ConcurrentHashMap<InetSocketAddress, NetworkAdaptorLoopback> _adaptors = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService _deliveryExecutor;
+    private final AtomicLong _framesDelivered = new AtomicLong();
+    private final AtomicLong _bytesDelivered = new AtomicLong();
+    private final AtomicLong _framesDropped = new AtomicLong();
+
+    public LoopbackNetwork(int deliveryThreads) {
+        _deliveryExecutor = Executors.newScheduledThreadPool(deliveryThreads,
+                new ThreadFactoryBuilder().setNameFormat("agora-loopback-%d").setDaemon(true).build());
+    }
+
+    public void shutdown() {
+        _deliveryExecutor.shutdownNow();
+    }
+
+    public long getFramesDelivered() {
+        return _framesDelivered.get();
+    }
+
+    public long getBytesDelivered() {
+        return _bytesDelivered.get();
+    }
+
+    public long getFramesDropped() {
+        return _framesDropped.get();
+    }
+
+    void attach(NetworkAdaptorLoopback adaptor) {
+        if (_adaptors.putIfAbsent(adaptor.getLocalAddress(), adaptor) != null) {
+            throw new IllegalStateException("address " + adaptor.getLocalAddress() + " is already in use");
+        }
+    }
+
+    void detach(NetworkAdaptorLoopback adaptor) {
+        _adaptors.remove(adaptor.getLocalAddress(), adaptor);
+    }
+
+    void frameDropped() {
+        _framesDropped.incrementAndGet();
+    }
+
+    void deliver(final InetSocketAddress source, final InetSocketAddress destination, final ByteBuffer frame,
+                 long delayNanos) throws IOException {
+        if (!_adaptors.containsKey(destination)) {
+            throw new ConnectException("no node listening on " + destination);
+        }
+        _deliveryExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                NetworkAdaptorLoopback receiver = _adaptors.get(destination);
+                if (receiver == null) {
+                    _framesDropped.incrementAndGet();
+                    return;
+                }
+                _framesDelivered.incrementAndGet();
+                _bytesDelivered.addAndGet(frame.remaining());
+                try {
+                    receiver.receive(source, frame);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("error delivering frame from {} to {}", source, destination, e);
+                }
+            }
+        }, delayNanos, TimeUnit.NANOSECONDS);
+    }
+}
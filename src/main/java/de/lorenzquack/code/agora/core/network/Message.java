@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+
+
+/**
+ * A message of the Agora binary protocol.
+ *
+ * Wire format (big endian):
+ * <pre>
+ * [type:1][sender node id:20][sender listen port:2][request id:8][body...]
+ * </pre>
+ * The sender's host is taken from the transport's source address. A request id of 0 marks a one-way message.
+ */
+public final class Message {
+    public static final int HEADER_SIZE = 1 + NodeId.SIZE_IN_BYTES + 2 + 8;
+
+    private final MessageType _type;
+    private final Peer _sender;
+    private final long _requestId;
+    private final ByteBuffer _body;
+
+    public Message(MessageType type, Peer sender, long requestId, ByteBuffer body) {
+        _type = type;
+        _sender = sender;
+        _requestId = requestId;
+        _body = body;
+    }
+
+    public MessageType getType() {
+        return _type;
+    }
+
+    public Peer getSender() {
+        return _sender;
+    }
+
+    public long getRequestId() {
+        return _requestId;
+    }
+
+    /**
+     * @return a read-only view of the message body
+     */
+    public ByteBuffer getBody() {
+        return _body.asReadOnlyBuffer();
+    }
+
+    public ByteBuffer encode() {
+        ByteBuffer body = _body.duplicate();
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + body.remaining());
+        frame.put(_type.getCode());
+        _sender.getNodeId().writeTo(frame);
+        frame.putShort((short) _sender.getAddress().getPort());
+        frame.putLong(_requestId);
+        frame.put(body);
+        frame.flip();
+        return frame;
+    }
+
+    public static Message decode(InetSocketAddress source, ByteBuffer frame) {
+        if (frame.remaining() < HEADER_SIZE) {
+            throw new IllegalArgumentException("frame too short: " + frame.remaining() + " bytes");
+        }
+        MessageType type = MessageType.fromCode(frame.get());
+        NodeId senderId = NodeId.readFrom(frame);
+        int senderPort = frame.getShort() & 0xffff;
+        long requestId = frame.getLong();
+        InetSocketAddress senderAddress;
+        if (source.isUnresolved()) {
+            senderAddress = InetSocketAddress.createUnresolved(source.getHostString(), senderPort);
+        } else {
+            senderAddress = new InetSocketAddress(source.getAddress(), senderPort);
+        }
+        return new Message(type, new Peer(senderId, senderAddress), requestId, frame.slice());
+    }
+
+    @Override
+    public String toString() {
+        return _type + "(" + _requestId + ") from " + _sender;
+    }
+}
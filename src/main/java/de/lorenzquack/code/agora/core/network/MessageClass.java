@@ -0,0 +1,30 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+/**
+ * Coarse classification of messages used to pick the {@link de.lorenzquack.code.agora.core.api.NetworkAdaptor}
+ * that carries them.
+ */
+public enum MessageClass {
+    /** small, latency sensitive messages such as pings, gossip and lookups */
+    CONTROL,
+    /** everything else, in particular payloads that do not fit into a datagram */
+    BULK
+}
@@ -0,0 +1,413 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.Counter;
+import de.lorenzquack.code.agora.core.api.Delivery;
+import de.lorenzquack.code.agora.core.api.FileRegion;
+import de.lorenzquack.code.agora.core.api.Gauge;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+import de.lorenzquack.code.agora.core.api.NetworkAdaptor;
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.api.Timer;
+import de.lorenzquack.code.agora.core.jfr.FlightEvent;
+import de.lorenzquack.code.agora.core.jfr.FlightEvents;
+import de.lorenzquack.code.agora.core.network.session.SessionManager;
+import de.lorenzquack.code.agora.core.network.shaping.TrafficShaper;
+
+
+/**
+ * Turns frames into {@link Message}s and back, routes incoming messages to the registered
+ * {@link MessageHandler}s and matches responses to outstanding requests.
+ */
+public class MessageDispatcher {
+    public static final String CONTROL_FLOW = "control";
+    public static final String FILES_FLOW = "files";
+    private static final Logger LOGGER = LoggerFactory.getLogger(MessageDispatcher.class);
+
+    private final NodeId _localId;
+    private final ScheduledExecutorService _scheduler;
+    private final Map<MessageType, MessageHandler> _handlers = new EnumMap<>(MessageType.class);
+    private final ConcurrentHashMap<RequestKey, PendingRequest> _pendingRequests = new ConcurrentHashMap<>();
+    private final CopyOnWriteArrayList<PeerObserver> _peerObservers = new CopyOnWriteArrayList<>();
+    /** starts at a random value so that other nodes cannot guess the ids of outstanding requests */
+    private final AtomicLong _nextRequestId = new AtomicLong(new SecureRandom().nextLong());
+    private final Map<MessageClass, NetworkAdaptor> _adaptors = new EnumMap<>(MessageClass.class);
+    private final Set<MessageType> _reliableTypes = EnumSet.noneOf(MessageType.class);
+    private volatile long _requestTimeoutMillis = 2000;
+    private volatile SessionManager _sessions;
+    private volatile TrafficShaper _shaper;
+    private final Counter _messagesSent;
+    private final Counter _messagesReceived;
+    private final Counter _bytesSent;
+    private final Counter _bytesReceived;
+    private final Counter _sendFailures;
+    private final Counter _requestTimeouts;
+    private final Timer _requestDuration;
+
+    public MessageDispatcher(NodeId localId, ScheduledExecutorService scheduler, MetricRegistry metrics) {
+        _localId = localId;
+        _scheduler = scheduler;
+        _messagesSent = metrics.counter("agora_network_messages_sent_total", "Messages sent to other nodes");
+        _messagesReceived = metrics.counter("agora_network_messages_received_total",
+                "Messages received from other nodes");
+        _bytesSent = metrics.counter("agora_network_sent_bytes_total",
+                "Bytes of messages sent including file content, before encryption");
+        _bytesReceived = metrics.counter("agora_network_received_bytes_total",
+                "Bytes of messages received, after decryption");
+        _sendFailures = metrics.counter("agora_network_send_failures_total",
+                "Messages that could not be sent or were dropped by the traffic shaper");
+        _requestTimeouts = metrics.counter("agora_network_request_timeouts_total",
+                "Requests to other nodes that received no response in time");
+        _requestDuration = metrics.timer("agora_network_request_duration_seconds",
+                "Round trip time of requests to other nodes");
+        metrics.gauge("agora_network_pending_requests", "Requests waiting for a response", new Gauge() {
+            @Override
+            public long getValue() {
+                return _pendingRequests.size();
+            }
+        });
+    }
+
+    /**
+     * Selects the adaptor that carries messages of {@code messageClass}. Frames too large for it fall back to
+     * the {@link MessageClass#BULK} adaptor, whose address is also the one we announce to other nodes.
+     */
+    public synchronized void setNetworkAdaptor(MessageClass messageClass, NetworkAdaptor adaptor) {
+        _adaptors.put(messageClass, adaptor);
+    }
+
+    /**
+     * Messages of the given types are sent with {@link Delivery#RELIABLE} even on datagram adaptors.
+     */
+    public synchronized void setReliableTypes(Set<MessageType> reliableTypes) {
+        _reliableTypes.clear();
+        _reliableTypes.addAll(reliableTypes);
+    }
+
+    /**
+     * Routes all outgoing frames through {@code sessions} to be encrypted.
+     */
+    public void setSessionManager(SessionManager sessions) {
+        _sessions = sessions;
+    }
+
+    /**
+     * Passes all outgoing frames through {@code shaper}; {@link MessageClass#CONTROL} messages form the
+     * {@code control} flow and all others the {@code files} flow.
+     */
+    public void setTrafficShaper(TrafficShaper shaper) {
+        _shaper = shaper;
+    }
+
+    public void setRequestTimeoutMillis(long requestTimeoutMillis) {
+        _requestTimeoutMillis = requestTimeoutMillis;
+    }
+
+    public NodeId getLocalId() {
+        return _localId;
+    }
+
+    public Peer getLocalPeer() {
+        return new Peer(_localId, getAdaptor(MessageClass.BULK).getLocalAddress());
+    }
+
+    public ScheduledExecutorService getScheduler() {
+        return _scheduler;
+    }
+
+    public synchronized void registerHandler(MessageType type, MessageHandler handler) {
+        if (_handlers.containsKey(type)) {
+            throw new IllegalStateException("handler for " + type + " already registered");
+        }
+        _handlers.put(type, handler);
+    }
+
+    public void addPeerObserver(PeerObserver observer) {
+        _peerObservers.add(observer);
+    }
+
+    public void send(InetSocketAddress destination, MessageType type, ByteBuffer body) {
+        sendMessage(destination, new Message(type, getLocalPeer(), 0, body));
+    }
+
+    public void reply(Message request, MessageType type, ByteBuffer body) {
+        sendMessage(request.getSender().getAddress(), new Message(type, getLocalPeer(), request.getRequestId(), body));
+    }
+
+    /**
+     * Replies with a message whose body is {@code body} followed by the content of {@code content}. Stream
+     * adaptors send the content straight from the file instead of copying it into the message first.
+     */
+    public void reply(Message request, MessageType type, ByteBuffer body, FileRegion content) {
+        sendMessage(request.getSender().getAddress(), new Message(type, getLocalPeer(), request.getRequestId(), body),
+                content);
+    }
+
+    /**
+     * Sends a request and returns a future for the response.
+     * The future fails with a {@link TimeoutException} if no response arrives in time.
+     */
+    public ListenableFuture<Message> request(InetSocketAddress destination, MessageType type, ByteBuffer body) {
+        return request(destination, type, body, _requestTimeoutMillis);
+    }
+
+    public ListenableFuture<Message> request(final InetSocketAddress destination, MessageType type, ByteBuffer body,
+                                             long timeoutMillis) {
+        long id = _nextRequestId.getAndIncrement();
+        if (id == 0) {
+            // 0 marks messages that are not requests
+            id = _nextRequestId.getAndIncrement();
+        }
+        final long requestId = id;
+        final RequestKey key = new RequestKey(requestId, destination);
+        final PendingRequest pendingRequest = new PendingRequest();
+        _pendingRequests.put(key, pendingRequest);
+        pendingRequest._timeout = _scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (_pendingRequests.remove(key) != null) {
+                    _requestTimeouts.increment();
+                    pendingRequest._future.setException(new TimeoutException("request " + requestId + " to " + destination + " timed out"));
+                }
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+        if (!sendMessage(destination, new Message(type, getLocalPeer(), requestId, body))) {
+            if (_pendingRequests.remove(key) != null) {
+                pendingRequest._timeout.cancel(false);
+                pendingRequest._future.setException(new IOException("could not send request to " + destination));
+            }
+        }
+        return pendingRequest._future;
+    }
+
+    public void receive(InetSocketAddress source, ByteBuffer frame) {
+        int size = frame.remaining();
+        Message message;
+        try {
+            message = Message.decode(source, frame);
+        } catch (RuntimeException e) {
+            LOGGER.debug("dropping malformed frame from {}", source, e);
+            return;
+        }
+        _messagesReceived.increment();
+        _bytesReceived.add(size);
+        FlightEvent event = FlightEvents.beginMessageReceive(source, message.getType());
+        try {
+            event.setSize(size);
+            dispatch(message);
+            event.setOutcome(FlightEvents.OUTCOME_OK);
+        } finally {
+            event.commit();
+        }
+    }
+
+    private void dispatch(Message message) {
+        for (PeerObserver observer : _peerObservers) {
+            observer.peerSeen(message.getSender());
+        }
+        if (message.getType().isResponse()) {
+            // only the node the request went to can answer it
+            PendingRequest pendingRequest = _pendingRequests.remove(
+                    new RequestKey(message.getRequestId(), message.getSender().getAddress()));
+            if (pendingRequest != null) {
+                pendingRequest._timeout.cancel(false);
+                _requestDuration.record(System.nanoTime() - pendingRequest._sentAt);
+                pendingRequest._future.set(message);
+            } else {
+                LOGGER.debug("dropping late or unexpected {}", message);
+            }
+            return;
+        }
+        MessageHandler handler;
+        synchronized (this) {
+            handler = _handlers.get(message.getType());
+        }
+        if (handler == null) {
+            LOGGER.debug("no handler for {}", message);
+            return;
+        }
+        try {
+            handler.handle(message);
+        } catch (RuntimeException e) {
+            LOGGER.warn("error while handling {}", message, e);
+        }
+    }
+
+    public void notifyUnresponsive(Peer peer) {
+        for (PeerObserver observer : _peerObservers) {
+            observer.peerUnresponsive(peer);
+        }
+    }
+
+    public void cancelAll() {
+        for (RequestKey key : _pendingRequests.keySet()) {
+            PendingRequest pendingRequest = _pendingRequests.remove(key);
+            if (pendingRequest != null) {
+                // a request that is being sent right now may not have its timeout yet
+                ScheduledFuture<?> timeout = pendingRequest._timeout;
+                if (timeout != null) {
+                    timeout.cancel(false);
+                }
+                pendingRequest._future.cancel(false);
+            }
+        }
+    }
+
+    private boolean sendMessage(InetSocketAddress destination, Message message) {
+        return sendMessage(destination, message, null);
+    }
+
+    private boolean sendMessage(final InetSocketAddress destination, Message message, final FileRegion content) {
+        final MessageType type = message.getType();
+        NetworkAdaptor adaptor = getAdaptor(type.getMessageClass());
+        final Delivery delivery;
+        synchronized (this) {
+            delivery = _reliableTypes.contains(type) ? Delivery.RELIABLE : Delivery.BEST_EFFORT;
+        }
+        final SessionManager sessions = _sessions;
+        final ByteBuffer frame = message.encode();
+        int size = frame.remaining() + (sessions != null ? SessionManager.FRAME_OVERHEAD : 0)
+                + (content != null ? content.getLength() : 0);
+        if (size > adaptor.getMaxFrameSize()) {
+            adaptor = getAdaptor(MessageClass.BULK);
+        }
+        _messagesSent.increment();
+        _bytesSent.add(size);
+        TrafficShaper shaper = _shaper;
+        if (shaper == null) {
+            try {
+                transmit(adaptor, destination, type, size, frame, content, delivery, sessions);
+                return true;
+            } catch (IOException e) {
+                _sendFailures.increment();
+                LOGGER.debug("failed to send {} to {}", type, destination, e);
+                return false;
+            }
+        }
+        final NetworkAdaptor selected = adaptor;
+        final int frameSize = size;
+        String flow = type.getMessageClass() == MessageClass.CONTROL ? CONTROL_FLOW : FILES_FLOW;
+        boolean queued = shaper.send(destination, flow, size, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    transmit(selected, destination, type, frameSize, frame, content, delivery, sessions);
+                } catch (IOException e) {
+                    _sendFailures.increment();
+                    LOGGER.debug("failed to send {} to {}", type, destination, e);
+                }
+            }
+        });
+        if (!queued) {
+            _sendFailures.increment();
+        }
+        return queued;
+    }
+
+    private static void transmit(NetworkAdaptor adaptor, InetSocketAddress destination, MessageType type,
+                                 int size, ByteBuffer frame, FileRegion content, Delivery delivery,
+                                 SessionManager sessions) throws IOException {
+        FlightEvent event = FlightEvents.beginMessageSend(destination, type);
+        try {
+            event.setSize(size);
+            transmit(adaptor, destination, frame, content, delivery, sessions);
+            event.setOutcome(FlightEvents.OUTCOME_OK);
+        } finally {
+            event.commit();
+        }
+    }
+
+    private static void transmit(NetworkAdaptor adaptor, InetSocketAddress destination, ByteBuffer frame,
+                                 FileRegion content, Delivery delivery, SessionManager sessions) throws IOException {
+        if (content != null && sessions != null) {
+            sessions.send(adaptor, destination, frame, content, delivery);
+        } else if (content != null) {
+            adaptor.send(destination, new FileRegionFrame(frame, content), delivery);
+        } else if (sessions != null) {
+            sessions.send(adaptor, destination, frame, delivery);
+        } else {
+            adaptor.send(destination, frame, delivery);
+        }
+    }
+
+    private synchronized NetworkAdaptor getAdaptor(MessageClass messageClass) {
+        NetworkAdaptor adaptor = _adaptors.get(messageClass);
+        return adaptor != null ? adaptor : _adaptors.get(MessageClass.BULK);
+    }
+
+    /**
+     * A request id together with the node the request went to. Host names are resolved, so that the response, whose
+     * sender address is the one the transport saw, finds the request.
+     */
+    private static final class RequestKey {
+        private final long _requestId;
+        private final InetSocketAddress _peer;
+
+        RequestKey(long requestId, InetSocketAddress peer) {
+            _requestId = requestId;
+            _peer = peer.isUnresolved() ? new InetSocketAddress(peer.getHostString(), peer.getPort()) : peer;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof RequestKey)) {
+                return false;
+            }
+            RequestKey other = (RequestKey) o;
+            return _requestId == other._requestId && _peer.equals(other._peer);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (int) (_requestId ^ (_requestId >>> 32)) + _peer.hashCode();
+        }
+    }
+
+    private static class PendingRequest {
+        private final SettableFuture<Message> _future = SettableFuture.create();
+        private final long _sentAt = System.nanoTime();
+        private volatile ScheduledFuture<?> _timeout;
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+public enum MessageType {
+    PING(1, false, MessageClass.CONTROL),
+    PONG(2, true, MessageClass.CONTROL),
+    FIND_NODE(3, false, MessageClass.CONTROL),
+    NODES(4, true, MessageClass.CONTROL),
+    SWIM_PING(5, false, MessageClass.CONTROL),
+    SWIM_ACK(6, true, MessageClass.CONTROL),
+    SWIM_PING_REQ(7, false, MessageClass.CONTROL),
+    CHUNK_REQUEST(8, false, MessageClass.BULK),
+    CHUNK(9, true, MessageClass.BULK),
+    CHUNK_QUERY(10, false, MessageClass.BULK),
+    CHUNK_AVAILABILITY(11, true, MessageClass.BULK),
+    MERKLE_NODES(12, false, MessageClass.BULK),
+    MERKLE_HASHES(13, true, MessageClass.BULK);
+
+    private static final MessageType[] BY_CODE = new MessageType[256];
+
+    static {
+        for (MessageType type : values()) {
+            BY_CODE[type._code] = type;
+        }
+    }
+
+    private final int _code;
+    private final boolean _response;
+    private final MessageClass _messageClass;
+
+    MessageType(int code, boolean response, MessageClass messageClass) {
+        _code = code;
+        _response = response;
+        _messageClass = messageClass;
+    }
+
+    /**
+     * @return whether messages of this type answer a request and carry the request's id
+     */
+    public boolean isResponse() {
+        return _response;
+    }
+
+    public byte getCode() {
+        return (byte) _code;
+    }
+
+    public MessageClass getMessageClass() {
+        return _messageClass;
+    }
+
+    public static MessageType fromCode(byte code) {
+        MessageType type = BY_CODE[code & 0xff];
+        if (type == null) {
+            throw new IllegalArgumentException("unknown message type " + (code & 0xff));
+        }
+        return type;
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.net.InetAddresses;
+
+import de.lorenzquack.code.agora.core.api.Delivery;
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.NetworkAdaptor;
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.StreamedFrame;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asDoubleOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asStringOrDefault;
+
+
+/**
+ * Connects a node to a {@link LoopbackNetwork} instead of real sockets.
+ * The outgoing link of each adaptor has a configurable latency, jitter, bandwidth and loss rate.
+ * Only {@link Delivery#BEST_EFFORT} frames are subject to loss; reliable frames stand in for a retransmitting
+ * transport and always arrive.
+ */
+public class NetworkAdaptorLoopback implements NetworkAdaptor {
+    private static final int DEFAULT_PORT = 7070;
+
+    private final LoopbackNetwork _network;
+    private NetworkPort _core;
+    private InetSocketAddress _localAddress;
+    private long _latencyNanos;
+    private long _jitterNanos;
+    private long _bandwidthBytesPerSecond;
+    private double _lossRate;
+    private int _maxFrameSize;
+    private long _linkFreeAtNanos;
+    private volatile boolean _running;
+
+    public NetworkAdaptorLoopback(LoopbackNetwork network) {
+        _network = network;
+    }
+
+    @Override
+    public void initialize() {
+    }
+
+    @Override
+    public void configure(JSONConfig config) {
+        String host = asStringOrDefault(config.get("host"), "127.0.0.1");
+        int port = asIntOrDefault(config.get("port"), DEFAULT_PORT);
+        _localAddress = new InetSocketAddress(InetAddresses.forString(host), port);
+        _latencyNanos = TimeUnit.MILLISECONDS.toNanos(asLongOrDefault(config.get("latencyMillis"), 0));
+        _jitterNanos = TimeUnit.MILLISECONDS.toNanos(asLongOrDefault(config.get("jitterMillis"), 0));
+        _bandwidthBytesPerSecond = asLongOrDefault(config.get("bandwidthBytesPerSecond"), 0);
+        _lossRate = asDoubleOrDefault(config.get("lossRate"), 0);
+        _maxFrameSize = asIntOrDefault(config.get("maxFrameSize"), TCPConnection.MAX_FRAME_SIZE);
+    }
+
+    @Override
+    public void start() {
+        _network.attach(this);
+        _running = true;
+    }
+
+    @Override
+    public void stop() {
+        _running = false;
+        _network.detach(this);
+    }
+
+    @Override
+    public void cleanup() {
+    }
+
+    @Override
+    public void setNetworkCore(NetworkPort core) {
+        _core = core;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return _localAddress;
+    }
+
+    @Override
+    public int getMaxFrameSize() {
+        return _maxFrameSize;
+    }
+
+    @Override
+    public void send(InetSocketAddress destination, StreamedFrame frame, Delivery delivery) throws IOException {
+        send(destination, StreamedFrames.toBuffer(frame), delivery);
+    }
+
+    @Override
+    public void send(InetSocketAddress destination, ByteBuffer frame, Delivery delivery) throws IOException {
+        if (!_running) {
+            throw new ClosedChannelException();
+        }
+        if (frame.remaining() > _maxFrameSize) {
+            throw new IOException("frame of " + frame.remaining() + " bytes exceeds maximum of " + _maxFrameSize);
+        }
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        if (delivery == Delivery.BEST_EFFORT && _lossRate > 0 && random.nextDouble() < _lossRate) {
+            _network.frameDropped();
+            return;
+        }
+        ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+        copy.put(frame);
+        copy.flip();
+        long delayNanos = transmissionDelayNanos(copy.remaining()) + _latencyNanos;
+        if (_jitterNanos > 0) {
+            delayNanos += random.nextLong(_jitterNanos + 1);
+        }
+        _network.deliver(_localAddress, destination, copy, delayNanos);
+    }
+
+    void receive(InetSocketAddress source, ByteBuffer frame) {
+        if (_running) {
+            _core.receive(source, frame);
+        }
+    }
+
+    /**
+     * Frames queue up behind each other on the outgoing link like they would in a socket buffer.
+     */
+    private synchronized long transmissionDelayNanos(int size) {
+        if (_bandwidthBytesPerSecond <= 0) {
+            return 0;
+        }
+        long now = System.nanoTime();
+        long start = Math.max(now, _linkFreeAtNanos);
+        _linkFreeAtNanos = start + size * TimeUnit.SECONDS.toNanos(1) / _bandwidthBytesPerSecond;
+        return _linkFreeAtNanos - now;
+    }
+}
@@ -18,33 +18,312 @@
  */
 package de.lorenzquack.code.agora.core.network;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.Delivery;
+import de.lorenzquack.code.agora.core.api.Gauge;
 import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
 import de.lorenzquack.code.agora.core.api.NetworkAdaptor;
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.StreamedFrame;
+import de.lorenzquack.code.agora.core.network.compression.FrameCompressor;
+import de.lorenzquack.code.agora.core.utils.VirtualThreads;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asBooleanOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asStringOrDefault;
 
 
-public class NetworkAdaptorTCP implements NetworkAdaptor {
+public class NetworkAdaptorTCP implements NetworkAdaptor, Instrumented {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NetworkAdaptorTCP.class);
+    private static final int DEFAULT_PORT = 7070;
+    private static final long DEFAULT_COALESCE_MAX_BYTES = 64 * 1024;
+    private static final long DEFAULT_MAX_QUEUED_BYTES = 1024 * 1024;
+    private static final long DEFAULT_MAX_INBOUND_QUEUED_BYTES = 16 * 1024 * 1024;
+
+    private final ConcurrentHashMap<InetSocketAddress, TCPConnection> _connections = new ConcurrentHashMap<>();
+    private final AtomicLong _droppedFrames = new AtomicLong();
+    private ExecutorService _connectionExecutor;
+    private ScheduledExecutorService _flushScheduler;
+    private WriteCoalescing _coalescing;
+    private FrameCompressor _compressor;
+    private long _maxInboundQueuedBytes;
+    private NetworkPort _core;
+    private String _host;
+    private int _port;
+    private ServerSocketChannel _serverChannel;
+    private volatile InetSocketAddress _localAddress;
+    private volatile boolean _running;
+
     @Override
     public void initialize() {
-
+        _flushScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("agora-tcp-flush-%d").setDaemon(true).build());
     }
 
     @Override
     public void configure(JSONConfig config) {
-
+        _host = asStringOrDefault(config.get("host"), "0.0.0.0");
+        _port = asIntOrDefault(config.get("port"), DEFAULT_PORT);
+        // per connection one thread reads the peer's frames and another handles them, see TCPConnection
+        _connectionExecutor = VirtualThreads.newPerTaskExecutor("agora-tcp-",
+                asBooleanOrDefault(config.get("virtualThreads"), false));
+        long coalesceMaxBytes = asLongOrDefault(config.get("coalesceMaxBytes"), DEFAULT_COALESCE_MAX_BYTES);
+        long coalesceMaxDelayMicros = asLongOrDefault(config.get("coalesceMaxDelayMicros"), 0);
+        long maxQueuedBytes = asLongOrDefault(config.get("maxQueuedBytes"), DEFAULT_MAX_QUEUED_BYTES);
+        _coalescing = new WriteCoalescing(coalesceMaxBytes, TimeUnit.MICROSECONDS.toNanos(coalesceMaxDelayMicros),
+                maxQueuedBytes, _flushScheduler);
+        _compressor = new FrameCompressor(config.get("compression"), TCPConnection.MAX_FRAME_SIZE);
+        _maxInboundQueuedBytes = asLongOrDefault(config.get("maxInboundQueuedBytes"), DEFAULT_MAX_INBOUND_QUEUED_BYTES);
     }
 
     @Override
     public void start() {
-
+        try {
+            _serverChannel = ServerSocketChannel.open();
+            _serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            _serverChannel.bind(new InetSocketAddress(_host, _port));
+            _localAddress = (InetSocketAddress) _serverChannel.getLocalAddress();
+        } catch (IOException e) {
+            LOGGER.error("could not listen on {}:{}", _host, _port, e);
+            return;
+        }
+        _running = true;
+        _connectionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                acceptLoop();
+            }
+        });
+        LOGGER.info("listening for peers on {}", _localAddress);
     }
 
     @Override
     public void stop() {
-
+        _running = false;
+        try {
+            if (_serverChannel != null) {
+                _serverChannel.close();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("error closing server channel", e);
+        }
+        for (TCPConnection connection : _connections.values()) {
+            try {
+                connection.flush();
+            } catch (IOException e) {
+                LOGGER.debug("could not flush connection to {}", connection.getRemoteAddress(), e);
+            }
+            connection.close();
+        }
+        _connections.clear();
     }
 
     @Override
     public void cleanup() {
+        _connectionExecutor.shutdownNow();
+        _flushScheduler.shutdownNow();
+    }
+
+    @Override
+    public void setNetworkCore(NetworkPort core) {
+        _core = core;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return _localAddress;
+    }
+
+    @Override
+    public int getMaxFrameSize() {
+        return TCPConnection.MAX_FRAME_SIZE;
+    }
+
+    @Override
+    public void send(InetSocketAddress destination, ByteBuffer frame, Delivery delivery) throws IOException {
+        TCPConnection connection = getOrConnect(destination);
+        try {
+            connection.write(frame);
+        } catch (IOException e) {
+            _connections.remove(destination, connection);
+            connection.close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void send(InetSocketAddress destination, StreamedFrame frame, Delivery delivery) throws IOException {
+        TCPConnection connection = getOrConnect(destination);
+        try {
+            connection.write(frame);
+        } catch (IOException e) {
+            _connections.remove(destination, connection);
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reports totals, so that rates and ratios can be taken over any interval: written frames divided by writes is
+     * the number of frames per syscall, the coalescing delay divided by written frames the latency batching adds.
+     */
+    @Override
+    public void registerMetrics(MetricRegistry metrics) {
+        metrics.gauge("agora_network_tcp_written_frames", "Frames written to TCP connections", new Gauge() {
+            @Override
+            public long getValue() {
+                return _coalescing.getFrames();
+            }
+        });
+        metrics.gauge("agora_network_tcp_writes", "Gathering write syscalls on TCP connections", new Gauge() {
+            @Override
+            public long getValue() {
+                return _coalescing.getWrites();
+            }
+        });
+        metrics.gauge("agora_network_tcp_coalescing_delay_microseconds",
+                "Time frames waited in connection queues before their write, summed over all frames", new Gauge() {
+                    @Override
+                    public long getValue() {
+                        return TimeUnit.NANOSECONDS.toMicros(_coalescing.getDelayNanos());
+                    }
+                });
+        metrics.gauge("agora_network_tcp_dropped_inbound_frames",
+                "Received frames dropped because too many were waiting to be handled", new Gauge() {
+                    @Override
+                    public long getValue() {
+                        return _droppedFrames.get();
+                    }
+                });
+        _compressor.registerMetrics(metrics);
+    }
+
+    /**
+     * @return the average number of frames written per gathering write syscall
+     */
+    public double getFramesPerWrite() {
+        return _coalescing.getFramesPerWrite();
+    }
+
+    /**
+     * @return the average time in microseconds a frame waited in a connection's queue before being written
+     */
+    public long getAverageCoalescingDelayMicros() {
+        return TimeUnit.NANOSECONDS.toMicros(_coalescing.getAverageDelayNanos());
+    }
+
+    /**
+     * @return bytes sent divided by bytes before compression
+     */
+    public double getCompressionRatio() {
+        return _compressor.getCompressionRatio();
+    }
+
+    public double getCompressionMillisPerMegabyte() {
+        return _compressor.getCompressionMillisPerMegabyte();
+    }
+
+    public double getDecompressionMillisPerMegabyte() {
+        return _compressor.getDecompressionMillisPerMegabyte();
+    }
+
+    public long getIncompressibleFrames() {
+        return _compressor.getIncompressibleFrames();
+    }
+
+    /**
+     * @return received frames dropped because too many were waiting to be handled
+     */
+    public long getDroppedFrames() {
+        return _droppedFrames.get();
+    }
+
+    private TCPConnection getOrConnect(InetSocketAddress destination) throws IOException {
+        TCPConnection connection = _connections.get(destination);
+        if (connection != null && !connection.isClosed()) {
+            return connection;
+        }
+        if (!_running) {
+            throw new ClosedChannelException();
+        }
+        SocketChannel channel = SocketChannel.open(destination);
+        channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+        TCPConnection newConnection = new TCPConnection(channel, _coalescing, _compressor, _maxInboundQueuedBytes,
+                _droppedFrames);
+        try {
+            newConnection.open();
+        } catch (IOException e) {
+            newConnection.close();
+            throw e;
+        }
+        TCPConnection existing = _connections.putIfAbsent(destination, newConnection);
+        if (existing != null && !existing.isClosed()) {
+            newConnection.close();
+            return existing;
+        }
+        if (existing != null) {
+            _connections.replace(destination, existing, newConnection);
+        }
+        startReading(newConnection, destination);
+        return newConnection;
+    }
+
+    private void acceptLoop() {
+        while (_running) {
+            try {
+                SocketChannel channel = _serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                TCPConnection connection = new TCPConnection(channel, _coalescing, _compressor,
+                        _maxInboundQueuedBytes, _droppedFrames);
+                try {
+                    connection.open();
+                } catch (IOException e) {
+                    connection.close();
+                    throw e;
+                }
+                startReading(connection, null);
+            } catch (IOException e) {
+                if (_running) {
+                    LOGGER.warn("error accepting connection", e);
+                }
+            }
+        }
+    }
 
+    private void startReading(final TCPConnection connection, final InetSocketAddress outboundKey) {
+        _connectionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connection.readLoop();
+                if (outboundKey != null) {
+                    _connections.remove(outboundKey, connection);
+                }
+            }
+        });
+        _connectionExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                connection.dispatchLoop(_core);
+            }
+        });
     }
 }
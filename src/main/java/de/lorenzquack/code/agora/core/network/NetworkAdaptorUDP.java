@@ -0,0 +1,438 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.security.SecureRandom;
+import java.nio.channels.Selector;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.Delivery;
+import de.lorenzquack.code.agora.core.api.Gauge;
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+import de.lorenzquack.code.agora.core.api.NetworkAdaptor;
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.StreamedFrame;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asStringOrDefault;
+
+
+/**
+ * Datagram transport for small control messages. Each datagram carries one frame behind a 9 byte header
+ * {@code [kind:1][epoch:4][sequence:4]}. Frames sent with {@link Delivery#RELIABLE} are acknowledged by the receiver
+ * and retransmitted with exponential backoff until acknowledged; receivers drop duplicates. The epoch is chosen at
+ * random by every process, so a peer that restarts and counts its sequence numbers from 1 again is not taken for
+ * its previous incarnation repeating itself.
+ *
+ * Received datagrams are drained in batches into pooled direct buffers, so a burst of heartbeats costs one
+ * selector wakeup instead of one per datagram. Must listen on the same port as the TCP adaptor because peers
+ * announce a single port.
+ */
+public class NetworkAdaptorUDP implements NetworkAdaptor, Instrumented {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NetworkAdaptorUDP.class);
+    private static final int DEFAULT_PORT = 7070;
+    // stay below the typical ethernet MTU (1500 - 20 byte IP header - 8 byte UDP header) to avoid fragmentation
+    private static final int DEFAULT_MAX_DATAGRAM_SIZE = 1472;
+    private static final int HEADER_SIZE = 9;
+    private static final byte KIND_DATA = 0;
+    private static final byte KIND_RELIABLE_DATA = 1;
+    private static final byte KIND_ACK = 2;
+    private static final int DUPLICATE_FILTER_SIZE = 4096;
+
+    private final ConcurrentHashMap<DatagramKey, Unacknowledged> _unacknowledged = new ConcurrentHashMap<>();
+    private final RecentlyReceived _recentlyReceived = new RecentlyReceived();
+    private final int _epoch = new SecureRandom().nextInt();
+    private final AtomicInteger _nextSequence = new AtomicInteger(1);
+    private final AtomicLong _datagramsReceived = new AtomicLong();
+    private final AtomicLong _receiveBatches = new AtomicLong();
+    private final AtomicLong _retransmissions = new AtomicLong();
+    private final AtomicLong _dropped = new AtomicLong();
+    private final AtomicLong _undelivered = new AtomicLong();
+    private ExecutorService _receiveExecutor;
+    private ScheduledExecutorService _retransmitScheduler;
+    private NetworkPort _core;
+    private String _host;
+    private int _port;
+    private int _maxDatagramSize;
+    private int _receiveBatchSize;
+    private long _retransmitTimeoutMillis;
+    private int _maxRetransmits;
+    private BufferPool _bufferPool;
+    private DatagramChannel _channel;
+    private Selector _selector;
+    private volatile InetSocketAddress _localAddress;
+    private volatile boolean _running;
+
+    @Override
+    public void initialize() {
+        _receiveExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("agora-udp-%d").setDaemon(true).build());
+        _retransmitScheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("agora-udp-retransmit-%d").setDaemon(true).build());
+    }
+
+    @Override
+    public void configure(JSONConfig config) {
+        _host = asStringOrDefault(config.get("host"), "0.0.0.0");
+        _port = asIntOrDefault(config.get("port"), DEFAULT_PORT);
+        _maxDatagramSize = asIntOrDefault(config.get("maxDatagramSize"), DEFAULT_MAX_DATAGRAM_SIZE);
+        _receiveBatchSize = asIntOrDefault(config.get("receiveBatchSize"), 64);
+        _retransmitTimeoutMillis = asLongOrDefault(config.get("retransmitTimeoutMillis"), 200);
+        _maxRetransmits = asIntOrDefault(config.get("maxRetransmits"), 5);
+        _bufferPool = new BufferPool(_maxDatagramSize, 2 * _receiveBatchSize);
+    }
+
+    @Override
+    public void start() {
+        try {
+            _channel = DatagramChannel.open();
+            _channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            _channel.bind(new InetSocketAddress(_host, _port));
+            _channel.configureBlocking(false);
+            _selector = Selector.open();
+            _channel.register(_selector, SelectionKey.OP_READ);
+            _localAddress = (InetSocketAddress) _channel.getLocalAddress();
+        } catch (IOException e) {
+            LOGGER.error("could not bind datagram channel to {}:{}", _host, _port, e);
+            return;
+        }
+        _running = true;
+        _receiveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                receiveLoop();
+            }
+        });
+        LOGGER.info("listening for datagrams on {}", _localAddress);
+    }
+
+    @Override
+    public void stop() {
+        _running = false;
+        try {
+            if (_selector != null) {
+                _selector.close();
+            }
+            if (_channel != null) {
+                _channel.close();
+            }
+        } catch (IOException e) {
+            LOGGER.debug("error closing datagram channel", e);
+        }
+        _unacknowledged.clear();
+    }
+
+    @Override
+    public void cleanup() {
+        _receiveExecutor.shutdownNow();
+        _retransmitScheduler.shutdownNow();
+    }
+
+    @Override
+    public void setNetworkCore(NetworkPort core) {
+        _core = core;
+    }
+
+    @Override
+    public InetSocketAddress getLocalAddress() {
+        return _localAddress;
+    }
+
+    @Override
+    public int getMaxFrameSize() {
+        return _maxDatagramSize - HEADER_SIZE;
+    }
+
+    @Override
+    public void send(InetSocketAddress destination, StreamedFrame frame, Delivery delivery) throws IOException {
+        send(destination, StreamedFrames.toBuffer(frame), delivery);
+    }
+
+    @Override
+    public void send(InetSocketAddress destination, ByteBuffer frame, Delivery delivery) throws IOException {
+        if (!_running) {
+            throw new ClosedChannelException();
+        }
+        if (frame.remaining() > getMaxFrameSize()) {
+            throw new IOException("frame of " + frame.remaining() + " bytes does not fit into a datagram");
+        }
+        if (delivery == Delivery.RELIABLE) {
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame.duplicate());
+            copy.flip();
+            int sequence = _nextSequence.getAndIncrement();
+            Unacknowledged unacknowledged = new Unacknowledged(destination, sequence, copy);
+            _unacknowledged.put(new DatagramKey(destination, _epoch, sequence), unacknowledged);
+            transmit(destination, KIND_RELIABLE_DATA, _epoch, sequence, copy.duplicate());
+            scheduleRetransmit(unacknowledged);
+        } else {
+            transmit(destination, KIND_DATA, _epoch, 0, frame);
+        }
+    }
+
+    /**
+     * Reports totals, so that rates and ratios can be taken over any interval: received datagrams divided by receive
+     * batches is the number of datagrams handled per wakeup of the receive loop.
+     */
+    @Override
+    public void registerMetrics(MetricRegistry metrics) {
+        registerTotal(metrics, "agora_network_udp_received_datagrams", "Datagrams received", _datagramsReceived);
+        registerTotal(metrics, "agora_network_udp_receive_batches",
+                "Wakeups of the receive loop that received at least one datagram", _receiveBatches);
+        registerTotal(metrics, "agora_network_udp_retransmissions", "Reliable datagrams sent again", _retransmissions);
+        registerTotal(metrics, "agora_network_udp_dropped_datagrams",
+                "Datagrams not sent because the socket send buffer was full", _dropped);
+        registerTotal(metrics, "agora_network_udp_undelivered_datagrams",
+                "Reliable datagrams given up on because no acknowledgement came after the last retransmit",
+                _undelivered);
+    }
+
+    private static void registerTotal(MetricRegistry metrics, String name, String help, final AtomicLong total) {
+        metrics.gauge(name, help, new Gauge() {
+            @Override
+            public long getValue() {
+                return total.get();
+            }
+        });
+    }
+
+    public long getDatagramsReceived() {
+        return _datagramsReceived.get();
+    }
+
+    public double getAverageReceiveBatchSize() {
+        long batches = _receiveBatches.get();
+        return batches == 0 ? 0 : (double) _datagramsReceived.get() / batches;
+    }
+
+    public long getRetransmissions() {
+        return _retransmissions.get();
+    }
+
+    public long getDropped() {
+        return _dropped.get();
+    }
+
+    /**
+     * @return reliable datagrams given up on after {@code maxRetransmits} retransmits without an acknowledgement
+     */
+    public long getUndelivered() {
+        return _undelivered.get();
+    }
+
+    private void transmit(InetSocketAddress destination, byte kind, int epoch, int sequence, ByteBuffer frame)
+            throws IOException {
+        ByteBuffer datagram = _bufferPool.acquire();
+        try {
+            datagram.put(kind);
+            datagram.putInt(epoch);
+            datagram.putInt(sequence);
+            datagram.put(frame);
+            datagram.flip();
+            if (_channel.send(datagram, destination) == 0) {
+                // the socket send buffer is full; datagram semantics allow us to drop
+                _dropped.incrementAndGet();
+            }
+        } finally {
+            _bufferPool.release(datagram);
+        }
+    }
+
+    private void scheduleRetransmit(final Unacknowledged unacknowledged) {
+        long delayMillis = _retransmitTimeoutMillis << unacknowledged._attempts;
+        _retransmitScheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                DatagramKey key = new DatagramKey(unacknowledged._destination, _epoch, unacknowledged._sequence);
+                if (!_unacknowledged.containsKey(key) || !_running) {
+                    return;
+                }
+                if (unacknowledged._attempts >= _maxRetransmits) {
+                    _unacknowledged.remove(key);
+                    _undelivered.incrementAndGet();
+                    LOGGER.debug("giving up on datagram {} to {}", unacknowledged._sequence, unacknowledged._destination);
+                    return;
+                }
+                unacknowledged._attempts++;
+                _retransmissions.incrementAndGet();
+                try {
+                    transmit(unacknowledged._destination, KIND_RELIABLE_DATA, _epoch, unacknowledged._sequence,
+                            unacknowledged._frame.duplicate());
+                } catch (IOException e) {
+                    LOGGER.debug("retransmit to {} failed", unacknowledged._destination, e);
+                }
+                scheduleRetransmit(unacknowledged);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void receiveLoop() {
+        ByteBuffer[] batch = new ByteBuffer[_receiveBatchSize];
+        InetSocketAddress[] sources = new InetSocketAddress[_receiveBatchSize];
+        while (_running) {
+            try {
+                _selector.select();
+                _selector.selectedKeys().clear();
+                int count = 0;
+                while (count < _receiveBatchSize) {
+                    ByteBuffer buffer = _bufferPool.acquire();
+                    SocketAddress source = _channel.receive(buffer);
+                    if (source == null) {
+                        _bufferPool.release(buffer);
+                        break;
+                    }
+                    buffer.flip();
+                    batch[count] = buffer;
+                    sources[count] = (InetSocketAddress) source;
+                    count++;
+                }
+                if (count > 0) {
+                    _receiveBatches.incrementAndGet();
+                    _datagramsReceived.addAndGet(count);
+                }
+                for (int i = 0; i < count; i++) {
+                    try {
+                        handleDatagram(sources[i], batch[i]);
+                    } finally {
+                        _bufferPool.release(batch[i]);
+                        batch[i] = null;
+                        sources[i] = null;
+                    }
+                }
+            } catch (ClosedChannelException | ClosedSelectorException e) {
+                break;
+            } catch (IOException | RuntimeException e) {
+                if (_running) {
+                    LOGGER.warn("error receiving datagrams", e);
+                }
+            }
+        }
+    }
+
+    private void handleDatagram(InetSocketAddress source, ByteBuffer datagram) throws IOException {
+        if (datagram.remaining() < HEADER_SIZE) {
+            return;
+        }
+        byte kind = datagram.get();
+        int epoch = datagram.getInt();
+        int sequence = datagram.getInt();
+        switch (kind) {
+            case KIND_ACK:
+                // acknowledgements echo the epoch of the data, late ones for a previous process do not match
+                _unacknowledged.remove(new DatagramKey(source, epoch, sequence));
+                return;
+            case KIND_RELIABLE_DATA:
+                transmit(source, KIND_ACK, epoch, sequence, ByteBuffer.allocate(0));
+                synchronized (_recentlyReceived) {
+                    if (_recentlyReceived.put(new DatagramKey(source, epoch, sequence), Boolean.TRUE) != null) {
+                        return;
+                    }
+                }
+                deliver(source, datagram);
+                return;
+            case KIND_DATA:
+                deliver(source, datagram);
+                return;
+            default:
+                LOGGER.debug("dropping datagram of unknown kind {} from {}", kind, source);
+        }
+    }
+
+    private void deliver(InetSocketAddress source, ByteBuffer datagram) {
+        // the pooled buffer is reused for the next batch, the core may hold on to the frame
+        ByteBuffer frame = ByteBuffer.allocate(datagram.remaining());
+        frame.put(datagram);
+        frame.flip();
+        _core.receive(source, frame);
+    }
+
+    /**
+     * The keys of the last {@link #DUPLICATE_FILTER_SIZE} reliable datagrams received, oldest first.
+     */
+    private static final class RecentlyReceived extends LinkedHashMap<DatagramKey, Boolean> {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<DatagramKey, Boolean> eldest) {
+            return size() > DUPLICATE_FILTER_SIZE;
+        }
+    }
+
+    private static final class DatagramKey {
+        private final InetSocketAddress _address;
+        private final int _epoch;
+        private final int _sequence;
+
+        DatagramKey(InetSocketAddress address, int epoch, int sequence) {
+            _address = address;
+            _epoch = epoch;
+            _sequence = sequence;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof DatagramKey)) {
+                return false;
+            }
+            DatagramKey other = (DatagramKey) o;
+            return _sequence == other._sequence && _epoch == other._epoch && _address.equals(other._address);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * _address.hashCode() + _epoch) + _sequence;
+        }
+    }
+
+    private static final class Unacknowledged {
+        private final InetSocketAddress _destination;
+        private final int _sequence;
+        private final ByteBuffer _frame;
+        private volatile int _attempts;
+
+        Unacknowledged(InetSocketAddress destination, int sequence, ByteBuffer frame) {
+            _destination = destination;
+            _sequence = sequence;
+            _frame = frame;
+        }
+    }
+}
@@ -18,33 +18,338 @@
  */
 package de.lorenzquack.code.agora.core.network;
 
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.ChunkId;
+import de.lorenzquack.code.agora.core.api.ConfigurationStoreAdaptor;
+import de.lorenzquack.code.agora.core.api.FileManifest;
+import de.lorenzquack.code.agora.core.api.FilePort;
+import de.lorenzquack.code.agora.core.api.Gauge;
 import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MembershipListener;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+import de.lorenzquack.code.agora.core.api.NetworkAdaptor;
 import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.api.exceptions.AgoraException;
+import de.lorenzquack.code.agora.core.metrics.NoopMetricRegistry;
+import de.lorenzquack.code.agora.core.network.dht.Kademlia;
+import de.lorenzquack.code.agora.core.network.dht.RoutingTableStore;
+import de.lorenzquack.code.agora.core.network.gossip.SwimMembership;
+import de.lorenzquack.code.agora.core.network.session.SessionManager;
+import de.lorenzquack.code.agora.core.network.shaping.TrafficShaper;
+import de.lorenzquack.code.agora.core.network.transfer.ChunkTransfer;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asBooleanOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asStringOrDefault;
 
 
 public class NetworkPortImpl implements NetworkPort {
+    private static final Logger LOGGER = LoggerFactory.getLogger(NetworkPortImpl.class);
+    private static final int DEFAULT_BUCKET_SIZE = 20;
+    private static final int DEFAULT_LOOKUP_CONCURRENCY = 3;
+    private static final long DEFAULT_REQUEST_TIMEOUT_MILLIS = 2000;
+    private static final long DEFAULT_BUCKET_REFRESH_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+    private ScheduledExecutorService _scheduler;
+    private final Map<String, NetworkAdaptor> _networkAdaptors = new HashMap<>();
+    private ConfigurationStoreAdaptor _configurationStore;
+    private FilePort _filePort;
+    private RoutingTableStore _routingTableStore;
+    private MessageDispatcher _dispatcher;
+    private Kademlia _kademlia;
+    private SwimMembership _membership;
+    private SessionManager _sessions;
+    private TrafficShaper _shaper;
+    private ChunkTransfer _chunkTransfer;
+    private Map<MessageClass, NetworkAdaptor> _transports;
+    private final List<InetSocketAddress> _bootstrapAddresses = new ArrayList<>();
+    private long _bucketRefreshMillis;
+    private MetricRegistry _metrics = NoopMetricRegistry.INSTANCE;
+
     @Override
     public void initialize() {
-
+        _scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("agora-network-%d").setDaemon(true).build());
     }
 
     @Override
     public void configure(JSONConfig config) {
+        int bucketSize = asIntOrDefault(config.get("bucketSize"), DEFAULT_BUCKET_SIZE);
+        int lookupConcurrency = asIntOrDefault(config.get("lookupConcurrency"), DEFAULT_LOOKUP_CONCURRENCY);
+        long requestTimeoutMillis = asLongOrDefault(config.get("requestTimeoutMillis"), DEFAULT_REQUEST_TIMEOUT_MILLIS);
+        _bucketRefreshMillis = asLongOrDefault(config.get("bucketRefreshMillis"), DEFAULT_BUCKET_REFRESH_MILLIS);
+        JSONConfig bootstrap = config.get("bootstrap");
+        if (bootstrap.exists()) {
+            for (int i = 0; i < bootstrap.size(); i++) {
+                _bootstrapAddresses.add(PeerCodec.parseAddress(bootstrap.get(i).asString()));
+            }
+        }
+
+        _routingTableStore = new RoutingTableStore(_configurationStore);
+        try {
+            _routingTableStore.open();
+        } catch (IOException e) {
+            throw new AgoraException("could not open routing table store", e);
+        }
+        NodeId localId = _routingTableStore.loadOrCreateNodeId(new SecureRandom());
+        LOGGER.info("local node id is {}", localId);
 
+        _dispatcher = new MessageDispatcher(localId, _scheduler, _metrics);
+        _transports = configureTransports(config.get("transports"));
+        JSONConfig sessions = config.get("sessions");
+        if (asBooleanOrDefault(sessions.get("enabled"), true)) {
+            _sessions = new SessionManager(sessions, _scheduler, _transports.get(MessageClass.CONTROL),
+                    _transports.get(MessageClass.BULK));
+            _dispatcher.setSessionManager(_sessions);
+            _sessions.registerMetrics(_metrics);
+        } else {
+            LOGGER.warn("sessions are disabled, traffic to other nodes is not encrypted");
+        }
+        _shaper = new TrafficShaper();
+        _shaper.configure(config.get("bandwidth"));
+        _dispatcher.setTrafficShaper(_shaper);
+        _dispatcher.setReliableTypes(parseReliableTypes(config.get("reliableMessageTypes")));
+        _dispatcher.setRequestTimeoutMillis(requestTimeoutMillis);
+        _kademlia = new Kademlia(_dispatcher, bucketSize, lookupConcurrency);
+        _kademlia.register();
+        for (Peer peer : _routingTableStore.loadPeers()) {
+            _kademlia.getRoutingTable().update(peer);
+        }
+        _membership = new SwimMembership(_dispatcher, config.get("gossip"));
+        _membership.register();
+        _chunkTransfer = new ChunkTransfer(_dispatcher);
+        _chunkTransfer.setFilePort(_filePort);
+        _chunkTransfer.register();
+        _metrics.gauge("agora_network_members", "Other nodes that membership considers alive", new Gauge() {
+            @Override
+            public long getValue() {
+                return _membership.getAliveMembers().size();
+            }
+        });
     }
 
     @Override
     public void start() {
+        checkTransportPorts();
+        // bootstrapping waits for network round trips, so keep it off the caller's thread
+        _scheduler.execute(new Runnable() {
+            @Override
+            public void run() {
+                Futures.addCallback(_kademlia.bootstrap(_bootstrapAddresses), new FutureCallback<List<Peer>>() {
+                    @Override
+                    public void onSuccess(List<Peer> neighbours) {
+                        _membership.join(_kademlia.getRoutingTable().getAllPeers());
+                    }
 
+                    @Override
+                    public void onFailure(Throwable t) {
+                        LOGGER.warn("bootstrapping failed", t);
+                    }
+                });
+            }
+        });
+        _shaper.start();
+        _membership.start();
+        if (_sessions != null) {
+            _sessions.start();
+        }
+        _scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                _kademlia.refreshStaleBuckets(_bucketRefreshMillis);
+                saveRoutingTable();
+            }
+        }, _bucketRefreshMillis, _bucketRefreshMillis, TimeUnit.MILLISECONDS);
     }
 
     @Override
     public void stop() {
-
+        _membership.stop();
+        saveRoutingTable();
+        _dispatcher.cancelAll();
+        if (_sessions != null) {
+            _sessions.stop();
+        }
+        _shaper.stop();
     }
 
     @Override
     public void cleanup() {
+        _scheduler.shutdownNow();
+    }
+
+    @Override
+    public void addNetworkAdaptor(String name, NetworkAdaptor adaptor) {
+        _networkAdaptors.put(name, adaptor);
+    }
+
+    @Override
+    public void setConfigurationStore(ConfigurationStoreAdaptor configurationStore) {
+        _configurationStore = configurationStore;
+    }
+
+    @Override
+    public void setFilePort(FilePort filePort) {
+        _filePort = filePort;
+    }
+
+    @Override
+    public void setMetricRegistry(MetricRegistry metrics) {
+        _metrics = metrics;
+    }
+
+    @Override
+    public NodeId getLocalNodeId() {
+        return _dispatcher.getLocalId();
+    }
+
+    @Override
+    public void receive(InetSocketAddress source, ByteBuffer frame) {
+        if (_sessions != null) {
+            frame = _sessions.receive(source, frame);
+            if (frame == null) {
+                return;
+            }
+        }
+        _dispatcher.receive(source, frame);
+    }
+
+    @Override
+    public ListenableFuture<List<Peer>> lookup(NodeId target) {
+        return _kademlia.lookup(target);
+    }
+
+    @Override
+    public ListenableFuture<ByteBuffer> fetchChunk(InetSocketAddress peer, ChunkId id) {
+        return _chunkTransfer.fetch(peer, id);
+    }
+
+    @Override
+    public ListenableFuture<BitSet> queryChunks(InetSocketAddress peer, ChunkId manifestId) {
+        return _chunkTransfer.query(peer, manifestId);
+    }
+
+    @Override
+    public ListenableFuture<FileManifest> syncManifest(InetSocketAddress peer, ChunkId manifestId,
+                                                       ChunkId baseManifestId) {
+        return _chunkTransfer.syncManifest(peer, manifestId, baseManifestId);
+    }
+
+    @Override
+    public Map<String, Long> getBandwidthLimits() {
+        return _shaper.getLimits();
+    }
+
+    @Override
+    public void setBandwidthLimit(String scope, long bytesPerSecond) {
+        _shaper.setLimit(scope, bytesPerSecond);
+    }
+
+    @Override
+    public List<Peer> getMembers() {
+        return _membership.getAliveMembers();
+    }
+
+    @Override
+    public void addMembershipListener(MembershipListener listener) {
+        _membership.addListener(listener);
+    }
+
+    @Override
+    public void removeMembershipListener(MembershipListener listener) {
+        _membership.removeListener(listener);
+    }
+
+    public MessageDispatcher getDispatcher() {
+        return _dispatcher;
+    }
+
+    public Kademlia getKademlia() {
+        return _kademlia;
+    }
+
+    /**
+     * @return the session layer, or {@code null} if sessions are disabled
+     */
+    public SessionManager getSessionManager() {
+        return _sessions;
+    }
+
+    private Map<MessageClass, NetworkAdaptor> configureTransports(JSONConfig transports) {
+        Map<MessageClass, NetworkAdaptor> adaptors = new EnumMap<>(MessageClass.class);
+        for (MessageClass messageClass : MessageClass.values()) {
+            String name = messageClass.name().toLowerCase();
+            String adaptorName = asStringOrDefault(transports.get(name), "tcp");
+            NetworkAdaptor adaptor = _networkAdaptors.get(adaptorName);
+            if (adaptor == null) {
+                throw new AgoraException("unknown transport '" + adaptorName + "' for " + name + " messages");
+            }
+            _dispatcher.setNetworkAdaptor(messageClass, adaptor);
+            if (adaptor instanceof Instrumented && !adaptors.containsValue(adaptor)) {
+                ((Instrumented) adaptor).registerMetrics(_metrics);
+            }
+            adaptors.put(messageClass, adaptor);
+        }
+        return adaptors;
+    }
+
+    /**
+     * Other nodes learn only the address of the {@link MessageClass#BULK} adaptor and send control messages to the
+     * same port, so the control adaptor has to listen there too. The adaptors bind when they start, which is why
+     * this cannot be checked while configuring.
+     */
+    private void checkTransportPorts() {
+        InetSocketAddress control = _transports.get(MessageClass.CONTROL).getLocalAddress();
+        InetSocketAddress bulk = _transports.get(MessageClass.BULK).getLocalAddress();
+        if (control == null || bulk == null) {
+            throw new AgoraException("the control and bulk transports must be listening before the network starts");
+        }
+        if (control.getPort() != bulk.getPort()) {
+            throw new AgoraException("the control transport listens on port " + control.getPort()
+                    + " but the bulk transport on " + bulk.getPort() + "; other nodes only learn the bulk port");
+        }
+    }
+
+    private static Set<MessageType> parseReliableTypes(JSONConfig reliableTypes) {
+        Set<MessageType> types = EnumSet.noneOf(MessageType.class);
+        if (reliableTypes.exists()) {
+            for (int i = 0; i < reliableTypes.size(); i++) {
+                types.add(MessageType.valueOf(reliableTypes.get(i).asString()));
+            }
+        }
+        return types;
+    }
 
+    private void saveRoutingTable() {
+        try {
+            _routingTableStore.save(_kademlia.getRoutingTable().getAllPeers());
+        } catch (IOException e) {
+            LOGGER.warn("could not save routing table", e);
+        }
     }
 }
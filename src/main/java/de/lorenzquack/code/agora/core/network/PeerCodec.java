@@ -0,0 +1,117 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.google.common.net.InetAddresses;
+
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+
+
+/**
+ * Binary encoding of peers inside message bodies: {@code [node id:20][host length:1][host:utf8][port:2]}.
+ */
+public final class PeerCodec {
+    private PeerCodec() {
+    }
+
+    public static ByteBuffer encode(List<Peer> peers) {
+        List<byte[]> hosts = new ArrayList<>(peers.size());
+        int size = 1;
+        for (Peer peer : peers) {
+            byte[] host = peer.getAddress().getHostString().getBytes(StandardCharsets.UTF_8);
+            hosts.add(host);
+            size += NodeId.SIZE_IN_BYTES + 1 + host.length + 2;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.put((byte) peers.size());
+        for (int i = 0; i < peers.size(); i++) {
+            writePeer(buffer, peers.get(i), hosts.get(i));
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    public static List<Peer> decode(ByteBuffer buffer) {
+        int count = buffer.get() & 0xff;
+        List<Peer> peers = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            peers.add(readPeer(buffer));
+        }
+        return peers;
+    }
+
+    public static void writePeer(ByteBuffer buffer, Peer peer) {
+        writePeer(buffer, peer, peer.getAddress().getHostString().getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static int encodedSize(Peer peer) {
+        return NodeId.SIZE_IN_BYTES + 1 + peer.getAddress().getHostString().getBytes(StandardCharsets.UTF_8).length + 2;
+    }
+
+    private static void writePeer(ByteBuffer buffer, Peer peer, byte[] host) {
+        peer.getNodeId().writeTo(buffer);
+        buffer.put((byte) host.length);
+        buffer.put(host);
+        buffer.putShort((short) peer.getAddress().getPort());
+    }
+
+    public static Peer readPeer(ByteBuffer buffer) {
+        NodeId nodeId = NodeId.readFrom(buffer);
+        byte[] host = new byte[buffer.get() & 0xff];
+        buffer.get(host);
+        int port = buffer.getShort() & 0xffff;
+        return new Peer(nodeId, toAddress(new String(host, StandardCharsets.UTF_8), port));
+    }
+
+    /**
+     * Creates an address without triggering a name lookup: ip literals are parsed, anything else stays unresolved.
+     */
+    public static InetSocketAddress toAddress(String host, int port) {
+        if (InetAddresses.isInetAddress(host)) {
+            return new InetSocketAddress(InetAddresses.forString(host), port);
+        }
+        return InetSocketAddress.createUnresolved(host, port);
+    }
+
+    /**
+     * Parses "host:port". Unlike {@link #toAddress} this resolves host names.
+     */
+    public static InetSocketAddress parseAddress(String hostAndPort) {
+        int colon = hostAndPort.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("expected 'host:port' but got '" + hostAndPort + "'");
+        }
+        String host = hostAndPort.substring(0, colon);
+        if (host.startsWith("[") && host.endsWith("]")) {
+            host = host.substring(1, host.length() - 1);
+        }
+        int port = Integer.parseInt(hostAndPort.substring(colon + 1));
+        if (InetAddresses.isInetAddress(host)) {
+            return new InetSocketAddress(InetAddresses.forString(host), port);
+        }
+        return new InetSocketAddress(host, port);
+    }
+}
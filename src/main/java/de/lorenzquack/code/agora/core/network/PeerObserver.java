@@ -0,0 +1,34 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import de.lorenzquack.code.agora.core.api.Peer;
+
+
+public interface PeerObserver {
+    /**
+     * Called whenever a message from {@code peer} was received.
+     */
+    void peerSeen(Peer peer);
+
+    /**
+     * Called whenever a request to {@code peer} timed out or could not be sent.
+     */
+    void peerUnresponsive(Peer peer);
+}
@@ -0,0 +1,60 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+import de.lorenzquack.code.agora.core.api.StreamedFrame;
+
+
+public final class StreamedFrames {
+    private StreamedFrames() {
+    }
+
+    /**
+     * Lets {@code frame} write itself into a heap buffer, for adaptors that cannot hand it a stream.
+     */
+    public static ByteBuffer toBuffer(StreamedFrame frame) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.allocate(frame.size());
+        frame.writeTo(new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer source) throws IOException {
+                int count = source.remaining();
+                buffer.put(source);
+                return count;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        });
+        if (buffer.hasRemaining()) {
+            throw new IOException("frame wrote " + buffer.position() + " of " + frame.size() + " bytes");
+        }
+        buffer.flip();
+        return buffer;
+    }
+}
@@ -0,0 +1,407 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.StreamedFrame;
+import de.lorenzquack.code.agora.core.network.compression.Codec;
+import de.lorenzquack.code.agora.core.network.compression.FrameCompressor;
+
+
+/**
+ * A single TCP connection. Each side starts with a preamble {@code ['A' 'G'][version:1][accepted codecs:1]}
+ * followed by length prefixed frames {@code [codec:1][length:3][frame:length]}. The sender picks the codec of
+ * every frame from the codecs the receiver accepts, so both directions are negotiated independently.
+ * {@link StreamedFrame}s are always sent with codec NONE so they can write themselves straight to the socket.
+ * <p>
+ * Received frames are handed to the core by a dispatch thread of their own. Handlers send, and sending blocks while
+ * the peer does not read; if the reader handled the frames itself, two nodes sending to each other could both stop
+ * reading and wait for each other forever. The reader therefore never blocks on anything but the socket and drops
+ * frames once {@code maxInboundBytes} wait for the dispatcher.
+ */
+class TCPConnection {
+    private static final Logger LOGGER = LoggerFactory.getLogger(TCPConnection.class);
+    static final int MAX_FRAME_SIZE = (1 << 24) - 1;
+    private static final int CODEC_SHIFT = 24;
+    private static final byte[] MAGIC = {'A', 'G'};
+    private static final byte PROTOCOL_VERSION = 1;
+
+    private final SocketChannel _channel;
+    private final InetSocketAddress _remoteAddress;
+    private final WriteCoalescing _coalescing;
+    private final FrameCompressor _compressor;
+    private final long _maxInboundBytes;
+    private final AtomicLong _droppedFrames;
+    /** received frames waiting for {@link #dispatchLoop}, guarded by itself */
+    private final ArrayDeque<ByteBuffer> _inbound = new ArrayDeque<>();
+    private long _inboundBytes;
+    /** {@link ByteBuffer}s and {@link StreamedFrame}s in the order they go on the wire */
+    private final List<Object> _pending = new ArrayList<>();
+    private int _pendingFrames;
+    private long _pendingBytes;
+    private long _pendingEnqueueNanos;
+    private boolean _flushScheduled;
+    private boolean _flushing;
+    private volatile int _peerCodecs;
+    private volatile boolean _closed;
+
+    /**
+     * @param droppedFrames counts the received frames dropped because {@code maxInboundBytes} were waiting already
+     */
+    TCPConnection(SocketChannel channel, WriteCoalescing coalescing, FrameCompressor compressor, long maxInboundBytes,
+                  AtomicLong droppedFrames) throws IOException {
+        _channel = channel;
+        _remoteAddress = (InetSocketAddress) channel.getRemoteAddress();
+        _coalescing = coalescing;
+        _compressor = compressor;
+        _maxInboundBytes = maxInboundBytes;
+        _droppedFrames = droppedFrames;
+    }
+
+    /**
+     * Sends our preamble. Must be called before the first frame is written.
+     */
+    void open() throws IOException {
+        ByteBuffer preamble = ByteBuffer.allocate(MAGIC.length + 2);
+        preamble.put(MAGIC);
+        preamble.put(PROTOCOL_VERSION);
+        preamble.put((byte) _compressor.getAcceptedCodecs());
+        preamble.flip();
+        synchronized (this) {
+            _pending.add(preamble);
+            _pendingBytes += preamble.remaining();
+        }
+        flush();
+    }
+
+    InetSocketAddress getRemoteAddress() {
+        return _remoteAddress;
+    }
+
+    boolean isClosed() {
+        return _closed;
+    }
+
+    /**
+     * Queues the frame and flushes if a coalescing threshold is reached. Ownership of {@code frame} passes to
+     * the connection. Errors of a delayed flush close the connection and surface on the next write.
+     */
+    void write(ByteBuffer frame) throws IOException {
+        if (frame.remaining() > MAX_FRAME_SIZE) {
+            throw new IOException("frame of " + frame.remaining() + " bytes exceeds maximum frame size");
+        }
+        if (_closed) {
+            throw new ClosedChannelException();
+        }
+        int uncompressedSize = frame.remaining();
+        Codec codec = _compressor.choose(_peerCodecs, frame);
+        if (codec != Codec.NONE) {
+            ByteBuffer compressed = _compressor.compress(codec, frame);
+            if (compressed != null) {
+                frame = compressed;
+            } else {
+                codec = Codec.NONE;
+            }
+        }
+        _compressor.recordSent(uncompressedSize, frame.remaining());
+        enqueue(codec, frame, frame.remaining());
+    }
+
+    /**
+     * Queues a frame that writes itself to the socket when the queue is flushed, e.g. with
+     * {@link java.nio.channels.FileChannel#transferTo}. It is never compressed.
+     */
+    void write(StreamedFrame frame) throws IOException {
+        if (frame.size() > MAX_FRAME_SIZE) {
+            throw new IOException("frame of " + frame.size() + " bytes exceeds maximum frame size");
+        }
+        if (_closed) {
+            throw new ClosedChannelException();
+        }
+        _compressor.recordSent(frame.size(), frame.size());
+        enqueue(Codec.NONE, frame, frame.size());
+    }
+
+    private void enqueue(Codec codec, Object frame, int size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        header.putInt(codec.getId() << CODEC_SHIFT | size);
+        header.flip();
+        boolean flushNow;
+        synchronized (this) {
+            // apply backpressure instead of queueing without bound behind a slow receiver
+            while (_flushing && _pendingBytes >= _coalescing.getMaxQueuedBytes() && !_closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("interrupted while waiting to write to " + _remoteAddress);
+                }
+            }
+            _pending.add(header);
+            _pending.add(frame);
+            _pendingFrames++;
+            _pendingBytes += header.remaining() + size;
+            _pendingEnqueueNanos += System.nanoTime();
+            flushNow = _coalescing.getMaxDelayNanos() == 0 || _pendingBytes >= _coalescing.getMaxBatchBytes();
+            if (!flushNow && !_flushScheduled) {
+                _flushScheduled = true;
+                scheduleFlush();
+            }
+        }
+        if (flushNow) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all queued frames with as few gathering writes as possible. Only one thread flushes at a time and it
+     * keeps going until the queue is empty, so frames queued by other threads in the meantime are coalesced into
+     * its next write even without a delay.
+     */
+    void flush() throws IOException {
+        synchronized (this) {
+            if (_flushing) {
+                return;
+            }
+            _flushing = true;
+        }
+        boolean drained = false;
+        try {
+            while (true) {
+                Object[] items;
+                int frames;
+                long bytes;
+                long enqueueNanos;
+                synchronized (this) {
+                    if (_pending.isEmpty()) {
+                        _flushing = false;
+                        drained = true;
+                        return;
+                    }
+                    items = _pending.toArray();
+                    frames = _pendingFrames;
+                    bytes = _pendingBytes;
+                    enqueueNanos = _pendingEnqueueNanos;
+                    _pending.clear();
+                    _pendingFrames = 0;
+                    _pendingBytes = 0;
+                    _pendingEnqueueNanos = 0;
+                    _flushScheduled = false;
+                    notifyAll();
+                }
+                writeFully(items, frames, enqueueNanos);
+            }
+        } finally {
+            if (!drained) {
+                synchronized (this) {
+                    _flushing = false;
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes runs of buffers with gathering writes and lets streamed frames in between write themselves.
+     */
+    private void writeFully(Object[] items, int frames, long enqueueNanos) throws IOException {
+        long flushStart = System.nanoTime();
+        int writes = 0;
+        int runStart = 0;
+        for (int i = 0; i <= items.length; i++) {
+            if (i < items.length && items[i] instanceof ByteBuffer) {
+                continue;
+            }
+            if (runStart < i) {
+                ByteBuffer[] buffers = new ByteBuffer[i - runStart];
+                System.arraycopy(items, runStart, buffers, 0, buffers.length);
+                writes += writeFully(buffers);
+            }
+            if (i < items.length) {
+                ((StreamedFrame) items[i]).writeTo(_channel);
+                writes++;
+            }
+            runStart = i + 1;
+        }
+        _coalescing.recordFlush(frames, writes, frames * flushStart - enqueueNanos);
+    }
+
+    private int writeFully(ByteBuffer[] buffers) throws IOException {
+        int writes = 0;
+        int offset = 0;
+        while (offset < buffers.length) {
+            _channel.write(buffers, offset, buffers.length - offset);
+            writes++;
+            while (offset < buffers.length && !buffers[offset].hasRemaining()) {
+                offset++;
+            }
+        }
+        return writes;
+    }
+
+    private void scheduleFlush() {
+        _coalescing.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    flush();
+                } catch (IOException e) {
+                    LOGGER.debug("delayed flush to {} failed", _remoteAddress, e);
+                    close();
+                }
+            }
+        }, _coalescing.getMaxDelayNanos(), TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Reads frames until the connection is closed and queues them for {@link #dispatchLoop}.
+     */
+    void readLoop() {
+        ByteBuffer header = ByteBuffer.allocate(4);
+        try {
+            readPreamble();
+            while (!_closed) {
+                header.clear();
+                readFully(header);
+                header.flip();
+                int word = header.getInt();
+                Codec codec = toCodec(word >>> CODEC_SHIFT);
+                ByteBuffer frame = ByteBuffer.allocate(word & MAX_FRAME_SIZE);
+                readFully(frame);
+                frame.flip();
+                if (codec != Codec.NONE) {
+                    frame = _compressor.decompress(codec, frame);
+                }
+                queueInbound(frame);
+            }
+        } catch (IOException e) {
+            if (!_closed) {
+                LOGGER.debug("connection to {} lost", _remoteAddress, e);
+            }
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * Hands the received frames to {@code core} until the connection is closed and the frames received before are
+     * dispatched.
+     */
+    void dispatchLoop(NetworkPort core) {
+        while (true) {
+            ByteBuffer frame;
+            synchronized (_inbound) {
+                while (_inbound.isEmpty() && !_closed) {
+                    try {
+                        _inbound.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                frame = _inbound.poll();
+                if (frame == null) {
+                    return;
+                }
+                _inboundBytes -= frame.remaining();
+            }
+            try {
+                core.receive(_remoteAddress, frame);
+            } catch (RuntimeException e) {
+                LOGGER.warn("error handling frame from {}", _remoteAddress, e);
+            }
+        }
+    }
+
+    private void queueInbound(ByteBuffer frame) {
+        synchronized (_inbound) {
+            // a single frame is always taken, however large
+            if (!_inbound.isEmpty() && _inboundBytes + frame.remaining() > _maxInboundBytes) {
+                _droppedFrames.incrementAndGet();
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("dropping frame of {} bytes from {}, {} bytes wait to be handled", frame.remaining(),
+                            _remoteAddress, _inboundBytes);
+                }
+                return;
+            }
+            _inbound.add(frame);
+            _inboundBytes += frame.remaining();
+            _inbound.notifyAll();
+        }
+    }
+
+    void close() {
+        _closed = true;
+        synchronized (this) {
+            notifyAll();
+        }
+        synchronized (_inbound) {
+            _inbound.notifyAll();
+        }
+        try {
+            _channel.close();
+        } catch (IOException e) {
+            LOGGER.debug("error closing connection to {}", _remoteAddress, e);
+        }
+    }
+
+    private void readPreamble() throws IOException {
+        ByteBuffer preamble = ByteBuffer.allocate(MAGIC.length + 2);
+        readFully(preamble);
+        preamble.flip();
+        if (preamble.get() != MAGIC[0] || preamble.get() != MAGIC[1]) {
+            throw new IOException("peer does not speak the agora protocol");
+        }
+        byte version = preamble.get();
+        if (version != PROTOCOL_VERSION) {
+            throw new IOException("unsupported protocol version " + version);
+        }
+        _peerCodecs = preamble.get() & 0xff;
+    }
+
+    private static Codec toCodec(int id) throws IOException {
+        try {
+            return Codec.fromId(id);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("frame uses unknown codec " + id, e);
+        }
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (_channel.read(buffer) < 0) {
+                throw new EOFException();
+            }
+        }
+    }
+}
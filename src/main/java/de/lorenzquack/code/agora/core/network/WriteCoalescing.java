@@ -0,0 +1,93 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Thresholds and statistics for coalescing the outbound frames of a {@link TCPConnection} into gathering writes.
+ * A connection flushes once {@code maxBatchBytes} are queued or the oldest queued frame has waited
+ * {@code maxDelayNanos}. With a delay of 0 frames are only coalesced while another write is in progress.
+ * Writers block while more than {@code maxQueuedBytes} wait behind a write in progress.
+ */
+class WriteCoalescing {
+    private final long _maxBatchBytes;
+    private final long _maxDelayNanos;
+    private final long _maxQueuedBytes;
+    private final ScheduledExecutorService _scheduler;
+    private final AtomicLong _frames = new AtomicLong();
+    private final AtomicLong _writes = new AtomicLong();
+    private final AtomicLong _delayNanos = new AtomicLong();
+
+    WriteCoalescing(long maxBatchBytes, long maxDelayNanos, long maxQueuedBytes, ScheduledExecutorService scheduler) {
+        _maxBatchBytes = maxBatchBytes;
+        _maxDelayNanos = maxDelayNanos;
+        _maxQueuedBytes = maxQueuedBytes;
+        _scheduler = scheduler;
+    }
+
+    long getMaxBatchBytes() {
+        return _maxBatchBytes;
+    }
+
+    long getMaxDelayNanos() {
+        return _maxDelayNanos;
+    }
+
+    long getMaxQueuedBytes() {
+        return _maxQueuedBytes;
+    }
+
+    ScheduledExecutorService getScheduler() {
+        return _scheduler;
+    }
+
+    void recordFlush(int frames, int writes, long delayNanos) {
+        _frames.addAndGet(frames);
+        _writes.addAndGet(writes);
+        _delayNanos.addAndGet(delayNanos);
+    }
+
+    long getFrames() {
+        return _frames.get();
+    }
+
+    long getWrites() {
+        return _writes.get();
+    }
+
+    long getDelayNanos() {
+        return _delayNanos.get();
+    }
+
+    double getFramesPerWrite() {
+        long writes = _writes.get();
+        return writes == 0 ? 0 : (double) _frames.get() / writes;
+    }
+
+    /**
+     * @return the average time a frame spent queued before its flush started
+     */
+    long getAverageDelayNanos() {
+        long frames = _frames.get();
+        return frames == 0 ? 0 : _delayNanos.get() / frames;
+    }
+}
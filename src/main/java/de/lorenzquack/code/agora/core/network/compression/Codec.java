@@ -0,0 +1,51 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.compression;
+
+public enum Codec {
+    NONE(0),
+    LZ4(1),
+    DEFLATE(2);
+
+    private final int _id;
+
+    Codec(int id) {
+        _id = id;
+    }
+
+    public int getId() {
+        return _id;
+    }
+
+    /**
+     * @return the bit representing this codec in the set of codecs a node accepts
+     */
+    public int getMask() {
+        return 1 << _id;
+    }
+
+    public static Codec fromId(int id) {
+        for (Codec codec : values()) {
+            if (codec._id == id) {
+                return codec;
+            }
+        }
+        throw new IllegalArgumentException("unknown codec id " + id);
+    }
+}
@@ -0,0 +1,386 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import net.jpountz.lz4.LZ4Compressor;
+import net.jpountz.lz4.LZ4Exception;
+import net.jpountz.lz4.LZ4Factory;
+import net.jpountz.lz4.LZ4SafeDecompressor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.Gauge;
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asDoubleOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+
+
+/**
+ * Compresses and decompresses frames for a transport. Compressed frames carry their uncompressed length:
+ * {@code [uncompressed length:4][compressed data]}.
+ *
+ * Before compressing, a sample of the frame is checked for its byte entropy so that already compressed or
+ * encrypted payloads are sent as they are without wasting CPU on them. The LZ4 (de)compressors are stateless
+ * and shared; {@link Deflater}s and {@link Inflater}s hold native memory and are pooled.
+ */
+public class FrameCompressor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(FrameCompressor.class);
+    private static final int UNCOMPRESSED_LENGTH_SIZE = 4;
+    private static final int PROBE_SAMPLE_SIZE = 1024;
+    private static final int MAX_POOLED_CONTEXTS = 16;
+    private static final double NANOS_PER_MILLI = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final double BYTES_PER_MEGABYTE = 1024 * 1024;
+
+    private final List<Codec> _preferredCodecs = new ArrayList<>();
+    private final LZ4Compressor _lz4Compressor;
+    private final LZ4SafeDecompressor _lz4Decompressor;
+    private final ConcurrentLinkedQueue<Deflater> _deflaters = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Inflater> _inflaters = new ConcurrentLinkedQueue<>();
+    private final int _acceptedCodecs;
+    private final int _minFrameSize;
+    private final double _maxEntropy;
+    private final int _deflateLevel;
+    private final int _maxFrameSize;
+    private final AtomicLong _bytesBeforeCompression = new AtomicLong();
+    private final AtomicLong _bytesAfterCompression = new AtomicLong();
+    private final AtomicLong _compressedInputBytes = new AtomicLong();
+    private final AtomicLong _compressNanos = new AtomicLong();
+    private final AtomicLong _decompressedBytes = new AtomicLong();
+    private final AtomicLong _decompressNanos = new AtomicLong();
+    private final AtomicLong _incompressibleFrames = new AtomicLong();
+
+    /**
+     * @param config the "compression" section of a transport. {@code codecs} lists the codecs we use for sending
+     *               in order of preference; we accept every codec we know.
+     */
+    public FrameCompressor(JSONConfig config, int maxFrameSize) {
+        JSONConfig codecs = config.get("codecs");
+        if (codecs.exists()) {
+            for (int i = 0; i < codecs.size(); i++) {
+                _preferredCodecs.add(Codec.valueOf(codecs.get(i).asString().toUpperCase()));
+            }
+        }
+        int accepted = 0;
+        for (Codec codec : Codec.values()) {
+            accepted |= codec.getMask();
+        }
+        _acceptedCodecs = accepted;
+        _minFrameSize = asIntOrDefault(config.get("minFrameSize"), 256);
+        _maxEntropy = asDoubleOrDefault(config.get("maxEntropyBitsPerByte"), 7.5);
+        _deflateLevel = asIntOrDefault(config.get("deflateLevel"), Deflater.BEST_SPEED);
+        _maxFrameSize = maxFrameSize;
+        LZ4Factory lz4Factory = LZ4Factory.fastestInstance();
+        _lz4Compressor = lz4Factory.fastCompressor();
+        _lz4Decompressor = lz4Factory.safeDecompressor();
+    }
+
+    public int getAcceptedCodecs() {
+        return _acceptedCodecs;
+    }
+
+    /**
+     * @param peerCodecs the codecs accepted by the receiving peer
+     * @return the codec to send {@code frame} with, {@link Codec#NONE} if it should not be compressed
+     */
+    public Codec choose(int peerCodecs, ByteBuffer frame) {
+        if (frame.remaining() < _minFrameSize) {
+            return Codec.NONE;
+        }
+        for (Codec codec : _preferredCodecs) {
+            if ((peerCodecs & codec.getMask()) != 0) {
+                if (estimateEntropy(frame) > _maxEntropy) {
+                    _incompressibleFrames.incrementAndGet();
+                    return Codec.NONE;
+                }
+                return codec;
+            }
+        }
+        return Codec.NONE;
+    }
+
+    /**
+     * @return the compressed frame or {@code null} if compressing did not make it smaller
+     */
+    public ByteBuffer compress(Codec codec, ByteBuffer frame) {
+        int length = frame.remaining();
+        long start = System.nanoTime();
+        ByteBuffer compressed;
+        switch (codec) {
+            case LZ4:
+                compressed = compressLZ4(frame);
+                break;
+            case DEFLATE:
+                compressed = compressDeflate(frame);
+                break;
+            default:
+                throw new IllegalArgumentException("cannot compress with " + codec);
+        }
+        _compressNanos.addAndGet(System.nanoTime() - start);
+        _compressedInputBytes.addAndGet(length);
+        if (compressed == null || compressed.remaining() >= length) {
+            _incompressibleFrames.incrementAndGet();
+            return null;
+        }
+        return compressed;
+    }
+
+    /**
+     * Records the size of a frame before and after (possibly not) compressing it for the compression ratio.
+     */
+    public void recordSent(int uncompressedSize, int sentSize) {
+        _bytesBeforeCompression.addAndGet(uncompressedSize);
+        _bytesAfterCompression.addAndGet(sentSize);
+    }
+
+    public ByteBuffer decompress(Codec codec, ByteBuffer payload) throws IOException {
+        if (payload.remaining() < UNCOMPRESSED_LENGTH_SIZE) {
+            throw new IOException("truncated compressed frame");
+        }
+        int length = payload.getInt();
+        if (length < 0 || length > _maxFrameSize) {
+            throw new IOException("invalid uncompressed frame length " + length);
+        }
+        long start = System.nanoTime();
+        ByteBuffer frame;
+        switch (codec) {
+            case LZ4:
+                frame = decompressLZ4(payload, length);
+                break;
+            case DEFLATE:
+                frame = decompressDeflate(payload, length);
+                break;
+            default:
+                throw new IOException("cannot decompress " + codec);
+        }
+        _decompressNanos.addAndGet(System.nanoTime() - start);
+        _decompressedBytes.addAndGet(length);
+        return frame;
+    }
+
+    /**
+     * Reports totals, so that rates and ratios can be taken over any interval: bytes after compression divided by
+     * bytes before is the compression ratio, compression time divided by compressed input the cost per byte.
+     */
+    public void registerMetrics(MetricRegistry metrics) {
+        registerTotal(metrics, "agora_network_tcp_compression_input_bytes",
+                "Bytes of frames sent, before compression", _bytesBeforeCompression);
+        registerTotal(metrics, "agora_network_tcp_compression_output_bytes",
+                "Bytes of frames sent, after compression", _bytesAfterCompression);
+        registerTotal(metrics, "agora_network_tcp_compression_compressed_input_bytes",
+                "Bytes of frames the compressor ran on, whether or not the result was sent", _compressedInputBytes);
+        registerTotal(metrics, "agora_network_tcp_compression_compress_nanoseconds",
+                "Time spent compressing frames", _compressNanos);
+        registerTotal(metrics, "agora_network_tcp_compression_decompressed_bytes",
+                "Bytes of received frames after decompression", _decompressedBytes);
+        registerTotal(metrics, "agora_network_tcp_compression_decompress_nanoseconds",
+                "Time spent decompressing frames", _decompressNanos);
+        registerTotal(metrics, "agora_network_tcp_compression_incompressible_frames",
+                "Frames sent uncompressed because the probe or the compressor found them incompressible",
+                _incompressibleFrames);
+    }
+
+    private static void registerTotal(MetricRegistry metrics, String name, String help, final AtomicLong total) {
+        metrics.gauge(name, help, new Gauge() {
+            @Override
+            public long getValue() {
+                return total.get();
+            }
+        });
+    }
+
+    /**
+     * @return bytes sent divided by bytes before compression, over all frames
+     */
+    public double getCompressionRatio() {
+        long before = _bytesBeforeCompression.get();
+        return before == 0 ? 1 : (double) _bytesAfterCompression.get() / before;
+    }
+
+    public double getCompressionMillisPerMegabyte() {
+        long bytes = _compressedInputBytes.get();
+        return bytes == 0 ? 0 : _compressNanos.get() / NANOS_PER_MILLI / (bytes / BYTES_PER_MEGABYTE);
+    }
+
+    public double getDecompressionMillisPerMegabyte() {
+        long bytes = _decompressedBytes.get();
+        return bytes == 0 ? 0 : _decompressNanos.get() / NANOS_PER_MILLI / (bytes / BYTES_PER_MEGABYTE);
+    }
+
+    /**
+     * @return the number of frames sent uncompressed because the probe or the compressor found them incompressible
+     */
+    public long getIncompressibleFrames() {
+        return _incompressibleFrames.get();
+    }
+
+    /**
+     * Shannon entropy in bits per byte of an evenly spread sample of the frame. Text and typical serialized data
+     * stay well below 7, compressed and encrypted data come close to 8.
+     */
+    static double estimateEntropy(ByteBuffer frame) {
+        int length = frame.remaining();
+        int samples = Math.min(length, PROBE_SAMPLE_SIZE);
+        int stride = length / samples;
+        int[] counts = new int[256];
+        for (int i = 0; i < samples; i++) {
+            counts[frame.get(frame.position() + i * stride) & 0xff]++;
+        }
+        double entropy = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                double p = (double) count / samples;
+                entropy -= p * Math.log(p);
+            }
+        }
+        return entropy / Math.log(2);
+    }
+
+    private ByteBuffer compressLZ4(ByteBuffer frame) {
+        int length = frame.remaining();
+        ByteBuffer compressed = ByteBuffer.allocate(UNCOMPRESSED_LENGTH_SIZE + _lz4Compressor.maxCompressedLength(length));
+        compressed.putInt(length);
+        try {
+            int compressedLength = _lz4Compressor.compress(frame, frame.position(), length,
+                    compressed, UNCOMPRESSED_LENGTH_SIZE, compressed.capacity() - UNCOMPRESSED_LENGTH_SIZE);
+            compressed.limit(UNCOMPRESSED_LENGTH_SIZE + compressedLength);
+            compressed.position(0);
+            return compressed;
+        } catch (LZ4Exception e) {
+            LOGGER.debug("lz4 compression failed", e);
+            return null;
+        }
+    }
+
+    private ByteBuffer decompressLZ4(ByteBuffer payload, int length) throws IOException {
+        ByteBuffer frame = ByteBuffer.allocate(length);
+        try {
+            int decompressedLength = _lz4Decompressor.decompress(payload, payload.position(), payload.remaining(),
+                    frame, 0, length);
+            if (decompressedLength != length) {
+                throw new IOException("lz4 frame decompressed to " + decompressedLength + " instead of " + length + " bytes");
+            }
+        } catch (LZ4Exception e) {
+            throw new IOException("corrupt lz4 frame", e);
+        }
+        return frame;
+    }
+
+    private ByteBuffer compressDeflate(ByteBuffer frame) {
+        int length = frame.remaining();
+        byte[] input = toArray(frame);
+        int inputOffset = frame.hasArray() ? frame.arrayOffset() + frame.position() : 0;
+        // anything that does not end up smaller than the input is useless to us
+        byte[] output = new byte[length];
+        Deflater deflater = acquireDeflater();
+        try {
+            deflater.setInput(input, inputOffset, length);
+            deflater.finish();
+            int compressedLength = 0;
+            int maxCompressedLength = length - UNCOMPRESSED_LENGTH_SIZE;
+            while (!deflater.finished() && compressedLength < maxCompressedLength) {
+                compressedLength += deflater.deflate(output, UNCOMPRESSED_LENGTH_SIZE + compressedLength,
+                        maxCompressedLength - compressedLength);
+            }
+            if (!deflater.finished()) {
+                return null;
+            }
+            ByteBuffer compressed = ByteBuffer.wrap(output, 0, UNCOMPRESSED_LENGTH_SIZE + compressedLength);
+            compressed.putInt(0, length);
+            return compressed;
+        } finally {
+            releaseDeflater(deflater);
+        }
+    }
+
+    private ByteBuffer decompressDeflate(ByteBuffer payload, int length) throws IOException {
+        byte[] input = toArray(payload);
+        int inputOffset = payload.hasArray() ? payload.arrayOffset() + payload.position() : 0;
+        byte[] output = new byte[length];
+        Inflater inflater = acquireInflater();
+        try {
+            inflater.setInput(input, inputOffset, payload.remaining());
+            int decompressedLength = 0;
+            while (!inflater.finished() && decompressedLength < length) {
+                int inflated = inflater.inflate(output, decompressedLength, length - decompressedLength);
+                if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                decompressedLength += inflated;
+            }
+            if (!inflater.finished() || decompressedLength != length) {
+                throw new IOException("deflate frame did not decompress to " + length + " bytes");
+            }
+            return ByteBuffer.wrap(output);
+        } catch (DataFormatException e) {
+            throw new IOException("corrupt deflate frame", e);
+        } finally {
+            releaseInflater(inflater);
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return buffer.array();
+        }
+        byte[] copy = new byte[buffer.remaining()];
+        buffer.duplicate().get(copy);
+        return copy;
+    }
+
+    private Deflater acquireDeflater() {
+        Deflater deflater = _deflaters.poll();
+        return deflater != null ? deflater : new Deflater(_deflateLevel, true);
+    }
+
+    private void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (_deflaters.size() < MAX_POOLED_CONTEXTS) {
+            _deflaters.offer(deflater);
+        } else {
+            deflater.end();
+        }
+    }
+
+    private Inflater acquireInflater() {
+        Inflater inflater = _inflaters.poll();
+        return inflater != null ? inflater : new Inflater(true);
+    }
+
+    private void releaseInflater(Inflater inflater) {
+        inflater.reset();
+        if (_inflaters.size() < MAX_POOLED_CONTEXTS) {
+            _inflaters.offer(inflater);
+        } else {
+            inflater.end();
+        }
+    }
+}
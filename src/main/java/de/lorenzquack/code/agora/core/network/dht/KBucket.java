@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.dht;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+
+
+/**
+ * Holds up to k peers ordered from least to most recently seen, plus a cache of replacement candidates
+ * that are promoted when an entry turns out to be dead. Not thread safe; guarded by {@link RoutingTable}.
+ */
+class KBucket {
+    private final int _capacity;
+    private final LinkedHashMap<NodeId, Peer> _entries;
+    private final Deque<Peer> _replacements = new ArrayDeque<>();
+    private long _lastUpdated;
+
+    KBucket(int capacity) {
+        _capacity = capacity;
+        _entries = new LinkedHashMap<>(capacity * 2);
+    }
+
+    /**
+     * @return {@code null} if the peer was inserted or refreshed, otherwise the least recently seen entry
+     *         which should be pinged to decide whether {@code peer} replaces it.
+     */
+    Peer update(Peer peer, long now) {
+        _lastUpdated = now;
+        if (_entries.containsKey(peer.getNodeId())) {
+            _entries.remove(peer.getNodeId());
+            _entries.put(peer.getNodeId(), peer);
+            return null;
+        }
+        if (_entries.size() < _capacity) {
+            _entries.put(peer.getNodeId(), peer);
+            return null;
+        }
+        removeReplacement(peer.getNodeId());
+        _replacements.addLast(peer);
+        if (_replacements.size() > _capacity) {
+            _replacements.removeFirst();
+        }
+        return _entries.values().iterator().next();
+    }
+
+    /**
+     * Removes a dead entry and promotes the most recently seen replacement candidate.
+     */
+    boolean remove(NodeId nodeId) {
+        removeReplacement(nodeId);
+        if (_entries.remove(nodeId) == null) {
+            return false;
+        }
+        Peer replacement = _replacements.pollLast();
+        if (replacement != null) {
+            _entries.put(replacement.getNodeId(), replacement);
+        }
+        return true;
+    }
+
+    boolean contains(NodeId nodeId) {
+        return _entries.containsKey(nodeId);
+    }
+
+    void addPeersTo(List<Peer> peers) {
+        peers.addAll(_entries.values());
+    }
+
+    int size() {
+        return _entries.size();
+    }
+
+    long getLastUpdated() {
+        return _lastUpdated;
+    }
+
+    private void removeReplacement(NodeId nodeId) {
+        Iterator<Peer> iterator = _replacements.iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().getNodeId().equals(nodeId)) {
+                iterator.remove();
+            }
+        }
+    }
+}
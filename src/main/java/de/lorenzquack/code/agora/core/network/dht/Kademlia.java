@@ -0,0 +1,185 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.dht;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.network.Message;
+import de.lorenzquack.code.agora.core.network.MessageDispatcher;
+import de.lorenzquack.code.agora.core.network.MessageHandler;
+import de.lorenzquack.code.agora.core.network.MessageType;
+import de.lorenzquack.code.agora.core.network.PeerCodec;
+import de.lorenzquack.code.agora.core.network.PeerObserver;
+
+
+/**
+ * Kademlia peer discovery: answers PING and FIND_NODE, keeps the {@link RoutingTable} up to date with every
+ * peer we hear from and runs iterative lookups.
+ */
+public class Kademlia implements PeerObserver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(Kademlia.class);
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final MessageDispatcher _dispatcher;
+    private final RoutingTable _routingTable;
+    private final int _k;
+    private final int _alpha;
+    private final Random _random = new Random();
+    private final Set<NodeId> _probing = Collections.newSetFromMap(new ConcurrentHashMap<NodeId, Boolean>());
+    private final AtomicLong _lookupCount = new AtomicLong();
+    private final AtomicLong _lookupHops = new AtomicLong();
+    private final AtomicLong _lookupNanos = new AtomicLong();
+
+    public Kademlia(MessageDispatcher dispatcher, int k, int alpha) {
+        _dispatcher = dispatcher;
+        _routingTable = new RoutingTable(dispatcher.getLocalId(), k);
+        _k = k;
+        _alpha = alpha;
+    }
+
+    public void register() {
+        _dispatcher.registerHandler(MessageType.PING, new MessageHandler() {
+            @Override
+            public void handle(Message message) {
+                _dispatcher.reply(message, MessageType.PONG, EMPTY);
+            }
+        });
+        _dispatcher.registerHandler(MessageType.FIND_NODE, new MessageHandler() {
+            @Override
+            public void handle(Message message) {
+                NodeId target = NodeId.readFrom(message.getBody());
+                List<Peer> closest = _routingTable.closest(target, _k);
+                _dispatcher.reply(message, MessageType.NODES, PeerCodec.encode(closest));
+            }
+        });
+        _dispatcher.addPeerObserver(this);
+    }
+
+    public RoutingTable getRoutingTable() {
+        return _routingTable;
+    }
+
+    @Override
+    public void peerSeen(Peer peer) {
+        final Peer leastRecentlySeen = _routingTable.update(peer);
+        if (leastRecentlySeen == null || !_probing.add(leastRecentlySeen.getNodeId())) {
+            return;
+        }
+        ListenableFuture<Message> pong = _dispatcher.request(leastRecentlySeen.getAddress(), MessageType.PING, EMPTY);
+        Futures.addCallback(pong, new FutureCallback<Message>() {
+            @Override
+            public void onSuccess(Message result) {
+                _probing.remove(leastRecentlySeen.getNodeId());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                _probing.remove(leastRecentlySeen.getNodeId());
+                _routingTable.remove(leastRecentlySeen.getNodeId());
+            }
+        });
+    }
+
+    @Override
+    public void peerUnresponsive(Peer peer) {
+        _routingTable.remove(peer.getNodeId());
+    }
+
+    public ListenableFuture<List<Peer>> lookup(NodeId target) {
+        final NodeLookup lookup = new NodeLookup(target, _dispatcher, _k, _alpha);
+        ListenableFuture<List<Peer>> result = lookup.start(_routingTable.closest(target, _k));
+        Futures.addCallback(result, new FutureCallback<List<Peer>>() {
+            @Override
+            public void onSuccess(List<Peer> peers) {
+                _lookupCount.incrementAndGet();
+                _lookupHops.addAndGet(lookup.getHops());
+                _lookupNanos.addAndGet(lookup.getElapsedNanos());
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("lookup of {} found {} peers in {} hops, {} requests and {} ms",
+                            lookup.getTarget(), peers.size(), lookup.getHops(), lookup.getRequestCount(),
+                            TimeUnit.NANOSECONDS.toMillis(lookup.getElapsedNanos()));
+                }
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                LOGGER.debug("lookup of {} failed", lookup.getTarget(), t);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Pings the given addresses (whose node ids we do not know yet) and then looks up our own id,
+     * which fills the buckets close to us and announces us to our future neighbours.
+     */
+    public ListenableFuture<List<Peer>> bootstrap(List<InetSocketAddress> addresses) {
+        List<ListenableFuture<Message>> pongs = new ArrayList<>();
+        for (InetSocketAddress address : addresses) {
+            pongs.add(_dispatcher.request(address, MessageType.PING, EMPTY));
+        }
+        return Futures.transform(Futures.successfulAsList(pongs), new AsyncFunction<List<Message>, List<Peer>>() {
+            @Override
+            public ListenableFuture<List<Peer>> apply(List<Message> ignored) {
+                return lookup(_dispatcher.getLocalId());
+            }
+        }, _dispatcher.getScheduler());
+    }
+
+    /**
+     * Looks up a random id in every bucket that has not seen any traffic for {@code maxAgeMillis}.
+     */
+    public void refreshStaleBuckets(long maxAgeMillis) {
+        for (int bucketIndex : _routingTable.getBucketsNotUpdatedSince(System.currentTimeMillis() - maxAgeMillis)) {
+            lookup(_dispatcher.getLocalId().randomInBucket(bucketIndex, _random));
+        }
+    }
+
+    public long getLookupCount() {
+        return _lookupCount.get();
+    }
+
+    public double getAverageLookupHops() {
+        long count = _lookupCount.get();
+        return count == 0 ? 0 : (double) _lookupHops.get() / count;
+    }
+
+    public double getAverageLookupMillis() {
+        long count = _lookupCount.get();
+        return count == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(_lookupNanos.get()) / (double) count;
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.dht;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.TreeMap;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.network.Message;
+import de.lorenzquack.code.agora.core.network.MessageDispatcher;
+import de.lorenzquack.code.agora.core.network.MessageType;
+import de.lorenzquack.code.agora.core.network.PeerCodec;
+
+
+/**
+ * One iterative FIND_NODE lookup. At most {@code alpha} requests are in flight at any time; the lookup
+ * terminates once the k closest peers it knows of have all answered (or failed). Because every round at
+ * least halves the distance to the target the number of hops grows with log(n).
+ */
+class NodeLookup {
+    private enum State { PENDING, IN_FLIGHT, RESPONDED, FAILED }
+
+    private final NodeId _target;
+    private final MessageDispatcher _dispatcher;
+    private final int _k;
+    private final int _alpha;
+    private final TreeMap<NodeId, Candidate> _shortlist;
+    private final SettableFuture<List<Peer>> _result = SettableFuture.create();
+    private final long _startNanos = System.nanoTime();
+    private int _inFlight;
+    private int _requestCount;
+
+    NodeLookup(NodeId target, MessageDispatcher dispatcher, int k, int alpha) {
+        _target = target;
+        _dispatcher = dispatcher;
+        _k = k;
+        _alpha = alpha;
+        _shortlist = new TreeMap<>(new Comparator<NodeId>() {
+            @Override
+            public int compare(NodeId a, NodeId b) {
+                return _target.compareDistance(a, b);
+            }
+        });
+    }
+
+    ListenableFuture<List<Peer>> start(List<Peer> seeds) {
+        synchronized (this) {
+            for (Peer seed : seeds) {
+                addCandidate(seed, 0);
+            }
+        }
+        sendRequests(nextRequests());
+        return _result;
+    }
+
+    NodeId getTarget() {
+        return _target;
+    }
+
+    synchronized int getHops() {
+        int hops = 0;
+        for (Candidate candidate : _shortlist.values()) {
+            if (candidate._state == State.RESPONDED) {
+                hops = Math.max(hops, candidate._hop + 1);
+            }
+        }
+        return hops;
+    }
+
+    synchronized int getRequestCount() {
+        return _requestCount;
+    }
+
+    long getElapsedNanos() {
+        return System.nanoTime() - _startNanos;
+    }
+
+    private void addCandidate(Peer peer, int hop) {
+        if (peer.getNodeId().equals(_dispatcher.getLocalId()) || _shortlist.containsKey(peer.getNodeId())) {
+            return;
+        }
+        _shortlist.put(peer.getNodeId(), new Candidate(peer, hop));
+    }
+
+    /**
+     * Marks the next candidates as in flight and finishes the lookup if there is nothing left to do.
+     */
+    private synchronized List<Candidate> nextRequests() {
+        List<Candidate> requests = new ArrayList<>();
+        if (_result.isDone()) {
+            return requests;
+        }
+        int considered = 0;
+        for (Candidate candidate : _shortlist.values()) {
+            if (considered >= _k || _inFlight >= _alpha) {
+                break;
+            }
+            if (candidate._state == State.FAILED) {
+                continue;
+            }
+            considered++;
+            if (candidate._state == State.PENDING) {
+                candidate._state = State.IN_FLIGHT;
+                _inFlight++;
+                _requestCount++;
+                requests.add(candidate);
+            }
+        }
+        if (requests.isEmpty() && _inFlight == 0) {
+            _result.set(closestResponded());
+        }
+        return requests;
+    }
+
+    private List<Peer> closestResponded() {
+        List<Peer> peers = new ArrayList<>(_k);
+        for (Candidate candidate : _shortlist.values()) {
+            if (candidate._state == State.RESPONDED) {
+                peers.add(candidate._peer);
+                if (peers.size() == _k) {
+                    break;
+                }
+            }
+        }
+        return peers;
+    }
+
+    private void sendRequests(List<Candidate> requests) {
+        for (final Candidate candidate : requests) {
+            ByteBuffer body = ByteBuffer.allocate(NodeId.SIZE_IN_BYTES);
+            _target.writeTo(body);
+            body.flip();
+            ListenableFuture<Message> response = _dispatcher.request(candidate._peer.getAddress(), MessageType.FIND_NODE, body);
+            Futures.addCallback(response, new FutureCallback<Message>() {
+                @Override
+                public void onSuccess(Message message) {
+                    List<Peer> closer;
+                    try {
+                        closer = PeerCodec.decode(message.getBody());
+                    } catch (RuntimeException e) {
+                        onFailure(e);
+                        return;
+                    }
+                    synchronized (NodeLookup.this) {
+                        candidate._state = State.RESPONDED;
+                        _inFlight--;
+                        for (Peer peer : closer) {
+                            addCandidate(peer, candidate._hop + 1);
+                        }
+                    }
+                    sendRequests(nextRequests());
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    synchronized (NodeLookup.this) {
+                        candidate._state = State.FAILED;
+                        _inFlight--;
+                    }
+                    _dispatcher.notifyUnresponsive(candidate._peer);
+                    sendRequests(nextRequests());
+                }
+            }, _dispatcher.getScheduler());
+        }
+    }
+
+    private static class Candidate {
+        private final Peer _peer;
+        private final int _hop;
+        private State _state = State.PENDING;
+
+        Candidate(Peer peer, int hop) {
+            _peer = peer;
+            _hop = hop;
+        }
+    }
+}
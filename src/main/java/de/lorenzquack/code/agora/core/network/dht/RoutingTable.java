@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.dht;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+
+
+/**
+ * Kademlia routing table: one {@link KBucket} per bit of the id space.
+ * Bucket i holds the peers whose distance to the local id has its highest set bit at position i.
+ */
+public class RoutingTable {
+    private final NodeId _localId;
+    private final KBucket[] _buckets = new KBucket[NodeId.SIZE_IN_BITS];
+
+    public RoutingTable(NodeId localId, int bucketSize) {
+        _localId = localId;
+        for (int i = 0; i < _buckets.length; i++) {
+            _buckets[i] = new KBucket(bucketSize);
+        }
+    }
+
+    public NodeId getLocalId() {
+        return _localId;
+    }
+
+    /**
+     * Records that {@code peer} is alive.
+     *
+     * @return {@code null} if the peer is now in the table, otherwise the least recently seen peer of the
+     *         (full) bucket that should be probed. If the probe fails call {@link #remove} on it.
+     */
+    public synchronized Peer update(Peer peer) {
+        int index = _localId.bucketIndexOf(peer.getNodeId());
+        if (index < 0) {
+            return null;
+        }
+        return _buckets[index].update(peer, System.currentTimeMillis());
+    }
+
+    public synchronized boolean remove(NodeId nodeId) {
+        int index = _localId.bucketIndexOf(nodeId);
+        return index >= 0 && _buckets[index].remove(nodeId);
+    }
+
+    public synchronized boolean contains(NodeId nodeId) {
+        int index = _localId.bucketIndexOf(nodeId);
+        return index >= 0 && _buckets[index].contains(nodeId);
+    }
+
+    /**
+     * @return up to {@code count} peers closest to {@code target}, ordered by increasing distance
+     */
+    public List<Peer> closest(final NodeId target, int count) {
+        List<Peer> candidates = new ArrayList<>();
+        synchronized (this) {
+            // peers in target's bucket are closest to it, followed by all peers in lower buckets,
+            // followed by the higher buckets in ascending order. Only the last group can be cut short.
+            int startIndex = Math.max(_localId.bucketIndexOf(target), 0);
+            for (int i = startIndex; i >= 0; i--) {
+                _buckets[i].addPeersTo(candidates);
+            }
+            for (int i = startIndex + 1; i < _buckets.length && candidates.size() < count; i++) {
+                _buckets[i].addPeersTo(candidates);
+            }
+        }
+        Collections.sort(candidates, byDistanceTo(target));
+        return candidates.size() > count ? new ArrayList<>(candidates.subList(0, count)) : candidates;
+    }
+
+    public synchronized List<Peer> getAllPeers() {
+        List<Peer> peers = new ArrayList<>();
+        for (KBucket bucket : _buckets) {
+            bucket.addPeersTo(peers);
+        }
+        return peers;
+    }
+
+    public synchronized int size() {
+        int size = 0;
+        for (KBucket bucket : _buckets) {
+            size += bucket.size();
+        }
+        return size;
+    }
+
+    /**
+     * @return indices of the buckets up to the highest populated one that have not been touched since {@code threshold}
+     */
+    public synchronized List<Integer> getBucketsNotUpdatedSince(long threshold) {
+        List<Integer> stale = new ArrayList<>();
+        int highestUsed = -1;
+        for (int i = 0; i < _buckets.length; i++) {
+            if (_buckets[i].size() > 0) {
+                highestUsed = i;
+            }
+        }
+        for (int i = 0; i <= highestUsed; i++) {
+            if (_buckets[i].getLastUpdated() < threshold) {
+                stale.add(i);
+            }
+        }
+        return stale;
+    }
+
+    public static Comparator<Peer> byDistanceTo(final NodeId target) {
+        return new Comparator<Peer>() {
+            @Override
+            public int compare(Peer a, Peer b) {
+                return target.compareDistance(a.getNodeId(), b.getNodeId());
+            }
+        };
+    }
+}
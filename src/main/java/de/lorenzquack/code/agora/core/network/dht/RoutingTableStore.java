@@ -0,0 +1,104 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.dht;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.ConfigurationStoreAdaptor;
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.api.exceptions.JSONConfigException;
+import de.lorenzquack.code.agora.core.network.PeerCodec;
+
+
+/**
+ * Persists the local node id and the contents of the routing table in the "routing" configuration store
+ * so that a restarted node keeps its identity and can rejoin through the peers it knew before.
+ */
+public class RoutingTableStore {
+    private static final Logger LOGGER = LoggerFactory.getLogger(RoutingTableStore.class);
+    public static final String STORE_NAME = "routing";
+
+    private final ConfigurationStoreAdaptor _configurationStore;
+    private JSONConfig _root;
+
+    public RoutingTableStore(ConfigurationStoreAdaptor configurationStore) {
+        _configurationStore = configurationStore;
+    }
+
+    public void open() throws IOException {
+        try {
+            _root = _configurationStore.openStore(STORE_NAME);
+        } catch (IOException e) {
+            _root = _configurationStore.createStore(STORE_NAME);
+        }
+    }
+
+    public NodeId loadOrCreateNodeId(Random random) {
+        JSONConfig nodeIdConfig = _root.get("nodeId");
+        if (nodeIdConfig.exists()) {
+            try {
+                return NodeId.fromHex(nodeIdConfig.asString());
+            } catch (IllegalArgumentException | JSONConfigException e) {
+                LOGGER.warn("ignoring invalid stored node id", e);
+            }
+        }
+        NodeId nodeId = NodeId.random(random);
+        _root.putString("nodeId", nodeId.toHex());
+        return nodeId;
+    }
+
+    public List<Peer> loadPeers() {
+        List<Peer> peers = new ArrayList<>();
+        JSONConfig peersConfig = _root.get("peers");
+        if (!peersConfig.exists()) {
+            return peers;
+        }
+        for (int i = 0; i < peersConfig.size(); i++) {
+            JSONConfig peerConfig = peersConfig.get(i);
+            try {
+                NodeId nodeId = NodeId.fromHex(peerConfig.get("id").asString());
+                String host = peerConfig.get("host").asString();
+                int port = peerConfig.get("port").asInt();
+                peers.add(new Peer(nodeId, PeerCodec.toAddress(host, port)));
+            } catch (IllegalArgumentException | JSONConfigException e) {
+                LOGGER.debug("skipping invalid stored peer {}", i, e);
+            }
+        }
+        return peers;
+    }
+
+    public void save(List<Peer> peers) throws IOException {
+        JSONConfig peersConfig = _root.putArray("peers");
+        for (Peer peer : peers) {
+            peersConfig.appendObject()
+                    .putString("id", peer.getNodeId().toHex())
+                    .putString("host", peer.getAddress().getHostString())
+                    .putInteger("port", peer.getAddress().getPort());
+        }
+        _configurationStore.save(STORE_NAME);
+    }
+}
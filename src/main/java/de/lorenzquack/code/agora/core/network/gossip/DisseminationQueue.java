@@ -0,0 +1,89 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.gossip;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.lorenzquack.code.agora.core.api.NodeId;
+
+
+/**
+ * Membership updates waiting to be piggybacked on outgoing messages. Each update is sent
+ * {@code retransmitMultiplier * log2(n + 1)} times, which is enough for it to reach every member with high
+ * probability, and fresh updates are preferred. Only the newest update per member is kept.
+ */
+class DisseminationQueue {
+    private final int _retransmitMultiplier;
+    private final Map<NodeId, Entry> _entries = new HashMap<>();
+
+    DisseminationQueue(int retransmitMultiplier) {
+        _retransmitMultiplier = retransmitMultiplier;
+    }
+
+    synchronized void add(MembershipUpdate update) {
+        _entries.put(update.getPeer().getNodeId(), new Entry(update));
+    }
+
+    /**
+     * @return up to {@code maxUpdates} updates to piggyback on the next message
+     */
+    synchronized List<MembershipUpdate> take(int maxUpdates, int memberCount) {
+        if (_entries.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<Entry> entries = new ArrayList<>(_entries.values());
+        Collections.sort(entries, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Integer.compare(a._transmissions, b._transmissions);
+            }
+        });
+        int retransmitLimit = _retransmitMultiplier * (32 - Integer.numberOfLeadingZeros(memberCount + 1));
+        List<MembershipUpdate> updates = new ArrayList<>(Math.min(maxUpdates, entries.size()));
+        for (Entry entry : entries) {
+            if (updates.size() >= maxUpdates) {
+                break;
+            }
+            updates.add(entry._update);
+            entry._transmissions++;
+            if (entry._transmissions >= retransmitLimit) {
+                _entries.remove(entry._update.getPeer().getNodeId());
+            }
+        }
+        return updates;
+    }
+
+    synchronized int size() {
+        return _entries.size();
+    }
+
+    private static class Entry {
+        private final MembershipUpdate _update;
+        private int _transmissions;
+
+        Entry(MembershipUpdate update) {
+            _update = update;
+        }
+    }
+}
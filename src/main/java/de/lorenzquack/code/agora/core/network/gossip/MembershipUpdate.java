@@ -0,0 +1,97 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.gossip;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.network.PeerCodec;
+
+
+/**
+ * A piggybacked statement "peer is in state X as of incarnation i".
+ * Wire format: {@code [state:1][incarnation:4][peer]}, lists are prefixed by a 1 byte count.
+ */
+final class MembershipUpdate {
+    private final Peer _peer;
+    private final MemberState _state;
+    private final int _incarnation;
+
+    MembershipUpdate(Peer peer, MemberState state, int incarnation) {
+        _peer = peer;
+        _state = state;
+        _incarnation = incarnation;
+    }
+
+    Peer getPeer() {
+        return _peer;
+    }
+
+    MemberState getState() {
+        return _state;
+    }
+
+    int getIncarnation() {
+        return _incarnation;
+    }
+
+    int encodedSize() {
+        return 1 + 4 + PeerCodec.encodedSize(_peer);
+    }
+
+    static ByteBuffer encode(Peer target, List<MembershipUpdate> updates) {
+        int size = 1;
+        if (target != null) {
+            size += PeerCodec.encodedSize(target);
+        }
+        for (MembershipUpdate update : updates) {
+            size += update.encodedSize();
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        if (target != null) {
+            PeerCodec.writePeer(buffer, target);
+        }
+        buffer.put((byte) updates.size());
+        for (MembershipUpdate update : updates) {
+            buffer.put(update._state.getCode());
+            buffer.putInt(update._incarnation);
+            PeerCodec.writePeer(buffer, update._peer);
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    static List<MembershipUpdate> decode(ByteBuffer buffer) {
+        int count = buffer.get() & 0xff;
+        List<MembershipUpdate> updates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            MemberState state = MemberState.fromCode(buffer.get());
+            int incarnation = buffer.getInt();
+            updates.add(new MembershipUpdate(PeerCodec.readPeer(buffer), state, incarnation));
+        }
+        return updates;
+    }
+
+    @Override
+    public String toString() {
+        return _state + " " + _peer + " #" + _incarnation;
+    }
+}
@@ -0,0 +1,463 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.gossip;
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MembershipEvent;
+import de.lorenzquack.code.agora.core.api.MembershipListener;
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.network.Message;
+import de.lorenzquack.code.agora.core.network.MessageDispatcher;
+import de.lorenzquack.code.agora.core.network.MessageHandler;
+import de.lorenzquack.code.agora.core.network.MessageType;
+import de.lorenzquack.code.agora.core.network.PeerCodec;
+import de.lorenzquack.code.agora.core.network.PeerObserver;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+
+
+/**
+ * SWIM failure detector and membership protocol.
+ *
+ * Every protocol period one member is pinged directly. If it does not answer within the probe timeout,
+ * {@code indirectProbes} other members are asked to ping it on our behalf. If that fails as well the member
+ * becomes SUSPECT and, unless it refutes by gossiping a higher incarnation, DEAD after the suspicion timeout.
+ * Membership updates are piggybacked on the ping and ack messages, so each node sends a constant number of
+ * messages per period regardless of the cluster size.
+ *
+ * The address of a member is always the one the transport saw its messages come from, updates only change its state
+ * and incarnation. A node's own idea of its address is the one it is bound to, which may well be a wildcard.
+ * DEAD members are kept for {@code deadMemberRetentionMillis} so that late gossip about them is recognized as stale,
+ * then they are forgotten.
+ */
+public class SwimMembership implements PeerObserver {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SwimMembership.class);
+
+    private final MessageDispatcher _dispatcher;
+    private final Map<NodeId, Member> _members = new HashMap<>();
+    private final List<NodeId> _probeOrder = new ArrayList<>();
+    private final CopyOnWriteArrayList<MembershipListener> _listeners = new CopyOnWriteArrayList<>();
+    private final Random _random = new Random();
+    private final long _protocolPeriodMillis;
+    private final long _probeTimeoutMillis;
+    private final int _indirectProbes;
+    private final int _suspicionMultiplier;
+    private final int _maxPiggyback;
+    private final long _deadMemberRetentionMillis;
+    private final DisseminationQueue _disseminationQueue;
+    private int _probeIndex;
+    private int _incarnation;
+    private ScheduledFuture<?> _protocolTask;
+
+    public SwimMembership(MessageDispatcher dispatcher, JSONConfig config) {
+        _dispatcher = dispatcher;
+        _protocolPeriodMillis = asLongOrDefault(config.get("protocolPeriodMillis"), 1000);
+        _probeTimeoutMillis = asLongOrDefault(config.get("probeTimeoutMillis"), _protocolPeriodMillis / 3);
+        _indirectProbes = asIntOrDefault(config.get("indirectProbes"), 3);
+        _suspicionMultiplier = asIntOrDefault(config.get("suspicionMultiplier"), 4);
+        _maxPiggyback = asIntOrDefault(config.get("maxPiggyback"), 8);
+        _deadMemberRetentionMillis = asLongOrDefault(config.get("deadMemberRetentionMillis"),
+                30 * _protocolPeriodMillis);
+        _disseminationQueue = new DisseminationQueue(asIntOrDefault(config.get("retransmitMultiplier"), 3));
+    }
+
+    public void register() {
+        _dispatcher.registerHandler(MessageType.SWIM_PING, new MessageHandler() {
+            @Override
+            public void handle(Message message) {
+                applyAll(MembershipUpdate.decode(message.getBody()), message.getSender());
+                _dispatcher.reply(message, MessageType.SWIM_ACK, piggyback(null));
+            }
+        });
+        _dispatcher.registerHandler(MessageType.SWIM_PING_REQ, new MessageHandler() {
+            @Override
+            public void handle(final Message message) {
+                ByteBuffer body = message.getBody();
+                Peer target = PeerCodec.readPeer(body);
+                applyAll(MembershipUpdate.decode(body), message.getSender());
+                ListenableFuture<Message> ack = _dispatcher.request(target.getAddress(), MessageType.SWIM_PING,
+                        piggyback(null), _probeTimeoutMillis);
+                Futures.addCallback(ack, new FutureCallback<Message>() {
+                    @Override
+                    public void onSuccess(Message result) {
+                        applyAll(MembershipUpdate.decode(result.getBody()), result.getSender());
+                        _dispatcher.reply(message, MessageType.SWIM_ACK, piggyback(null));
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        // the requester times out on its own
+                    }
+                });
+            }
+        });
+        _dispatcher.addPeerObserver(this);
+    }
+
+    public void start() {
+        _protocolTask = _dispatcher.getScheduler().scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    probe();
+                } catch (RuntimeException e) {
+                    LOGGER.warn("SWIM protocol period failed", e);
+                }
+            }
+        }, _protocolPeriodMillis, _protocolPeriodMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (_protocolTask != null) {
+            _protocolTask.cancel(false);
+        }
+    }
+
+    public void addListener(MembershipListener listener) {
+        _listeners.add(listener);
+    }
+
+    public void removeListener(MembershipListener listener) {
+        _listeners.remove(listener);
+    }
+
+    /**
+     * Adds peers we learned about from elsewhere (e.g. the routing table) as alive members.
+     */
+    public void join(Collection<Peer> peers) {
+        for (Peer peer : peers) {
+            peerSeen(peer);
+        }
+    }
+
+    public synchronized List<Peer> getAliveMembers() {
+        List<Peer> alive = new ArrayList<>();
+        for (Member member : _members.values()) {
+            if (member._state != MemberState.DEAD) {
+                alive.add(member._peer);
+            }
+        }
+        return alive;
+    }
+
+    @Override
+    public void peerSeen(Peer peer) {
+        List<MembershipEvent> events = new ArrayList<>(1);
+        synchronized (this) {
+            Member member = _members.get(peer.getNodeId());
+            if (member == null) {
+                apply(new MembershipUpdate(peer, MemberState.ALIVE, 0), events);
+            } else {
+                // the node may have moved, e.g. restarted on another port
+                member._peer = peer;
+                if (member._state != MemberState.ALIVE) {
+                    // let the node learn that it is suspected or was declared dead so that it can refute
+                    _disseminationQueue.add(new MembershipUpdate(peer, member._state, member._incarnation));
+                }
+            }
+        }
+        fire(events);
+    }
+
+    @Override
+    public void peerUnresponsive(Peer peer) {
+        // failure detection is our own business; a single lost request is no evidence
+    }
+
+    private void probe() {
+        final Member target = nextProbeTarget();
+        if (target == null) {
+            return;
+        }
+        ListenableFuture<Message> ack = _dispatcher.request(target._peer.getAddress(), MessageType.SWIM_PING,
+                piggyback(null), _probeTimeoutMillis);
+        Futures.addCallback(ack, new FutureCallback<Message>() {
+            @Override
+            public void onSuccess(Message result) {
+                applyAll(MembershipUpdate.decode(result.getBody()), result.getSender());
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                probeIndirectly(target);
+            }
+        });
+    }
+
+    private void probeIndirectly(final Member target) {
+        List<Peer> helpers = randomAliveMembers(_indirectProbes, target._peer.getNodeId());
+        if (helpers.isEmpty()) {
+            suspect(target._peer.getNodeId(), target._incarnation);
+            return;
+        }
+        final AtomicInteger outstanding = new AtomicInteger(helpers.size());
+        long timeoutMillis = Math.max(_protocolPeriodMillis - _probeTimeoutMillis, _probeTimeoutMillis);
+        for (Peer helper : helpers) {
+            ListenableFuture<Message> ack = _dispatcher.request(helper.getAddress(), MessageType.SWIM_PING_REQ,
+                    piggyback(target._peer), timeoutMillis);
+            Futures.addCallback(ack, new FutureCallback<Message>() {
+                @Override
+                public void onSuccess(Message result) {
+                    outstanding.set(-1);
+                    applyAll(MembershipUpdate.decode(result.getBody()), result.getSender());
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    if (outstanding.decrementAndGet() == 0) {
+                        suspect(target._peer.getNodeId(), target._incarnation);
+                    }
+                }
+            });
+        }
+    }
+
+    private void suspect(NodeId nodeId, int incarnation) {
+        List<MembershipEvent> events = new ArrayList<>(1);
+        synchronized (this) {
+            Member member = _members.get(nodeId);
+            if (member != null) {
+                apply(new MembershipUpdate(member._peer, MemberState.SUSPECT, incarnation), events);
+            }
+        }
+        fire(events);
+    }
+
+    private void scheduleSuspicionTimeout(final NodeId nodeId, final int incarnation) {
+        int memberCount;
+        synchronized (this) {
+            memberCount = _members.size();
+        }
+        long timeoutMillis = _suspicionMultiplier * log2(memberCount + 1) * _protocolPeriodMillis;
+        _dispatcher.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                List<MembershipEvent> events = new ArrayList<>(1);
+                synchronized (SwimMembership.this) {
+                    Member member = _members.get(nodeId);
+                    if (member != null && member._state == MemberState.SUSPECT && member._incarnation == incarnation) {
+                        apply(new MembershipUpdate(member._peer, MemberState.DEAD, incarnation), events);
+                    }
+                }
+                fire(events);
+            }
+        }, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void scheduleExpiry(final NodeId nodeId, final int incarnation) {
+        _dispatcher.getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SwimMembership.this) {
+                    Member member = _members.get(nodeId);
+                    if (member != null && member._state == MemberState.DEAD && member._incarnation == incarnation) {
+                        _members.remove(nodeId);
+                        int index = _probeOrder.indexOf(nodeId);
+                        _probeOrder.remove(index);
+                        if (index < _probeIndex) {
+                            _probeIndex--;
+                        }
+                        LOGGER.debug("forgot dead member {}", member._peer);
+                    }
+                }
+            }
+        }, _deadMemberRetentionMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param sender the node whose message carried the updates
+     */
+    private void applyAll(List<MembershipUpdate> updates, Peer sender) {
+        List<MembershipEvent> events = new ArrayList<>(updates.size());
+        synchronized (this) {
+            for (MembershipUpdate update : updates) {
+                if (update.getPeer().getNodeId().equals(sender.getNodeId())) {
+                    // the sender wrote the address it is bound to, we know better
+                    update = new MembershipUpdate(sender, update.getState(), update.getIncarnation());
+                }
+                apply(update, events);
+            }
+        }
+        fire(events);
+    }
+
+    /**
+     * Applies the SWIM override rules. Must hold the lock; events are collected to be fired outside of it.
+     */
+    private void apply(MembershipUpdate update, List<MembershipEvent> events) {
+        NodeId nodeId = update.getPeer().getNodeId();
+        if (nodeId.equals(_dispatcher.getLocalId())) {
+            if (update.getState() != MemberState.ALIVE && update.getIncarnation() >= _incarnation) {
+                _incarnation = update.getIncarnation() + 1;
+                LOGGER.debug("refuting {} suspicion with incarnation {}", update.getState(), _incarnation);
+                // only ever sent by us, each receiver replaces the address, see applyAll
+                _disseminationQueue.add(new MembershipUpdate(_dispatcher.getLocalPeer(), MemberState.ALIVE, _incarnation));
+            }
+            return;
+        }
+        Member member = _members.get(nodeId);
+        if (member == null) {
+            if (update.getState() == MemberState.DEAD || isWildcard(update.getPeer())) {
+                // nothing to learn about a dead stranger, and no way to reach one without a usable address
+                return;
+            }
+            member = new Member(update.getPeer(), update.getState(), update.getIncarnation());
+            _members.put(nodeId, member);
+            _probeOrder.add(_random.nextInt(_probeOrder.size() + 1), nodeId);
+            _disseminationQueue.add(update);
+            events.add(new MembershipEvent(MembershipEvent.Type.JOINED, member._peer, member._incarnation));
+            if (update.getState() == MemberState.SUSPECT) {
+                events.add(new MembershipEvent(MembershipEvent.Type.SUSPECTED, member._peer, member._incarnation));
+                scheduleSuspicionTimeout(nodeId, update.getIncarnation());
+            }
+            return;
+        }
+        if (!overrides(update, member)) {
+            return;
+        }
+        MemberState previousState = member._state;
+        member._state = update.getState();
+        member._incarnation = update.getIncarnation();
+        _disseminationQueue.add(new MembershipUpdate(member._peer, member._state, member._incarnation));
+        switch (update.getState()) {
+            case ALIVE:
+                if (previousState == MemberState.SUSPECT) {
+                    events.add(new MembershipEvent(MembershipEvent.Type.RECOVERED, member._peer, member._incarnation));
+                } else if (previousState == MemberState.DEAD) {
+                    events.add(new MembershipEvent(MembershipEvent.Type.JOINED, member._peer, member._incarnation));
+                }
+                break;
+            case SUSPECT:
+                if (previousState == MemberState.DEAD) {
+                    events.add(new MembershipEvent(MembershipEvent.Type.JOINED, member._peer, member._incarnation));
+                }
+                events.add(new MembershipEvent(MembershipEvent.Type.SUSPECTED, member._peer, member._incarnation));
+                scheduleSuspicionTimeout(nodeId, member._incarnation);
+                break;
+            case DEAD:
+                events.add(new MembershipEvent(MembershipEvent.Type.FAILED, member._peer, member._incarnation));
+                scheduleExpiry(nodeId, member._incarnation);
+                break;
+        }
+    }
+
+    private static boolean overrides(MembershipUpdate update, Member member) {
+        int incarnation = update.getIncarnation();
+        switch (update.getState()) {
+            case ALIVE:
+                return incarnation > member._incarnation;
+            case SUSPECT:
+                return (member._state == MemberState.ALIVE && incarnation >= member._incarnation)
+                        || incarnation > member._incarnation;
+            case DEAD:
+                return member._state != MemberState.DEAD || incarnation > member._incarnation;
+            default:
+                return false;
+        }
+    }
+
+    private synchronized Member nextProbeTarget() {
+        for (int attempts = 0; attempts < _probeOrder.size(); attempts++) {
+            if (_probeIndex >= _probeOrder.size()) {
+                _probeIndex = 0;
+                Collections.shuffle(_probeOrder, _random);
+            }
+            Member member = _members.get(_probeOrder.get(_probeIndex++));
+            if (member._state != MemberState.DEAD) {
+                return member;
+            }
+        }
+        return null;
+    }
+
+    private synchronized List<Peer> randomAliveMembers(int count, NodeId exclude) {
+        List<Peer> candidates = new ArrayList<>();
+        for (Member member : _members.values()) {
+            if (member._state == MemberState.ALIVE && !member._peer.getNodeId().equals(exclude)) {
+                candidates.add(member._peer);
+            }
+        }
+        Collections.shuffle(candidates, _random);
+        return candidates.size() > count ? candidates.subList(0, count) : candidates;
+    }
+
+    private ByteBuffer piggyback(Peer target) {
+        int memberCount;
+        synchronized (this) {
+            memberCount = _members.size();
+        }
+        return MembershipUpdate.encode(target, _disseminationQueue.take(_maxPiggyback, memberCount));
+    }
+
+    private void fire(List<MembershipEvent> events) {
+        for (MembershipEvent event : events) {
+            LOGGER.debug("membership changed: {}", event);
+            for (MembershipListener listener : _listeners) {
+                try {
+                    listener.membershipChanged(event);
+                } catch (RuntimeException e) {
+                    LOGGER.warn("membership listener failed", e);
+                }
+            }
+        }
+    }
+
+    private static boolean isWildcard(Peer peer) {
+        InetAddress address = peer.getAddress().getAddress();
+        return address != null && address.isAnyLocalAddress();
+    }
+
+    private static int log2(int n) {
+        return Math.max(1, 32 - Integer.numberOfLeadingZeros(n));
+    }
+
+    private static class Member {
+        private Peer _peer;
+        private MemberState _state;
+        private int _incarnation;
+
+        Member(Peer peer, MemberState state, int incarnation) {
+            _peer = peer;
+            _state = state;
+            _incarnation = incarnation;
+        }
+    }
+}
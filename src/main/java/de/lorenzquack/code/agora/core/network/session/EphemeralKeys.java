@@ -0,0 +1,50 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.security.KeyPair;
+
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+
+
+/**
+ * The key pair our side contributes to full handshakes. Generating a key pair costs about as much as the key
+ * agreement itself, so it is shared by all handshakes within {@code lifetimeMillis} at the price of forward
+ * secrecy only holding once the pair has been replaced. A lifetime of 0 generates a key pair per handshake.
+ */
+public class EphemeralKeys {
+    private final CryptoEngine _crypto;
+    private final long _lifetimeMillis;
+    private KeyPair _keyPair;
+    private long _createdMillis;
+
+    public EphemeralKeys(CryptoEngine crypto, long lifetimeMillis) {
+        _crypto = crypto;
+        _lifetimeMillis = lifetimeMillis;
+    }
+
+    public synchronized KeyPair get() {
+        long now = System.currentTimeMillis();
+        if (_keyPair == null || now - _createdMillis >= _lifetimeMillis) {
+            _keyPair = _crypto.generateKeyAgreementKeyPair();
+            _createdMillis = now;
+        }
+        return _keyPair;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.ACCEPT;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.HEADER_SIZE;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.HELLO;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.NONCE_SIZE;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.RESUME;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.RESUME_ACCEPT;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.TAG_SIZE;
+
+
+/**
+ * The initiating side of a handshake. A full handshake is an ephemeral ECDH exchange:
+ * {@code HELLO [public key]} is answered by {@code ACCEPT [public key][ticket][confirmation]}.
+ * A resumption skips the key agreement by presenting a ticket from an earlier session:
+ * {@code RESUME [nonce][ticket]} is answered by {@code RESUME_ACCEPT [nonce][new ticket][confirmation]}.
+ * In both cases the confirmation is a mac over hello and reply with the responder's new key, proving that both
+ * sides derived the same keys.
+ */
+public class Handshake {
+    private final CryptoEngine _crypto;
+    private final InetSocketAddress _peerAddress;
+    private final long _sessionId;
+    private final KeyPair _keyPair;
+    private final ResumptionTicket _ticket;
+    private final byte[] _nonce;
+    private final ByteBuffer _hello;
+
+    private Handshake(CryptoEngine crypto, InetSocketAddress peerAddress, int listenPort, KeyPair keyPair,
+                      ResumptionTicket ticket) {
+        _crypto = crypto;
+        _peerAddress = peerAddress;
+        _sessionId = crypto.getRandomLong();
+        _keyPair = keyPair;
+        _ticket = ticket;
+        if (keyPair != null) {
+            _nonce = null;
+            byte[] publicKey = keyPair.getPublic().getEncoded();
+            _hello = SessionFrame.allocate(HELLO, _sessionId, listenPort, SessionFrame.fieldSize(publicKey));
+            SessionFrame.putField(_hello, publicKey);
+        } else {
+            _nonce = crypto.getRandomBytes(NONCE_SIZE);
+            _hello = SessionFrame.allocate(RESUME, _sessionId, listenPort,
+                    NONCE_SIZE + SessionFrame.fieldSize(ticket.getTicket()));
+            _hello.put(_nonce);
+            SessionFrame.putField(_hello, ticket.getTicket());
+        }
+        _hello.flip();
+    }
+
+    public static Handshake full(CryptoEngine crypto, InetSocketAddress peerAddress, int listenPort,
+                                 EphemeralKeys keys) {
+        return new Handshake(crypto, peerAddress, listenPort, keys.get(), null);
+    }
+
+    public static Handshake resume(CryptoEngine crypto, InetSocketAddress peerAddress, int listenPort,
+                                   ResumptionTicket ticket) {
+        return new Handshake(crypto, peerAddress, listenPort, null, ticket);
+    }
+
+    public long getSessionId() {
+        return _sessionId;
+    }
+
+    public InetSocketAddress getPeerAddress() {
+        return _peerAddress;
+    }
+
+    public boolean isResumption() {
+        return _ticket != null;
+    }
+
+    public ByteBuffer getHello() {
+        return _hello.duplicate();
+    }
+
+    /**
+     * @throws IOException if the reply is malformed, does not belong to this handshake or fails confirmation
+     */
+    public Session complete(ByteBuffer reply) throws IOException {
+        ByteBuffer frame = reply.duplicate();
+        int start = frame.position();
+        if (frame.remaining() < HEADER_SIZE + TAG_SIZE) {
+            throw new IOException("truncated handshake reply");
+        }
+        byte expectedKind = isResumption() ? RESUME_ACCEPT : ACCEPT;
+        if (SessionFrame.getKind(frame) != expectedKind || SessionFrame.getSessionId(frame) != _sessionId) {
+            throw new IOException("unexpected handshake reply");
+        }
+        frame.position(start + HEADER_SIZE);
+        SessionKeys keys;
+        if (isResumption()) {
+            byte[] peerNonce = SessionFrame.getBytes(frame, NONCE_SIZE);
+            keys = SessionKeys.derive(_crypto, _ticket.getSecret(), SessionKeys.salt(_sessionId, _nonce, peerNonce), true);
+        } else {
+            byte[] peerPublicKey = SessionFrame.getField(frame);
+            byte[] secret;
+            try {
+                secret = _crypto.agree(_keyPair.getPrivate(), peerPublicKey);
+            } catch (GeneralSecurityException e) {
+                throw new IOException("invalid public key from " + _peerAddress, e);
+            }
+            byte[] salt = SessionKeys.salt(_sessionId, _keyPair.getPublic().getEncoded(), peerPublicKey);
+            keys = SessionKeys.derive(_crypto, secret, salt, true);
+        }
+        byte[] ticket = SessionFrame.getField(frame);
+        ByteBuffer confirmed = frame.duplicate();
+        confirmed.flip();
+        confirmed.position(start);
+        byte[] confirmation = SessionFrame.getBytes(frame, TAG_SIZE);
+        if (frame.hasRemaining()) {
+            throw new IOException("trailing bytes in handshake reply");
+        }
+        if (!CryptoEngine.tagsEqual(confirmation, _crypto.mac(keys._receiveMacKey, TAG_SIZE, getHello(), confirmed))) {
+            throw new IOException("handshake confirmation from " + _peerAddress + " failed");
+        }
+        ResumptionTicket resumptionTicket = new ResumptionTicket(ticket, keys._resumptionSecret, System.currentTimeMillis());
+        return new Session(_sessionId, _peerAddress, keys, resumptionTicket);
+    }
+}
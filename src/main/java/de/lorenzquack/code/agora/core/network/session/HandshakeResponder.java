@@ -0,0 +1,151 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.ACCEPT;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.HEADER_SIZE;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.HELLO;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.NONCE_SIZE;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.REJECT;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.RESUME;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.RESUME_ACCEPT;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.TAG_SIZE;
+
+
+/**
+ * The responding side of a {@link Handshake}. It keeps no state between handshakes; everything needed to resume
+ * a session travels in the ticket.
+ */
+public class HandshakeResponder {
+    private final CryptoEngine _crypto;
+    private final ResumptionTickets _tickets;
+    private final EphemeralKeys _ephemeralKeys;
+
+    public HandshakeResponder(CryptoEngine crypto, ResumptionTickets tickets, EphemeralKeys ephemeralKeys) {
+        _crypto = crypto;
+        _tickets = tickets;
+        _ephemeralKeys = ephemeralKeys;
+    }
+
+    /**
+     * @param peerAddress the address the initiator listens on
+     * @param listenPort  our own listen port, announced in the reply
+     * @throws IOException if {@code hello} is malformed
+     */
+    public Response respond(ByteBuffer hello, InetSocketAddress peerAddress, int listenPort) throws IOException {
+        ByteBuffer frame = hello.duplicate();
+        if (frame.remaining() < HEADER_SIZE) {
+            throw new IOException("truncated handshake");
+        }
+        byte kind = SessionFrame.getKind(frame);
+        long sessionId = SessionFrame.getSessionId(frame);
+        frame.position(frame.position() + HEADER_SIZE);
+        if (kind == HELLO) {
+            return respondFull(hello, frame, sessionId, peerAddress, listenPort);
+        }
+        if (kind == RESUME) {
+            return respondResume(hello, frame, sessionId, peerAddress, listenPort);
+        }
+        throw new IOException("not a handshake frame: " + kind);
+    }
+
+    private Response respondFull(ByteBuffer hello, ByteBuffer frame, long sessionId, InetSocketAddress peerAddress,
+                                 int listenPort) throws IOException {
+        byte[] peerPublicKey = SessionFrame.getField(frame);
+        KeyPair keyPair = _ephemeralKeys.get();
+        byte[] secret;
+        try {
+            secret = _crypto.agree(keyPair.getPrivate(), peerPublicKey);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("invalid public key from " + peerAddress, e);
+        }
+        byte[] publicKey = keyPair.getPublic().getEncoded();
+        SessionKeys keys = SessionKeys.derive(_crypto, secret, SessionKeys.salt(sessionId, peerPublicKey, publicKey), false);
+        byte[] ticket = _tickets.issue(keys._resumptionSecret, System.currentTimeMillis());
+        ByteBuffer reply = SessionFrame.allocate(ACCEPT, sessionId, listenPort,
+                SessionFrame.fieldSize(publicKey) + SessionFrame.fieldSize(ticket) + TAG_SIZE);
+        SessionFrame.putField(reply, publicKey);
+        SessionFrame.putField(reply, ticket);
+        return confirm(hello, reply, keys, new Session(sessionId, peerAddress, keys, null), false);
+    }
+
+    private Response respondResume(ByteBuffer hello, ByteBuffer frame, long sessionId, InetSocketAddress peerAddress,
+                                   int listenPort) throws IOException {
+        byte[] peerNonce = SessionFrame.getBytes(frame, NONCE_SIZE);
+        ResumptionTickets.Contents contents;
+        try {
+            contents = _tickets.open(SessionFrame.getField(frame));
+        } catch (IOException e) {
+            ByteBuffer reject = SessionFrame.allocate(REJECT, sessionId, listenPort, 0);
+            reject.flip();
+            return new Response(reject, null, true);
+        }
+        byte[] nonce = _crypto.getRandomBytes(NONCE_SIZE);
+        SessionKeys keys = SessionKeys.derive(_crypto, contents._secret, SessionKeys.salt(sessionId, peerNonce, nonce), false);
+        byte[] ticket = _tickets.issue(keys._resumptionSecret, contents._issuedMillis);
+        ByteBuffer reply = SessionFrame.allocate(RESUME_ACCEPT, sessionId, listenPort,
+                NONCE_SIZE + SessionFrame.fieldSize(ticket) + TAG_SIZE);
+        reply.put(nonce);
+        SessionFrame.putField(reply, ticket);
+        return confirm(hello, reply, keys, new Session(sessionId, peerAddress, keys, null), true);
+    }
+
+    private Response confirm(ByteBuffer hello, ByteBuffer reply, SessionKeys keys, Session session, boolean resumed) {
+        ByteBuffer confirmed = reply.duplicate();
+        confirmed.flip();
+        reply.put(_crypto.mac(keys._sendMacKey, TAG_SIZE, hello.duplicate(), confirmed));
+        reply.flip();
+        return new Response(reply, session, resumed);
+    }
+
+    public static final class Response {
+        private final ByteBuffer _reply;
+        private final Session _session;
+        private final boolean _resumption;
+
+        private Response(ByteBuffer reply, Session session, boolean resumption) {
+            _reply = reply;
+            _session = session;
+            _resumption = resumption;
+        }
+
+        public ByteBuffer getReply() {
+            return _reply;
+        }
+
+        /**
+         * @return the new session, or {@code null} if a resumption was rejected
+         */
+        public Session getSession() {
+            return _session;
+        }
+
+        public boolean isResumption() {
+            return _resumption;
+        }
+    }
+}
@@ -0,0 +1,55 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+/**
+ * Sliding window over the counters of received frames. Datagrams may arrive out of order, so instead of
+ * requiring increasing counters we remember which of the last 64 counters we have seen.
+ */
+final class ReplayWindow {
+    private static final int SIZE = 64;
+
+    private long _highest = -1;
+    private long _seen;
+
+    /**
+     * @return {@code true} if {@code counter} was not seen before and is recent enough to be checked
+     */
+    synchronized boolean accept(long counter) {
+        if (counter < 0) {
+            return false;
+        }
+        if (counter > _highest) {
+            long shift = counter - _highest;
+            _seen = shift >= SIZE ? 1 : (_seen << shift) | 1;
+            _highest = counter;
+            return true;
+        }
+        long offset = _highest - counter;
+        if (offset >= SIZE) {
+            return false;
+        }
+        long bit = 1L << offset;
+        if ((_seen & bit) != 0) {
+            return false;
+        }
+        _seen |= bit;
+        return true;
+    }
+}
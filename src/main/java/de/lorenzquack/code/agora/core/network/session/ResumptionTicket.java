@@ -0,0 +1,47 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+/**
+ * What an initiator keeps to resume a session with a peer: the opaque ticket the peer issued and the secret the
+ * ticket encrypts.
+ */
+public final class ResumptionTicket {
+    private final byte[] _ticket;
+    private final byte[] _secret;
+    private final long _receivedMillis;
+
+    ResumptionTicket(byte[] ticket, byte[] secret, long receivedMillis) {
+        _ticket = ticket;
+        _secret = secret;
+        _receivedMillis = receivedMillis;
+    }
+
+    byte[] getTicket() {
+        return _ticket;
+    }
+
+    byte[] getSecret() {
+        return _secret;
+    }
+
+    long getReceivedMillis() {
+        return _receivedMillis;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+
+import static de.lorenzquack.code.agora.core.crypto.CryptoEngine.MAC_KEY_SIZE;
+import static de.lorenzquack.code.agora.core.crypto.CryptoEngine.STREAM_IV_SIZE;
+import static de.lorenzquack.code.agora.core.crypto.CryptoEngine.STREAM_KEY_SIZE;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.TAG_SIZE;
+import static de.lorenzquack.code.agora.core.network.session.SessionKeys.RESUMPTION_SECRET_SIZE;
+
+
+/**
+ * Issues and checks the tickets a responder hands out so that it does not have to remember resumable sessions.
+ * A ticket is {@code [iv:16][encrypted issue time:8 and resumption secret:32][tag:16]} sealed with a key only this
+ * process knows. The key is replaced every ticket lifetime; tickets sealed with the previous key stay valid until
+ * they expire.
+ */
+public class ResumptionTickets {
+    static final int TICKET_SIZE = STREAM_IV_SIZE + 8 + RESUMPTION_SECRET_SIZE + TAG_SIZE;
+
+    private final CryptoEngine _crypto;
+    private final long _lifetimeMillis;
+    private TicketKey _currentKey;
+    private TicketKey _previousKey;
+
+    public ResumptionTickets(CryptoEngine crypto, long lifetimeMillis) {
+        _crypto = crypto;
+        _lifetimeMillis = lifetimeMillis;
+        _currentKey = new TicketKey(crypto, System.currentTimeMillis());
+    }
+
+    public long getLifetimeMillis() {
+        return _lifetimeMillis;
+    }
+
+    /**
+     * @param issuedMillis when the first session of the resumption chain was established; renewing a ticket does
+     *                     not extend its lifetime
+     */
+    byte[] issue(byte[] resumptionSecret, long issuedMillis) {
+        TicketKey key = getCurrentKey();
+        byte[] iv = _crypto.getRandomBytes(STREAM_IV_SIZE);
+        ByteBuffer plaintext = ByteBuffer.allocate(8 + RESUMPTION_SECRET_SIZE);
+        plaintext.putLong(issuedMillis).put(resumptionSecret).flip();
+        ByteBuffer ticket = ByteBuffer.allocate(TICKET_SIZE);
+        ticket.put(iv);
+        _crypto.streamCrypt(key._cipherKey, iv, plaintext, ticket);
+        ByteBuffer authenticated = ticket.duplicate();
+        authenticated.flip();
+        ticket.put(_crypto.mac(key._macKey, TAG_SIZE, authenticated));
+        return ticket.array();
+    }
+
+    /**
+     * @return the issue time and resumption secret sealed in {@code ticket}
+     * @throws IOException if the ticket is malformed, forged, sealed with a retired key or expired
+     */
+    Contents open(byte[] ticket) throws IOException {
+        if (ticket.length != TICKET_SIZE) {
+            throw new IOException("invalid ticket size " + ticket.length);
+        }
+        ByteBuffer authenticated = ByteBuffer.wrap(ticket, 0, TICKET_SIZE - TAG_SIZE);
+        byte[] tag = new byte[TAG_SIZE];
+        System.arraycopy(ticket, TICKET_SIZE - TAG_SIZE, tag, 0, TAG_SIZE);
+        TicketKey key = null;
+        for (TicketKey candidate : getKeys()) {
+            if (candidate != null
+                    && CryptoEngine.tagsEqual(tag, _crypto.mac(candidate._macKey, TAG_SIZE, authenticated.duplicate()))) {
+                key = candidate;
+                break;
+            }
+        }
+        if (key == null) {
+            throw new IOException("ticket not sealed by us");
+        }
+        byte[] iv = new byte[STREAM_IV_SIZE];
+        System.arraycopy(ticket, 0, iv, 0, STREAM_IV_SIZE);
+        ByteBuffer plaintext = ByteBuffer.allocate(8 + RESUMPTION_SECRET_SIZE);
+        _crypto.streamCrypt(key._cipherKey, iv,
+                ByteBuffer.wrap(ticket, STREAM_IV_SIZE, 8 + RESUMPTION_SECRET_SIZE), plaintext);
+        plaintext.flip();
+        long issuedMillis = plaintext.getLong();
+        if (System.currentTimeMillis() - issuedMillis > _lifetimeMillis) {
+            throw new IOException("ticket expired");
+        }
+        byte[] secret = new byte[RESUMPTION_SECRET_SIZE];
+        plaintext.get(secret);
+        return new Contents(issuedMillis, secret);
+    }
+
+    private synchronized TicketKey getCurrentKey() {
+        long now = System.currentTimeMillis();
+        if (now - _currentKey._createdMillis > _lifetimeMillis) {
+            _previousKey = _currentKey;
+            _currentKey = new TicketKey(_crypto, now);
+        }
+        return _currentKey;
+    }
+
+    private synchronized TicketKey[] getKeys() {
+        return new TicketKey[]{_currentKey, _previousKey};
+    }
+
+    static final class Contents {
+        final long _issuedMillis;
+        final byte[] _secret;
+
+        private Contents(long issuedMillis, byte[] secret) {
+            _issuedMillis = issuedMillis;
+            _secret = secret;
+        }
+    }
+
+    private static final class TicketKey {
+        private final byte[] _cipherKey;
+        private final byte[] _macKey;
+        private final long _createdMillis;
+
+        private TicketKey(CryptoEngine crypto, long createdMillis) {
+            _cipherKey = crypto.getRandomBytes(STREAM_KEY_SIZE);
+            _macKey = crypto.getRandomBytes(MAC_KEY_SIZE);
+            _createdMillis = createdMillis;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import javax.crypto.Mac;
+
+import de.lorenzquack.code.agora.core.api.FileRegion;
+import de.lorenzquack.code.agora.core.api.StreamedFrame;
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+import de.lorenzquack.code.agora.core.network.BufferPool;
+
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.DATA;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.DATA_OVERHEAD;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.TAG_SIZE;
+
+
+/**
+ * A {@code DATA} frame whose plaintext is a message header followed by file content. While the frame is written
+ * the plaintext is read into one pooled direct buffer, encrypted into another and authenticated piece by piece,
+ * so neither the content nor its ciphertext is ever held on the heap. The bytes on the wire are the same as if the
+ * whole plaintext had been passed to {@link Session#seal(CryptoEngine, int, ByteBuffer)}.
+ */
+final class SealedRegionFrame implements StreamedFrame {
+    private static final int BLOCK_SIZE = 16;
+
+    private final CryptoEngine _crypto;
+    private final byte[] _key;
+    private final byte[] _macKey;
+    private final long _sessionId;
+    private final int _listenPort;
+    private final long _counter;
+    private final ByteBuffer _header;
+    private final FileRegion _region;
+    private final BufferPool _buffers;
+
+    SealedRegionFrame(CryptoEngine crypto, byte[] key, byte[] macKey, long sessionId, int listenPort, long counter,
+                      ByteBuffer header, FileRegion region, BufferPool buffers) {
+        if (buffers.getBufferSize() % BLOCK_SIZE != 0 || buffers.getBufferSize() < DATA_OVERHEAD) {
+            throw new IllegalArgumentException("buffer size must be a multiple of the cipher block size");
+        }
+        _crypto = crypto;
+        _key = key;
+        _macKey = macKey;
+        _sessionId = sessionId;
+        _listenPort = listenPort;
+        _counter = counter;
+        _header = header;
+        _region = region;
+        _buffers = buffers;
+    }
+
+    @Override
+    public int size() {
+        return DATA_OVERHEAD + _header.remaining() + _region.getLength();
+    }
+
+    @Override
+    public void writeTo(WritableByteChannel channel) throws IOException {
+        ByteBuffer plaintext = _buffers.acquire();
+        ByteBuffer ciphertext = _buffers.acquire();
+        try {
+            Mac mac = _crypto.startMac(_macKey);
+            ciphertext.put(DATA).putLong(_sessionId).putShort((short) _listenPort).putLong(_counter);
+            ciphertext.flip();
+            mac.update(ciphertext.duplicate());
+            writeFully(channel, ciphertext);
+            long plaintextSize = _header.remaining() + _region.getLength();
+            long offset = 0;
+            long regionOffset = 0;
+            while (offset < plaintextSize) {
+                // every piece but the last fills the buffer, so each one starts on a block boundary
+                plaintext.clear();
+                if (_header.hasRemaining()) {
+                    ByteBuffer header = _header.duplicate();
+                    header.limit(header.position() + Math.min(header.remaining(), plaintext.remaining()));
+                    _header.position(header.limit());
+                    plaintext.put(header);
+                }
+                regionOffset += _region.read(regionOffset, plaintext);
+                plaintext.flip();
+                ciphertext.clear();
+                _crypto.streamCrypt(_key, Session.iv(_counter, offset / BLOCK_SIZE), plaintext, ciphertext);
+                ciphertext.flip();
+                offset += ciphertext.remaining();
+                mac.update(ciphertext.duplicate());
+                writeFully(channel, ciphertext);
+            }
+            ByteBuffer tag = ByteBuffer.wrap(mac.doFinal(), 0, TAG_SIZE);
+            writeFully(channel, tag);
+        } finally {
+            _buffers.release(plaintext);
+            _buffers.release(ciphertext);
+        }
+    }
+
+    private static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+}
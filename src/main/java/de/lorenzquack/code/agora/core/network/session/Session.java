@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.lorenzquack.code.agora.core.api.FileRegion;
+import de.lorenzquack.code.agora.core.api.StreamedFrame;
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+import de.lorenzquack.code.agora.core.network.BufferPool;
+
+import static de.lorenzquack.code.agora.core.crypto.CryptoEngine.STREAM_IV_SIZE;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.COUNTER_SIZE;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.DATA;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.DATA_OVERHEAD;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.HEADER_SIZE;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.TAG_SIZE;
+
+
+/**
+ * An established session with a peer. Data frames are encrypted with AES-CTR and authenticated with a truncated
+ * HMAC-SHA256 over header, counter and ciphertext:
+ * {@code [header][counter:8][ciphertext][tag:16]}.
+ * Every frame uses a fresh counter as IV so that keystreams are never reused.
+ */
+public class Session {
+    private final long _id;
+    private final InetSocketAddress _peerAddress;
+    private final SessionKeys _keys;
+    private final ResumptionTicket _resumptionTicket;
+    private final AtomicLong _sendCounter = new AtomicLong();
+    private final ReplayWindow _replayWindow = new ReplayWindow();
+    private volatile long _lastUsedMillis = System.currentTimeMillis();
+
+    Session(long id, InetSocketAddress peerAddress, SessionKeys keys, ResumptionTicket resumptionTicket) {
+        _id = id;
+        _peerAddress = peerAddress;
+        _keys = keys;
+        _resumptionTicket = resumptionTicket;
+    }
+
+    public long getId() {
+        return _id;
+    }
+
+    public InetSocketAddress getPeerAddress() {
+        return _peerAddress;
+    }
+
+    /**
+     * @return the ticket to resume this session with, or {@code null} if we were not the initiator
+     */
+    public ResumptionTicket getResumptionTicket() {
+        return _resumptionTicket;
+    }
+
+    public long getLastUsedMillis() {
+        return _lastUsedMillis;
+    }
+
+    public ByteBuffer seal(CryptoEngine crypto, int listenPort, ByteBuffer frame) {
+        long counter = _sendCounter.getAndIncrement();
+        ByteBuffer sealed = SessionFrame.allocate(DATA, _id, listenPort, COUNTER_SIZE + frame.remaining() + TAG_SIZE);
+        sealed.putLong(counter);
+        crypto.streamCrypt(_keys._sendKey, iv(counter, 0), frame.duplicate(), sealed);
+        ByteBuffer authenticated = sealed.duplicate();
+        authenticated.flip();
+        sealed.put(crypto.mac(_keys._sendMacKey, TAG_SIZE, authenticated));
+        sealed.flip();
+        _lastUsedMillis = System.currentTimeMillis();
+        return sealed;
+    }
+
+    /**
+     * Like {@link #seal(CryptoEngine, int, ByteBuffer)} for the plaintext {@code header} followed by the content of
+     * {@code region}, but the content is only read and encrypted while the returned frame is written.
+     */
+    public StreamedFrame seal(CryptoEngine crypto, int listenPort, ByteBuffer header, FileRegion region,
+                              BufferPool buffers) {
+        long counter = _sendCounter.getAndIncrement();
+        _lastUsedMillis = System.currentTimeMillis();
+        return new SealedRegionFrame(crypto, _keys._sendKey, _keys._sendMacKey, _id, listenPort, counter, header,
+                region, buffers);
+    }
+
+    /**
+     * @return the decrypted frame, or {@code null} if it was forged, corrupted or replayed
+     */
+    public ByteBuffer open(CryptoEngine crypto, ByteBuffer sealed) {
+        int start = sealed.position();
+        int end = sealed.limit();
+        if (end - start < DATA_OVERHEAD) {
+            return null;
+        }
+        ByteBuffer authenticated = sealed.duplicate();
+        authenticated.limit(end - TAG_SIZE);
+        byte[] tag = new byte[TAG_SIZE];
+        ByteBuffer tagBuffer = sealed.duplicate();
+        tagBuffer.position(end - TAG_SIZE);
+        tagBuffer.get(tag);
+        if (!CryptoEngine.tagsEqual(tag, crypto.mac(_keys._receiveMacKey, TAG_SIZE, authenticated))) {
+            return null;
+        }
+        long counter = sealed.getLong(start + HEADER_SIZE);
+        if (!_replayWindow.accept(counter)) {
+            return null;
+        }
+        ByteBuffer ciphertext = sealed.duplicate();
+        ciphertext.limit(end - TAG_SIZE);
+        ciphertext.position(start + HEADER_SIZE + COUNTER_SIZE);
+        ByteBuffer plaintext = ByteBuffer.allocate(ciphertext.remaining());
+        crypto.streamCrypt(_keys._receiveKey, iv(counter, 0), ciphertext, plaintext);
+        plaintext.flip();
+        _lastUsedMillis = System.currentTimeMillis();
+        return plaintext;
+    }
+
+    /**
+     * The counter fills the upper half of the IV; CTR mode counts blocks in the lower half, so encrypting a frame
+     * in pieces starts each piece at its first block.
+     */
+    static byte[] iv(long counter, long block) {
+        return ByteBuffer.allocate(STREAM_IV_SIZE).putLong(counter).putLong(block).array();
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+
+/**
+ * Layout of the frames exchanged by the session layer. All of them start with
+ * {@code [kind:1][session id:8][sender listen port:2]}. The kinds have the high bit set so that they can never be
+ * mistaken for a plain {@link de.lorenzquack.code.agora.core.network.Message}.
+ */
+final class SessionFrame {
+    static final byte DATA = (byte) 0x80;
+    static final byte HELLO = (byte) 0x81;
+    static final byte ACCEPT = (byte) 0x82;
+    static final byte RESUME = (byte) 0x83;
+    static final byte RESUME_ACCEPT = (byte) 0x84;
+    static final byte REJECT = (byte) 0x85;
+
+    static final int HEADER_SIZE = 11;
+    static final int COUNTER_SIZE = 8;
+    static final int TAG_SIZE = 16;
+    static final int NONCE_SIZE = 16;
+    static final int DATA_OVERHEAD = HEADER_SIZE + COUNTER_SIZE + TAG_SIZE;
+    private static final int MAX_FIELD_SIZE = 1024;
+
+    private SessionFrame() {
+    }
+
+    static ByteBuffer allocate(byte kind, long sessionId, int listenPort, int bodySize) {
+        ByteBuffer frame = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+        frame.put(kind);
+        frame.putLong(sessionId);
+        frame.putShort((short) listenPort);
+        return frame;
+    }
+
+    static byte getKind(ByteBuffer frame) {
+        return frame.get(frame.position());
+    }
+
+    static long getSessionId(ByteBuffer frame) {
+        return frame.getLong(frame.position() + 1);
+    }
+
+    /**
+     * @return the address the sender of {@code frame} listens on, which for inbound TCP connections differs from
+     *         the source address of the connection
+     */
+    static InetSocketAddress getSenderAddress(InetSocketAddress source, ByteBuffer frame) {
+        int listenPort = frame.getShort(frame.position() + 9) & 0xffff;
+        if (source.getAddress() == null) {
+            return InetSocketAddress.createUnresolved(source.getHostString(), listenPort);
+        }
+        return new InetSocketAddress(source.getAddress(), listenPort);
+    }
+
+    static int fieldSize(byte[] field) {
+        return 2 + field.length;
+    }
+
+    static void putField(ByteBuffer frame, byte[] field) {
+        frame.putShort((short) field.length);
+        frame.put(field);
+    }
+
+    static byte[] getField(ByteBuffer frame) throws IOException {
+        if (frame.remaining() < 2) {
+            throw new IOException("truncated session frame");
+        }
+        int length = frame.getShort() & 0xffff;
+        if (length > MAX_FIELD_SIZE || length > frame.remaining()) {
+            throw new IOException("invalid field length " + length);
+        }
+        byte[] field = new byte[length];
+        frame.get(field);
+        return field;
+    }
+
+    static byte[] getBytes(ByteBuffer frame, int length) throws IOException {
+        if (frame.remaining() < length) {
+            throw new IOException("truncated session frame");
+        }
+        byte[] bytes = new byte[length];
+        frame.get(bytes);
+        return bytes;
+    }
+}
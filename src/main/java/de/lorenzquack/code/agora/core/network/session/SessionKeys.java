@@ -0,0 +1,68 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+
+import static de.lorenzquack.code.agora.core.crypto.CryptoEngine.MAC_KEY_SIZE;
+import static de.lorenzquack.code.agora.core.crypto.CryptoEngine.STREAM_KEY_SIZE;
+
+
+/**
+ * The keys of one session: a cipher and a mac key for each direction plus the secret a later session can be
+ * resumed from.
+ */
+final class SessionKeys {
+    static final int RESUMPTION_SECRET_SIZE = 32;
+    private static final byte[] INFO = "agora session v1".getBytes(StandardCharsets.US_ASCII);
+    private static final int DIRECTION_SIZE = STREAM_KEY_SIZE + MAC_KEY_SIZE;
+
+    final byte[] _sendKey;
+    final byte[] _sendMacKey;
+    final byte[] _receiveKey;
+    final byte[] _receiveMacKey;
+    final byte[] _resumptionSecret;
+
+    private SessionKeys(byte[] material, boolean initiator) {
+        int sendOffset = initiator ? 0 : DIRECTION_SIZE;
+        int receiveOffset = initiator ? DIRECTION_SIZE : 0;
+        _sendKey = Arrays.copyOfRange(material, sendOffset, sendOffset + STREAM_KEY_SIZE);
+        _sendMacKey = Arrays.copyOfRange(material, sendOffset + STREAM_KEY_SIZE, sendOffset + DIRECTION_SIZE);
+        _receiveKey = Arrays.copyOfRange(material, receiveOffset, receiveOffset + STREAM_KEY_SIZE);
+        _receiveMacKey = Arrays.copyOfRange(material, receiveOffset + STREAM_KEY_SIZE, receiveOffset + DIRECTION_SIZE);
+        _resumptionSecret = Arrays.copyOfRange(material, 2 * DIRECTION_SIZE, 2 * DIRECTION_SIZE + RESUMPTION_SECRET_SIZE);
+    }
+
+    /**
+     * @param salt binds the keys to the handshake: the session id and both sides' public keys or nonces
+     */
+    static SessionKeys derive(CryptoEngine crypto, byte[] secret, byte[] salt, boolean initiator) {
+        byte[] material = crypto.deriveKeys(secret, salt, INFO, 2 * DIRECTION_SIZE + RESUMPTION_SECRET_SIZE);
+        return new SessionKeys(material, initiator);
+    }
+
+    static byte[] salt(long sessionId, byte[] initiatorContribution, byte[] responderContribution) {
+        return ByteBuffer.allocate(8 + initiatorContribution.length + responderContribution.length)
+                .putLong(sessionId).put(initiatorContribution).put(responderContribution).array();
+    }
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.Delivery;
+import de.lorenzquack.code.agora.core.api.FileRegion;
+import de.lorenzquack.code.agora.core.api.Gauge;
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+import de.lorenzquack.code.agora.core.api.NetworkAdaptor;
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+import de.lorenzquack.code.agora.core.network.BufferPool;
+
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.ACCEPT;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.DATA;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.HEADER_SIZE;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.HELLO;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.REJECT;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.RESUME;
+import static de.lorenzquack.code.agora.core.network.session.SessionFrame.RESUME_ACCEPT;
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+
+
+/**
+ * Encrypts all frames between two nodes with per-peer session keys.
+ * The first frame to a peer triggers a {@link Handshake} over the control adaptor; frames sent meanwhile are
+ * queued and flushed once the session is established. Tickets of earlier sessions are cached per peer so that
+ * reconnecting after an idle timeout only costs a resumption instead of a key agreement.
+ * If a peer answers a frame with {@code REJECT} because it forgot the session or the ticket, we drop ours and
+ * handshake again on the next send.
+ * <p>
+ * The ephemeral keys are not signed with a long term node key, so sessions give confidentiality and integrity
+ * against passive observers only: they do not authenticate the peer, and an active man in the middle can run a
+ * handshake with either side.
+ */
+public class SessionManager {
+    public static final int FRAME_OVERHEAD = SessionFrame.DATA_OVERHEAD;
+    private static final Logger LOGGER = LoggerFactory.getLogger(SessionManager.class);
+    private static final long DEFAULT_IDLE_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    private static final long DEFAULT_HANDSHAKE_TIMEOUT_MILLIS = 2000;
+    private static final long DEFAULT_TICKET_LIFETIME_MILLIS = TimeUnit.DAYS.toMillis(1);
+    private static final long DEFAULT_EPHEMERAL_KEY_LIFETIME_MILLIS = TimeUnit.MINUTES.toMillis(1);
+    private static final int DEFAULT_MAX_QUEUED_FRAMES = 256;
+    private static final int HANDSHAKE_ATTEMPTS = 3;
+    private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_POOLED_STREAM_BUFFERS = 32;
+
+    private final CryptoEngine _crypto = new CryptoEngine();
+    private final BufferPool _streamBuffers = new BufferPool(STREAM_BUFFER_SIZE, MAX_POOLED_STREAM_BUFFERS);
+    private final ScheduledExecutorService _scheduler;
+    private final NetworkAdaptor _handshakeAdaptor;
+    private final NetworkAdaptor _listenAdaptor;
+    private final ResumptionTickets _tickets;
+    private final EphemeralKeys _ephemeralKeys;
+    private final HandshakeResponder _responder;
+    private final long _idleTimeoutMillis;
+    private final long _handshakeTimeoutMillis;
+    private final int _maxQueuedFrames;
+    private final ConcurrentHashMap<Long, Session> _sessionsById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, Session> _sessionsByPeer = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<Long, PendingHandshake> _handshakesById = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, PendingHandshake> _handshakesByPeer = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<InetSocketAddress, ResumptionTicket> _resumptionTickets = new ConcurrentHashMap<>();
+    private final AtomicLong _fullHandshakes = new AtomicLong();
+    private final AtomicLong _resumedHandshakes = new AtomicLong();
+    private final AtomicLong _failedHandshakes = new AtomicLong();
+    private final AtomicLong _handshakeNanos = new AtomicLong();
+    private final AtomicLong _rejectedFrames = new AtomicLong();
+    private ScheduledFuture<?> _expiry;
+
+    /**
+     * @param handshakeAdaptor carries handshake frames, usually the control adaptor
+     * @param listenAdaptor    the adaptor whose port we announce, see
+     *                         {@link de.lorenzquack.code.agora.core.network.MessageDispatcher#getLocalPeer()}
+     */
+    public SessionManager(JSONConfig config, ScheduledExecutorService scheduler, NetworkAdaptor handshakeAdaptor,
+                          NetworkAdaptor listenAdaptor) {
+        _scheduler = scheduler;
+        _handshakeAdaptor = handshakeAdaptor;
+        _listenAdaptor = listenAdaptor;
+        _idleTimeoutMillis = asLongOrDefault(config.get("idleTimeoutMillis"), DEFAULT_IDLE_TIMEOUT_MILLIS);
+        _handshakeTimeoutMillis = asLongOrDefault(config.get("handshakeTimeoutMillis"), DEFAULT_HANDSHAKE_TIMEOUT_MILLIS);
+        _maxQueuedFrames = asIntOrDefault(config.get("maxQueuedFrames"), DEFAULT_MAX_QUEUED_FRAMES);
+        long ticketLifetimeMillis = asLongOrDefault(config.get("ticketLifetimeMillis"), DEFAULT_TICKET_LIFETIME_MILLIS);
+        _tickets = new ResumptionTickets(_crypto, ticketLifetimeMillis);
+        long ephemeralKeyLifetimeMillis = asLongOrDefault(config.get("ephemeralKeyLifetimeMillis"),
+                DEFAULT_EPHEMERAL_KEY_LIFETIME_MILLIS);
+        _ephemeralKeys = new EphemeralKeys(_crypto, ephemeralKeyLifetimeMillis);
+        _responder = new HandshakeResponder(_crypto, _tickets, _ephemeralKeys);
+    }
+
+    public void start() {
+        long period = Math.max(1, _idleTimeoutMillis / 4);
+        _expiry = _scheduler.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                expireIdleSessions();
+            }
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public void stop() {
+        if (_expiry != null) {
+            _expiry.cancel(false);
+        }
+        for (PendingHandshake pending : _handshakesById.values()) {
+            fail(pending, "shutting down");
+        }
+        _sessionsById.clear();
+        _sessionsByPeer.clear();
+    }
+
+    /**
+     * Seals {@code frame} for {@code destination} and hands it to {@code adaptor}, or queues it until a session
+     * with {@code destination} is established.
+     *
+     * @throws IOException if the handshake could not be sent or too many frames wait for it
+     */
+    public void send(NetworkAdaptor adaptor, InetSocketAddress destination, ByteBuffer frame, Delivery delivery)
+            throws IOException {
+        while (true) {
+            Session session = _sessionsByPeer.get(destination);
+            if (session != null) {
+                adaptor.send(destination, session.seal(_crypto, getListenPort(), frame), delivery);
+                return;
+            }
+            if (getOrStartHandshake(destination).enqueue(adaptor, frame, delivery)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Sends the message {@code header} followed by the content of {@code region}. With an established session the
+     * content is encrypted through pooled direct buffers while the adaptor writes the frame; otherwise it is read
+     * into memory and queued like any other frame.
+     */
+    public void send(NetworkAdaptor adaptor, InetSocketAddress destination, ByteBuffer header, FileRegion region,
+                     Delivery delivery) throws IOException {
+        Session session = _sessionsByPeer.get(destination);
+        if (session != null) {
+            adaptor.send(destination, session.seal(_crypto, getListenPort(), header, region, _streamBuffers),
+                    delivery);
+            return;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(header.remaining() + region.getLength());
+        frame.put(header);
+        region.read(0, frame);
+        frame.flip();
+        send(adaptor, destination, frame, delivery);
+    }
+
+    /**
+     * @return the decrypted frame for the dispatcher, or {@code null} if {@code frame} belonged to the session
+     *         layer itself or had to be dropped
+     */
+    public ByteBuffer receive(InetSocketAddress source, ByteBuffer frame) {
+        if (frame.remaining() < HEADER_SIZE) {
+            LOGGER.debug("dropping short frame from {}", source);
+            return null;
+        }
+        byte kind = SessionFrame.getKind(frame);
+        long sessionId = SessionFrame.getSessionId(frame);
+        InetSocketAddress peer = SessionFrame.getSenderAddress(source, frame);
+        switch (kind) {
+            case DATA:
+                return open(peer, sessionId, frame);
+            case HELLO:
+            case RESUME:
+                respond(peer, frame);
+                return null;
+            case ACCEPT:
+            case RESUME_ACCEPT:
+                complete(sessionId, frame);
+                return null;
+            case REJECT:
+                rejected(peer, sessionId);
+                return null;
+            default:
+                LOGGER.debug("dropping unencrypted frame from {}", source);
+                return null;
+        }
+    }
+
+    /**
+     * Reports the handshakes as totals, so that the share of resumed handshakes can be taken over any interval.
+     */
+    public void registerMetrics(MetricRegistry metrics) {
+        metrics.gauge("agora_network_sessions", "Established sessions", new Gauge() {
+            @Override
+            public long getValue() {
+                return _sessionsById.size();
+            }
+        });
+        registerTotal(metrics, "agora_network_session_handshakes", "Handshakes that established a session",
+                _fullHandshakes, "kind", "full");
+        registerTotal(metrics, "agora_network_session_handshakes", "Handshakes that established a session",
+                _resumedHandshakes, "kind", "resumed");
+        registerTotal(metrics, "agora_network_session_failed_handshakes", "Handshakes that were rejected or timed out",
+                _failedHandshakes);
+        registerTotal(metrics, "agora_network_session_rejected_frames",
+                "Frames dropped because they failed authentication, were replayed or tried to take over a session",
+                _rejectedFrames);
+    }
+
+    private static void registerTotal(MetricRegistry metrics, String name, String help, final AtomicLong total,
+                                      String... labels) {
+        metrics.gauge(name, help, new Gauge() {
+            @Override
+            public long getValue() {
+                return total.get();
+            }
+        }, labels);
+    }
+
+    public int getActiveSessions() {
+        return _sessionsById.size();
+    }
+
+    public long getFullHandshakes() {
+        return _fullHandshakes.get();
+    }
+
+    public long getResumedHandshakes() {
+        return _resumedHandshakes.get();
+    }
+
+    public long getFailedHandshakes() {
+        return _failedHandshakes.get();
+    }
+
+    /**
+     * @return frames dropped because they failed authentication, were replayed or tried to take over a session
+     */
+    public long getRejectedFrames() {
+        return _rejectedFrames.get();
+    }
+
+    /**
+     * @return the average time from sending a hello to an established session, measured on the initiator
+     */
+    public double getAverageHandshakeMillis() {
+        long handshakes = _fullHandshakes.get() + _resumedHandshakes.get();
+        return handshakes == 0 ? 0 : _handshakeNanos.get() / 1e6 / handshakes;
+    }
+
+    private ByteBuffer open(InetSocketAddress peer, long sessionId, ByteBuffer frame) {
+        Session session = _sessionsById.get(sessionId);
+        if (session == null) {
+            LOGGER.debug("unknown session {} from {}", sessionId, peer);
+            sendHandshakeFrame(peer, createReject(sessionId), Delivery.BEST_EFFORT);
+            return null;
+        }
+        ByteBuffer plaintext = session.open(_crypto, frame);
+        if (plaintext == null) {
+            _rejectedFrames.incrementAndGet();
+            LOGGER.debug("dropping forged or replayed frame from {}", peer);
+        }
+        return plaintext;
+    }
+
+    /**
+     * The initiator picks the session id, so a hello for an id that is already in use would take over that session;
+     * such hellos are dropped before and after the key agreement.
+     */
+    private void respond(InetSocketAddress peer, ByteBuffer hello) {
+        long sessionId = SessionFrame.getSessionId(hello);
+        if (_sessionsById.containsKey(sessionId) || _handshakesById.containsKey(sessionId)) {
+            dropTakeover(peer, sessionId);
+            return;
+        }
+        HandshakeResponder.Response response;
+        try {
+            response = _responder.respond(hello, peer, getListenPort());
+        } catch (IOException e) {
+            LOGGER.debug("invalid handshake from {}", peer, e);
+            return;
+        }
+        Session session = response.getSession();
+        if (session != null) {
+            if (_sessionsById.putIfAbsent(session.getId(), session) != null) {
+                dropTakeover(peer, sessionId);
+                return;
+            }
+            _sessionsByPeer.put(session.getPeerAddress(), session);
+        }
+        sendHandshakeFrame(peer, response.getReply(), Delivery.RELIABLE);
+    }
+
+    private void dropTakeover(InetSocketAddress peer, long sessionId) {
+        _rejectedFrames.incrementAndGet();
+        LOGGER.debug("dropping handshake from {} for session {} which is already in use", peer, sessionId);
+    }
+
+    private void complete(long sessionId, ByteBuffer reply) {
+        PendingHandshake pending = _handshakesById.get(sessionId);
+        if (pending == null) {
+            LOGGER.debug("dropping reply to unknown or expired handshake {}", sessionId);
+            return;
+        }
+        Handshake handshake = pending._handshake;
+        Session session;
+        try {
+            session = handshake.complete(reply);
+        } catch (IOException e) {
+            LOGGER.debug("handshake with {} failed", handshake.getPeerAddress(), e);
+            fail(pending, e.getMessage());
+            return;
+        }
+        if (_handshakesById.remove(sessionId, pending)) {
+            pending._timeout.cancel(false);
+            _handshakeNanos.addAndGet(System.nanoTime() - pending._startNanos);
+            (handshake.isResumption() ? _resumedHandshakes : _fullHandshakes).incrementAndGet();
+            _resumptionTickets.put(handshake.getPeerAddress(), session.getResumptionTicket());
+            register(session);
+            _handshakesByPeer.remove(handshake.getPeerAddress(), pending);
+            for (QueuedFrame queued : pending.finish()) {
+                try {
+                    queued._adaptor.send(handshake.getPeerAddress(),
+                            session.seal(_crypto, getListenPort(), queued._frame), queued._delivery);
+                } catch (IOException e) {
+                    LOGGER.debug("could not send queued frame to {}", handshake.getPeerAddress(), e);
+                }
+            }
+        }
+    }
+
+    private void rejected(InetSocketAddress peer, long sessionId) {
+        PendingHandshake pending = _handshakesById.remove(sessionId);
+        if (pending != null) {
+            InetSocketAddress peerAddress = pending._handshake.getPeerAddress();
+            pending._timeout.cancel(false);
+            _handshakesByPeer.remove(peerAddress, pending);
+            _resumptionTickets.remove(peerAddress);
+            LOGGER.debug("{} rejected our ticket, falling back to a full handshake", peerAddress);
+            for (QueuedFrame queued : pending.finish()) {
+                try {
+                    send(queued._adaptor, peerAddress, queued._frame, queued._delivery);
+                } catch (IOException e) {
+                    LOGGER.debug("could not send queued frame to {}", peerAddress, e);
+                }
+            }
+            return;
+        }
+        Session session = _sessionsById.get(sessionId);
+        if (session != null && peer.getAddress() != null
+                && peer.getAddress().equals(session.getPeerAddress().getAddress())) {
+            LOGGER.debug("{} forgot session {}", peer, sessionId);
+            unregister(session);
+        }
+    }
+
+    private PendingHandshake getOrStartHandshake(final InetSocketAddress destination) throws IOException {
+        PendingHandshake pending = _handshakesByPeer.get(destination);
+        if (pending != null) {
+            return pending;
+        }
+        ResumptionTicket ticket = _resumptionTickets.get(destination);
+        if (ticket != null && System.currentTimeMillis() - ticket.getReceivedMillis() > _tickets.getLifetimeMillis()) {
+            _resumptionTickets.remove(destination, ticket);
+            ticket = null;
+        }
+        Handshake handshake = ticket != null
+                ? Handshake.resume(_crypto, destination, getListenPort(), ticket)
+                : Handshake.full(_crypto, destination, getListenPort(), _ephemeralKeys);
+        final PendingHandshake created = new PendingHandshake(handshake);
+        pending = _handshakesByPeer.putIfAbsent(destination, created);
+        if (pending != null) {
+            return pending;
+        }
+        _handshakesById.put(handshake.getSessionId(), created);
+        scheduleTimeout(created);
+        try {
+            _handshakeAdaptor.send(destination, handshake.getHello(), Delivery.RELIABLE);
+        } catch (IOException e) {
+            fail(created, e.getMessage());
+            throw e;
+        }
+        return created;
+    }
+
+    /**
+     * Frames waiting longer than the handshake timeout are dropped, but the handshake itself stays open for a few
+     * more periods: on a busy peer a late reply is still cheaper than starting over.
+     */
+    private void scheduleTimeout(final PendingHandshake pending) {
+        pending._timeout = _scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                if (++pending._expirations >= HANDSHAKE_ATTEMPTS) {
+                    fail(pending, "timed out");
+                } else if (_handshakesById.get(pending._handshake.getSessionId()) == pending) {
+                    int dropped = pending.dropQueued();
+                    LOGGER.debug("handshake with {} is slow, dropping {} frames", pending._handshake.getPeerAddress(),
+                            dropped);
+                    scheduleTimeout(pending);
+                }
+            }
+        }, _handshakeTimeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void fail(PendingHandshake pending, String reason) {
+        Handshake handshake = pending._handshake;
+        if (!_handshakesById.remove(handshake.getSessionId(), pending)) {
+            return;
+        }
+        if (pending._timeout != null) {
+            pending._timeout.cancel(false);
+        }
+        _handshakesByPeer.remove(handshake.getPeerAddress(), pending);
+        _failedHandshakes.incrementAndGet();
+        List<QueuedFrame> dropped = pending.finish();
+        LOGGER.debug("handshake with {} failed ({}), dropping {} frames", handshake.getPeerAddress(), reason,
+                dropped.size());
+    }
+
+    private void register(Session session) {
+        _sessionsById.put(session.getId(), session);
+        _sessionsByPeer.put(session.getPeerAddress(), session);
+    }
+
+    private void unregister(Session session) {
+        _sessionsById.remove(session.getId(), session);
+        _sessionsByPeer.remove(session.getPeerAddress(), session);
+    }
+
+    private void expireIdleSessions() {
+        long now = System.currentTimeMillis();
+        for (Session session : _sessionsById.values()) {
+            if (now - session.getLastUsedMillis() > _idleTimeoutMillis) {
+                unregister(session);
+            }
+        }
+        for (Map.Entry<InetSocketAddress, ResumptionTicket> entry : _resumptionTickets.entrySet()) {
+            if (now - entry.getValue().getReceivedMillis() > _tickets.getLifetimeMillis()) {
+                _resumptionTickets.remove(entry.getKey(), entry.getValue());
+            }
+        }
+    }
+
+    private ByteBuffer createReject(long sessionId) {
+        ByteBuffer reject = SessionFrame.allocate(REJECT, sessionId, getListenPort(), 0);
+        reject.flip();
+        return reject;
+    }
+
+    private void sendHandshakeFrame(InetSocketAddress destination, ByteBuffer frame, Delivery delivery) {
+        try {
+            _handshakeAdaptor.send(destination, frame, delivery);
+        } catch (IOException e) {
+            LOGGER.debug("could not send handshake frame to {}", destination, e);
+        }
+    }
+
+    private int getListenPort() {
+        return _listenAdaptor.getLocalAddress().getPort();
+    }
+
+    private final class PendingHandshake {
+        private final Handshake _handshake;
+        private final long _startNanos = System.nanoTime();
+        private final List<QueuedFrame> _queue = new ArrayList<>();
+        private volatile ScheduledFuture<?> _timeout;
+        private int _expirations;
+        private boolean _finished;
+
+        private PendingHandshake(Handshake handshake) {
+            _handshake = handshake;
+        }
+
+        /**
+         * @return {@code false} if the handshake already finished and the caller has to look again
+         */
+        synchronized boolean enqueue(NetworkAdaptor adaptor, ByteBuffer frame, Delivery delivery) throws IOException {
+            if (_finished) {
+                return false;
+            }
+            if (_queue.size() >= _maxQueuedFrames) {
+                throw new IOException("too many frames waiting for handshake with " + _handshake.getPeerAddress());
+            }
+            ByteBuffer copy = ByteBuffer.allocate(frame.remaining());
+            copy.put(frame.duplicate());
+            copy.flip();
+            _queue.add(new QueuedFrame(adaptor, copy, delivery));
+            return true;
+        }
+
+        synchronized int dropQueued() {
+            int dropped = _queue.size();
+            _queue.clear();
+            return dropped;
+        }
+
+        synchronized List<QueuedFrame> finish() {
+            _finished = true;
+            List<QueuedFrame> queued = new ArrayList<>(_queue);
+            _queue.clear();
+            return queued;
+        }
+    }
+
+    private static final class QueuedFrame {
+        private final NetworkAdaptor _adaptor;
+        private final ByteBuffer _frame;
+        private final Delivery _delivery;
+
+        private QueuedFrame(NetworkAdaptor adaptor, ByteBuffer frame, Delivery delivery) {
+            _adaptor = adaptor;
+            _frame = frame;
+            _delivery = delivery;
+        }
+    }
+}
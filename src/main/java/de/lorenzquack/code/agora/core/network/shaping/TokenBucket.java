@@ -0,0 +1,94 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.shaping;
+
+
+/**
+ * Admits {@code bytesPerSecond} on average with bursts of up to {@code burstBytes}. A frame larger than the
+ * remaining tokens is still admitted as long as the bucket is not in debt, which drives the bucket negative until
+ * the rate has paid for it; so frames of any size pass without the bucket having to hold them.
+ * Not thread safe.
+ */
+final class TokenBucket {
+    private static final double NANOS_PER_SECOND = 1e9;
+
+    private long _bytesPerSecond;
+    private long _burstBytes;
+    private double _tokens;
+    private long _lastRefillNanos;
+
+    /**
+     * @param bytesPerSecond 0 for no limit
+     */
+    TokenBucket(long bytesPerSecond, long burstBytes, long nowNanos) {
+        _lastRefillNanos = nowNanos;
+        setRate(bytesPerSecond, burstBytes, nowNanos);
+    }
+
+    void setRate(long bytesPerSecond, long burstBytes, long nowNanos) {
+        refill(nowNanos);
+        _bytesPerSecond = bytesPerSecond;
+        _burstBytes = burstBytes;
+        _tokens = Math.min(_tokens, burstBytes);
+        if (bytesPerSecond == 0) {
+            _tokens = 0;
+        }
+    }
+
+    long getBytesPerSecond() {
+        return _bytesPerSecond;
+    }
+
+    boolean isLimited() {
+        return _bytesPerSecond > 0;
+    }
+
+    /**
+     * @return how long until the bucket admits the next frame, 0 if it does now
+     */
+    long getDelayNanos(long nowNanos) {
+        if (!isLimited()) {
+            return 0;
+        }
+        refill(nowNanos);
+        return _tokens >= 0 ? 0 : (long) Math.ceil(-_tokens * NANOS_PER_SECOND / _bytesPerSecond);
+    }
+
+    /**
+     * @return whether the bucket holds a whole burst again, so that dropping it forgets no debt
+     */
+    boolean isFull(long nowNanos) {
+        refill(nowNanos);
+        return _tokens >= _burstBytes;
+    }
+
+    void consume(int bytes, long nowNanos) {
+        if (isLimited()) {
+            refill(nowNanos);
+            _tokens -= bytes;
+        }
+    }
+
+    private void refill(long nowNanos) {
+        if (isLimited()) {
+            _tokens = Math.min(_burstBytes, _tokens + (nowNanos - _lastRefillNanos) * _bytesPerSecond / NANOS_PER_SECOND);
+        }
+        _lastRefillNanos = nowNanos;
+    }
+}
@@ -0,0 +1,419 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.shaping;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Ticker;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+
+
+/**
+ * Shapes the outbound traffic of the node. Every frame belongs to a flow, e.g. {@code control} or {@code files},
+ * and is admitted by token buckets at three levels: the whole node, its destination peer and its flow. Frames that
+ * have to wait are queued per flow and sent in weighted fair queueing order: each frame gets the virtual finish
+ * time {@code max(virtual time, finish of the flow's previous frame) + size / weight} and the frame with the
+ * smallest finish time among those the buckets admit goes first. So a flow with weight 8 gets eight times the
+ * bandwidth of a flow with weight 1 while both are busy, and an idle flow's share goes to the others.
+ * Without any limit frames are sent right away on the caller's thread; otherwise a sender thread drains the queues.
+ * Within a flow frames keep their order, so a frame held back by its peer's limit also holds back the frames
+ * behind it.
+ */
+public class TrafficShaper {
+    public static final String GLOBAL = "global";
+    public static final String PEER = "peer";
+    public static final String FLOW_PREFIX = "flow/";
+    private static final Logger LOGGER = LoggerFactory.getLogger(TrafficShaper.class);
+    private static final long DEFAULT_BURST_MILLIS = 100;
+    private static final long MIN_BURST_BYTES = 16 * 1024;
+    private static final long DEFAULT_MAX_QUEUED_BYTES = 16 * 1024 * 1024;
+    private static final int DEFAULT_WEIGHT = 1;
+    static final int MAX_PEER_BUCKETS = 4096;
+
+    private final Ticker _ticker;
+    private final ReentrantLock _lock = new ReentrantLock();
+    private final Condition _changed = _lock.newCondition();
+    private final Map<String, Flow> _flows = new LinkedHashMap<>();
+    private final PeerBuckets _peerBuckets = new PeerBuckets();
+    private TokenBucket _global;
+    private long _peerBytesPerSecond;
+    private long _burstMillis = DEFAULT_BURST_MILLIS;
+    private long _maxQueuedBytes = DEFAULT_MAX_QUEUED_BYTES;
+    private long _queuedBytes;
+    private double _virtualTime;
+    private boolean _sending;
+    private boolean _running;
+    private Thread _sender;
+
+    public TrafficShaper() {
+        this(Ticker.systemTicker());
+    }
+
+    TrafficShaper(Ticker ticker) {
+        _ticker = ticker;
+        _global = new TokenBucket(0, 0, ticker.read());
+    }
+
+    /**
+     * Reads {@code globalBytesPerSecond}, {@code peerBytesPerSecond}, {@code burstMillis}, {@code maxQueuedBytes}
+     * and {@code flows}, which maps flow names to {@code {"weight": .., "bytesPerSecond": ..}}. 0 means no limit.
+     */
+    public void configure(JSONConfig config) {
+        _lock.lock();
+        try {
+            _burstMillis = asLongOrDefault(config.get("burstMillis"), DEFAULT_BURST_MILLIS);
+            _maxQueuedBytes = asLongOrDefault(config.get("maxQueuedBytes"), DEFAULT_MAX_QUEUED_BYTES);
+            setLimit(GLOBAL, asLongOrDefault(config.get("globalBytesPerSecond"), 0));
+            setLimit(PEER, asLongOrDefault(config.get("peerBytesPerSecond"), 0));
+            JSONConfig flows = config.get("flows");
+            if (flows.exists()) {
+                for (String name : flows.getKeys()) {
+                    JSONConfig flow = flows.get(name);
+                    getFlow(name)._weight = Math.max(1, asIntOrDefault(flow.get("weight"), DEFAULT_WEIGHT));
+                    setLimit(FLOW_PREFIX + name, asLongOrDefault(flow.get("bytesPerSecond"), 0));
+                }
+            }
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    public void start() {
+        _lock.lock();
+        try {
+            _running = true;
+            _sender = new Thread("agora-shaper") {
+                @Override
+                public void run() {
+                    drain();
+                }
+            };
+            _sender.setDaemon(true);
+            _sender.start();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the frames that are still queued.
+     */
+    public void stop() {
+        _lock.lock();
+        try {
+            _running = false;
+            for (Flow flow : _flows.values()) {
+                flow._queue.clear();
+            }
+            _queuedBytes = 0;
+            _changed.signalAll();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Sends a frame of {@code size} bytes by running {@code transmit} once the limits admit it.
+     *
+     * @return {@code false} if the frame was dropped because too much is queued already
+     */
+    public boolean send(InetSocketAddress destination, String flowName, int size, Runnable transmit) {
+        _lock.lock();
+        try {
+            Flow flow = getFlow(flowName);
+            long now = _ticker.read();
+            if (isLimited() || _queuedBytes > 0) {
+                if (_queuedBytes == 0 && !_sending && _running && isAdmitted(flow, destination, now)) {
+                    // nothing is waiting, so the frame can go out on this thread
+                    consume(flow, destination, size, now);
+                    _virtualTime = Math.max(_virtualTime, flow._lastFinish);
+                    flow._lastFinish = _virtualTime + (double) size / flow._weight;
+                } else {
+                    return enqueue(flow, destination, size, transmit);
+                }
+            }
+        } finally {
+            _lock.unlock();
+        }
+        transmit.run();
+        return true;
+    }
+
+    private boolean enqueue(Flow flow, InetSocketAddress destination, int size, Runnable transmit) {
+        if (_queuedBytes > 0 && _queuedBytes + size > _maxQueuedBytes) {
+            // under overload this runs for every frame while the lock is held
+            if (LOGGER.isDebugEnabled()) {
+                LOGGER.debug("dropping frame of {} bytes to {}, {} bytes are queued", size, destination, _queuedBytes);
+            }
+            return false;
+        }
+        double start = Math.max(_virtualTime, flow._lastFinish);
+        flow._lastFinish = start + (double) size / flow._weight;
+        flow._queue.add(new Frame(destination, size, flow._lastFinish, transmit));
+        _queuedBytes += size;
+        _changed.signal();
+        return true;
+    }
+
+    private boolean isLimited() {
+        if (_global.isLimited() || _peerBytesPerSecond > 0) {
+            return true;
+        }
+        for (Flow flow : _flows.values()) {
+            if (flow._bucket.isLimited()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the limits in bytes per second by scope: {@link #GLOBAL}, {@link #PEER} and {@link #FLOW_PREFIX}
+     *         followed by the flow name
+     */
+    public Map<String, Long> getLimits() {
+        _lock.lock();
+        try {
+            Map<String, Long> limits = new LinkedHashMap<>();
+            limits.put(GLOBAL, _global.getBytesPerSecond());
+            limits.put(PEER, _peerBytesPerSecond);
+            for (Flow flow : _flows.values()) {
+                limits.put(FLOW_PREFIX + flow._name, flow._bucket.getBytesPerSecond());
+            }
+            return limits;
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * @param scope as in {@link #getLimits()}
+     * @param bytesPerSecond 0 removes the limit
+     */
+    public void setLimit(String scope, long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("negative limit " + bytesPerSecond);
+        }
+        _lock.lock();
+        try {
+            long now = _ticker.read();
+            if (GLOBAL.equals(scope)) {
+                _global.setRate(bytesPerSecond, getBurstBytes(bytesPerSecond), now);
+            } else if (PEER.equals(scope)) {
+                _peerBytesPerSecond = bytesPerSecond;
+                _peerBuckets.clear();
+            } else if (scope.startsWith(FLOW_PREFIX) && scope.length() > FLOW_PREFIX.length()) {
+                getFlow(scope.substring(FLOW_PREFIX.length()))._bucket.setRate(bytesPerSecond,
+                        getBurstBytes(bytesPerSecond), now);
+            } else {
+                throw new IllegalArgumentException("unknown bandwidth scope " + scope);
+            }
+            LOGGER.info("bandwidth limit of {} set to {} bytes/s", scope, bytesPerSecond);
+            _changed.signal();
+        } finally {
+            _lock.unlock();
+        }
+    }
+
+    /**
+     * Runs on the sender thread until {@link #stop()}.
+     */
+    private void drain() {
+        while (true) {
+            Frame next;
+            _lock.lock();
+            try {
+                _sending = false;
+                next = poll();
+                while (next == null) {
+                    if (!_running) {
+                        return;
+                    }
+                    long waitNanos = getWaitNanos();
+                    if (waitNanos == Long.MAX_VALUE) {
+                        _changed.await();
+                    } else {
+                        _changed.awaitNanos(waitNanos);
+                    }
+                    next = poll();
+                }
+                _sending = true;
+            } catch (InterruptedException e) {
+                return;
+            } finally {
+                _lock.unlock();
+            }
+            try {
+                next._transmit.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("failed to send frame to {}", next._destination, e);
+            }
+        }
+    }
+
+    /**
+     * @return the admitted frame with the smallest finish time, removed from its queue, or {@code null}
+     */
+    private Frame poll() {
+        long now = _ticker.read();
+        if (_queuedBytes == 0 || _global.getDelayNanos(now) > 0) {
+            return null;
+        }
+        Flow chosen = null;
+        for (Flow flow : _flows.values()) {
+            Frame head = flow._queue.peek();
+            if (head != null && (chosen == null || head._finish < chosen._queue.peek()._finish)
+                    && isAdmitted(flow, head._destination, now)) {
+                chosen = flow;
+            }
+        }
+        if (chosen == null) {
+            return null;
+        }
+        Frame frame = chosen._queue.poll();
+        _queuedBytes -= frame._size;
+        _virtualTime = Math.max(_virtualTime, frame._finish);
+        consume(chosen, frame._destination, frame._size, now);
+        return frame;
+    }
+
+    /**
+     * @return how long until some queued frame may be admitted, {@code Long.MAX_VALUE} if nothing is queued
+     */
+    private long getWaitNanos() {
+        if (_queuedBytes == 0) {
+            return Long.MAX_VALUE;
+        }
+        long now = _ticker.read();
+        long globalDelay = _global.getDelayNanos(now);
+        if (globalDelay > 0) {
+            return globalDelay;
+        }
+        long wait = Long.MAX_VALUE;
+        for (Flow flow : _flows.values()) {
+            Frame head = flow._queue.peek();
+            if (head != null) {
+                long delay = flow._bucket.getDelayNanos(now);
+                TokenBucket peer = _peerBuckets.get(head._destination);
+                if (peer != null) {
+                    delay = Math.max(delay, peer.getDelayNanos(now));
+                }
+                wait = Math.min(wait, delay);
+            }
+        }
+        return Math.max(wait, TimeUnit.MICROSECONDS.toNanos(100));
+    }
+
+    private boolean isAdmitted(Flow flow, InetSocketAddress destination, long now) {
+        if (_global.getDelayNanos(now) > 0 || flow._bucket.getDelayNanos(now) > 0) {
+            return false;
+        }
+        TokenBucket peer = _peerBuckets.get(destination);
+        return peer == null || peer.getDelayNanos(now) == 0;
+    }
+
+    private void consume(Flow flow, InetSocketAddress destination, int size, long now) {
+        _global.consume(size, now);
+        flow._bucket.consume(size, now);
+        if (_peerBytesPerSecond > 0) {
+            TokenBucket peer = _peerBuckets.get(destination);
+            if (peer == null) {
+                peer = new TokenBucket(_peerBytesPerSecond, getBurstBytes(_peerBytesPerSecond), now);
+                _peerBuckets.put(destination, peer);
+                _peerBuckets.evictRefilled(now);
+            }
+            peer.consume(size, now);
+        }
+    }
+
+    private Flow getFlow(String name) {
+        Flow flow = _flows.get(name);
+        if (flow == null) {
+            flow = new Flow(name, new TokenBucket(0, 0, _ticker.read()));
+            _flows.put(name, flow);
+        }
+        return flow;
+    }
+
+    private long getBurstBytes(long bytesPerSecond) {
+        return Math.max(MIN_BURST_BYTES, bytesPerSecond * _burstMillis / 1000);
+    }
+
+    /**
+     * The token buckets of the peers, least recently used first. Beyond {@link #MAX_PEER_BUCKETS} only buckets that
+     * have refilled completely are dropped: a new bucket starts empty, so dropping them never lets a peer send more,
+     * while dropping a bucket that is still paying off a burst would let a busy peer start over.
+     */
+    private static final class PeerBuckets extends LinkedHashMap<InetSocketAddress, TokenBucket> {
+        private static final long serialVersionUID = 1L;
+
+        private PeerBuckets() {
+            super(16, 0.75f, true);
+        }
+
+        private void evictRefilled(long now) {
+            Iterator<TokenBucket> buckets = values().iterator();
+            while (size() > MAX_PEER_BUCKETS && buckets.hasNext()) {
+                if (buckets.next().isFull(now)) {
+                    buckets.remove();
+                }
+            }
+        }
+    }
+
+    private static final class Flow {
+        private final String _name;
+        private final TokenBucket _bucket;
+        private final ArrayDeque<Frame> _queue = new ArrayDeque<>();
+        private int _weight = DEFAULT_WEIGHT;
+        private double _lastFinish;
+
+        private Flow(String name, TokenBucket bucket) {
+            _name = name;
+            _bucket = bucket;
+        }
+    }
+
+    private static final class Frame {
+        private final InetSocketAddress _destination;
+        private final int _size;
+        private final double _finish;
+        private final Runnable _transmit;
+
+        private Frame(InetSocketAddress destination, int size, double finish, Runnable transmit) {
+            _destination = destination;
+            _size = size;
+            _finish = finish;
+            _transmit = transmit;
+        }
+    }
+}
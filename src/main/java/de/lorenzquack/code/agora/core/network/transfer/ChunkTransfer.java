@@ -0,0 +1,252 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.BitSet;
+import java.util.List;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.ChunkId;
+import de.lorenzquack.code.agora.core.api.FileManifest;
+import de.lorenzquack.code.agora.core.api.FilePort;
+import de.lorenzquack.code.agora.core.api.FileRegion;
+import de.lorenzquack.code.agora.core.api.MerkleTree;
+import de.lorenzquack.code.agora.core.network.Message;
+import de.lorenzquack.code.agora.core.network.MessageDispatcher;
+import de.lorenzquack.code.agora.core.network.MessageHandler;
+import de.lorenzquack.code.agora.core.network.MessageType;
+
+
+/**
+ * Serves the chunks of the local {@link FilePort} to other nodes and fetches chunks from them.
+ * {@code CHUNK_REQUEST} carries {@code [chunk id:32]}; the answer {@code CHUNK} carries
+ * {@code [status:1][chunk id:32][data]}. Chunk data is passed to the dispatcher as a {@link FileRegion} of the
+ * pack file, so it reaches the socket without being copied through the heap.
+ * {@code CHUNK_QUERY} {@code [manifest id:32]} asks which chunks of a manifest a node has; the answer
+ * {@code CHUNK_AVAILABILITY} is a bitmap with bit {@code i} (least significant first) set for the manifest's
+ * {@code i}-th chunk, and empty if the node does not know the manifest.
+ * {@code MERKLE_NODES} serves the nodes of a manifest's {@link MerkleTree} for {@link ManifestSync}.
+ */
+public class ChunkTransfer {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ChunkTransfer.class);
+    private static final byte FOUND = 0;
+    private static final byte MISSING = 1;
+    private static final int STATUS_SIZE = 1;
+
+    private final MessageDispatcher _dispatcher;
+    private volatile FilePort _filePort;
+
+    public ChunkTransfer(MessageDispatcher dispatcher) {
+        _dispatcher = dispatcher;
+    }
+
+    public void setFilePort(FilePort filePort) {
+        _filePort = filePort;
+    }
+
+    public void register() {
+        _dispatcher.registerHandler(MessageType.CHUNK_REQUEST, new MessageHandler() {
+            @Override
+            public void handle(Message message) {
+                serve(message);
+            }
+        });
+        _dispatcher.registerHandler(MessageType.CHUNK_QUERY, new MessageHandler() {
+            @Override
+            public void handle(Message message) {
+                answerQuery(message);
+            }
+        });
+        _dispatcher.registerHandler(MessageType.MERKLE_NODES, new MessageHandler() {
+            @Override
+            public void handle(Message message) {
+                serveMerkleNodes(message);
+            }
+        });
+    }
+
+    /**
+     * @return a future for the chunk's content that fails with an {@link IOException} if {@code peer} does not have
+     *         the chunk or sends data that does not match {@code id}
+     */
+    public ListenableFuture<ByteBuffer> fetch(final InetSocketAddress peer, final ChunkId id) {
+        ByteBuffer body = ByteBuffer.allocate(ChunkId.SIZE_IN_BYTES);
+        id.writeTo(body);
+        body.flip();
+        ListenableFuture<Message> response = _dispatcher.request(peer, MessageType.CHUNK_REQUEST, body);
+        return Futures.transform(response, new AsyncFunction<Message, ByteBuffer>() {
+            @Override
+            public ListenableFuture<ByteBuffer> apply(Message message) throws IOException {
+                ByteBuffer chunkBody = message.getBody();
+                if (chunkBody.remaining() < STATUS_SIZE + ChunkId.SIZE_IN_BYTES) {
+                    throw new IOException("malformed chunk response from " + peer);
+                }
+                byte status = chunkBody.get();
+                if (!id.equals(ChunkId.readFrom(chunkBody))) {
+                    throw new IOException(peer + " answered with a different chunk");
+                }
+                if (status != FOUND) {
+                    throw new NoSuchFileException(id.toHex(), null, peer + " does not have the chunk");
+                }
+                ByteBuffer data = chunkBody.slice();
+                if (!id.equals(ChunkId.of(data.duplicate()))) {
+                    throw new IOException("chunk " + id + " from " + peer + " is corrupt");
+                }
+                return Futures.immediateFuture(data);
+            }
+        });
+    }
+
+    public ListenableFuture<BitSet> query(InetSocketAddress peer, ChunkId manifestId) {
+        ByteBuffer body = ByteBuffer.allocate(ChunkId.SIZE_IN_BYTES);
+        manifestId.writeTo(body);
+        body.flip();
+        ListenableFuture<Message> response = _dispatcher.request(peer, MessageType.CHUNK_QUERY, body);
+        return Futures.transform(response, new Function<Message, BitSet>() {
+            @Override
+            public BitSet apply(Message message) {
+                return BitSet.valueOf(message.getBody());
+            }
+        });
+    }
+
+    /**
+     * @see ManifestSync
+     */
+    public ListenableFuture<FileManifest> syncManifest(InetSocketAddress peer, ChunkId manifestId,
+                                                       ChunkId baseManifestId) {
+        FilePort filePort = _filePort;
+        if (filePort == null) {
+            return Futures.immediateFailedFuture(new IOException("no file port to read " + baseManifestId + " from"));
+        }
+        try {
+            FileManifest base = filePort.getManifest(baseManifestId);
+            MerkleTree baseTree = filePort.getMerkleTree(baseManifestId);
+            return new ManifestSync(_dispatcher, peer, manifestId, base, baseTree).start();
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(e);
+        }
+    }
+
+    private void serveMerkleNodes(Message request) {
+        ByteBuffer body = request.getBody();
+        if (body.remaining() < ManifestSync.REQUEST_SIZE) {
+            return;
+        }
+        ChunkId manifestId = ChunkId.readFrom(body);
+        int level = body.get() & 0xff;
+        int first = body.getInt();
+        int count = Math.min(body.getInt(), ManifestSync.MAX_NODES_PER_REQUEST);
+        FilePort filePort = _filePort;
+        if (filePort == null || !filePort.hasChunk(manifestId)) {
+            replyMerkleMissing(request);
+            return;
+        }
+        try {
+            MerkleTree tree = filePort.getMerkleTree(manifestId);
+            if (count > 0 && (level >= tree.getLevelCount() || first < 0 || count < 0
+                    || first > tree.getLevelSize(level) - count)) {
+                LOGGER.debug("{} asked for invalid merkle nodes {}+{} on level {}", request.getSender(), first, count,
+                             level);
+                replyMerkleMissing(request);
+                return;
+            }
+            count = Math.max(count, 0);
+            int entrySize = level == 0 ? FileManifest.ENTRY_SIZE : MerkleTree.HASH_SIZE;
+            ByteBuffer response = ByteBuffer.allocate(ManifestSync.RESPONSE_HEADER_SIZE + count * entrySize);
+            response.put(ManifestSync.FOUND);
+            response.putInt(tree.getLeafCount());
+            if (level == 0) {
+                List<FileManifest.Chunk> chunks = filePort.getManifest(manifestId).getChunks();
+                for (FileManifest.Chunk chunk : chunks.subList(first, first + count)) {
+                    chunk.getId().writeTo(response);
+                    response.putInt(chunk.getLength());
+                }
+            } else {
+                tree.writeHashes(level, first, count, response);
+            }
+            response.flip();
+            _dispatcher.reply(request, MessageType.MERKLE_HASHES, response);
+        } catch (IOException e) {
+            LOGGER.debug("{} asked for merkle nodes of unreadable manifest {}", request.getSender(), manifestId, e);
+            replyMerkleMissing(request);
+        }
+    }
+
+    private void replyMerkleMissing(Message request) {
+        ByteBuffer response = ByteBuffer.allocate(ManifestSync.RESPONSE_HEADER_SIZE);
+        response.put(ManifestSync.MISSING);
+        response.putInt(0);
+        response.flip();
+        _dispatcher.reply(request, MessageType.MERKLE_HASHES, response);
+    }
+
+    private void answerQuery(Message request) {
+        ChunkId manifestId = ChunkId.readFrom(request.getBody());
+        BitSet available = new BitSet();
+        FilePort filePort = _filePort;
+        if (filePort != null && filePort.hasChunk(manifestId)) {
+            try {
+                List<FileManifest.Chunk> chunks = filePort.getManifest(manifestId).getChunks();
+                for (int i = 0; i < chunks.size(); i++) {
+                    if (filePort.hasChunk(chunks.get(i).getId())) {
+                        available.set(i);
+                    }
+                }
+            } catch (IOException e) {
+                LOGGER.debug("{} asked for chunks of unreadable manifest {}", request.getSender(), manifestId, e);
+            }
+        }
+        _dispatcher.reply(request, MessageType.CHUNK_AVAILABILITY, ByteBuffer.wrap(available.toByteArray()));
+    }
+
+    private void serve(Message request) {
+        ChunkId id = ChunkId.readFrom(request.getBody());
+        ByteBuffer prefix = ByteBuffer.allocate(STATUS_SIZE + ChunkId.SIZE_IN_BYTES);
+        FileRegion region = null;
+        FilePort filePort = _filePort;
+        if (filePort != null) {
+            try {
+                region = filePort.getChunkRegion(id);
+            } catch (NoSuchFileException e) {
+                LOGGER.debug("{} requested unknown chunk {}", request.getSender(), id);
+            } catch (IOException e) {
+                LOGGER.warn("could not locate chunk {}", id, e);
+            }
+        }
+        prefix.put(region != null ? FOUND : MISSING);
+        id.writeTo(prefix);
+        prefix.flip();
+        if (region != null) {
+            _dispatcher.reply(request, MessageType.CHUNK, prefix, region);
+        } else {
+            _dispatcher.reply(request, MessageType.CHUNK, prefix);
+        }
+    }
+}
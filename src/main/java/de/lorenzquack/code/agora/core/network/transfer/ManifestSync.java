@@ -0,0 +1,210 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.transfer;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.NoSuchFileException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.google.common.util.concurrent.AsyncFunction;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+
+import de.lorenzquack.code.agora.core.api.ChunkId;
+import de.lorenzquack.code.agora.core.api.FileManifest;
+import de.lorenzquack.code.agora.core.api.MerkleTree;
+import de.lorenzquack.code.agora.core.network.Message;
+import de.lorenzquack.code.agora.core.network.MessageDispatcher;
+import de.lorenzquack.code.agora.core.network.MessageType;
+
+
+/**
+ * Rebuilds a remote manifest from a local base version by walking the remote {@link MerkleTree} from the top down
+ * and only asking for the children of nodes whose hash differs from the base tree's. All nodes of a level are
+ * requested at once, in contiguous runs. At the leaves the remote sends the manifest entries of the differing
+ * chunks; all other entries are taken from the base.
+ * {@code MERKLE_NODES} carries {@code [manifest id:32][level:1][first:4][count:4]}; the answer
+ * {@code MERKLE_HASHES} carries {@code [status:1][leaf count:4]} followed by {@code count} hashes, or manifest
+ * entries {@code [chunk id:32][length:4]} on level 0.
+ */
+final class ManifestSync {
+    static final byte FOUND = 0;
+    static final byte MISSING = 1;
+    static final int REQUEST_SIZE = ChunkId.SIZE_IN_BYTES + 1 + 4 + 4;
+    static final int RESPONSE_HEADER_SIZE = 1 + 4;
+    static final int MAX_NODES_PER_REQUEST = 4096;
+    /** the walk starts at the lowest level with at most this many nodes, saving round trips near the root */
+    private static final int START_LEVEL_SIZE = 64;
+
+    private final MessageDispatcher _dispatcher;
+    private final InetSocketAddress _peer;
+    private final ChunkId _manifestId;
+    private final FileManifest _base;
+    private final MerkleTree _baseTree;
+    private FileManifest.Chunk[] _entries;
+
+    ManifestSync(MessageDispatcher dispatcher, InetSocketAddress peer, ChunkId manifestId, FileManifest base,
+                 MerkleTree baseTree) {
+        _dispatcher = dispatcher;
+        _peer = peer;
+        _manifestId = manifestId;
+        _base = base;
+        _baseTree = baseTree;
+    }
+
+    ListenableFuture<FileManifest> start() {
+        // asking for no nodes just returns the leaf count
+        return Futures.transform(request(0, 0, 0), new AsyncFunction<ByteBuffer, FileManifest>() {
+            @Override
+            public ListenableFuture<FileManifest> apply(ByteBuffer response) throws IOException {
+                int leafCount = response.getInt();
+                if (leafCount < 0) {
+                    throw new IOException(_peer + " sent invalid leaf count " + leafCount);
+                }
+                _entries = new FileManifest.Chunk[leafCount];
+                if (leafCount == 0) {
+                    return Futures.immediateFuture(finish());
+                }
+                int level = MerkleTree.getLevelCount(leafCount) - 1;
+                while (level > 0 && MerkleTree.getLevelSize(leafCount, level - 1) <= START_LEVEL_SIZE) {
+                    level--;
+                }
+                List<Integer> nodes = new ArrayList<>();
+                for (int i = 0; i < MerkleTree.getLevelSize(leafCount, level); i++) {
+                    nodes.add(i);
+                }
+                return descend(level, nodes);
+            }
+        });
+    }
+
+    /**
+     * Requests {@code nodes} (ascending) of {@code level} and continues with the children of those that differ.
+     */
+    private ListenableFuture<FileManifest> descend(final int level, List<Integer> nodes) {
+        final List<Integer> firsts = new ArrayList<>();
+        List<ListenableFuture<ByteBuffer>> responses = new ArrayList<>();
+        int i = 0;
+        while (i < nodes.size()) {
+            int first = nodes.get(i);
+            int count = 1;
+            while (i + count < nodes.size() && nodes.get(i + count) == first + count
+                    && count < MAX_NODES_PER_REQUEST) {
+                count++;
+            }
+            firsts.add(first);
+            responses.add(request(level, first, count));
+            i += count;
+        }
+        return Futures.transform(Futures.allAsList(responses), new AsyncFunction<List<ByteBuffer>, FileManifest>() {
+            @Override
+            public ListenableFuture<FileManifest> apply(List<ByteBuffer> bodies) throws IOException {
+                List<Integer> children = new ArrayList<>();
+                for (int run = 0; run < bodies.size(); run++) {
+                    ByteBuffer body = bodies.get(run);
+                    if (body.getInt() != _entries.length) {
+                        throw new IOException(_peer + " changed the leaf count of " + _manifestId);
+                    }
+                    if (level == 0) {
+                        readEntries(firsts.get(run), body);
+                    } else {
+                        collectDifferingChildren(level, firsts.get(run), body, children);
+                    }
+                }
+                if (level == 0 || children.isEmpty()) {
+                    return Futures.immediateFuture(finish());
+                }
+                Collections.sort(children);
+                return descend(level - 1, children);
+            }
+        });
+    }
+
+    private void collectDifferingChildren(int level, int first, ByteBuffer hashes, List<Integer> children)
+            throws IOException {
+        int childLevelSize = MerkleTree.getLevelSize(_entries.length, level - 1);
+        for (int index = first; hashes.hasRemaining(); index++) {
+            if (hashes.remaining() < MerkleTree.HASH_SIZE) {
+                throw new IOException("truncated merkle hashes from " + _peer);
+            }
+            if (!_baseTree.hasHash(level, index, hashes)) {
+                for (int child = 2 * index; child <= 2 * index + 1 && child < childLevelSize; child++) {
+                    children.add(child);
+                }
+            }
+            hashes.position(hashes.position() + MerkleTree.HASH_SIZE);
+        }
+    }
+
+    private void readEntries(int first, ByteBuffer entries) throws IOException {
+        for (int index = first; entries.hasRemaining(); index++) {
+            if (entries.remaining() < FileManifest.ENTRY_SIZE || index >= _entries.length) {
+                throw new IOException("malformed manifest entries from " + _peer);
+            }
+            ChunkId id = ChunkId.readFrom(entries);
+            _entries[index] = new FileManifest.Chunk(id, 0, entries.getInt());
+        }
+    }
+
+    /**
+     * Fills the unchanged entries from the base, recomputes the offsets and checks the result against the id.
+     */
+    private FileManifest finish() throws IOException {
+        List<FileManifest.Chunk> baseChunks = _base.getChunks();
+        List<FileManifest.Chunk> chunks = new ArrayList<>(_entries.length);
+        long offset = 0;
+        for (int index = 0; index < _entries.length; index++) {
+            FileManifest.Chunk entry = _entries[index] != null ? _entries[index] : baseChunks.get(index);
+            chunks.add(new FileManifest.Chunk(entry.getId(), offset, entry.getLength()));
+            offset += entry.getLength();
+        }
+        FileManifest manifest = new FileManifest(chunks);
+        if (!_manifestId.equals(ChunkId.of(manifest.encode()))) {
+            throw new IOException("manifest synced from " + _peer + " does not match " + _manifestId);
+        }
+        return manifest;
+    }
+
+    private ListenableFuture<ByteBuffer> request(int level, int first, int count) {
+        ByteBuffer body = ByteBuffer.allocate(REQUEST_SIZE);
+        _manifestId.writeTo(body);
+        body.put((byte) level);
+        body.putInt(first);
+        body.putInt(count);
+        body.flip();
+        ListenableFuture<Message> response = _dispatcher.request(_peer, MessageType.MERKLE_NODES, body);
+        return Futures.transform(response, new AsyncFunction<Message, ByteBuffer>() {
+            @Override
+            public ListenableFuture<ByteBuffer> apply(Message message) throws IOException {
+                ByteBuffer body = message.getBody();
+                if (body.remaining() < RESPONSE_HEADER_SIZE) {
+                    throw new IOException("malformed merkle response from " + _peer);
+                }
+                if (body.get() != FOUND) {
+                    throw new NoSuchFileException(_manifestId.toHex(), null, _peer + " does not have the manifest");
+                }
+                return Futures.immediateFuture(body.slice());
+            }
+        });
+    }
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.plugins;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Proxy;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.PluginAdaptor;
+import de.lorenzquack.code.agora.core.api.PluginPort;
+import de.lorenzquack.code.agora.core.api.exceptions.AgoraException;
+
+
+/**
+ * A plugin found in the plugins directory. Its class loader is created, its main class loaded and its life cycle
+ * started only on {@link #activate}; until then it costs no more than its manifest. Others get a proxy of the adaptor
+ * that runs every call in the plugin's {@link PluginSandbox}.
+ */
+class InstalledPlugin {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InstalledPlugin.class);
+
+    private final PluginManifest _manifest;
+    private final JSONConfig _config;
+    private final PluginSandbox _sandbox;
+    private volatile PluginAdaptor _adaptor;
+    private volatile PluginAdaptor _proxy;
+    private PluginClassLoader _classLoader;
+    private AgoraException _failure;
+
+    InstalledPlugin(PluginManifest manifest, JSONConfig config, PluginSandbox sandbox) {
+        _manifest = manifest;
+        _config = config;
+        _sandbox = sandbox;
+    }
+
+    PluginManifest getManifest() {
+        return _manifest;
+    }
+
+    PluginSandbox getSandbox() {
+        return _sandbox;
+    }
+
+    boolean isActive() {
+        return _adaptor != null;
+    }
+
+    /**
+     * @return the proxy of the active plugin, or {@code null} if it is not active
+     */
+    PluginAdaptor getProxy() {
+        return _proxy;
+    }
+
+    /**
+     * Loads, configures and starts the plugin unless that happened before. The plugin's code runs on the calling
+     * thread, which should be one of the sandbox's.
+     *
+     * @return the proxy of the adaptor
+     * @throws AgoraException if the plugin cannot be loaded or fails to start; later calls fail the same way
+     */
+    PluginAdaptor activate(PluginPort core) {
+        PluginAdaptor proxy = _proxy;
+        if (proxy != null) {
+            return proxy;
+        }
+        synchronized (this) {
+            if (_proxy != null) {
+                return _proxy;
+            }
+            if (_failure != null) {
+                throw _failure;
+            }
+            long start = System.nanoTime();
+            PluginAdaptor adaptor;
+            Thread thread = Thread.currentThread();
+            ClassLoader contextClassLoader = thread.getContextClassLoader();
+            try {
+                _classLoader = new PluginClassLoader(this, _manifest.getClassPath(),
+                        PluginAdaptor.class.getClassLoader());
+                thread.setContextClassLoader(_classLoader);
+                adaptor = _classLoader.loadClass(_manifest.getMainClass()).asSubclass(PluginAdaptor.class)
+                        .getDeclaredConstructor().newInstance();
+                adaptor.setPluginCore(core);
+                adaptor.initialize();
+                adaptor.configure(_config);
+                adaptor.start();
+            } catch (IOException | ReflectiveOperationException | RuntimeException | LinkageError e) {
+                _failure = new AgoraException("could not activate plugin " + _manifest, e);
+                closeClassLoader();
+                throw _failure;
+            } finally {
+                thread.setContextClassLoader(contextClassLoader);
+            }
+            LOGGER.info("activated plugin {} in {} ms", _manifest, (System.nanoTime() - start) / 1000000);
+            _adaptor = adaptor;
+            _proxy = createProxy(adaptor);
+            return _proxy;
+        }
+    }
+
+    synchronized void deactivate() {
+        PluginAdaptor adaptor = _adaptor;
+        if (adaptor == null) {
+            return;
+        }
+        _adaptor = null;
+        _proxy = null;
+        _sandbox.clear();
+        Thread thread = Thread.currentThread();
+        ClassLoader contextClassLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(_classLoader);
+        try {
+            adaptor.stop();
+            adaptor.cleanup();
+        } catch (RuntimeException e) {
+            LOGGER.warn("plugin {} failed to stop", _manifest, e);
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+            closeClassLoader();
+        }
+    }
+
+    /**
+     * Lets go of a plugin that could not be stopped without calling into it again.
+     */
+    synchronized void abandon() {
+        if (_adaptor == null) {
+            return;
+        }
+        _adaptor = null;
+        _proxy = null;
+        _sandbox.clear();
+        closeClassLoader();
+    }
+
+    private PluginAdaptor createProxy(PluginAdaptor adaptor) {
+        Set<Class<?>> interfaces = new LinkedHashSet<>();
+        for (Class<?> type = adaptor.getClass(); type != null; type = type.getSuperclass()) {
+            for (Class<?> implemented : type.getInterfaces()) {
+                if (Modifier.isPublic(implemented.getModifiers())) {
+                    interfaces.add(implemented);
+                }
+            }
+        }
+        return (PluginAdaptor) Proxy.newProxyInstance(_classLoader, interfaces.toArray(new Class<?>[interfaces.size()]),
+                new SandboxedCalls(adaptor, _sandbox));
+    }
+
+    private void closeClassLoader() {
+        if (_classLoader == null) {
+            return;
+        }
+        try {
+            _classLoader.close();
+        } catch (IOException e) {
+            LOGGER.debug("could not close class loader of plugin {}", _manifest, e);
+        }
+        _classLoader = null;
+    }
+
+    /**
+     * Runs the calls through the proxy in the sandbox and waits for them, see {@link PluginSandbox#invoke}.
+     */
+    private static final class SandboxedCalls implements InvocationHandler {
+        private final PluginAdaptor _adaptor;
+        private final PluginSandbox _sandbox;
+
+        private SandboxedCalls(PluginAdaptor adaptor, PluginSandbox sandbox) {
+            _adaptor = adaptor;
+            _sandbox = sandbox;
+        }
+
+        @Override
+        public Object invoke(Object proxy, final Method method, final Object[] arguments) throws Throwable {
+            if (method.getDeclaringClass() == Object.class) {
+                switch (method.getName()) {
+                    case "equals":
+                        return proxy == arguments[0];
+                    case "hashCode":
+                        return System.identityHashCode(proxy);
+                    default:
+                        break;
+                }
+            }
+            return _sandbox.invoke(new Callable<Object>() {
+                @Override
+                public Object call() throws Exception {
+                    try {
+                        return method.invoke(_adaptor, arguments);
+                    } catch (InvocationTargetException e) {
+                        Throwable cause = e.getCause();
+                        if (cause instanceof Exception) {
+                            throw (Exception) cause;
+                        }
+                        throw (Error) cause;
+                    }
+                }
+            });
+        }
+    }
+}
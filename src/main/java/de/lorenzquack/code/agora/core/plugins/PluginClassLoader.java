@@ -0,0 +1,108 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.plugins;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.List;
+
+
+/**
+ * Loads a plugin's classes from its own class path before asking the core's class loader, so a plugin may bundle
+ * libraries in versions that differ from the core's and from other plugins'. Only the JDK, the plugin API and the
+ * libraries that appear in its signatures are always taken from the core, otherwise a plugin's classes could not
+ * be used as the core's types.
+ */
+class PluginClassLoader extends URLClassLoader {
+    private static final String[] SHARED_PREFIXES = {
+            "java.", "javax.", "sun.", "com.sun.", "jdk.",
+            "de.lorenzquack.code.agora.core.api.",
+            "org.slf4j.",
+            "com.google.common.util.concurrent."
+    };
+
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final InstalledPlugin _plugin;
+
+    PluginClassLoader(InstalledPlugin plugin, List<URL> classPath, ClassLoader parent) {
+        super(classPath.toArray(new URL[classPath.size()]), parent);
+        _plugin = plugin;
+    }
+
+    /**
+     * @return the plugin whose classes this loader loads
+     */
+    InstalledPlugin getPlugin() {
+        return _plugin;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (isShared(name)) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                try {
+                    loaded = findClass(name);
+                } catch (ClassNotFoundException e) {
+                    loaded = getParent().loadClass(name);
+                }
+            }
+            if (resolve) {
+                resolveClass(loaded);
+            }
+            return loaded;
+        }
+    }
+
+    @Override
+    public URL getResource(String name) {
+        URL resource = isShared(name.replace('/', '.')) ? null : findResource(name);
+        return resource != null ? resource : super.getResource(name);
+    }
+
+    @Override
+    public Enumeration<URL> getResources(String name) throws IOException {
+        List<URL> resources = Collections.list(findResources(name));
+        for (URL resource : Collections.list(getParent().getResources(name))) {
+            if (!resources.contains(resource)) {
+                resources.add(resource);
+            }
+        }
+        return Collections.enumeration(resources);
+    }
+
+    private static boolean isShared(String name) {
+        for (String prefix : SHARED_PREFIXES) {
+            if (name.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
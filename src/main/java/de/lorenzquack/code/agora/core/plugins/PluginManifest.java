@@ -0,0 +1,139 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.plugins;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.exceptions.JSONConfigException;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asStringOrDefault;
+
+
+/**
+ * The {@code plugin.json} of an installed plugin:
+ * <pre>
+ * {"name": "chat", "version": "1.0", "mainClass": "org.example.ChatPlugin", "activateOn": ["membership"]}
+ * </pre>
+ * The plugin's class path is its {@code classes} directory and every jar in its directory and in {@code lib}.
+ * Reading the manifest touches no class of the plugin.
+ */
+final class PluginManifest {
+    static final String FILE_NAME = "plugin.json";
+    /** activate the plugin when the core starts */
+    static final String ACTIVATE_ON_STARTUP = "startup";
+    /** activate the plugin with the first membership event */
+    static final String ACTIVATE_ON_MEMBERSHIP = "membership";
+
+    private final String _name;
+    private final String _version;
+    private final String _mainClass;
+    private final Set<String> _activateOn;
+    private final Path _directory;
+
+    private PluginManifest(String name, String version, String mainClass, Set<String> activateOn, Path directory) {
+        _name = name;
+        _version = version;
+        _mainClass = mainClass;
+        _activateOn = activateOn;
+        _directory = directory;
+    }
+
+    static PluginManifest read(Path directory) throws IOException {
+        String json = new String(Files.readAllBytes(directory.resolve(FILE_NAME)), StandardCharsets.UTF_8);
+        try {
+            JSONConfig manifest = new JSONConfigImpl(json);
+            String name = asStringOrDefault(manifest.get("name"), directory.getFileName().toString());
+            String mainClass = manifest.get("mainClass").asString();
+            Set<String> activateOn = new HashSet<>();
+            JSONConfig triggers = manifest.get("activateOn");
+            for (int i = 0; triggers.exists() && i < triggers.size(); i++) {
+                activateOn.add(triggers.get(i).asString());
+            }
+            return new PluginManifest(name, asStringOrDefault(manifest.get("version"), "unknown"), mainClass,
+                    Collections.unmodifiableSet(activateOn), directory);
+        } catch (JSONConfigException e) {
+            throw new IOException("invalid plugin manifest in " + directory, e);
+        }
+    }
+
+    String getName() {
+        return _name;
+    }
+
+    String getVersion() {
+        return _version;
+    }
+
+    String getMainClass() {
+        return _mainClass;
+    }
+
+    boolean isActivatedOn(String trigger) {
+        return _activateOn.contains(trigger);
+    }
+
+    Path getDirectory() {
+        return _directory;
+    }
+
+    List<URL> getClassPath() throws IOException {
+        List<URL> classPath = new ArrayList<>();
+        Path classes = _directory.resolve("classes");
+        if (Files.isDirectory(classes)) {
+            classPath.add(classes.toUri().toURL());
+        }
+        addJars(_directory, classPath);
+        addJars(_directory.resolve("lib"), classPath);
+        return classPath;
+    }
+
+    @Override
+    public String toString() {
+        return _name + " " + _version;
+    }
+
+    private static void addJars(Path directory, List<URL> classPath) throws IOException {
+        if (!Files.isDirectory(directory)) {
+            return;
+        }
+        List<Path> jars = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.jar")) {
+            for (Path jar : stream) {
+                jars.add(jar);
+            }
+        }
+        // directory order is arbitrary, keep the class path reproducible
+        Collections.sort(jars);
+        for (Path jar : jars) {
+            classPath.add(jar.toUri().toURL());
+        }
+    }
+}
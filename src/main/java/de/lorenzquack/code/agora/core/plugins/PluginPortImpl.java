@@ -18,28 +18,379 @@
  */
 package de.lorenzquack.code.agora.core.plugins;
 
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.EventBus;
+import de.lorenzquack.code.agora.core.api.FilePort;
 import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MembershipEvent;
+import de.lorenzquack.code.agora.core.api.MembershipListener;
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.PluginAdaptor;
 import de.lorenzquack.code.agora.core.api.PluginPort;
+import de.lorenzquack.code.agora.core.api.PluginStatus;
+import de.lorenzquack.code.agora.core.api.UIControl;
+import de.lorenzquack.code.agora.core.api.UIControlUpdate;
+import de.lorenzquack.code.agora.core.api.exceptions.AgoraException;
 
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asStringOrDefault;
 
+
+/**
+ * Plugin code runs only in the plugin's {@link PluginSandbox}: its life cycle, the calls through the proxy that
+ * {@link #getPlugin} hands out, its membership listeners and the handlers it subscribes through
+ * {@link #getEventBus}.
+ */
 public class PluginPortImpl implements PluginPort {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PluginPortImpl.class);
+    private static final long SANDBOX_CHECK_INTERVAL_MILLIS = 100;
+    private static final int DEFAULT_UI_HISTORY_SIZE = 64;
+
+    private final CopyOnWriteArrayList<MembershipListener> _membershipListeners = new CopyOnWriteArrayList<>();
+    private final Map<String, InstalledPlugin> _plugins = new LinkedHashMap<>();
+    /** in the order of activation, so that plugins are stopped in reverse */
+    private final List<InstalledPlugin> _activePlugins = new ArrayList<>();
+    private Path _dataDirectory = Paths.get(".");
+    private ExecutorService _eventExecutor;
+    private ScheduledExecutorService _watchdog;
+    private UIControlRegistry _uiControls = new UIControlRegistry(DEFAULT_UI_HISTORY_SIZE);
+    private NetworkPort _networkPort;
+    private FilePort _filePort;
+    private EventBus _eventBus;
+    private EventBus _sandboxedEventBus;
+
     @Override
     public void initialize() {
+        _eventExecutor = Executors.newSingleThreadExecutor(
+                new ThreadFactoryBuilder().setNameFormat("agora-plugin-events-%d").setDaemon(true).build());
+        _watchdog = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("agora-plugin-watchdog-%d").setDaemon(true).build());
     }
 
     @Override
     public void configure(JSONConfig config) {
+        Path directory = _dataDirectory.resolve(asStringOrDefault(config.get("directory"), "plugins"));
+        JSONConfig settings = config.get("settings");
+        JSONConfig sandbox = config.get("sandbox");
+        _uiControls = new UIControlRegistry(asIntOrDefault(config.get("uiHistorySize"), DEFAULT_UI_HISTORY_SIZE));
+        for (PluginManifest manifest : readManifests(directory)) {
+            if (_plugins.containsKey(manifest.getName())) {
+                LOGGER.warn("ignoring plugin {} in {}, a plugin of that name is installed already", manifest,
+                        manifest.getDirectory());
+                continue;
+            }
+            JSONConfig pluginConfig = settings.exists() ? settings.get(manifest.getName()) : settings;
+            _plugins.put(manifest.getName(), new InstalledPlugin(manifest, pluginConfig,
+                    new PluginSandbox(manifest.getName(), sandbox)));
+        }
+        LOGGER.info("{} plugins installed in {}", _plugins.size(), directory);
     }
 
     @Override
     public void start() {
+        for (InstalledPlugin plugin : _plugins.values()) {
+            if (plugin.getManifest().isActivatedOn(PluginManifest.ACTIVATE_ON_STARTUP)) {
+                activateLater(plugin, null);
+            }
+        }
+        _watchdog.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                long now = System.nanoTime();
+                for (InstalledPlugin plugin : _plugins.values()) {
+                    plugin.getSandbox().check(now);
+                }
+            }
+        }, SANDBOX_CHECK_INTERVAL_MILLIS, SANDBOX_CHECK_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+        _networkPort.addMembershipListener(new MembershipListener() {
+            @Override
+            public void membershipChanged(final MembershipEvent event) {
+                _eventExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliver(event);
+                    }
+                });
+            }
+        });
     }
 
     @Override
     public void stop() {
+        List<InstalledPlugin> active;
+        synchronized (_activePlugins) {
+            active = new ArrayList<>(_activePlugins);
+            _activePlugins.clear();
+        }
+        Collections.reverse(active);
+        for (final InstalledPlugin plugin : active) {
+            plugin.getSandbox().clear();
+            try {
+                plugin.getSandbox().invoke(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        plugin.deactivate();
+                        return null;
+                    }
+                });
+            } catch (Exception e) {
+                LOGGER.warn("could not stop plugin {}, abandoning it", plugin.getManifest(), e);
+                plugin.abandon();
+            }
+        }
     }
 
     @Override
     public void cleanup() {
+        _eventExecutor.shutdownNow();
+        _watchdog.shutdownNow();
+        for (InstalledPlugin plugin : _plugins.values()) {
+            plugin.getSandbox().shutdown();
+        }
+    }
+
+    @Override
+    public void setDataDirectory(Path dataDirectory) {
+        _dataDirectory = dataDirectory;
+    }
+
+    @Override
+    public void setNetworkPort(NetworkPort networkPort) {
+        _networkPort = networkPort;
+    }
+
+    @Override
+    public void setFilePort(FilePort filePort) {
+        _filePort = filePort;
+    }
+
+    @Override
+    public FilePort getFilePort() {
+        return _filePort;
+    }
+
+    @Override
+    public void setEventBus(EventBus eventBus) {
+        _eventBus = eventBus;
+        _sandboxedEventBus = eventBus != null ? new SandboxedEventBus(eventBus) : null;
+    }
+
+    /**
+     * Handlers of plugins are called in the plugin's {@link PluginSandbox}, see {@link SandboxedEventBus}.
+     */
+    @Override
+    public EventBus getEventBus() {
+        return _sandboxedEventBus;
+    }
+
+    /**
+     * Listeners of plugins are called in the plugin's {@link PluginSandbox}, which is found through the class
+     * loader of the listener's class.
+     */
+    @Override
+    public void addMembershipListener(MembershipListener listener) {
+        _membershipListeners.add(listener);
+    }
+
+    @Override
+    public void removeMembershipListener(MembershipListener listener) {
+        _membershipListeners.remove(listener);
+    }
+
+    @Override
+    public List<String> getInstalledPlugins() {
+        return new ArrayList<>(_plugins.keySet());
+    }
+
+    @Override
+    public boolean isPluginActive(String name) {
+        InstalledPlugin plugin = _plugins.get(name);
+        return plugin != null && plugin.isActive();
+    }
+
+    /**
+     * @return a proxy of the plugin's adaptor whose calls run in the plugin's sandbox and wait for it; calls that are
+     *         dropped throw {@link RejectedExecutionException}
+     */
+    @Override
+    public PluginAdaptor getPlugin(String name) {
+        InstalledPlugin plugin = _plugins.get(name);
+        if (plugin == null) {
+            return null;
+        }
+        PluginAdaptor proxy = plugin.getProxy();
+        if (proxy != null) {
+            return proxy;
+        }
+        try {
+            return plugin.getSandbox().invoke(activation(plugin, null));
+        } catch (AgoraException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AgoraException("could not activate plugin " + plugin.getManifest(), e);
+        }
+    }
+
+    @Override
+    public List<PluginStatus> getPluginStatus() {
+        List<PluginStatus> status = new ArrayList<>();
+        for (InstalledPlugin plugin : _plugins.values()) {
+            status.add(plugin.getSandbox().getStatus(plugin.isActive()));
+        }
+        return status;
+    }
+
+    @Override
+    public void resumePlugin(String name) {
+        InstalledPlugin plugin = _plugins.get(name);
+        if (plugin == null) {
+            throw new IllegalArgumentException("no plugin " + name + " installed");
+        }
+        plugin.getSandbox().resume();
+    }
+
+    @Override
+    public void publishUIControl(UIControl control) {
+        _uiControls.publish(control);
+    }
+
+    @Override
+    public void removeUIControl(String id) {
+        _uiControls.remove(id);
+    }
+
+    @Override
+    public UIControlUpdate getUIControlUpdate(long sinceVersion, long timeoutMillis) {
+        try {
+            return _uiControls.getUpdate(sinceVersion, timeoutMillis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AgoraException("interrupted while waiting for UI control updates", e);
+        }
+    }
+
+    /**
+     * @return activates {@code plugin} when called in its sandbox, and runs {@code afterwards} if that worked
+     */
+    private Callable<PluginAdaptor> activation(final InstalledPlugin plugin, final Runnable afterwards) {
+        return new Callable<PluginAdaptor>() {
+            @Override
+            public PluginAdaptor call() {
+                PluginAdaptor proxy = plugin.activate(PluginPortImpl.this);
+                synchronized (_activePlugins) {
+                    if (!_activePlugins.contains(plugin)) {
+                        _activePlugins.add(plugin);
+                    }
+                }
+                if (afterwards != null) {
+                    afterwards.run();
+                }
+                return proxy;
+            }
+        };
+    }
+
+    /**
+     * Activates {@code plugin} in its sandbox without waiting for it, so that a plugin that is slow to start only
+     * delays itself.
+     */
+    private void activateLater(final InstalledPlugin plugin, Runnable afterwards) {
+        Futures.addCallback(plugin.getSandbox().submit(activation(plugin, afterwards)),
+                new FutureCallback<PluginAdaptor>() {
+                    @Override
+                    public void onSuccess(PluginAdaptor proxy) {
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                        LOGGER.warn("could not activate plugin {}", plugin.getManifest(), t);
+                    }
+                });
+    }
+
+    private void deliver(final MembershipEvent event) {
+        final List<MembershipListener> listeners = new ArrayList<>(_membershipListeners);
+        for (final InstalledPlugin plugin : _plugins.values()) {
+            if (!plugin.isActive() && plugin.getManifest().isActivatedOn(PluginManifest.ACTIVATE_ON_MEMBERSHIP)) {
+                // the listeners the plugin adds while it starts get the event that woke it up
+                activateLater(plugin, new Runnable() {
+                    @Override
+                    public void run() {
+                        for (MembershipListener listener : _membershipListeners) {
+                            if (!listeners.contains(listener) && PluginSandbox.of(listener) == plugin.getSandbox()) {
+                                listener.membershipChanged(event);
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        for (final MembershipListener listener : listeners) {
+            Runnable call = new Runnable() {
+                @Override
+                public void run() {
+                    listener.membershipChanged(event);
+                }
+            };
+            PluginSandbox sandbox = PluginSandbox.of(listener);
+            if (sandbox != null) {
+                sandbox.execute(call);
+                continue;
+            }
+            try {
+                call.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("plugin membership listener failed on {}", event, e);
+            }
+        }
+    }
+
+    private static List<PluginManifest> readManifests(Path directory) {
+        List<PluginManifest> manifests = new ArrayList<>();
+        if (!Files.isDirectory(directory)) {
+            return manifests;
+        }
+        List<Path> candidates = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+            for (Path candidate : stream) {
+                if (Files.isRegularFile(candidate.resolve(PluginManifest.FILE_NAME))) {
+                    candidates.add(candidate);
+                }
+            }
+        } catch (IOException e) {
+            throw new AgoraException("could not list plugins in " + directory, e);
+        }
+        Collections.sort(candidates);
+        for (Path candidate : candidates) {
+            try {
+                manifests.add(PluginManifest.read(candidate));
+            } catch (IOException e) {
+                LOGGER.warn("skipping plugin in {}", candidate, e);
+            }
+        }
+        return manifests;
     }
 }
@@ -0,0 +1,347 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.plugins;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.PluginStatus;
+import de.lorenzquack.code.agora.core.api.exceptions.AgoraException;
+import de.lorenzquack.code.agora.core.utils.VirtualThreads;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asBooleanOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asIntOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
+
+
+/**
+ * Runs the calls into one plugin on the plugin's own {@code threads}, so that a plugin that blocks or spins only
+ * delays itself. Calls wait in a mailbox of {@code mailboxDepth} and are dropped when it is full.
+ * <p>
+ * The CPU time of every call is measured with the {@link ThreadMXBean}. Once a plugin used more than
+ * {@code cpuQuotaPercent} of one core in the current window of {@code quotaWindowMillis}, it is throttled: its
+ * calls wait for the next window. After {@code suspendAfterWindows} windows over quota in a row it is suspended and
+ * its calls are dropped until {@link #resume()}. Calls that run longer than {@code callBudgetMillis} are
+ * interrupted, which stops plugins that honour interruption.
+ * <p>
+ * With {@code virtualThreads} the calls run on up to {@code maxConcurrentCalls} virtual threads instead, so a plugin
+ * may block in many calls at once. The JDK does not measure the CPU time of virtual threads, so there the quota is
+ * not enforced and only the call budget applies.
+ * <p>
+ * Calls that are dropped, whether because the mailbox is full or the plugin is suspended, cancel their future if
+ * they were {@link #submit submitted}.
+ */
+final class PluginSandbox {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PluginSandbox.class);
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME_SUPPORTED = THREADS.isCurrentThreadCpuTimeSupported();
+    private static final ThreadLocal<PluginSandbox> CURRENT = new ThreadLocal<>();
+
+    private final String _name;
+    private final ThreadPoolExecutor _executor;
+    private final boolean _measureCpu;
+    private final long _callBudgetNanos;
+    private final long _windowNanos;
+    private final long _cpuQuotaNanos;
+    private final int _suspendAfterWindows;
+    private final ConcurrentHashMap<Call, Boolean> _running = new ConcurrentHashMap<>();
+    private final AtomicLong _calls = new AtomicLong();
+    private final AtomicLong _droppedCalls = new AtomicLong();
+    private final AtomicLong _budgetViolations = new AtomicLong();
+    private final AtomicLong _cpuNanos = new AtomicLong();
+    private volatile PluginStatus.State _state = PluginStatus.State.RUNNING;
+    private long _windowStart = System.nanoTime();
+    private long _windowCpuNanos;
+    private int _windowsOverQuota;
+
+    PluginSandbox(String name, JSONConfig config) {
+        _name = name;
+        boolean virtual = VirtualThreads.shouldUse(asBooleanOrDefault(config.get("virtualThreads"), false));
+        int threads = virtual ? Math.max(1, asIntOrDefault(config.get("maxConcurrentCalls"), 256))
+                : Math.max(1, asIntOrDefault(config.get("threads"), 1));
+        int mailboxDepth = Math.max(1, asIntOrDefault(config.get("mailboxDepth"), 1024));
+        _callBudgetNanos = TimeUnit.MILLISECONDS.toNanos(asLongOrDefault(config.get("callBudgetMillis"), 5000));
+        _windowNanos = TimeUnit.MILLISECONDS.toNanos(asLongOrDefault(config.get("quotaWindowMillis"), 10000));
+        _cpuQuotaNanos = _windowNanos * asIntOrDefault(config.get("cpuQuotaPercent"), 50) / 100;
+        _suspendAfterWindows = asIntOrDefault(config.get("suspendAfterWindows"), 6);
+        // the threads are started with the first call, so a plugin that is never used costs none
+        _executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(mailboxDepth),
+                VirtualThreads.newThreadFactory("agora-plugin-" + name + "-", virtual));
+        if (virtual) {
+            // virtual threads are cheap to start but not to keep, idle ones are let go
+            _executor.setKeepAliveTime(1, TimeUnit.SECONDS);
+            _executor.allowCoreThreadTimeOut(true);
+        }
+        _measureCpu = CPU_TIME_SUPPORTED && !virtual;
+    }
+
+    /**
+     * @return the sandbox of the plugin that {@code object} belongs to, or {@code null} if it is not a plugin's
+     */
+    static PluginSandbox of(Object object) {
+        ClassLoader classLoader = object.getClass().getClassLoader();
+        return classLoader instanceof PluginClassLoader
+                ? ((PluginClassLoader) classLoader).getPlugin().getSandbox() : null;
+    }
+
+    /**
+     * @return {@code false} if the call was dropped
+     */
+    boolean execute(Runnable call) {
+        if (_state == PluginStatus.State.SUSPENDED) {
+            _droppedCalls.incrementAndGet();
+            return false;
+        }
+        try {
+            _executor.execute(new Call(call));
+            return true;
+        } catch (RejectedExecutionException e) {
+            if (_droppedCalls.getAndIncrement() == 0) {
+                LOGGER.warn("mailbox of plugin {} is full, dropping calls", _name);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * @return the result of {@code call}, cancelled if the call was dropped
+     */
+    <T> ListenableFuture<T> submit(Callable<T> call) {
+        ListenableFutureTask<T> task = ListenableFutureTask.create(call);
+        if (!execute(task)) {
+            task.cancel(false);
+        }
+        return task;
+    }
+
+    /**
+     * Runs {@code call} in the sandbox and waits for it, for callers that need the result or whose arguments are only
+     * valid until the call returns. Calls from the sandbox's own threads run right away, so that a plugin calling
+     * itself does not wait for its own mailbox.
+     *
+     * @return the result of {@code call}
+     * @throws Exception                  whatever {@code call} threw
+     * @throws RejectedExecutionException if the call was dropped
+     * @throws AgoraException             if the call did not finish within a quota window and the call budget
+     */
+    <T> T invoke(Callable<T> call) throws Exception {
+        if (CURRENT.get() == this) {
+            return call.call();
+        }
+        ListenableFuture<T> result = submit(call);
+        try {
+            if (_callBudgetNanos <= 0) {
+                return result.get();
+            }
+            // a call may wait for the next window and then run for its budget
+            return result.get(_windowNanos + _callBudgetNanos, TimeUnit.NANOSECONDS);
+        } catch (CancellationException e) {
+            throw new RejectedExecutionException("call into plugin " + _name + " was dropped", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            throw (Error) cause;
+        } catch (TimeoutException e) {
+            result.cancel(true);
+            throw new AgoraException("call into plugin " + _name + " did not return in time", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AgoraException("interrupted while waiting for a call into plugin " + _name, e);
+        }
+    }
+
+    /**
+     * Interrupts calls over budget and starts a new quota window when it is due. Called periodically.
+     */
+    void check(long now) {
+        for (Call call : _running.keySet()) {
+            call.interruptIfOverBudget(now);
+        }
+        synchronized (this) {
+            if (now - _windowStart < _windowNanos) {
+                return;
+            }
+            _windowsOverQuota = isOverQuota() ? _windowsOverQuota + 1 : 0;
+            _windowStart = now;
+            _windowCpuNanos = 0;
+            if (_windowsOverQuota >= _suspendAfterWindows && _state != PluginStatus.State.SUSPENDED) {
+                _state = PluginStatus.State.SUSPENDED;
+                List<Runnable> dropped = new ArrayList<>();
+                _executor.getQueue().drainTo(dropped);
+                drop(dropped);
+                LOGGER.warn("suspended plugin {} after {} windows over its CPU quota", _name, _windowsOverQuota);
+            } else if (_state == PluginStatus.State.THROTTLED) {
+                _state = PluginStatus.State.RUNNING;
+            }
+            notifyAll();
+        }
+    }
+
+    synchronized void resume() {
+        if (_state != PluginStatus.State.RUNNING) {
+            LOGGER.info("resuming plugin {}", _name);
+        }
+        _state = PluginStatus.State.RUNNING;
+        _windowsOverQuota = 0;
+        _windowCpuNanos = 0;
+        notifyAll();
+    }
+
+    /**
+     * Drops the calls that are still waiting.
+     */
+    void clear() {
+        List<Runnable> dropped = new ArrayList<>();
+        _executor.getQueue().drainTo(dropped);
+        drop(dropped);
+    }
+
+    void shutdown() {
+        drop(_executor.shutdownNow());
+        synchronized (this) {
+            notifyAll();
+        }
+    }
+
+    PluginStatus getStatus(boolean active) {
+        return new PluginStatus(_name, active ? _state : PluginStatus.State.INACTIVE, _calls.get(),
+                _droppedCalls.get(), _budgetViolations.get(), _measureCpu ? _cpuNanos.get() : -1,
+                _executor.getQueue().size());
+    }
+
+    private void drop(List<Runnable> calls) {
+        for (Runnable call : calls) {
+            ((Call) call).drop();
+        }
+    }
+
+    private boolean isOverQuota() {
+        return _cpuQuotaNanos > 0 && _windowCpuNanos > _cpuQuotaNanos;
+    }
+
+    /**
+     * @return {@code false} if the plugin was suspended or shut down while the call waited
+     */
+    private synchronized boolean awaitQuota() throws InterruptedException {
+        while (_state == PluginStatus.State.THROTTLED && !_executor.isShutdown()) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(_windowStart + _windowNanos - System.nanoTime());
+            wait(Math.max(1, remainingMillis));
+        }
+        return _state == PluginStatus.State.RUNNING && !_executor.isShutdown();
+    }
+
+    private synchronized void charge(long cpuNanos) {
+        _cpuNanos.addAndGet(cpuNanos);
+        _windowCpuNanos += cpuNanos;
+        if (isOverQuota() && _state == PluginStatus.State.RUNNING) {
+            _state = PluginStatus.State.THROTTLED;
+            LOGGER.info("throttling plugin {}, it used {} ms of CPU in this window", _name,
+                    TimeUnit.NANOSECONDS.toMillis(_windowCpuNanos));
+        }
+    }
+
+    private final class Call implements Runnable {
+        private final Runnable _call;
+        private Thread _thread;
+        private long _start;
+        private boolean _done;
+        private boolean _overBudget;
+
+        private Call(Runnable call) {
+            _call = call;
+        }
+
+        @Override
+        public void run() {
+            try {
+                if (!awaitQuota()) {
+                    drop();
+                    return;
+                }
+            } catch (InterruptedException e) {
+                drop();
+                return;
+            }
+            long cpuStart = _measureCpu ? THREADS.getCurrentThreadCpuTime() : 0;
+            synchronized (this) {
+                _thread = Thread.currentThread();
+                _start = System.nanoTime();
+            }
+            _running.put(this, Boolean.TRUE);
+            CURRENT.set(PluginSandbox.this);
+            try {
+                _call.run();
+            } catch (RuntimeException e) {
+                LOGGER.warn("call into plugin {} failed", _name, e);
+            } finally {
+                CURRENT.remove();
+                _running.remove(this);
+                synchronized (this) {
+                    _done = true;
+                }
+                // an interrupt meant for this call must not hit the next one
+                Thread.interrupted();
+                _calls.incrementAndGet();
+                if (_measureCpu) {
+                    charge(THREADS.getCurrentThreadCpuTime() - cpuStart);
+                }
+            }
+        }
+
+        private void drop() {
+            _droppedCalls.incrementAndGet();
+            if (_call instanceof Future) {
+                ((Future<?>) _call).cancel(false);
+            }
+        }
+
+        private synchronized void interruptIfOverBudget(long now) {
+            if (_done || _overBudget || _callBudgetNanos <= 0 || now - _start <= _callBudgetNanos) {
+                return;
+            }
+            _overBudget = true;
+            _budgetViolations.incrementAndGet();
+            LOGGER.warn("call into plugin {} exceeded its budget of {} ms, interrupting it", _name,
+                    TimeUnit.NANOSECONDS.toMillis(_callBudgetNanos));
+            _thread.interrupt();
+        }
+    }
+}
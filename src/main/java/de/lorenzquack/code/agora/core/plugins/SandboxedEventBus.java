@@ -0,0 +1,143 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.plugins;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import de.lorenzquack.code.agora.core.api.EventBus;
+import de.lorenzquack.code.agora.core.api.EventChannel;
+import de.lorenzquack.code.agora.core.api.EventFactory;
+import de.lorenzquack.code.agora.core.api.EventHandler;
+import de.lorenzquack.code.agora.core.api.EventTranslator;
+import de.lorenzquack.code.agora.core.api.WaitStrategy;
+
+
+/**
+ * The {@link EventBus} as plugins see it. Handlers that belong to a plugin run in the plugin's {@link PluginSandbox};
+ * the subscriber's thread waits for each call, because the event is only valid until the handler returns. A plugin
+ * whose calls are dropped misses those events instead of holding up the publishers.
+ */
+class SandboxedEventBus implements EventBus {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SandboxedEventBus.class);
+
+    private final EventBus _eventBus;
+    /** the handlers subscribed in place of plugin handlers, by channel and plugin handler */
+    private final ConcurrentHashMap<List<Object>, EventHandler<?>> _sandboxedHandlers = new ConcurrentHashMap<>();
+
+    SandboxedEventBus(EventBus eventBus) {
+        _eventBus = eventBus;
+    }
+
+    @Override
+    public <T> EventChannel<T> createChannel(String name, Class<T> eventType, EventFactory<T> factory) {
+        return new SandboxedChannel<>(_eventBus.createChannel(name, eventType, factory));
+    }
+
+    @Override
+    public <T> EventChannel<T> createChannel(String name, Class<T> eventType, EventFactory<T> factory, int bufferSize,
+                                             WaitStrategy waitStrategy) {
+        return new SandboxedChannel<>(_eventBus.createChannel(name, eventType, factory, bufferSize, waitStrategy));
+    }
+
+    @Override
+    public <T> EventChannel<T> getChannel(String name, Class<T> eventType) {
+        EventChannel<T> channel = _eventBus.getChannel(name, eventType);
+        return channel != null ? new SandboxedChannel<>(channel) : null;
+    }
+
+    private final class SandboxedChannel<T> implements EventChannel<T> {
+        private final EventChannel<T> _channel;
+
+        private SandboxedChannel(EventChannel<T> channel) {
+            _channel = channel;
+        }
+
+        @Override
+        public String getName() {
+            return _channel.getName();
+        }
+
+        @Override
+        public <A> void publish(EventTranslator<T, A> translator, A argument) {
+            _channel.publish(translator, argument);
+        }
+
+        @Override
+        public <A> boolean tryPublish(EventTranslator<T, A> translator, A argument) {
+            return _channel.tryPublish(translator, argument);
+        }
+
+        @Override
+        public void subscribe(EventHandler<? super T> handler) {
+            PluginSandbox sandbox = PluginSandbox.of(handler);
+            if (sandbox == null) {
+                _channel.subscribe(handler);
+                return;
+            }
+            SandboxedHandler<? super T> sandboxed = new SandboxedHandler<>(handler, sandbox);
+            _sandboxedHandlers.put(Arrays.<Object>asList(_channel, handler), sandboxed);
+            _channel.subscribe(sandboxed);
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public void unsubscribe(EventHandler<? super T> handler) {
+            EventHandler<?> sandboxed = _sandboxedHandlers.remove(Arrays.<Object>asList(_channel, handler));
+            if (sandboxed != null) {
+                _channel.unsubscribe((EventHandler<? super T>) sandboxed);
+            } else {
+                _channel.unsubscribe(handler);
+            }
+        }
+    }
+
+    private static final class SandboxedHandler<T> implements EventHandler<T> {
+        private final EventHandler<T> _handler;
+        private final PluginSandbox _sandbox;
+
+        private SandboxedHandler(EventHandler<T> handler, PluginSandbox sandbox) {
+            _handler = handler;
+            _sandbox = sandbox;
+        }
+
+        @Override
+        public void onEvent(final T event, final long sequence, final boolean endOfBatch) {
+            try {
+                _sandbox.invoke(new Callable<Void>() {
+                    @Override
+                    public Void call() {
+                        _handler.onEvent(event, sequence, endOfBatch);
+                        return null;
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // the sandbox counts dropped calls
+            } catch (Exception e) {
+                LOGGER.warn("event handler {} failed on event {}", _handler, sequence, e);
+            }
+        }
+    }
+}
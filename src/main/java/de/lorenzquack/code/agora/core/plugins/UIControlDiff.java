@@ -0,0 +1,129 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.plugins;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.lorenzquack.code.agora.core.api.UIControl;
+import de.lorenzquack.code.agora.core.api.UIPatch;
+
+
+/**
+ * Computes the {@link UIPatch}es between two versions of a control tree. Children are matched by id, so a change
+ * deep in a large tree yields a patch for just that control. Subtrees that are the same instance in both versions
+ * are skipped without looking at them. A control whose type changed and children whose order changed are replaced
+ * as a whole.
+ */
+final class UIControlDiff {
+    private UIControlDiff() {
+    }
+
+    static void diff(UIControl before, UIControl after, String path, List<UIPatch> patches) {
+        if (before == after) {
+            return;
+        }
+        if (!before.getId().equals(after.getId()) || !before.getType().equals(after.getType())) {
+            patches.add(UIPatch.replaceControl(path, after));
+            return;
+        }
+        diffProperties(before.getProperties(), after.getProperties(), path + "/properties/", patches);
+        diffChildren(before.getChildren(), after.getChildren(), path + "/children/", patches);
+    }
+
+    static String escape(String segment) {
+        return segment.replace("~", "~0").replace("/", "~1");
+    }
+
+    private static void diffProperties(Map<String, String> before, Map<String, String> after, String path,
+                                       List<UIPatch> patches) {
+        for (String key : before.keySet()) {
+            if (!after.containsKey(key)) {
+                patches.add(UIPatch.remove(path + escape(key)));
+            }
+        }
+        for (Map.Entry<String, String> property : after.entrySet()) {
+            String old = before.get(property.getKey());
+            if (!property.getValue().equals(old)) {
+                patches.add(UIPatch.setProperty(path + escape(property.getKey()), old != null, property.getValue()));
+            }
+        }
+    }
+
+    private static void diffChildren(List<UIControl> before, List<UIControl> after, String path,
+                                     List<UIPatch> patches) {
+        if (before == after || before.isEmpty() && after.isEmpty()) {
+            return;
+        }
+        Map<String, UIControl> remaining = new HashMap<>();
+        for (UIControl child : before) {
+            remaining.put(child.getId(), child);
+        }
+        Map<String, UIControl> kept = new HashMap<>();
+        for (UIControl child : after) {
+            if (remaining.containsKey(child.getId())) {
+                kept.put(child.getId(), child);
+            }
+        }
+        // the kept children must appear in the same relative order, otherwise moving them would need more than
+        // add and remove
+        List<String> oldOrder = new ArrayList<>();
+        for (UIControl child : before) {
+            if (kept.containsKey(child.getId())) {
+                oldOrder.add(child.getId());
+            }
+        }
+        int position = 0;
+        for (UIControl child : after) {
+            if (kept.containsKey(child.getId()) && !oldOrder.get(position++).equals(child.getId())) {
+                reorder(before, after, path, patches);
+                return;
+            }
+        }
+        for (UIControl child : before) {
+            if (!kept.containsKey(child.getId())) {
+                patches.add(UIPatch.remove(path + escape(child.getId())));
+            }
+        }
+        for (int i = 0; i < after.size(); i++) {
+            UIControl child = after.get(i);
+            String childPath = path + escape(child.getId());
+            if (kept.containsKey(child.getId())) {
+                diff(remaining.get(child.getId()), child, childPath, patches);
+            } else {
+                patches.add(UIPatch.addControl(childPath, i, child));
+            }
+        }
+    }
+
+    /**
+     * Replaces all children: removes the old ones and adds the new ones in order.
+     */
+    private static void reorder(List<UIControl> before, List<UIControl> after, String path,
+                                List<UIPatch> patches) {
+        for (UIControl child : before) {
+            patches.add(UIPatch.remove(path + escape(child.getId())));
+        }
+        for (int i = 0; i < after.size(); i++) {
+            patches.add(UIPatch.addControl(path + escape(after.get(i).getId()), i, after.get(i)));
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.plugins;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import de.lorenzquack.code.agora.core.api.UIControl;
+import de.lorenzquack.code.agora.core.api.UIControlUpdate;
+import de.lorenzquack.code.agora.core.api.UIPatch;
+
+
+/**
+ * The control trees the plugins publish, keyed by the id of their root. Every change makes a new version; the last
+ * {@code historySize} versions are kept so that a UI can ask for the changes since the version it shows. Because
+ * the diff is computed between that version and the current one, any number of changes in between fold into one
+ * minimal update.
+ */
+final class UIControlRegistry {
+    private final int _historySize;
+    private final ArrayDeque<Snapshot> _history = new ArrayDeque<>();
+    private Snapshot _current = new Snapshot(0, Collections.<String, UIControl>emptyMap());
+
+    UIControlRegistry(int historySize) {
+        _historySize = historySize;
+    }
+
+    synchronized void publish(UIControl control) {
+        if (control.equals(_current._controls.get(control.getId()))) {
+            return;
+        }
+        Map<String, UIControl> controls = new LinkedHashMap<>(_current._controls);
+        controls.put(control.getId(), control);
+        advance(controls);
+    }
+
+    synchronized void remove(String id) {
+        if (!_current._controls.containsKey(id)) {
+            return;
+        }
+        Map<String, UIControl> controls = new LinkedHashMap<>(_current._controls);
+        controls.remove(id);
+        advance(controls);
+    }
+
+    /**
+     * Waits until there is a version newer than {@code sinceVersion}, at most {@code timeoutMillis}.
+     *
+     * @return the patches from {@code sinceVersion} to the current version, or all controls if that version is
+     *         no longer known; no patches if nothing changed in time
+     */
+    synchronized UIControlUpdate getUpdate(long sinceVersion, long timeoutMillis) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        while (_current._version == sinceVersion) {
+            long remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remainingMillis <= 0) {
+                break;
+            }
+            wait(remainingMillis);
+        }
+        Snapshot since = find(sinceVersion);
+        List<UIPatch> patches = new ArrayList<>();
+        Map<String, UIControl> before = since != null ? since._controls : Collections.<String, UIControl>emptyMap();
+        for (String id : before.keySet()) {
+            if (!_current._controls.containsKey(id)) {
+                patches.add(UIPatch.remove("/" + UIControlDiff.escape(id)));
+            }
+        }
+        int index = 0;
+        for (UIControl control : _current._controls.values()) {
+            String path = "/" + UIControlDiff.escape(control.getId());
+            UIControl old = before.get(control.getId());
+            if (old == null) {
+                patches.add(UIPatch.addControl(path, index, control));
+            } else {
+                UIControlDiff.diff(old, control, path, patches);
+            }
+            index++;
+        }
+        return new UIControlUpdate(_current._version, since == null, patches);
+    }
+
+    private void advance(Map<String, UIControl> controls) {
+        _history.addLast(_current);
+        while (_history.size() > _historySize) {
+            _history.removeFirst();
+        }
+        _current = new Snapshot(_current._version + 1, controls);
+        notifyAll();
+    }
+
+    private Snapshot find(long version) {
+        if (version == _current._version) {
+            return _current;
+        }
+        for (Iterator<Snapshot> it = _history.descendingIterator(); it.hasNext(); ) {
+            Snapshot snapshot = it.next();
+            if (snapshot._version == version) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
+
+    private static final class Snapshot {
+        private final long _version;
+        private final Map<String, UIControl> _controls;
+
+        private Snapshot(long version, Map<String, UIControl> controls) {
+            _version = version;
+            _controls = controls;
+        }
+    }
+}
@@ -21,21 +21,47 @@ package de.lorenzquack.code.agora.core.ui;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import org.eclipse.jetty.server.Request;
 import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.HandlerWrapper;
 import org.eclipse.jetty.servlet.ServletContextHandler;
 import org.eclipse.jetty.servlet.ServletHolder;
+import org.eclipse.jetty.util.thread.ExecutorThreadPool;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.lorenzquack.code.agora.core.api.Counter;
 import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+import de.lorenzquack.code.agora.core.api.Timer;
 import de.lorenzquack.code.agora.core.api.UIAdaptor;
+import de.lorenzquack.code.agora.core.api.UIControl;
+import de.lorenzquack.code.agora.core.api.UIControlUpdate;
+import de.lorenzquack.code.agora.core.api.UIPatch;
 import de.lorenzquack.code.agora.core.api.UIPort;
 import de.lorenzquack.code.agora.core.api.exceptions.AuthenticationException;
+import de.lorenzquack.code.agora.core.api.exceptions.AuthorizationException;
+import de.lorenzquack.code.agora.core.jfr.FlightEvent;
+import de.lorenzquack.code.agora.core.jfr.FlightEvents;
+import de.lorenzquack.code.agora.core.utils.VirtualThreads;
+
+import static de.lorenzquack.code.agora.core.utils.Utils.asBooleanOrDefault;
+import static de.lorenzquack.code.agora.core.utils.Utils.asLongOrDefault;
 
 
 public class UIAdapterREST implements UIAdaptor {
@@ -57,11 +83,29 @@ public class UIAdapterREST implements UIAdaptor {
     public void configure(JSONConfig config) {
         _config = config;
         int port = config.get("port").asInt();
-        _server = new Server(port);
+        if (asBooleanOrDefault(config.get("virtualThreads"), false)) {
+            // a virtual thread per request instead of Jetty's pool of at most 200 threads
+            _server = new Server(new ExecutorThreadPool(VirtualThreads.newPerTaskExecutor("agora-rest-", true)));
+            ServerConnector connector = new ServerConnector(_server);
+            connector.setPort(port);
+            _server.addConnector(connector);
+        } else {
+            _server = new Server(port);
+        }
         ServletContextHandler servletHandler = new ServletContextHandler();// ServletHandler();
-        _server.setHandler(servletHandler);
-        servletHandler.addServlet(new ServletHolder(new RESTHandler(_core)), "/api/*");
+        RequestMetricsHandler metricsHandler = new RequestMetricsHandler(_core.getMetricRegistry());
+        metricsHandler.setHandler(servletHandler);
+        _server.setHandler(metricsHandler);
+        long refreshMillis = asLongOrDefault(config.get("refreshMillis"), RESTHandler.DEFAULT_REFRESH_MILLIS);
+        long pollTimeoutMillis = asLongOrDefault(config.get("pollTimeoutMillis"),
+                RESTHandler.DEFAULT_POLL_TIMEOUT_MILLIS);
+        servletHandler.addServlet(new ServletHolder(new RESTHandler(_core, refreshMillis, pollTimeoutMillis)),
+                "/api/*");
         servletHandler.addServlet(new ServletHolder(new StaticHandler()), "/*");
+        if (asBooleanOrDefault(config.get("metrics"), true)) {
+            servletHandler.addServlet(new ServletHolder(new MetricsHandler(_core.getMetricRegistry())),
+                    RequestMetricsHandler.METRICS_PATH);
+        }
         //servletHandler.addServletWithMapping(RESTHandler.class, "/api/*");
         //servletHandler.addServletWithMapping(StaticHandler.class, "/*");
     }
@@ -96,18 +140,103 @@ public class UIAdapterREST implements UIAdaptor {
 
     public static class RESTHandler extends HttpServlet {
         private static final Logger LOGGER = LoggerFactory.getLogger(RESTHandler.class);
+        private static final long DEFAULT_REFRESH_MILLIS = 100;
+        private static final long DEFAULT_POLL_TIMEOUT_MILLIS = 25000;
+        private final ObjectMapper _mapper = new ObjectMapper();
         private final UIPort _core;
+        private final long _refreshMillis;
+        private final long _pollTimeoutMillis;
 
         public RESTHandler(UIPort core) {
+            this(core, DEFAULT_REFRESH_MILLIS, DEFAULT_POLL_TIMEOUT_MILLIS);
+        }
+
+        public RESTHandler(UIPort core, long refreshMillis, long pollTimeoutMillis) {
             _core = core;
+            _refreshMillis = refreshMillis;
+            _pollTimeoutMillis = pollTimeoutMillis;
         }
 
         @Override
         protected void doGet(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
-            LOGGER.debug("GET request: " + request.getRequestURI());
+            LOGGER.debug("GET request: {}", request.getRequestURI());
+            if ("/ui/controls".equals(request.getPathInfo())) {
+                sendControlUpdate(request, response);
+                return;
+            }
             super.doGet(request, response);
         }
 
+        /**
+         * Long polls for the plugin controls' changes since the version in the {@code since} parameter. Once
+         * something changed the response is held back for the refresh interval, so that changes that follow
+         * quickly are folded into the same patches instead of being sent one by one.
+         */
+        private void sendControlUpdate(HttpServletRequest request, HttpServletResponse response) {
+            Object token;
+            long since;
+            try {
+                token = Long.valueOf(request.getParameter("authToken"));
+                String sinceParameter = request.getParameter("since");
+                since = sinceParameter != null ? Long.parseLong(sinceParameter) : 0;
+            } catch (NumberFormatException e) {
+                sendResponse(response, 400, "{\"errorMessage\": \"Invalid authToken or since parameter.\"}");
+                return;
+            }
+            try {
+                UIControlUpdate update = _core.getUIControlUpdate(token, since, _pollTimeoutMillis);
+                if (!update.getPatches().isEmpty() && _refreshMillis > 0) {
+                    Thread.sleep(_refreshMillis);
+                    update = _core.getUIControlUpdate(token, since, 0);
+                }
+                sendResponse(response, 200, _mapper.writeValueAsString(toJson(update)));
+            } catch (AuthorizationException e) {
+                sendResponse(response, 403, "{\"errorMessage\": \"Not logged in.\"}");
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                sendResponse(response, 503, "{\"errorMessage\": \"Shutting down.\"}");
+            } catch (IOException e) {
+                LOGGER.info("Error while encoding UI control update", e);
+                sendResponse(response, 500, "{\"errorMessage\": \"Internal error.\"}");
+            }
+        }
+
+        private ObjectNode toJson(UIControlUpdate update) {
+            ObjectNode json = _mapper.createObjectNode();
+            json.put("version", update.getVersion());
+            json.put("full", update.isFull());
+            ArrayNode patches = json.putArray("patches");
+            for (UIPatch patch : update.getPatches()) {
+                ObjectNode patchJson = patches.addObject();
+                patchJson.put("op", patch.getOp().name().toLowerCase());
+                patchJson.put("path", patch.getPath());
+                if (patch.getIndex() >= 0) {
+                    patchJson.put("index", patch.getIndex());
+                }
+                if (patch.getControl() != null) {
+                    patchJson.set("value", toJson(patch.getControl()));
+                } else if (patch.getValue() != null) {
+                    patchJson.put("value", patch.getValue());
+                }
+            }
+            return json;
+        }
+
+        private ObjectNode toJson(UIControl control) {
+            ObjectNode json = _mapper.createObjectNode();
+            json.put("id", control.getId());
+            json.put("type", control.getType());
+            ObjectNode properties = json.putObject("properties");
+            for (Map.Entry<String, String> property : control.getProperties().entrySet()) {
+                properties.put(property.getKey(), property.getValue());
+            }
+            ArrayNode children = json.putArray("children");
+            for (UIControl child : control.getChildren()) {
+                children.add(toJson(child));
+            }
+            return json;
+        }
+
 
         @Override
         protected void doPost(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
@@ -125,7 +254,9 @@ public class UIAdapterREST implements UIAdaptor {
         private void sendResponse(HttpServletResponse response, int status, String jsonData) {
             response.setStatus(status);
             response.setContentType("application/json");
-            response.setContentLength(jsonData.length());
+            response.setCharacterEncoding("UTF-8");
+            // control properties may hold any text, so count bytes rather than characters
+            response.setContentLength(jsonData.getBytes(StandardCharsets.UTF_8).length);
             try {
                 response.getWriter().write(jsonData);
             } catch (IOException e) {
@@ -135,6 +266,84 @@ public class UIAdapterREST implements UIAdaptor {
     }
 
 
+    /**
+     * Serves the metrics in the Prometheus text format. Like the web UI it needs no login, so that a Prometheus
+     * server can scrape it; {@code metrics} switches it off.
+     */
+    public static class MetricsHandler extends HttpServlet {
+        private static final long serialVersionUID = 1L;
+        private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+        private final MetricRegistry _metrics;
+
+        public MetricsHandler(MetricRegistry metrics) {
+            _metrics = metrics;
+        }
+
+        @Override
+        protected void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+            StringBuilder text = new StringBuilder(4096);
+            _metrics.writeTextFormat(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(CONTENT_TYPE);
+            response.setContentLength(body.length);
+            response.getOutputStream().write(body);
+        }
+    }
+
+    /**
+     * Counts the requests and times them per path. Requests for the web UI are counted together as
+     * {@code static} and unknown API paths as {@code /api/other}, so that clients cannot create new metrics.
+     */
+    private static class RequestMetricsHandler extends HandlerWrapper {
+        private static final String METRICS_PATH = "/api/metrics";
+        private static final String OTHER_API_PATH = "/api/other";
+        private static final String STATIC_PATH = "static";
+        private static final List<String> API_PATHS = Arrays.asList("/api/login", "/api/ui/controls", METRICS_PATH);
+        private final Map<String, Timer> _durations = new HashMap<>();
+        /** per path, indexed by the first digit of the status */
+        private final Map<String, Counter[]> _responses = new HashMap<>();
+
+        private RequestMetricsHandler(MetricRegistry metrics) {
+            List<String> paths = new ArrayList<>(API_PATHS);
+            paths.add(OTHER_API_PATH);
+            paths.add(STATIC_PATH);
+            for (String path : paths) {
+                _durations.put(path, metrics.timer("agora_rest_request_duration_seconds",
+                        "Time to handle a REST request", "path", path));
+                Counter[] responses = new Counter[6];
+                for (int status = 1; status < responses.length; status++) {
+                    responses[status] = metrics.counter("agora_rest_responses_total", "REST responses by status",
+                            "path", path, "status", status + "xx");
+                }
+                _responses.put(path, responses);
+            }
+        }
+
+        @Override
+        public void handle(String target, Request baseRequest, HttpServletRequest request,
+                           HttpServletResponse response) throws IOException, ServletException {
+            long start = System.nanoTime();
+            FlightEvent event = FlightEvents.beginRestRequest(request.getMethod(), target);
+            try {
+                super.handle(target, baseRequest, request, response);
+            } finally {
+                String path = !target.startsWith("/api/") ? STATIC_PATH
+                        : API_PATHS.contains(target) ? target : OTHER_API_PATH;
+                _durations.get(path).record(System.nanoTime() - start);
+                int status = response.getStatus() / 100;
+                if (status >= 1 && status <= 5) {
+                    _responses.get(path)[status].increment();
+                }
+                if (event != FlightEvents.NONE) {
+                    event.setSize(baseRequest.getResponse().getContentCount());
+                    event.setOutcome(String.valueOf(response.getStatus()));
+                }
+                event.commit();
+            }
+        }
+    }
+
     public static class StaticHandler extends HttpServlet {
         private static final Logger LOGGER = LoggerFactory.getLogger(StaticHandler.class);
 
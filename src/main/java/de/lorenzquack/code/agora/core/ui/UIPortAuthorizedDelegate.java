@@ -18,7 +18,14 @@
  */
 package de.lorenzquack.code.agora.core.ui;
 
+import java.util.List;
+import java.util.Map;
+
 import de.lorenzquack.code.agora.core.Main;
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.PluginPort;
+import de.lorenzquack.code.agora.core.api.PluginStatus;
+import de.lorenzquack.code.agora.core.api.UIControlUpdate;
 import de.lorenzquack.code.agora.core.api.UIPort;
 
 
@@ -40,4 +47,29 @@ final class UIPortAuthorizedDelegate implements UIPortDelegate {
     public void setPassword(String oldPassword, String newPassword) {
 
     }
+
+    @Override
+    public Map<String, Long> getBandwidthLimits(NetworkPort networkPort) {
+        return networkPort.getBandwidthLimits();
+    }
+
+    @Override
+    public void setBandwidthLimit(NetworkPort networkPort, String scope, long bytesPerSecond) {
+        networkPort.setBandwidthLimit(scope, bytesPerSecond);
+    }
+
+    @Override
+    public List<PluginStatus> getPluginStatus(PluginPort pluginPort) {
+        return pluginPort.getPluginStatus();
+    }
+
+    @Override
+    public void resumePlugin(PluginPort pluginPort, String name) {
+        pluginPort.resumePlugin(name);
+    }
+
+    @Override
+    public UIControlUpdate getUIControlUpdate(PluginPort pluginPort, long sinceVersion, long timeoutMillis) {
+        return pluginPort.getUIControlUpdate(sinceVersion, timeoutMillis);
+    }
 }
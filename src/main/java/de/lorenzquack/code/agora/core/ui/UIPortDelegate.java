@@ -18,6 +18,13 @@
  */
 package de.lorenzquack.code.agora.core.ui;
 
+import java.util.List;
+import java.util.Map;
+
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.PluginPort;
+import de.lorenzquack.code.agora.core.api.PluginStatus;
+import de.lorenzquack.code.agora.core.api.UIControlUpdate;
 import de.lorenzquack.code.agora.core.api.UIPort;
 
 
@@ -25,4 +32,9 @@ interface UIPortDelegate {
     void setUIPort(UIPort uiPort);
     String getVersionString();
     void setPassword(String oldPassword, String newPassword);
+    Map<String, Long> getBandwidthLimits(NetworkPort networkPort);
+    void setBandwidthLimit(NetworkPort networkPort, String scope, long bytesPerSecond);
+    List<PluginStatus> getPluginStatus(PluginPort pluginPort);
+    void resumePlugin(PluginPort pluginPort, String name);
+    UIControlUpdate getUIControlUpdate(PluginPort pluginPort, long sinceVersion, long timeoutMillis);
 }
@@ -20,6 +20,8 @@ package de.lorenzquack.code.agora.core.ui;
 
 import java.security.SecureRandom;
 import java.util.Collections;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
@@ -27,11 +29,22 @@ import org.mindrot.jbcrypt.BCrypt;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import de.lorenzquack.code.agora.core.api.Counter;
+import de.lorenzquack.code.agora.core.api.EventBus;
+import de.lorenzquack.code.agora.core.api.Gauge;
 import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MetricRegistry;
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.PluginPort;
+import de.lorenzquack.code.agora.core.api.PluginStatus;
+import de.lorenzquack.code.agora.core.api.UIControlUpdate;
 import de.lorenzquack.code.agora.core.api.UIPort;
 import de.lorenzquack.code.agora.core.api.exceptions.AuthenticationException;
 import de.lorenzquack.code.agora.core.api.exceptions.AuthorizationException;
 import de.lorenzquack.code.agora.core.api.exceptions.JSONConfigException;
+import de.lorenzquack.code.agora.core.jfr.FlightEvent;
+import de.lorenzquack.code.agora.core.jfr.FlightEvents;
+import de.lorenzquack.code.agora.core.metrics.NoopMetricRegistry;
 
 import static de.lorenzquack.code.agora.core.utils.Utils.bytesToLong;
 
@@ -46,8 +59,15 @@ public class UIPortImpl implements UIPort {
     private String _storedHashedPassword;
     private String _username;
     private JSONConfig _config;
+    private NetworkPort _networkPort;
+    private EventBus _eventBus;
+    private PluginPort _pluginPort;
+    private MetricRegistry _metrics;
+    private Counter _logins;
+    private Counter _loginFailures;
 
     public UIPortImpl() {
+        registerMetrics(NoopMetricRegistry.INSTANCE);
     }
 
     @Override
@@ -87,6 +107,17 @@ public class UIPortImpl implements UIPort {
 
     @Override
     public Object login(String username, String password) throws AuthenticationException {
+        FlightEvent event = FlightEvents.beginLogin(username, getBCryptRounds());
+        try {
+            Object token = authenticate(username, password);
+            event.setOutcome(FlightEvents.OUTCOME_OK);
+            return token;
+        } finally {
+            event.commit();
+        }
+    }
+
+    private Object authenticate(String username, String password) throws AuthenticationException {
         LOGGER.trace("login attempt for user '{}'", username);
         // SECURITY NOTE: To prevent side channel timing attacks we always evaluate both
         //                the user and the password. Additionally, when evaluating the
@@ -113,13 +144,30 @@ public class UIPortImpl implements UIPort {
         }
         boolean authenticationSuccessful = ((correctUser & correctPassword) > 0);
         if (!authenticationSuccessful) {
+            _loginFailures.increment();
             throw new AuthenticationException("Could not authenticate user '" + username + "'");
         }
         Object token = generateToken();
         _authorizedTokens.add(token);
+        _logins.increment();
         return token;
     }
 
+    /**
+     * @return the log2 of the rounds in the stored hash, which has the form {@code $2a$10$...}
+     */
+    private long getBCryptRounds() {
+        String hash = _storedHashedPassword;
+        if (hash == null || hash.length() < 7) {
+            return 0;
+        }
+        try {
+            return Integer.parseInt(hash.substring(4, 6));
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
     @Override
     public void logout(Object token) {
         _authorizedTokens.remove(token);
@@ -149,6 +197,73 @@ public class UIPortImpl implements UIPort {
         return getDelegate(token).getVersionString();
     }
 
+    @Override
+    public void setNetworkPort(NetworkPort networkPort) {
+        _networkPort = networkPort;
+    }
+
+    @Override
+    public void setEventBus(EventBus eventBus) {
+        _eventBus = eventBus;
+    }
+
+    @Override
+    public EventBus getEventBus() {
+        return _eventBus;
+    }
+
+    @Override
+    public void setPluginPort(PluginPort pluginPort) {
+        _pluginPort = pluginPort;
+    }
+
+    @Override
+    public void setMetricRegistry(MetricRegistry metrics) {
+        registerMetrics(metrics);
+    }
+
+    @Override
+    public MetricRegistry getMetricRegistry() {
+        return _metrics;
+    }
+
+    private void registerMetrics(MetricRegistry metrics) {
+        _metrics = metrics;
+        _logins = metrics.counter("agora_ui_logins_total", "Successful UI logins");
+        _loginFailures = metrics.counter("agora_ui_login_failures_total", "UI logins rejected for wrong credentials");
+        metrics.gauge("agora_ui_active_tokens", "UI sessions that are logged in", new Gauge() {
+            @Override
+            public long getValue() {
+                return _authorizedTokens.size();
+            }
+        });
+    }
+
+    @Override
+    public Map<String, Long> getBandwidthLimits(Object token) {
+        return getDelegate(token).getBandwidthLimits(_networkPort);
+    }
+
+    @Override
+    public void setBandwidthLimit(Object token, String scope, long bytesPerSecond) {
+        getDelegate(token).setBandwidthLimit(_networkPort, scope, bytesPerSecond);
+    }
+
+    @Override
+    public List<PluginStatus> getPluginStatus(Object token) {
+        return getDelegate(token).getPluginStatus(_pluginPort);
+    }
+
+    @Override
+    public void resumePlugin(Object token, String name) {
+        getDelegate(token).resumePlugin(_pluginPort, name);
+    }
+
+    @Override
+    public UIControlUpdate getUIControlUpdate(Object token, long sinceVersion, long timeoutMillis) {
+        return getDelegate(token).getUIControlUpdate(_pluginPort, sinceVersion, timeoutMillis);
+    }
+
     private UIPortDelegate getDelegate(Object token) {
         if (_authorizedTokens.contains(token)) {
             return AUTHORIZED_DELEGATE;
@@ -18,6 +18,13 @@
  */
 package de.lorenzquack.code.agora.core.ui;
 
+import java.util.List;
+import java.util.Map;
+
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.PluginPort;
+import de.lorenzquack.code.agora.core.api.PluginStatus;
+import de.lorenzquack.code.agora.core.api.UIControlUpdate;
 import de.lorenzquack.code.agora.core.api.UIPort;
 import de.lorenzquack.code.agora.core.api.exceptions.AuthorizationException;
 
@@ -37,4 +44,29 @@ final class UIPortUnauthorizedDelegate implements UIPortDelegate {
     public void setPassword(String oldPassword, String newPassword) {
         throw new AuthorizationException();
     }
+
+    @Override
+    public Map<String, Long> getBandwidthLimits(NetworkPort networkPort) {
+        throw new AuthorizationException();
+    }
+
+    @Override
+    public void setBandwidthLimit(NetworkPort networkPort, String scope, long bytesPerSecond) {
+        throw new AuthorizationException();
+    }
+
+    @Override
+    public List<PluginStatus> getPluginStatus(PluginPort pluginPort) {
+        throw new AuthorizationException();
+    }
+
+    @Override
+    public void resumePlugin(PluginPort pluginPort, String name) {
+        throw new AuthorizationException();
+    }
+
+    @Override
+    public UIControlUpdate getUIControlUpdate(PluginPort pluginPort, long sinceVersion, long timeoutMillis) {
+        throw new AuthorizationException();
+    }
 }
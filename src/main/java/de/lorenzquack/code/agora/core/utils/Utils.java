@@ -21,6 +21,8 @@ package de.lorenzquack.code.agora.core.utils;
 import java.io.InputStream;
 import java.nio.ByteBuffer;
 
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+
 
 public class Utils {
 
@@ -45,4 +47,24 @@ public class Utils {
         java.util.Scanner s = new java.util.Scanner(inputStream, encoding).useDelimiter("\\A");
         return s.hasNext() ? s.next() : "";
     }
+
+    public static int asIntOrDefault(JSONConfig config, int defaultValue) {
+        return config.exists() ? config.asInt() : defaultValue;
+    }
+
+    public static long asLongOrDefault(JSONConfig config, long defaultValue) {
+        return config.exists() ? config.asLong() : defaultValue;
+    }
+
+    public static double asDoubleOrDefault(JSONConfig config, double defaultValue) {
+        return config.exists() ? config.asDouble() : defaultValue;
+    }
+
+    public static boolean asBooleanOrDefault(JSONConfig config, boolean defaultValue) {
+        return config.exists() ? config.asBoolean() : defaultValue;
+    }
+
+    public static String asStringOrDefault(JSONConfig config, String defaultValue) {
+        return config.exists() ? config.asString() : defaultValue;
+    }
 }
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.utils;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+
+/**
+ * Creates threads either as daemon platform threads or, on JDKs that have them, as virtual threads. The source level
+ * of the project predates virtual threads, so they are reached through reflection; where they are missing a request
+ * for them is logged once and served with platform threads.
+ */
+public final class VirtualThreads {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VirtualThreads.class);
+    private static final Method OF_VIRTUAL;
+    private static final Method NEW_THREAD_PER_TASK_EXECUTOR;
+    private static final AtomicBoolean WARNED = new AtomicBoolean();
+
+    static {
+        Method ofVirtual = null;
+        Method newThreadPerTaskExecutor = null;
+        try {
+            ofVirtual = Thread.class.getMethod("ofVirtual");
+            newThreadPerTaskExecutor = Executors.class.getMethod("newThreadPerTaskExecutor", ThreadFactory.class);
+        } catch (NoSuchMethodException e) {
+            // before Java 21
+            ofVirtual = null;
+        }
+        OF_VIRTUAL = ofVirtual;
+        NEW_THREAD_PER_TASK_EXECUTOR = newThreadPerTaskExecutor;
+    }
+
+    private VirtualThreads() {
+    }
+
+    public static boolean isAvailable() {
+        return OF_VIRTUAL != null;
+    }
+
+    /**
+     * @param prefix the threads are named {@code prefix} followed by a counter
+     * @param virtual whether to create virtual threads if the JDK has them
+     */
+    public static ThreadFactory newThreadFactory(String prefix, boolean virtual) {
+        if (shouldUse(virtual)) {
+            Object builder = invoke(OF_VIRTUAL, null);
+            builder = invoke(findMethod(builder, "name", String.class, long.class), builder, prefix, 0L);
+            return (ThreadFactory) invoke(findMethod(builder, "factory"), builder);
+        }
+        return new ThreadFactoryBuilder().setNameFormat(prefix + "%d").setDaemon(true).build();
+    }
+
+    /**
+     * @return an executor that starts a new virtual thread for every task, or a cached pool of platform threads
+     */
+    public static ExecutorService newPerTaskExecutor(String prefix, boolean virtual) {
+        ThreadFactory factory = newThreadFactory(prefix, virtual);
+        if (shouldUse(virtual)) {
+            return (ExecutorService) invoke(NEW_THREAD_PER_TASK_EXECUTOR, null, factory);
+        }
+        return Executors.newCachedThreadPool(factory);
+    }
+
+    /**
+     * @return whether virtual threads are requested and available, a request that cannot be met is logged once
+     */
+    public static boolean shouldUse(boolean requested) {
+        if (!requested || isAvailable()) {
+            return requested;
+        }
+        if (WARNED.compareAndSet(false, true)) {
+            LOGGER.warn("virtual threads need Java 21 or later, running on {} with platform threads instead",
+                    System.getProperty("java.version"));
+        }
+        return false;
+    }
+
+    /**
+     * Looks the method up on the public interface that declares it, the builder classes themselves are internal.
+     */
+    private static Method findMethod(Object target, String name, Class<?>... parameterTypes) {
+        for (Class<?> type : target.getClass().getInterfaces()) {
+            try {
+                return type.getMethod(name, parameterTypes);
+            } catch (NoSuchMethodException e) {
+                // try the next one
+            }
+        }
+        throw new IllegalStateException("no method " + name + " on " + target.getClass());
+    }
+
+    private static Object invoke(Method method, Object target, Object... arguments) {
+        try {
+            return method.invoke(target, arguments);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException("could not call " + method, e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException("could not call " + method, e.getCause());
+        }
+    }
+}
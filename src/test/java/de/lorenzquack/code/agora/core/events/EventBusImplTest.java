@@ -0,0 +1,181 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.events;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.api.EventChannel;
+import de.lorenzquack.code.agora.core.api.EventFactory;
+import de.lorenzquack.code.agora.core.api.EventHandler;
+import de.lorenzquack.code.agora.core.api.EventTranslator;
+import de.lorenzquack.code.agora.core.api.WaitStrategy;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+
+public class EventBusImplTest {
+    private static final int PUBLISHERS = 4;
+    private static final int EVENTS_PER_PUBLISHER = 100000;
+    private static final EventFactory<LongEvent> FACTORY = new EventFactory<LongEvent>() {
+        @Override
+        public LongEvent newInstance() {
+            return new LongEvent();
+        }
+    };
+    private static final EventTranslator<LongEvent, Long> TRANSLATOR = new EventTranslator<LongEvent, Long>() {
+        @Override
+        public void translateTo(LongEvent event, long sequence, Long value) {
+            event._value = value;
+        }
+    };
+
+    private EventBusImpl _bus;
+
+    @Before
+    public void setUp() {
+        _bus = new EventBusImpl();
+        _bus.initialize();
+        _bus.configure(new JSONConfigImpl("{\"bufferSize\": 100}"));
+        _bus.start();
+    }
+
+    @After
+    public void tearDown() {
+        _bus.stop();
+        _bus.cleanup();
+    }
+
+    @Test
+    public void everySubscriberSeesEveryEventInOrder() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            EventChannel<LongEvent> channel = _bus.createChannel(waitStrategy.name(), LongEvent.class, FACTORY, 256,
+                    waitStrategy);
+            OrderCheckingHandler first = new OrderCheckingHandler();
+            OrderCheckingHandler second = new OrderCheckingHandler();
+            channel.subscribe(first);
+            channel.subscribe(second);
+            publishConcurrently(channel);
+            for (OrderCheckingHandler handler : new OrderCheckingHandler[]{first, second}) {
+                assertTrue(waitStrategy.name(), handler._done.await(10, TimeUnit.SECONDS));
+                assertEquals(waitStrategy.name(), 0, handler._outOfOrder.get());
+            }
+            channel.unsubscribe(first);
+            channel.unsubscribe(second);
+        }
+    }
+
+    @Test
+    public void slowSubscriberHoldsBackPublishers() throws Exception {
+        EventChannel<LongEvent> channel = _bus.createChannel("slow", LongEvent.class, FACTORY);
+        final CountDownLatch release = new CountDownLatch(1);
+        channel.subscribe(new EventHandler<LongEvent>() {
+            @Override
+            public void onEvent(LongEvent event, long sequence, boolean endOfBatch) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        int published = 0;
+        while (channel.tryPublish(TRANSLATOR, (long) published)) {
+            published++;
+        }
+        // the buffer size of 100 is rounded up to 128
+        assertTrue(String.valueOf(published), published >= 128 && published <= 129);
+        release.countDown();
+        channel.publish(TRANSLATOR, -1L);
+    }
+
+    @Test
+    public void channelsAreTyped() {
+        EventChannel<LongEvent> channel = _bus.createChannel("typed", LongEvent.class, FACTORY);
+        assertSame(channel, _bus.getChannel("typed", LongEvent.class));
+        assertNull(_bus.getChannel("untyped", LongEvent.class));
+        try {
+            _bus.getChannel("typed", String.class);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void publishConcurrently(final EventChannel<LongEvent> channel) throws InterruptedException {
+        Thread[] publishers = new Thread[PUBLISHERS];
+        for (int p = 0; p < PUBLISHERS; p++) {
+            final long publisher = p;
+            publishers[p] = new Thread() {
+                @Override
+                public void run() {
+                    for (long i = 0; i < EVENTS_PER_PUBLISHER; i++) {
+                        channel.publish(TRANSLATOR, publisher * EVENTS_PER_PUBLISHER + i);
+                    }
+                }
+            };
+            publishers[p].start();
+        }
+        for (Thread publisher : publishers) {
+            publisher.join();
+        }
+    }
+
+    private static class LongEvent {
+        private long _value;
+    }
+
+    /**
+     * Checks that the events of each publisher arrive in the order they were published.
+     */
+    private static class OrderCheckingHandler implements EventHandler<LongEvent> {
+        private final long[] _last = new long[PUBLISHERS];
+        private final AtomicLong _outOfOrder = new AtomicLong();
+        private final CountDownLatch _done = new CountDownLatch(1);
+        private int _received;
+
+        private OrderCheckingHandler() {
+            for (int p = 0; p < PUBLISHERS; p++) {
+                _last[p] = p * (long) EVENTS_PER_PUBLISHER - 1;
+            }
+        }
+
+        @Override
+        public void onEvent(LongEvent event, long sequence, boolean endOfBatch) {
+            int publisher = (int) (event._value / EVENTS_PER_PUBLISHER);
+            if (event._value != _last[publisher] + 1) {
+                _outOfOrder.incrementAndGet();
+            }
+            _last[publisher] = event._value;
+            if (++_received == PUBLISHERS * EVENTS_PER_PUBLISHER) {
+                _done.countDown();
+            }
+        }
+    }
+}
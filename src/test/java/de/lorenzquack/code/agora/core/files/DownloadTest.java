@@ -0,0 +1,238 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.AbstractMap;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.lorenzquack.code.agora.core.api.ChunkId;
+import de.lorenzquack.code.agora.core.api.FileManifest;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class DownloadTest {
+    private static final String CONFIG = "{\"minChunkSize\": 2048, \"averageChunkSize\": 8192, \"maxChunkSize\": 32768}";
+    private static final InetSocketAddress FAST = new InetSocketAddress("127.0.0.1", 7071);
+    private static final InetSocketAddress ALSO_FAST = new InetSocketAddress("127.0.0.1", 7072);
+    private static final InetSocketAddress SLOW = new InetSocketAddress("127.0.0.1", 7073);
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+    private final ScheduledExecutorService _scheduler = Executors.newScheduledThreadPool(2);
+    private FilePortImpl _remote;
+    private FilePortImpl _local;
+    private byte[] _content;
+    private ChunkId _manifestId;
+    private FileManifest _manifest;
+
+    @Before
+    public void setUp() throws IOException {
+        _remote = open("remote");
+        _local = open("local");
+        _content = new byte[2 * 1024 * 1024];
+        new Random(5).nextBytes(_content);
+        _manifestId = _remote.importFile(Files.write(_folder.getRoot().toPath().resolve("original"), _content));
+        _manifest = _remote.getManifest(_manifestId);
+        _local.writeChunk(_remote.readChunk(_manifestId));
+    }
+
+    @After
+    public void tearDown() {
+        _scheduler.shutdownNow();
+        _remote.stop();
+        _local.stop();
+    }
+
+    @Test
+    public void slowPeerIsDropped() throws Exception {
+        FakeSource source = new FakeSource(2);
+        source._delayMillis.put(SLOW, 40L);
+        Download download = new Download(source, _local.getChunkStore(), _manifestId, _manifest, 2, 3, 0.2, null);
+        ListenableFuture<FileManifest> result = download.start(Arrays.asList(FAST, ALSO_FAST, SLOW));
+        for (InetSocketAddress peer : Arrays.asList(FAST, ALSO_FAST, SLOW)) {
+            source.answerQuery(peer, all());
+        }
+        result.get(10, TimeUnit.SECONDS);
+
+        Path exported = _folder.getRoot().toPath().resolve("exported");
+        _local.exportFile(_manifestId, exported);
+        assertArrayEquals(_content, Files.readAllBytes(exported));
+        assertEquals(1, download.getDroppedPeers());
+        assertTrue(source.fetchesFrom(SLOW) < source.fetchesFrom(FAST));
+    }
+
+    @Test
+    public void rarestChunkIsRequestedFirst() throws Exception {
+        FakeSource source = new FakeSource(2);
+        BitSet allButOne = all();
+        allButOne.clear(5);
+        Download download = new Download(source, _local.getChunkStore(), _manifestId, _manifest, 2, 3, 0.2, null);
+        ListenableFuture<FileManifest> result = download.start(Arrays.asList(FAST, ALSO_FAST));
+        source.answerQuery(ALSO_FAST, allButOne);
+        source.answerQuery(FAST, all());
+        result.get(10, TimeUnit.SECONDS);
+
+        assertEquals(_manifest.getChunks().get(5).getId(), source.firstFetchFrom(FAST));
+    }
+
+    @Test
+    public void interruptedDownloadResumesAfterRestart() throws Exception {
+        FakeSource source = new FakeSource(2);
+        _local.stop();
+        _local = open("local", source);
+        _local.download(_manifestId, Collections.singletonList(FAST));
+        source.answerQuery(FAST, all());
+        int chunks = Download.getDistinctChunks(_manifest).size();
+        while (source.fetchesFrom(FAST) < chunks / 2) {
+            Thread.sleep(5);
+        }
+        _local.stop();
+
+        FakeSource resumed = new FakeSource(0);
+        _local = open("local", resumed);
+        ListenableFuture<FileManifest> download = _local.getDownloads().get(_manifestId);
+        resumed.answerQuery(FAST, all());
+        download.get(10, TimeUnit.SECONDS);
+
+        Path exported = _folder.getRoot().toPath().resolve("exported");
+        _local.exportFile(_manifestId, exported);
+        assertArrayEquals(_content, Files.readAllBytes(exported));
+        assertTrue(resumed.fetchesFrom(FAST) + " of " + chunks, resumed.fetchesFrom(FAST) <= chunks / 2 + 8);
+        assertTrue(_local.getDownloads().isEmpty());
+    }
+
+    private BitSet all() {
+        BitSet all = new BitSet();
+        all.set(0, _manifest.getChunks().size());
+        return all;
+    }
+
+    private FilePortImpl open(String name) {
+        return open(name, null);
+    }
+
+    private FilePortImpl open(String name, ChunkSource source) {
+        FilePortImpl files = new FilePortImpl();
+        files.setDataDirectory(_folder.getRoot().toPath().resolve(name));
+        files.setChunkSource(source);
+        files.initialize();
+        files.configure(new JSONConfigImpl(CONFIG));
+        files.start();
+        return files;
+    }
+
+    /**
+     * Serves chunks of {@link #_remote} after a per-peer delay.
+     */
+    private class FakeSource implements ChunkSource {
+        private final long _defaultDelayMillis;
+        private final Map<InetSocketAddress, Long> _delayMillis =
+                Collections.synchronizedMap(new HashMap<InetSocketAddress, Long>());
+        private final Map<InetSocketAddress, SettableFuture<BitSet>> _queries = new HashMap<>();
+        private final List<Map.Entry<InetSocketAddress, ChunkId>> _fetches = new CopyOnWriteArrayList<>();
+
+        private FakeSource(long defaultDelayMillis) {
+            _defaultDelayMillis = defaultDelayMillis;
+        }
+
+        @Override
+        public synchronized ListenableFuture<BitSet> queryChunks(InetSocketAddress peer, ChunkId manifestId) {
+            SettableFuture<BitSet> query = SettableFuture.create();
+            _queries.put(peer, query);
+            return query;
+        }
+
+        @Override
+        public ListenableFuture<ByteBuffer> fetchChunk(InetSocketAddress peer, final ChunkId id) {
+            _fetches.add(new AbstractMap.SimpleEntry<>(peer, id));
+            Long delayMillis = _delayMillis.get(peer);
+            final SettableFuture<ByteBuffer> result = SettableFuture.create();
+            _scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        result.set(_remote.readChunk(id));
+                    } catch (IOException e) {
+                        result.setException(e);
+                    }
+                }
+            }, delayMillis != null ? delayMillis : _defaultDelayMillis, TimeUnit.MILLISECONDS);
+            return result;
+        }
+
+        @Override
+        public ListenableFuture<FileManifest> syncManifest(InetSocketAddress peer, ChunkId manifestId,
+                                                           ChunkId baseManifestId) {
+            return Futures.immediateFailedFuture(new IOException("not supported"));
+        }
+
+        private void answerQuery(InetSocketAddress peer, BitSet available) {
+            SettableFuture<BitSet> query;
+            synchronized (this) {
+                query = _queries.get(peer);
+            }
+            query.set(available);
+        }
+
+        private int fetchesFrom(InetSocketAddress peer) {
+            int fetches = 0;
+            for (Map.Entry<InetSocketAddress, ChunkId> fetch : _fetches) {
+                fetches += fetch.getKey().equals(peer) ? 1 : 0;
+            }
+            return fetches;
+        }
+
+        private ChunkId firstFetchFrom(InetSocketAddress peer) {
+            for (Map.Entry<InetSocketAddress, ChunkId> fetch : _fetches) {
+                if (fetch.getKey().equals(peer)) {
+                    return fetch.getValue();
+                }
+            }
+            return null;
+        }
+    }
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.files;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.lorenzquack.code.agora.core.api.ChunkId;
+import de.lorenzquack.code.agora.core.api.FileManifest;
+import de.lorenzquack.code.agora.core.api.FileStoreStatistics;
+import de.lorenzquack.code.agora.core.api.MerkleTree;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class FilePortImplTest {
+    private static final String CONFIG = "{\"minChunkSize\": 2048, \"averageChunkSize\": 8192, \"maxChunkSize\": 32768}";
+    private static final String MAPPED_CONFIG = "{\"minChunkSize\": 2048, \"averageChunkSize\": 8192, "
+            + "\"maxChunkSize\": 32768, \"mmap\": {\"windowSize\": 131072, \"maxMappedBytes\": 262144, "
+            + "\"minPackSize\": 0}}";
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+    private FilePortImpl _files;
+
+    @Before
+    public void setUp() {
+        _files = open(CONFIG);
+    }
+
+    @After
+    public void tearDown() {
+        _files.stop();
+        _files.cleanup();
+    }
+
+    @Test
+    public void importedFileExportsIdentically() throws IOException {
+        byte[] content = randomBytes(300 * 1024, 1);
+        ChunkId manifestId = _files.importFile(write("original", content));
+        Path exported = _folder.getRoot().toPath().resolve("exported");
+        _files.exportFile(manifestId, exported);
+
+        assertArrayEquals(content, Files.readAllBytes(exported));
+        assertEquals(content.length, _files.getManifest(manifestId).getSize());
+    }
+
+    @Test
+    public void insertionOnlyChangesNearbyChunks() throws IOException {
+        byte[] content = randomBytes(512 * 1024, 2);
+        byte[] edited = new byte[content.length + 1];
+        System.arraycopy(content, 0, edited, 0, 1000);
+        System.arraycopy(content, 1000, edited, 1001, content.length - 1000);
+        FileManifest original = _files.getManifest(_files.importFile(write("original", content)));
+        int storedChunks = _files.getChunkStore().getChunkCount();
+        FileManifest modified = _files.getManifest(_files.importFile(write("edited", edited)));
+
+        Set<ChunkId> originalChunks = new HashSet<>();
+        for (FileManifest.Chunk chunk : original.getChunks()) {
+            originalChunks.add(chunk.getId());
+        }
+        int shared = 0;
+        for (FileManifest.Chunk chunk : modified.getChunks()) {
+            shared += originalChunks.contains(chunk.getId()) ? 1 : 0;
+        }
+        assertTrue("only " + shared + " of " + modified.getChunks().size() + " chunks shared",
+                shared >= modified.getChunks().size() - 2);
+        // the changed chunk(s) plus the new manifest
+        assertTrue(_files.getChunkStore().getChunkCount() - storedChunks <= 3);
+    }
+
+    @Test
+    public void reopenedStoreDropsTornRecord() throws IOException {
+        byte[] content = randomBytes(100 * 1024, 3);
+        ChunkId manifestId = _files.importFile(write("original", content));
+        int chunkCount = _files.getChunkStore().getChunkCount();
+        _files.stop();
+        Path pack = _folder.getRoot().toPath().resolve("files").resolve("pack-000001.dat");
+        Files.write(pack, new byte[]{1, 2, 3}, StandardOpenOption.APPEND);
+
+        _files = open(CONFIG);
+        assertEquals(chunkCount, _files.getChunkStore().getChunkCount());
+        Path exported = _folder.getRoot().toPath().resolve("exported");
+        _files.exportFile(manifestId, exported);
+        assertArrayEquals(content, Files.readAllBytes(exported));
+        ChunkId id = _files.writeChunk(ByteBuffer.wrap(randomBytes(100, 4)));
+        assertEquals(100, _files.readChunk(id).remaining());
+    }
+
+    @Test
+    public void merkleTreesDifferOnlyAtChangedChunks() throws IOException {
+        byte[] content = randomBytes(512 * 1024, 5);
+        byte[] edited = content.clone();
+        edited[300 * 1024] ^= 1;
+        FileManifest original = _files.getManifest(_files.importFile(write("original", content)));
+        ChunkId editedId = _files.importFile(write("edited", edited));
+        FileManifest modified = _files.getManifest(editedId);
+
+        List<Integer> changed = new ArrayList<>();
+        for (int i = 0; i < modified.getChunks().size(); i++) {
+            if (i >= original.getChunks().size()
+                    || !original.getChunks().get(i).getId().equals(modified.getChunks().get(i).getId())) {
+                changed.add(i);
+            }
+        }
+        MerkleTree tree = MerkleTree.build(original.getChunks(), null);
+        assertEquals(changed, tree.getDifferingLeaves(_files.getMerkleTree(editedId)));
+        assertArrayEquals(modified.getMerkleRoot(), _files.getMerkleTree(editedId).getRoot());
+    }
+
+    @Test
+    public void verifyDiscardsCorruptChunk() throws IOException {
+        byte[] content = randomBytes(100 * 1024, 6);
+        ChunkId manifestId = _files.importFile(write("original", content));
+        ChunkId first = _files.getManifest(manifestId).getChunks().get(0).getId();
+        assertTrue(_files.verify(manifestId).isEmpty());
+        Path pack = _folder.getRoot().toPath().resolve("files").resolve("pack-000001.dat");
+        try (FileChannel channel = FileChannel.open(pack, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{42}), 100);
+        }
+
+        assertEquals(Collections.singletonList(first), _files.verify(manifestId));
+        assertFalse(_files.hasChunk(first));
+        _files.stop();
+        _files = open(CONFIG);
+        assertFalse(_files.hasChunk(first));
+    }
+
+    @Test
+    public void mappedReadsMatchPositionalReads() throws IOException {
+        _files.stop();
+        _files.cleanup();
+        _files = open(MAPPED_CONFIG);
+        byte[] content = randomBytes(1024 * 1024, 7);
+        ChunkId manifestId = _files.importFile(write("original", content));
+        Path exported = _folder.getRoot().toPath().resolve("exported");
+        _files.exportFile(manifestId, exported);
+        _files.exportFile(manifestId, exported);
+
+        assertArrayEquals(content, Files.readAllBytes(exported));
+        FileStoreStatistics statistics = _files.getStatistics();
+        assertTrue(statistics.toString(), statistics.getMappedReads() > 0);
+        assertTrue(statistics.toString(), statistics.getMappedBytes() <= 262144);
+        // eight windows were mapped but only two fit at a time
+        assertTrue(statistics.toString(), statistics.getMappingMisses() > 8);
+    }
+
+    private FilePortImpl open(String config) {
+        FilePortImpl files = new FilePortImpl();
+        files.setDataDirectory(_folder.getRoot().toPath());
+        files.initialize();
+        files.configure(new JSONConfigImpl(config));
+        files.start();
+        return files;
+    }
+
+    private Path write(String name, byte[] content) throws IOException {
+        return Files.write(_folder.getRoot().toPath().resolve(name), content);
+    }
+
+    private static byte[] randomBytes(int size, long seed) {
+        byte[] bytes = new byte[size];
+        new Random(seed).nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.jfr;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import jdk.jfr.Configuration;
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.lorenzquack.code.agora.core.config.ConfigurationStoreAdaptorJSONFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class FlightEventsTest {
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    @Test
+    public void disabledEventsAreNotAllocated() {
+        assertSame(FlightEvents.NONE, FlightEvents.beginConfigLoad("core"));
+    }
+
+    @Test
+    public void recordsConfigStoresWithTheShippedSettings() throws Exception {
+        assertTrue(FlightEvents.isAvailable());
+        Path dump = _folder.getRoot().toPath().resolve("agora.jfr");
+        try (Recording recording = new Recording(Configuration.create(Paths.get("src/dist/agora.jfc")))) {
+            recording.start();
+            ConfigurationStoreAdaptorJSONFile store = new ConfigurationStoreAdaptorJSONFile();
+            store.setConfigurationDirectory(_folder.getRoot().toPath());
+            store.createStore("test", "{\"key\": \"value\"}");
+            store.save("test");
+            recording.stop();
+            recording.dump(dump);
+        }
+        List<RecordedEvent> events = new ArrayList<>();
+        for (RecordedEvent event : RecordingFile.readAllEvents(dump)) {
+            if (event.getEventType().getName().equals("agora.ConfigStore")) {
+                events.add(event);
+            }
+        }
+        assertEquals(1, events.size());
+        RecordedEvent event = events.get(0);
+        assertEquals("test", event.getString("store"));
+        assertEquals(FlightEvents.OUTCOME_OK, event.getString("outcome"));
+        assertTrue(event.getLong("size") > 0);
+    }
+}
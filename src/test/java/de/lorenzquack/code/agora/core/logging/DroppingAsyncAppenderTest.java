@@ -0,0 +1,79 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.logging;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.AppenderBase;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+
+public class DroppingAsyncAppenderTest {
+    private final LoggerContext _context = new LoggerContext();
+
+    @Test
+    public void dropsInsteadOfBlockingWhenTheQueueIsFull() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<ILoggingEvent> written = new CopyOnWriteArrayList<>();
+        AppenderBase<ILoggingEvent> slowAppender = new AppenderBase<ILoggingEvent>() {
+            @Override
+            protected void append(ILoggingEvent event) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                written.add(event);
+            }
+        };
+        slowAppender.setContext(_context);
+        slowAppender.start();
+        DroppingAsyncAppender appender = new DroppingAsyncAppender();
+        appender.setContext(_context);
+        appender.setName("test");
+        appender.setQueueSize(2);
+        appender.addAppender(slowAppender);
+        appender.start();
+
+        for (int i = 0; i < 10; i++) {
+            appender.doAppend(new LoggingEvent(getClass().getName(), _context.getLogger("test"), Level.INFO,
+                    "event {}", null, new Object[]{i}));
+        }
+        // the worker holds at most one event and the queue two
+        assertTrue(appender.getDroppedEvents() >= 7);
+        release.countDown();
+        appender.stop();
+
+        ILoggingEvent report = written.get(written.size() - 1);
+        assertEquals(Level.WARN, report.getLevel());
+        assertEquals("dropped " + appender.getDroppedEvents() + " log events, the queue of 2 was full",
+                report.getFormattedMessage());
+        assertEquals(10, written.size() - 1 + appender.getDroppedEvents());
+        assertEquals("event 0", written.get(0).getFormattedMessage());
+    }
+}
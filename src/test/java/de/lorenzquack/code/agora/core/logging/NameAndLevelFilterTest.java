@@ -0,0 +1,49 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.logging;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.LoggerContext;
+import ch.qos.logback.classic.spi.LoggingEvent;
+import ch.qos.logback.core.spi.FilterReply;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class NameAndLevelFilterTest {
+    private final LoggerContext _context = new LoggerContext();
+
+    @Test
+    public void remembersDecisionsUntilTheNameChanges() {
+        NameAndLevelFilter filter = new NameAndLevelFilter("org\\.eclipse\\.jetty\\..*", Level.WARN);
+        assertEquals(FilterReply.ACCEPT, filter.decide(event("org.eclipse.jetty.Server", Level.WARN)));
+        assertEquals(FilterReply.ACCEPT, filter.decide(event("org.eclipse.jetty.Server", Level.ERROR)));
+        assertEquals(FilterReply.NEUTRAL, filter.decide(event("org.eclipse.jetty.Server", Level.INFO)));
+        assertEquals(FilterReply.NEUTRAL, filter.decide(event("de.lorenzquack.code.Agora", Level.WARN)));
+
+        filter.setLoggerName("de\\.lorenzquack\\..*");
+        assertEquals(FilterReply.NEUTRAL, filter.decide(event("org.eclipse.jetty.Server", Level.WARN)));
+        assertEquals(FilterReply.ACCEPT, filter.decide(event("de.lorenzquack.code.Agora", Level.WARN)));
+    }
+
+    private LoggingEvent event(String loggerName, Level level) {
+        return new LoggingEvent(getClass().getName(), _context.getLogger(loggerName), level, "message", null, null);
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.metrics;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.api.Counter;
+import de.lorenzquack.code.agora.core.api.Gauge;
+import de.lorenzquack.code.agora.core.api.Timer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class MetricRegistryImplTest {
+    @Test
+    public void countsFromManyThreads() throws InterruptedException {
+        final Counter counter = new MetricRegistryImpl().counter("test_total", "test");
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread thread = new Thread() {
+                @Override
+                public void run() {
+                    for (int j = 0; j < 100000; j++) {
+                        counter.increment();
+                    }
+                }
+            };
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(800000, counter.get());
+    }
+
+    @Test
+    public void writesPrometheusTextFormat() throws IOException {
+        MetricRegistryImpl metrics = new MetricRegistryImpl();
+        metrics.counter("agora_requests_total", "Requests", "path", "/a\"b").add(3);
+        assertSame(metrics.counter("agora_requests_total", "Requests", "path", "/a\"b"),
+                metrics.counter("agora_requests_total", "Requests", "path", "/a\"b"));
+        metrics.gauge("agora_queue", "Queued\nitems", new Gauge() {
+            @Override
+            public long getValue() {
+                return 7;
+            }
+        });
+        Timer timer = metrics.timer("agora_duration_seconds", "Duration");
+        timer.record(TimeUnit.MILLISECONDS.toNanos(2));
+        timer.record(TimeUnit.MILLISECONDS.toNanos(2));
+
+        StringBuilder text = new StringBuilder();
+        metrics.writeTextFormat(text);
+        String output = text.toString();
+        assertTrue(output, output.startsWith("# HELP agora_duration_seconds Duration\n"
+                + "# TYPE agora_duration_seconds summary\n"
+                + "agora_duration_seconds{quantile=\"0.5\"} 0.002"));
+        assertTrue(output, output.contains("agora_duration_seconds_sum 0.004\n"
+                + "agora_duration_seconds_count 2\n"
+                + "# HELP agora_queue Queued\\nitems\n"
+                + "# TYPE agora_queue gauge\n"
+                + "agora_queue 7\n"
+                + "# HELP agora_requests_total Requests\n"
+                + "# TYPE agora_requests_total counter\n"
+                + "agora_requests_total{path=\"/a\\\"b\"} 3\n"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void nameCannotChangeType() {
+        MetricRegistryImpl metrics = new MetricRegistryImpl();
+        metrics.counter("agora_things", "Things");
+        metrics.timer("agora_things", "Things");
+    }
+}
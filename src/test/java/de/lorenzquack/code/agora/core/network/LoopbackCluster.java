@@ -0,0 +1,140 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+import de.lorenzquack.code.agora.core.config.ConfigurationStoreAdaptorJSONFile;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+
+
+/**
+ * Nodes of the network layer connected through a {@link LoopbackNetwork}, for tests. Node {@code i} listens on
+ * {@code 127.0.0.<i + 1>} and every node but the first bootstraps from the first.
+ */
+public class LoopbackCluster {
+    private static final int PORT = 7070;
+
+    private final ObjectMapper _jsonMapper = new ObjectMapper();
+    private final LoopbackNetwork _network = new LoopbackNetwork(2);
+    private final Path _directory;
+    private final ObjectNode _networkConfig;
+    private final List<Node> _nodes = new ArrayList<>();
+
+    /**
+     * @param networkConfig the {@code network} section for all nodes; transports and bootstrap are filled in
+     */
+    public LoopbackCluster(Path directory, String networkConfig) throws IOException {
+        _directory = directory;
+        _networkConfig = (ObjectNode) _jsonMapper.readTree(networkConfig);
+        _networkConfig.putObject("transports").put("control", "loopback").put("bulk", "loopback");
+    }
+
+    public Node addNode() throws IOException {
+        int index = _nodes.size();
+        Node node = new Node(index, Files.createDirectory(_directory.resolve("node" + index)));
+        _nodes.add(node);
+        node.start();
+        return node;
+    }
+
+    public List<Node> getNodes() {
+        return _nodes;
+    }
+
+    public void shutdown() {
+        for (Node node : _nodes) {
+            node.stop();
+        }
+        _network.shutdown();
+    }
+
+    public class Node {
+        private final int _index;
+        private final Path _configurationDirectory;
+        private NetworkAdaptorLoopback _adaptor;
+        private NetworkPortImpl _port;
+
+        private Node(int index, Path configurationDirectory) {
+            _index = index;
+            _configurationDirectory = configurationDirectory;
+        }
+
+        public NetworkPortImpl getPort() {
+            return _port;
+        }
+
+        /**
+         * Cuts the node off the network, as if its cable was pulled. The node itself keeps running.
+         */
+        public void disconnect() {
+            _adaptor.stop();
+        }
+
+        public void reconnect() {
+            _adaptor.start();
+        }
+
+        /**
+         * Stops the node and starts it again with the same node id, as a new process would.
+         */
+        public void restart() {
+            stop();
+            start();
+        }
+
+        private void start() {
+            ObjectNode config = _networkConfig.deepCopy();
+            if (_index > 0) {
+                config.putArray("bootstrap").add(hostOf(0) + ":" + PORT);
+            }
+            ConfigurationStoreAdaptorJSONFile configurationStore = new ConfigurationStoreAdaptorJSONFile();
+            configurationStore.setConfigurationDirectory(_configurationDirectory);
+            _adaptor = new NetworkAdaptorLoopback(_network);
+            _port = new NetworkPortImpl();
+            _adaptor.setNetworkCore(_port);
+            _port.addNetworkAdaptor("loopback", _adaptor);
+            _port.setConfigurationStore(configurationStore);
+            _adaptor.initialize();
+            _port.initialize();
+            _adaptor.configure(new JSONConfigImpl(
+                    _jsonMapper.createObjectNode().put("host", hostOf(_index)).put("port", PORT)));
+            _port.configure(new JSONConfigImpl(config));
+            _adaptor.start();
+            _port.start();
+        }
+
+        private void stop() {
+            _port.stop();
+            _adaptor.stop();
+            _port.cleanup();
+        }
+    }
+
+    private static String hostOf(int index) {
+        return "127.0.0." + (index + 1);
+    }
+}
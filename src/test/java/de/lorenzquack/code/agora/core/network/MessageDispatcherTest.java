@@ -0,0 +1,136 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.api.Delivery;
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.NetworkAdaptor;
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.api.StreamedFrame;
+import de.lorenzquack.code.agora.core.metrics.NoopMetricRegistry;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class MessageDispatcherTest {
+    private static final InetSocketAddress LOCAL = new InetSocketAddress("127.0.0.1", 7000);
+    private static final InetSocketAddress REMOTE = new InetSocketAddress("127.0.0.2", 7000);
+    private static final InetSocketAddress OTHER = new InetSocketAddress("127.0.0.3", 7000);
+
+    private final Random _random = new Random(42);
+    private final CapturingAdaptor _adaptor = new CapturingAdaptor();
+    private ScheduledExecutorService _scheduler;
+    private MessageDispatcher _dispatcher;
+
+    @Before
+    public void setUp() {
+        _scheduler = Executors.newSingleThreadScheduledExecutor();
+        _dispatcher = new MessageDispatcher(NodeId.random(_random), _scheduler, NoopMetricRegistry.INSTANCE);
+        _dispatcher.setNetworkAdaptor(MessageClass.CONTROL, _adaptor);
+        _dispatcher.setNetworkAdaptor(MessageClass.BULK, _adaptor);
+    }
+
+    @After
+    public void tearDown() {
+        _scheduler.shutdownNow();
+    }
+
+    @Test
+    public void onlyTheAddresseeCanAnswerARequest() throws Exception {
+        ListenableFuture<Message> response = _dispatcher.request(REMOTE, MessageType.PING, ByteBuffer.allocate(0));
+        Message request = Message.decode(LOCAL, _adaptor._frames.take());
+
+        _dispatcher.receive(OTHER, pong(request.getRequestId(), OTHER));
+        assertFalse(response.isDone());
+
+        _dispatcher.receive(REMOTE, pong(request.getRequestId(), REMOTE));
+        assertTrue(response.isDone());
+        assertEquals(REMOTE, response.get().getSender().getAddress());
+    }
+
+    private ByteBuffer pong(long requestId, InetSocketAddress sender) {
+        return new Message(MessageType.PONG, new Peer(NodeId.random(_random), sender), requestId,
+                ByteBuffer.allocate(0)).encode();
+    }
+
+    private static class CapturingAdaptor implements NetworkAdaptor {
+        private final LinkedBlockingQueue<ByteBuffer> _frames = new LinkedBlockingQueue<>();
+
+        @Override
+        public void setNetworkCore(NetworkPort core) {
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return LOCAL;
+        }
+
+        @Override
+        public int getMaxFrameSize() {
+            return 65536;
+        }
+
+        @Override
+        public void send(InetSocketAddress destination, ByteBuffer frame, Delivery delivery) throws IOException {
+            _frames.add(frame.duplicate());
+        }
+
+        @Override
+        public void send(InetSocketAddress destination, StreamedFrame frame, Delivery delivery) throws IOException {
+            throw new IOException("not supported");
+        }
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void configure(JSONConfig config) {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void cleanup() {
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.network.dht.RoutingTable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+
+public class NetworkAdaptorLoopbackTest {
+    private static final int NODES = 8;
+    private static final long TIMEOUT_MILLIS = 10000;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private LoopbackCluster _cluster;
+
+    @Before
+    public void setUp() throws Exception {
+        _cluster = new LoopbackCluster(_folder.getRoot().toPath(),
+                "{\"requestTimeoutMillis\": 500, \"gossip\": {\"protocolPeriodMillis\": 100}}");
+        for (int i = 0; i < NODES; i++) {
+            _cluster.addNode();
+        }
+    }
+
+    @After
+    public void tearDown() {
+        _cluster.shutdown();
+    }
+
+    @Test
+    public void lookupFindsEveryNode() throws Exception {
+        awaitBootstrap();
+        for (LoopbackCluster.Node node : _cluster.getNodes()) {
+            for (LoopbackCluster.Node target : _cluster.getNodes()) {
+                if (node == target) {
+                    continue;
+                }
+                NodeId targetId = target.getPort().getLocalNodeId();
+                List<Peer> closest = node.getPort().lookup(targetId).get(TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                assertFalse(closest.isEmpty());
+                assertEquals(targetId, closest.get(0).getNodeId());
+            }
+        }
+    }
+
+    @Test
+    public void everyNodeLearnsAboutEveryOtherNode() throws Exception {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        for (LoopbackCluster.Node node : _cluster.getNodes()) {
+            while (node.getPort().getMembers().size() < NODES - 1 && System.currentTimeMillis() < deadline) {
+                TimeUnit.MILLISECONDS.sleep(50);
+            }
+            assertEquals(NODES - 1, node.getPort().getMembers().size());
+        }
+    }
+
+    /**
+     * Waits until the bootstrap node heard from all others, before that a lookup might start with an empty routing
+     * table.
+     */
+    private void awaitBootstrap() throws InterruptedException {
+        RoutingTable routingTable = _cluster.getNodes().get(0).getPort().getKademlia().getRoutingTable();
+        long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+        while (routingTable.getAllPeers().size() < NODES - 1 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertEquals(NODES - 1, routingTable.getAllPeers().size());
+    }
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.api.Delivery;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+import de.lorenzquack.code.agora.core.metrics.MetricRegistryImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class NetworkAdaptorTCPTest {
+    private static final byte REQUEST = 0;
+    private static final byte RESPONSE = 1;
+
+    private final List<NetworkAdaptorTCP> _adaptors = new ArrayList<>();
+
+    @After
+    public void tearDown() {
+        for (NetworkAdaptorTCP adaptor : _adaptors) {
+            adaptor.stop();
+            adaptor.cleanup();
+        }
+    }
+
+    @Test
+    public void framesQueuedWithinTheDelayShareAWrite() throws Exception {
+        LinkedBlockingQueue<ByteBuffer> received = new LinkedBlockingQueue<>();
+        NetworkAdaptorTCP sender = startAdaptor("\"coalesceMaxDelayMicros\": 50000", new Recorder(received));
+        NetworkAdaptorTCP receiver = startAdaptor("", new Recorder(received));
+
+        for (int i = 0; i < 10; i++) {
+            sender.send(receiver.getLocalAddress(), frame(REQUEST, i, 100), Delivery.RELIABLE);
+        }
+
+        for (int i = 0; i < 10; i++) {
+            ByteBuffer frame = received.poll(5, TimeUnit.SECONDS);
+            assertEquals(i, frame.getInt(1));
+        }
+        // the flush records its statistics after the write returned
+        long deadline = System.currentTimeMillis() + 5000;
+        while (sender.getFramesPerWrite() == 0 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        assertTrue("frames per write: " + sender.getFramesPerWrite(), sender.getFramesPerWrite() > 1);
+
+        MetricRegistryImpl metrics = new MetricRegistryImpl();
+        sender.registerMetrics(metrics);
+        StringBuilder output = new StringBuilder();
+        metrics.writeTextFormat(output);
+        assertTrue(output.toString(), output.toString().contains("agora_network_tcp_written_frames 10\n"));
+    }
+
+    @Test
+    public void writerWaitsForASlowReader() throws Exception {
+        final NetworkAdaptorTCP sender = startAdaptor("\"maxQueuedBytes\": 65536", new Recorder(null));
+        try (ServerSocket slowReader = new ServerSocket()) {
+            slowReader.setReceiveBufferSize(16 * 1024);
+            slowReader.bind(new InetSocketAddress("127.0.0.1", 0));
+            final InetSocketAddress destination = (InetSocketAddress) slowReader.getLocalSocketAddress();
+            final int frames = 128;
+            final int frameSize = 256 * 1024;
+            final CountDownLatch sent = new CountDownLatch(1);
+            Thread writer = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        for (int i = 0; i < frames; i++) {
+                            sender.send(destination, frame(REQUEST, i, frameSize), Delivery.RELIABLE);
+                        }
+                        sent.countDown();
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+            };
+            writer.start();
+            try (Socket connection = slowReader.accept()) {
+                assertFalse("the writer did not wait", sent.await(500, TimeUnit.MILLISECONDS));
+
+                long expected = 4 + frames * (4L + frameSize);
+                InputStream in = connection.getInputStream();
+                byte[] buffer = new byte[64 * 1024];
+                long total = 0;
+                while (total < expected) {
+                    int read = in.read(buffer);
+                    if (read < 0) {
+                        break;
+                    }
+                    total += read;
+                }
+                assertEquals(expected, total);
+                assertTrue(sent.await(5, TimeUnit.SECONDS));
+            }
+        }
+    }
+
+    /**
+     * Both nodes send more than fits into the socket buffers (up to 32 MiB on Linux) and queues, and answer every request they receive
+     * while they are still sending. Handling frames on the reader threads would block both of them in a send.
+     */
+    @Test(timeout = 30000)
+    public void twoWayBulkTransferCompletes() throws Exception {
+        final int requests = 512;
+        final int frameSize = 128 * 1024;
+        CountDownLatch responsesToA = new CountDownLatch(requests);
+        CountDownLatch responsesToB = new CountDownLatch(requests);
+        Responder responderA = new Responder(responsesToA);
+        Responder responderB = new Responder(responsesToB);
+        String options = "\"maxQueuedBytes\": 65536, \"maxInboundQueuedBytes\": " + 2L * requests * frameSize;
+        final NetworkAdaptorTCP a = startAdaptor(options, responderA);
+        final NetworkAdaptorTCP b = startAdaptor(options, responderB);
+        responderA.answerVia(a, b.getLocalAddress());
+        responderB.answerVia(b, a.getLocalAddress());
+
+        Thread senderB = new Thread() {
+            @Override
+            public void run() {
+                sendRequests(b, a.getLocalAddress(), requests, frameSize);
+            }
+        };
+        senderB.start();
+        sendRequests(a, b.getLocalAddress(), requests, frameSize);
+        senderB.join();
+
+        assertTrue(responsesToA.await(20, TimeUnit.SECONDS));
+        assertTrue(responsesToB.await(20, TimeUnit.SECONDS));
+        assertEquals(0, a.getDroppedFrames() + b.getDroppedFrames());
+    }
+
+    private NetworkAdaptorTCP startAdaptor(String options, NetworkPortImpl core) {
+        NetworkAdaptorTCP adaptor = new NetworkAdaptorTCP();
+        adaptor.setNetworkCore(core);
+        adaptor.initialize();
+        adaptor.configure(new JSONConfigImpl("{\"host\": \"127.0.0.1\", \"port\": 0, \"compression\": {\"codecs\": []}"
+                + (options.isEmpty() ? "" : ", " + options) + "}"));
+        adaptor.start();
+        _adaptors.add(adaptor);
+        return adaptor;
+    }
+
+    private static void sendRequests(NetworkAdaptorTCP adaptor, InetSocketAddress destination, int count, int size) {
+        try {
+            for (int i = 0; i < count; i++) {
+                adaptor.send(destination, frame(REQUEST, i, size), Delivery.RELIABLE);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static ByteBuffer frame(byte kind, int index, int size) {
+        ByteBuffer frame = ByteBuffer.allocate(size);
+        frame.put(0, kind);
+        frame.putInt(1, index);
+        return frame;
+    }
+
+    private static class Recorder extends NetworkPortImpl {
+        private final LinkedBlockingQueue<ByteBuffer> _received;
+
+        Recorder(LinkedBlockingQueue<ByteBuffer> received) {
+            _received = received;
+        }
+
+        @Override
+        public void receive(InetSocketAddress source, ByteBuffer frame) {
+            _received.add(frame);
+        }
+    }
+
+    /**
+     * Answers requests with a frame of the same size, like a node serving chunks.
+     */
+    private static class Responder extends NetworkPortImpl {
+        private final CountDownLatch _responses;
+        private volatile NetworkAdaptorTCP _adaptor;
+        private volatile InetSocketAddress _peer;
+
+        Responder(CountDownLatch responses) {
+            _responses = responses;
+        }
+
+        void answerVia(NetworkAdaptorTCP adaptor, InetSocketAddress peer) {
+            _adaptor = adaptor;
+            _peer = peer;
+        }
+
+        @Override
+        public void receive(InetSocketAddress source, ByteBuffer frame) {
+            if (frame.get(0) == RESPONSE) {
+                _responses.countDown();
+                return;
+            }
+            try {
+                _adaptor.send(_peer, frame(RESPONSE, frame.getInt(1), frame.remaining()), Delivery.RELIABLE);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.api.Delivery;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+import de.lorenzquack.code.agora.core.metrics.MetricRegistryImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+/**
+ * Talks to the adaptor through a plain datagram socket that plays the remote peer, so that the test decides which
+ * datagrams get lost or repeated.
+ */
+public class NetworkAdaptorUDPTest {
+    private static final byte KIND_RELIABLE_DATA = 1;
+    private static final byte KIND_ACK = 2;
+    private static final long RETRANSMIT_TIMEOUT_MILLIS = 50;
+    private static final int MAX_RETRANSMITS = 2;
+
+    private final LinkedBlockingQueue<String> _delivered = new LinkedBlockingQueue<>();
+    private NetworkAdaptorUDP _adaptor;
+    private DatagramSocket _peer;
+
+    @Before
+    public void setUp() throws Exception {
+        _adaptor = new NetworkAdaptorUDP();
+        _adaptor.setNetworkCore(new NetworkPortImpl() {
+            @Override
+            public void receive(InetSocketAddress source, ByteBuffer frame) {
+                _delivered.add(StandardCharsets.UTF_8.decode(frame).toString());
+            }
+        });
+        _adaptor.initialize();
+        _adaptor.configure(new JSONConfigImpl("{\"host\": \"127.0.0.1\", \"port\": 0, \"retransmitTimeoutMillis\": "
+                + RETRANSMIT_TIMEOUT_MILLIS + ", \"maxRetransmits\": " + MAX_RETRANSMITS + "}"));
+        _adaptor.start();
+        _peer = new DatagramSocket(new InetSocketAddress("127.0.0.1", 0));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        _peer.close();
+        _adaptor.stop();
+        _adaptor.cleanup();
+    }
+
+    @Test
+    public void unacknowledgedDatagramsAreRetransmittedUntilAcknowledged() throws Exception {
+        _adaptor.send((InetSocketAddress) _peer.getLocalSocketAddress(), utf8("hello"), Delivery.RELIABLE);
+
+        ByteBuffer first = receive();
+        ByteBuffer second = receive();
+        assertEquals(first, second);
+        assertEquals(KIND_RELIABLE_DATA, first.get(0));
+
+        sendToAdaptor(KIND_ACK, first.getInt(1), first.getInt(5), "");
+        drain();
+        assertNull(receiveWithin(4 * RETRANSMIT_TIMEOUT_MILLIS));
+    }
+
+    @Test
+    public void unacknowledgedDatagramsAreCountedWhenGivenUp() throws Exception {
+        _adaptor.send((InetSocketAddress) _peer.getLocalSocketAddress(), utf8("hello"), Delivery.RELIABLE);
+
+        for (int i = 0; i <= MAX_RETRANSMITS; i++) {
+            assertEquals(KIND_RELIABLE_DATA, receive().get(0));
+        }
+        assertNull(receiveWithin(4 * (RETRANSMIT_TIMEOUT_MILLIS << MAX_RETRANSMITS)));
+        assertEquals(1, _adaptor.getUndelivered());
+    }
+
+    @Test
+    public void duplicatesAreAcknowledgedButDeliveredOnce() throws Exception {
+        sendToAdaptor(KIND_RELIABLE_DATA, 42, 1, "hello");
+        sendToAdaptor(KIND_RELIABLE_DATA, 42, 1, "hello");
+
+        assertEquals(KIND_ACK, receive().get(0));
+        assertEquals(KIND_ACK, receive().get(0));
+        assertEquals("hello", _delivered.poll(2, TimeUnit.SECONDS));
+        assertNull(_delivered.poll(100, TimeUnit.MILLISECONDS));
+
+        MetricRegistryImpl metrics = new MetricRegistryImpl();
+        _adaptor.registerMetrics(metrics);
+        StringBuilder output = new StringBuilder();
+        metrics.writeTextFormat(output);
+        assertTrue(output.toString(), output.toString().contains("agora_network_udp_received_datagrams 2\n"));
+    }
+
+    @Test
+    public void restartedPeerIsNotTakenForADuplicate() throws Exception {
+        sendToAdaptor(KIND_RELIABLE_DATA, 42, 1, "before restart");
+        // a new process starts counting at 1 again, but under a new epoch
+        sendToAdaptor(KIND_RELIABLE_DATA, 43, 1, "after restart");
+
+        assertEquals("before restart", _delivered.poll(2, TimeUnit.SECONDS));
+        assertEquals("after restart", _delivered.poll(2, TimeUnit.SECONDS));
+    }
+
+    private void sendToAdaptor(byte kind, int epoch, int sequence, String body) throws Exception {
+        ByteBuffer datagram = ByteBuffer.allocate(9 + body.length());
+        datagram.put(kind).putInt(epoch).putInt(sequence).put(body.getBytes(StandardCharsets.UTF_8));
+        _peer.send(new DatagramPacket(datagram.array(), datagram.capacity(), _adaptor.getLocalAddress()));
+    }
+
+    private ByteBuffer receive() throws Exception {
+        ByteBuffer datagram = receiveWithin(2000);
+        assertNotNull("no datagram received", datagram);
+        return datagram;
+    }
+
+    private ByteBuffer receiveWithin(long timeoutMillis) throws Exception {
+        _peer.setSoTimeout((int) timeoutMillis);
+        byte[] bytes = new byte[1472];
+        DatagramPacket packet = new DatagramPacket(bytes, bytes.length);
+        try {
+            _peer.receive(packet);
+        } catch (SocketTimeoutException e) {
+            return null;
+        }
+        return ByteBuffer.wrap(bytes, 0, packet.getLength()).slice();
+    }
+
+    /**
+     * Discards retransmissions that were already on their way when the acknowledgement was sent.
+     */
+    private void drain() throws Exception {
+        while (receiveWithin(RETRANSMIT_TIMEOUT_MILLIS / 2) != null) {
+            // keep draining
+        }
+    }
+
+    private static ByteBuffer utf8(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+    }
+}
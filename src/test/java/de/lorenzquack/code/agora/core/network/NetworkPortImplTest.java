@@ -0,0 +1,73 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.lorenzquack.code.agora.core.api.exceptions.AgoraException;
+import de.lorenzquack.code.agora.core.config.ConfigurationStoreAdaptorJSONFile;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+
+
+public class NetworkPortImplTest {
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private final LoopbackNetwork _network = new LoopbackNetwork(1);
+    private final NetworkPortImpl _port = new NetworkPortImpl();
+    private final NetworkAdaptorLoopback _control = new NetworkAdaptorLoopback(_network);
+    private final NetworkAdaptorLoopback _bulk = new NetworkAdaptorLoopback(_network);
+
+    @Before
+    public void setUp() {
+        ConfigurationStoreAdaptorJSONFile configurationStore = new ConfigurationStoreAdaptorJSONFile();
+        configurationStore.setConfigurationDirectory(_folder.getRoot().toPath());
+        _port.setConfigurationStore(configurationStore);
+        _port.addNetworkAdaptor("control", _control);
+        _port.addNetworkAdaptor("bulk", _bulk);
+        _control.setNetworkCore(_port);
+        _bulk.setNetworkCore(_port);
+        _control.initialize();
+        _bulk.initialize();
+        _port.initialize();
+    }
+
+    @After
+    public void tearDown() {
+        _control.stop();
+        _bulk.stop();
+        _port.cleanup();
+        _network.shutdown();
+    }
+
+    @Test(expected = AgoraException.class)
+    public void transportsOnDifferentPortsAreRejected() {
+        _control.configure(new JSONConfigImpl("{\"host\": \"127.0.0.1\", \"port\": 7070}"));
+        _bulk.configure(new JSONConfigImpl("{\"host\": \"127.0.0.1\", \"port\": 7071}"));
+        _port.configure(new JSONConfigImpl("{\"transports\": {\"control\": \"control\", \"bulk\": \"bulk\"}}"));
+        _control.start();
+        _bulk.start();
+
+        _port.start();
+    }
+}
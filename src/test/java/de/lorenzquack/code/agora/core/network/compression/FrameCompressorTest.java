@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.compression;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+import de.lorenzquack.code.agora.core.metrics.MetricRegistryImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class FrameCompressorTest {
+    private final FrameCompressor _compressor =
+            new FrameCompressor(new JSONConfigImpl("{\"codecs\": [\"lz4\", \"deflate\"]}"), 1 << 24);
+
+    @Test
+    public void compressedFramesRoundTrip() throws IOException {
+        ByteBuffer frame = textFrame(64 * 1024);
+        for (Codec codec : new Codec[]{Codec.LZ4, Codec.DEFLATE}) {
+            ByteBuffer compressed = _compressor.compress(codec, frame.duplicate());
+            assertNotNull(codec + " should shrink text", compressed);
+            assertTrue(compressed.remaining() < frame.remaining());
+            assertEquals(codec.toString(), frame, _compressor.decompress(codec, compressed));
+        }
+    }
+
+    @Test
+    public void probeSkipsRandomData() {
+        byte[] data = new byte[8192];
+        new Random(42).nextBytes(data);
+        int allCodecs = _compressor.getAcceptedCodecs();
+
+        assertEquals(Codec.NONE, _compressor.choose(allCodecs, ByteBuffer.wrap(data)));
+        assertEquals(Codec.LZ4, _compressor.choose(allCodecs, textFrame(8192)));
+        assertEquals(Codec.DEFLATE, _compressor.choose(Codec.DEFLATE.getMask(), textFrame(8192)));
+    }
+
+    @Test
+    public void statisticsAreReportedAsMetrics() throws IOException {
+        MetricRegistryImpl metrics = new MetricRegistryImpl();
+        _compressor.registerMetrics(metrics);
+        _compressor.recordSent(1000, 250);
+        byte[] data = new byte[8192];
+        new Random(42).nextBytes(data);
+        _compressor.choose(_compressor.getAcceptedCodecs(), ByteBuffer.wrap(data));
+
+        StringBuilder output = new StringBuilder();
+        metrics.writeTextFormat(output);
+        String text = output.toString();
+        assertTrue(text, text.contains("agora_network_tcp_compression_input_bytes 1000\n"));
+        assertTrue(text, text.contains("agora_network_tcp_compression_output_bytes 250\n"));
+        assertTrue(text, text.contains("agora_network_tcp_compression_incompressible_frames 1\n"));
+    }
+
+    private static ByteBuffer textFrame(int size) {
+        StringBuilder text = new StringBuilder();
+        Random random = new Random(7);
+        while (text.length() < size) {
+            text.append("peer ").append(random.nextInt(1000)).append(" announced chunk ").append(random.nextInt()).append('\n');
+        }
+        return ByteBuffer.wrap(text.substring(0, size).getBytes(StandardCharsets.US_ASCII));
+    }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.dht;
+
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class RoutingTableTest {
+    private final Random _random = new Random(42);
+    private final NodeId _localId = NodeId.random(_random);
+
+    @Test
+    public void closestReturnsPeersOrderedByDistance() {
+        RoutingTable routingTable = new RoutingTable(_localId, 20);
+        List<Peer> peers = new ArrayList<>();
+        for (int i = 0; i < 500; i++) {
+            Peer peer = peer(NodeId.random(_random), i);
+            if (routingTable.update(peer) == null) {
+                peers.add(peer);
+            }
+        }
+        NodeId target = NodeId.random(_random);
+        Collections.sort(peers, RoutingTable.byDistanceTo(target));
+
+        assertEquals(peers.subList(0, 20), routingTable.closest(target, 20));
+    }
+
+    @Test
+    public void fullBucketKeepsOldEntriesAndPromotesReplacementOnRemoval() {
+        RoutingTable routingTable = new RoutingTable(_localId, 2);
+        int bucketIndex = NodeId.SIZE_IN_BITS - 1;
+        Peer first = peer(_localId.randomInBucket(bucketIndex, _random), 1);
+        Peer second = peer(_localId.randomInBucket(bucketIndex, _random), 2);
+        Peer third = peer(_localId.randomInBucket(bucketIndex, _random), 3);
+
+        assertNull(routingTable.update(first));
+        assertNull(routingTable.update(second));
+        assertSame(first, routingTable.update(third));
+        assertFalse(routingTable.contains(third.getNodeId()));
+
+        assertTrue(routingTable.remove(first.getNodeId()));
+        assertTrue(routingTable.contains(third.getNodeId()));
+        assertEquals(2, routingTable.size());
+    }
+
+    @Test
+    public void randomInBucketLandsInRequestedBucket() {
+        for (int bucketIndex = 0; bucketIndex < NodeId.SIZE_IN_BITS; bucketIndex++) {
+            assertEquals(bucketIndex, _localId.bucketIndexOf(_localId.randomInBucket(bucketIndex, _random)));
+        }
+    }
+
+    private static Peer peer(NodeId nodeId, int port) {
+        return new Peer(nodeId, InetSocketAddress.createUnresolved("node", port));
+    }
+}
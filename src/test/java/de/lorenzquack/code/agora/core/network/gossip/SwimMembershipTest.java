@@ -0,0 +1,155 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.gossip;
+
+import java.net.InetSocketAddress;
+import java.util.Collections;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.lorenzquack.code.agora.core.api.MembershipEvent;
+import de.lorenzquack.code.agora.core.api.MembershipListener;
+import de.lorenzquack.code.agora.core.api.NodeId;
+import de.lorenzquack.code.agora.core.api.Peer;
+import de.lorenzquack.code.agora.core.network.LoopbackCluster;
+import de.lorenzquack.code.agora.core.network.MessageType;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class SwimMembershipTest {
+    private static final long TIMEOUT_SECONDS = 10;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    private final LinkedBlockingQueue<MembershipEvent> _events = new LinkedBlockingQueue<>();
+    private LoopbackCluster _cluster;
+    private LoopbackCluster.Node _observer;
+    private LoopbackCluster.Node _member;
+    private NodeId _memberId;
+
+    @After
+    public void tearDown() {
+        if (_cluster != null) {
+            _cluster.shutdown();
+        }
+    }
+
+    @Test
+    public void suspectedMemberRefutes() throws Exception {
+        startCluster(60000);
+
+        _member.disconnect();
+        assertEquals(MembershipEvent.Type.SUSPECTED, nextEvent().getType());
+        _member.reconnect();
+
+        MembershipEvent recovered = nextEvent();
+        assertEquals(MembershipEvent.Type.RECOVERED, recovered.getType());
+        assertTrue(recovered.getIncarnation() > 0);
+        assertEquals(new InetSocketAddress("127.0.0.2", 7070), recovered.getPeer().getAddress());
+    }
+
+    @Test
+    public void suspectedMemberDies() throws Exception {
+        startCluster(60000);
+
+        _member.disconnect();
+        assertEquals(MembershipEvent.Type.SUSPECTED, nextEvent().getType());
+        assertEquals(MembershipEvent.Type.FAILED, nextEvent().getType());
+        assertTrue(_observer.getPort().getMembers().isEmpty());
+    }
+
+    @Test
+    public void deadMemberRejoinsWithHigherIncarnation() throws Exception {
+        startCluster(60000);
+        _member.disconnect();
+        assertEquals(MembershipEvent.Type.SUSPECTED, nextEvent().getType());
+        MembershipEvent failed = nextEvent();
+        assertEquals(MembershipEvent.Type.FAILED, failed.getType());
+
+        _member.restart();
+
+        MembershipEvent joined = nextEvent();
+        assertEquals(MembershipEvent.Type.JOINED, joined.getType());
+        assertTrue(joined.getIncarnation() > failed.getIncarnation());
+        assertEquals(Collections.singletonList(joined.getPeer()), _observer.getPort().getMembers());
+    }
+
+    @Test
+    public void deadMemberIsForgotten() throws Exception {
+        startCluster(200);
+        _member.disconnect();
+        assertEquals(MembershipEvent.Type.SUSPECTED, nextEvent().getType());
+        assertEquals(MembershipEvent.Type.FAILED, nextEvent().getType());
+        TimeUnit.MILLISECONDS.sleep(500);
+
+        _member.restart();
+
+        // a stranger again, so there is nothing to refute
+        MembershipEvent joined = nextEvent();
+        assertEquals(MembershipEvent.Type.JOINED, joined.getType());
+        assertEquals(0, joined.getIncarnation());
+    }
+
+    @Test
+    public void updatesDoNotChangeTheAddressOfAMember() throws Exception {
+        startCluster(60000);
+        InetSocketAddress address = new InetSocketAddress("127.0.0.2", 7070);
+        Peer boundToWildcard = new Peer(_memberId, new InetSocketAddress("0.0.0.0", 7070));
+
+        _member.getPort().getDispatcher().request(new InetSocketAddress("127.0.0.1", 7070), MessageType.SWIM_PING,
+                MembershipUpdate.encode(null, Collections.singletonList(
+                        new MembershipUpdate(boundToWildcard, MemberState.ALIVE, 5)))).get();
+
+        assertEquals(Collections.singletonList(new Peer(_memberId, address)), _observer.getPort().getMembers());
+    }
+
+    /**
+     * Starts two nodes and waits until the first, the observer, counts the second as a member.
+     */
+    private void startCluster(long deadMemberRetentionMillis) throws Exception {
+        _cluster = new LoopbackCluster(_folder.getRoot().toPath(), "{\"requestTimeoutMillis\": 500, \"gossip\": "
+                + "{\"protocolPeriodMillis\": 100, \"deadMemberRetentionMillis\": " + deadMemberRetentionMillis + "}}");
+        _observer = _cluster.addNode();
+        _observer.getPort().addMembershipListener(new MembershipListener() {
+            @Override
+            public void membershipChanged(MembershipEvent event) {
+                _events.add(event);
+            }
+        });
+        _member = _cluster.addNode();
+        _memberId = _member.getPort().getLocalNodeId();
+        assertEquals(MembershipEvent.Type.JOINED, nextEvent().getType());
+    }
+
+    private MembershipEvent nextEvent() throws InterruptedException {
+        MembershipEvent event = _events.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("no membership event within " + TIMEOUT_SECONDS + " s", event);
+        assertEquals(_memberId, event.getPeer().getNodeId());
+        return event;
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.api.Delivery;
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.NetworkAdaptor;
+import de.lorenzquack.code.agora.core.api.NetworkPort;
+import de.lorenzquack.code.agora.core.api.StreamedFrame;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+import de.lorenzquack.code.agora.core.metrics.MetricRegistryImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class SessionManagerTest {
+    private static final InetSocketAddress INITIATOR = new InetSocketAddress("127.0.0.1", 7071);
+    private static final InetSocketAddress RESPONDER = new InetSocketAddress("127.0.0.2", 7072);
+    private static final InetSocketAddress ATTACKER = new InetSocketAddress("127.0.0.3", 7073);
+
+    private final CryptoEngine _crypto = new CryptoEngine();
+    private final ScheduledExecutorService _scheduler = Executors.newSingleThreadScheduledExecutor();
+    private final CapturingAdaptor _adaptor = new CapturingAdaptor();
+    private final SessionManager _sessions =
+            new SessionManager(new JSONConfigImpl("{}"), _scheduler, _adaptor, _adaptor);
+
+    @After
+    public void tearDown() {
+        _sessions.stop();
+        _scheduler.shutdownNow();
+    }
+
+    @Test
+    public void helloForAnEstablishedSessionDoesNotReplaceIt() throws IOException {
+        Handshake handshake = Handshake.full(_crypto, RESPONDER, INITIATOR.getPort(), new EphemeralKeys(_crypto, 0));
+        assertNull(_sessions.receive(INITIATOR, handshake.getHello()));
+        Session session = handshake.complete(_adaptor.next());
+
+        ByteBuffer takeover = Handshake.full(_crypto, RESPONDER, ATTACKER.getPort(),
+                new EphemeralKeys(_crypto, 0)).getHello();
+        takeover.putLong(takeover.position() + 1, handshake.getSessionId());
+        assertNull(_sessions.receive(ATTACKER, takeover));
+
+        assertNull("the takeover must not be answered", _adaptor._frames.poll());
+        assertEquals(1, _sessions.getActiveSessions());
+        assertEquals(1, _sessions.getRejectedFrames());
+        MetricRegistryImpl metrics = new MetricRegistryImpl();
+        _sessions.registerMetrics(metrics);
+        StringBuilder output = new StringBuilder();
+        metrics.writeTextFormat(output);
+        assertTrue(output.toString(), output.toString().contains("agora_network_sessions 1\n"));
+        assertTrue(output.toString(), output.toString().contains("agora_network_session_rejected_frames 1\n"));
+        ByteBuffer sealed = session.seal(_crypto, INITIATOR.getPort(),
+                ByteBuffer.wrap("ping".getBytes(StandardCharsets.US_ASCII)));
+        assertEquals(ByteBuffer.wrap("ping".getBytes(StandardCharsets.US_ASCII)), _sessions.receive(INITIATOR, sealed));
+    }
+
+    private static class CapturingAdaptor implements NetworkAdaptor {
+        private final LinkedBlockingQueue<ByteBuffer> _frames = new LinkedBlockingQueue<>();
+
+        ByteBuffer next() {
+            ByteBuffer frame = _frames.poll();
+            assertNotNull("nothing was sent", frame);
+            return frame;
+        }
+
+        @Override
+        public void setNetworkCore(NetworkPort core) {
+        }
+
+        @Override
+        public InetSocketAddress getLocalAddress() {
+            return RESPONDER;
+        }
+
+        @Override
+        public int getMaxFrameSize() {
+            return 65536;
+        }
+
+        @Override
+        public void send(InetSocketAddress destination, ByteBuffer frame, Delivery delivery) throws IOException {
+            _frames.add(frame.duplicate());
+        }
+
+        @Override
+        public void send(InetSocketAddress destination, StreamedFrame frame, Delivery delivery) throws IOException {
+            throw new IOException("not supported");
+        }
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void configure(JSONConfig config) {
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void cleanup() {
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.session;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.api.FileRegion;
+import de.lorenzquack.code.agora.core.crypto.CryptoEngine;
+import de.lorenzquack.code.agora.core.network.BufferPool;
+import de.lorenzquack.code.agora.core.network.StreamedFrames;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+
+public class SessionTest {
+    private static final InetSocketAddress INITIATOR = new InetSocketAddress("127.0.0.1", 7071);
+    private static final InetSocketAddress RESPONDER = new InetSocketAddress("127.0.0.1", 7072);
+
+    private final CryptoEngine _crypto = new CryptoEngine();
+    private final HandshakeResponder _responder =
+            new HandshakeResponder(_crypto, new ResumptionTickets(_crypto, TimeUnit.DAYS.toMillis(1)),
+                    new EphemeralKeys(_crypto, 0));
+
+    @Test
+    public void sealedFramesOpenOnTheOtherSide() throws IOException {
+        Session[] sessions = handshake(Handshake.full(_crypto, RESPONDER, INITIATOR.getPort(), new EphemeralKeys(_crypto, 0)));
+        ByteBuffer sealed = sessions[0].seal(_crypto, INITIATOR.getPort(), frame("ping"));
+
+        assertEquals(frame("ping"), sessions[1].open(_crypto, sealed.duplicate()));
+        assertNull("replayed frame must be dropped", sessions[1].open(_crypto, sealed.duplicate()));
+
+        ByteBuffer reply = sessions[1].seal(_crypto, RESPONDER.getPort(), frame("pong"));
+        reply.put(reply.limit() - 20, (byte) (reply.get(reply.limit() - 20) ^ 1));
+        assertNull("tampered frame must be dropped", sessions[0].open(_crypto, reply));
+    }
+
+    @Test
+    public void resumedSessionUsesFreshKeys() throws IOException {
+        Session first = handshake(Handshake.full(_crypto, RESPONDER, INITIATOR.getPort(), new EphemeralKeys(_crypto, 0)))[0];
+        Session[] resumed = handshake(Handshake.resume(_crypto, RESPONDER, INITIATOR.getPort(), first.getResumptionTicket()));
+
+        ByteBuffer sealed = resumed[0].seal(_crypto, INITIATOR.getPort(), frame("ping"));
+        assertEquals(frame("ping"), resumed[1].open(_crypto, sealed.duplicate()));
+        assertNull(first.open(_crypto, resumed[1].seal(_crypto, RESPONDER.getPort(), frame("pong"))));
+    }
+
+    @Test
+    public void sealedFileRegionOpensLikeASealedBuffer() throws IOException {
+        Session[] sessions = handshake(Handshake.full(_crypto, RESPONDER, INITIATOR.getPort(), new EphemeralKeys(_crypto, 0)));
+        byte[] content = new byte[100000];
+        new Random(1).nextBytes(content);
+        Path file = Files.createTempFile("region", ".dat");
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE)) {
+            channel.write(ByteBuffer.wrap(content));
+            FileRegion region = new FileRegion(channel, 7, content.length - 7);
+            ByteBuffer sealed = StreamedFrames.toBuffer(sessions[0].seal(_crypto, INITIATOR.getPort(), frame("chunk"),
+                    region, new BufferPool(4096, 2)));
+
+            ByteBuffer expected = ByteBuffer.allocate(5 + region.getLength());
+            expected.put(frame("chunk")).put(content, 7, region.getLength()).flip();
+            assertEquals(expected, sessions[1].open(_crypto, sealed));
+        }
+    }
+
+    @Test
+    public void forgedTicketIsRejected() throws IOException {
+        ResumptionTicket forged = new ResumptionTicket(new byte[ResumptionTickets.TICKET_SIZE], new byte[32], 0);
+        Handshake handshake = Handshake.resume(_crypto, RESPONDER, INITIATOR.getPort(), forged);
+        HandshakeResponder.Response response = _responder.respond(handshake.getHello(), INITIATOR, RESPONDER.getPort());
+
+        assertNull(response.getSession());
+        assertEquals(SessionFrame.REJECT, SessionFrame.getKind(response.getReply()));
+    }
+
+    private Session[] handshake(Handshake handshake) throws IOException {
+        HandshakeResponder.Response response = _responder.respond(handshake.getHello(), INITIATOR, RESPONDER.getPort());
+        assertNotNull(response.getSession());
+        return new Session[]{handshake.complete(response.getReply()), response.getSession()};
+    }
+
+    private static ByteBuffer frame(String text) {
+        return ByteBuffer.wrap(text.getBytes(StandardCharsets.US_ASCII));
+    }
+}
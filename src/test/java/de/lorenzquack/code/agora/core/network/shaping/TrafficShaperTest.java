@@ -0,0 +1,168 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.network.shaping;
+
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Ticker;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class TrafficShaperTest {
+    private static final InetSocketAddress PEER = new InetSocketAddress("127.0.0.1", 7071);
+    private static final int FRAME_SIZE = 4096;
+
+    private TrafficShaper _shaper;
+
+    @Before
+    public void setUp() {
+        _shaper = new TrafficShaper();
+        _shaper.configure(new JSONConfigImpl("{\"flows\": {\"control\": {\"weight\": 4}, \"files\": {\"weight\": 1}}}"));
+        _shaper.start();
+    }
+
+    @After
+    public void tearDown() {
+        _shaper.stop();
+    }
+
+    @Test
+    public void unlimitedFramesAreSentOnTheCallersThread() {
+        final List<Thread> threads = new CopyOnWriteArrayList<>();
+        _shaper.send(PEER, "files", FRAME_SIZE, new Runnable() {
+            @Override
+            public void run() {
+                threads.add(Thread.currentThread());
+            }
+        });
+        assertEquals(1, threads.size());
+        assertSame(Thread.currentThread(), threads.get(0));
+    }
+
+    @Test
+    public void globalLimitIsEnforced() throws Exception {
+        _shaper.setLimit(TrafficShaper.GLOBAL, 1024 * 1024);
+        CountDownLatch sent = new CountDownLatch(100);
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            assertTrue(_shaper.send(PEER, "files", FRAME_SIZE, countDown(sent)));
+        }
+        assertTrue(sent.await(10, TimeUnit.SECONDS));
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        // 400KB at 1MB/s after a burst of at most 100ms worth
+        assertTrue(elapsedMillis + "ms", elapsedMillis >= 250);
+    }
+
+    @Test
+    public void busyFlowsShareBandwidthByWeight() throws Exception {
+        _shaper.setLimit(TrafficShaper.GLOBAL, 1024 * 1024);
+        final List<String> order = new CopyOnWriteArrayList<>();
+        CountDownLatch sent = new CountDownLatch(128);
+        for (int i = 0; i < 64; i++) {
+            _shaper.send(PEER, "files", FRAME_SIZE, record(order, "files", sent));
+        }
+        for (int i = 0; i < 64; i++) {
+            _shaper.send(PEER, "control", FRAME_SIZE, record(order, "control", sent));
+        }
+        assertTrue(sent.await(10, TimeUnit.SECONDS));
+        int control = 0;
+        for (String flow : order.subList(0, 50)) {
+            control += "control".equals(flow) ? 1 : 0;
+        }
+        // the files frames were queued first, yet control gets about four fifths of the bandwidth
+        assertTrue(control + " of 50", control >= 30);
+    }
+
+    @Test
+    public void limitsCanBeChangedAtRuntime() {
+        _shaper.setLimit(TrafficShaper.FLOW_PREFIX + "files", 2048);
+        _shaper.setLimit(TrafficShaper.PEER, 4096);
+        assertEquals(Long.valueOf(2048), _shaper.getLimits().get("flow/files"));
+        assertEquals(Long.valueOf(4096), _shaper.getLimits().get("peer"));
+        assertEquals(Long.valueOf(0), _shaper.getLimits().get("global"));
+    }
+
+    @Test
+    public void busyPeerKeepsItsBucketWhenManyPeersAreSeen() {
+        final AtomicLong nanos = new AtomicLong();
+        TrafficShaper shaper = new TrafficShaper(new Ticker() {
+            @Override
+            public long read() {
+                return nanos.get();
+            }
+        });
+        shaper.setLimit(TrafficShaper.PEER, 16 * 1024);
+        shaper.start();
+        try {
+            List<String> sent = new CopyOnWriteArrayList<>();
+            Runnable busy = record(sent, "busy", new CountDownLatch(0));
+            Runnable other = record(sent, "other", new CountDownLatch(0));
+            // puts the peer's bucket deep into debt and makes it the least recently used one
+            shaper.send(PEER, "files", 256 * 1024, busy);
+            for (int port = 1; port <= TrafficShaper.MAX_PEER_BUCKETS; port++) {
+                shaper.send(new InetSocketAddress("127.0.0.2", port), "files", 1, other);
+            }
+            nanos.addAndGet(TimeUnit.SECONDS.toNanos(2));
+            shaper.send(new InetSocketAddress("127.0.0.3", 7071), "files", 1, other);
+            sent.clear();
+
+            shaper.send(PEER, "files", 1, busy);
+            assertTrue("the busy peer must still be held back", sent.isEmpty());
+        } finally {
+            shaper.stop();
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownScopeIsRejected() {
+        _shaper.setLimit("plugin", 1);
+    }
+
+    private static Runnable countDown(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                latch.countDown();
+            }
+        };
+    }
+
+    private static Runnable record(final List<String> order, final String flow, final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                order.add(flow);
+                latch.countDown();
+            }
+        };
+    }
+}
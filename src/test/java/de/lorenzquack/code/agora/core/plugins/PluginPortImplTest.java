@@ -0,0 +1,203 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.plugins;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import de.lorenzquack.code.agora.core.api.JSONConfig;
+import de.lorenzquack.code.agora.core.api.MembershipListener;
+import de.lorenzquack.code.agora.core.api.PluginAdaptor;
+import de.lorenzquack.code.agora.core.api.PluginPort;
+import de.lorenzquack.code.agora.core.api.PluginStatus;
+import de.lorenzquack.code.agora.core.api.exceptions.AgoraException;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+import de.lorenzquack.code.agora.core.network.NetworkPortImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+
+public class PluginPortImplTest {
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+    private PluginPortImpl _plugins;
+
+    @Before
+    public void setUp() throws IOException {
+        Path directory = _folder.newFolder("plugins").toPath();
+        install(directory.resolve("echo"), "{\"name\": \"echo\", \"mainClass\": \"" + EchoPlugin.class.getName() + "\"}");
+        install(directory.resolve("broken"), "{\"name\": \"broken\", \"mainClass\": \"org.example.Missing\"}");
+        install(directory.resolve("slow"), "{\"name\": \"slow\", \"mainClass\": \"" + EchoPlugin.class.getName()
+                + "\", \"activateOn\": [\"startup\"]}");
+        _plugins = new PluginPortImpl();
+        _plugins.setDataDirectory(_folder.getRoot().toPath());
+        _plugins.setNetworkPort(new NetworkPortImpl() {
+            @Override
+            public void addMembershipListener(MembershipListener listener) {
+            }
+        });
+        _plugins.initialize();
+        _plugins.configure(new JSONConfigImpl("{\"settings\": {\"echo\": {\"greeting\": \"hello\"}, "
+                + "\"slow\": {\"greeting\": \"yawn\", \"startMillis\": 1000}}}"));
+    }
+
+    @After
+    public void tearDown() {
+        _plugins.stop();
+        _plugins.cleanup();
+    }
+
+    @Test
+    public void pluginIsActivatedOnFirstUse() {
+        assertEquals(Arrays.asList("broken", "echo", "slow"), _plugins.getInstalledPlugins());
+        assertFalse(_plugins.isPluginActive("echo"));
+
+        PluginAdaptor echo = _plugins.getPlugin("echo");
+        assertTrue(_plugins.isPluginActive("echo"));
+        assertSame(echo, _plugins.getPlugin("echo"));
+        assertEquals("hello started", echo.toString());
+        assertFalse(_plugins.isPluginActive("broken"));
+        assertNull(_plugins.getPlugin("missing"));
+
+        _plugins.stop();
+        assertFalse(_plugins.isPluginActive("echo"));
+        assertEquals("hello stopped", echo.toString());
+    }
+
+    @Test
+    public void pluginClassesAreLoadedInTheirOwnClassLoader() {
+        PluginAdaptor echo = _plugins.getPlugin("echo");
+        assertNotSame(EchoPlugin.class, echo.getClass());
+        assertTrue(echo.getClass().getClassLoader() instanceof PluginClassLoader);
+        assertSame(PluginAdaptor.class, echo.getClass().getInterfaces()[0]);
+    }
+
+    @Test
+    public void callsThroughTheAdaptorRunInTheSandbox() throws InterruptedException {
+        PluginAdaptor echo = _plugins.getPlugin("echo");
+        assertTrue(Proxy.isProxyClass(echo.getClass()));
+        assertEquals("hello started", echo.toString());
+
+        // the activation and toString, counted once the sandbox thread is done with them
+        long deadline = System.currentTimeMillis() + 5000;
+        while (getStatus("echo").getCalls() < 2 && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(1);
+        }
+        assertEquals(2, getStatus("echo").getCalls());
+    }
+
+    @Test
+    public void pluginThatIsSlowToStartDoesNotDelayTheCore() throws InterruptedException {
+        long start = System.nanoTime();
+        _plugins.start();
+        assertTrue(System.nanoTime() - start < TimeUnit.MILLISECONDS.toNanos(500));
+        assertFalse(_plugins.isPluginActive("slow"));
+
+        long deadline = System.currentTimeMillis() + 10000;
+        while (!_plugins.isPluginActive("slow") && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(10);
+        }
+        assertEquals("yawn started", _plugins.getPlugin("slow").toString());
+    }
+
+    @Test(expected = AgoraException.class)
+    public void pluginThatCannotBeLoadedFails() {
+        _plugins.getPlugin("broken");
+    }
+
+    private PluginStatus getStatus(String name) {
+        for (PluginStatus status : _plugins.getPluginStatus()) {
+            if (status.getName().equals(name)) {
+                return status;
+            }
+        }
+        throw new AssertionError("no plugin " + name);
+    }
+
+    private static void install(Path directory, String manifest) throws IOException {
+        String classFile = EchoPlugin.class.getName().replace('.', '/') + ".class";
+        Path target = directory.resolve("classes").resolve(classFile);
+        Files.createDirectories(target.getParent());
+        try (InputStream in = EchoPlugin.class.getClassLoader().getResourceAsStream(classFile)) {
+            Files.copy(in, target);
+        }
+        Files.write(directory.resolve(PluginManifest.FILE_NAME), manifest.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public static class EchoPlugin implements PluginAdaptor {
+        private String _greeting;
+        private String _state = "created";
+        private long _startMillis;
+
+        @Override
+        public void setPluginCore(PluginPort core) {
+        }
+
+        @Override
+        public void initialize() {
+        }
+
+        @Override
+        public void configure(JSONConfig config) {
+            _greeting = config.get("greeting").asString();
+            _startMillis = config.get("startMillis").exists() ? config.get("startMillis").asLong() : 0;
+        }
+
+        @Override
+        public void start() {
+            try {
+                Thread.sleep(_startMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            _state = "started";
+        }
+
+        @Override
+        public void stop() {
+            _state = "stopped";
+        }
+
+        @Override
+        public void cleanup() {
+        }
+
+        @Override
+        public String toString() {
+            return _greeting + " " + _state;
+        }
+    }
+}
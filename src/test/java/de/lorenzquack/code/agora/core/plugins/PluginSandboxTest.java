@@ -0,0 +1,133 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.plugins;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.api.PluginStatus;
+import de.lorenzquack.code.agora.core.config.JSONConfigImpl;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class PluginSandboxTest {
+    private PluginSandbox _sandbox;
+
+    @After
+    public void tearDown() {
+        _sandbox.shutdown();
+    }
+
+    @Test
+    public void fullMailboxDropsCalls() throws Exception {
+        _sandbox = open("{\"mailboxDepth\": 2}");
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        assertTrue(_sandbox.execute(block(started, release)));
+        started.await();
+        assertTrue(_sandbox.execute(noop()));
+        assertTrue(_sandbox.execute(noop()));
+        assertFalse(_sandbox.execute(noop()));
+        assertEquals(1, _sandbox.getStatus(true).getDroppedCalls());
+        assertEquals(2, _sandbox.getStatus(true).getQueuedCalls());
+        release.countDown();
+    }
+
+    @Test
+    public void callOverBudgetIsInterrupted() throws Exception {
+        _sandbox = open("{\"callBudgetMillis\": 20}");
+        CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch interrupted = new CountDownLatch(1);
+        _sandbox.execute(block(started, new CountDownLatch(1), interrupted));
+        started.await();
+        while (!interrupted.await(5, TimeUnit.MILLISECONDS)) {
+            _sandbox.check(System.nanoTime());
+        }
+        assertEquals(1, _sandbox.getStatus(true).getBudgetViolations());
+    }
+
+    @Test
+    public void spinningPluginIsThrottledThenSuspended() throws Exception {
+        _sandbox = open("{\"cpuQuotaPercent\": 10, \"quotaWindowMillis\": 100, \"suspendAfterWindows\": 2}");
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        boolean throttled = false;
+        while (_sandbox.getStatus(true).getState() != PluginStatus.State.SUSPENDED && System.nanoTime() < deadline) {
+            _sandbox.execute(spin(5));
+            throttled |= _sandbox.getStatus(true).getState() == PluginStatus.State.THROTTLED;
+            Thread.sleep(2);
+            _sandbox.check(System.nanoTime());
+        }
+        assertTrue(throttled);
+        assertEquals(PluginStatus.State.SUSPENDED, _sandbox.getStatus(true).getState());
+        assertFalse(_sandbox.execute(noop()));
+
+        _sandbox.resume();
+        assertEquals(PluginStatus.State.RUNNING, _sandbox.getStatus(true).getState());
+        assertTrue(_sandbox.execute(noop()));
+    }
+
+    private static PluginSandbox open(String config) {
+        return new PluginSandbox("test", new JSONConfigImpl(config));
+    }
+
+    private static Runnable noop() {
+        return new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+    }
+
+    private static Runnable block(CountDownLatch started, CountDownLatch release) {
+        return block(started, release, new CountDownLatch(1));
+    }
+
+    private static Runnable block(final CountDownLatch started, final CountDownLatch release,
+                                  final CountDownLatch interrupted) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                }
+            }
+        };
+    }
+
+    private static Runnable spin(final long millis) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis);
+                while (System.nanoTime() < end) {
+                    // burn CPU
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.plugins;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import de.lorenzquack.code.agora.core.api.UIControl;
+import de.lorenzquack.code.agora.core.api.UIControlUpdate;
+import de.lorenzquack.code.agora.core.api.UIPatch;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class UIControlRegistryTest {
+    @Test
+    public void changeDeepInTheTreeYieldsOnePatch() {
+        List<UIControl> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add(label("message-" + i, "hello " + i));
+        }
+        UIControl before = new UIControl("chat", "list", props("title", "Chat"), messages);
+        messages.set(42, label("message-42", "edited"));
+        UIControl after = new UIControl("chat", "list", props("title", "Chat"), messages);
+
+        List<UIPatch> patches = new ArrayList<>();
+        UIControlDiff.diff(before, after, "/chat", patches);
+        assertEquals(1, patches.size());
+        assertEquals(UIPatch.Op.REPLACE, patches.get(0).getOp());
+        assertEquals("/chat/children/message-42/properties/text", patches.get(0).getPath());
+        assertEquals("edited", patches.get(0).getValue());
+    }
+
+    @Test
+    public void addedAndRemovedChildrenArePatchedInPlace() {
+        UIControl before = new UIControl("chat", "list", props("title", "Chat"),
+                Arrays.asList(label("a", "1"), label("b", "2")));
+        UIControl after = new UIControl("chat", "list", props("title", "Chat/2"),
+                Arrays.asList(label("a", "1"), label("c", "3")));
+
+        List<UIPatch> patches = new ArrayList<>();
+        UIControlDiff.diff(before, after, "/chat", patches);
+        assertEquals("[REPLACE /chat/properties/title = Chat/2, REMOVE /chat/children/b, "
+                + "ADD /chat/children/c label#c]", patches.toString());
+        assertEquals(1, patches.get(2).getIndex());
+    }
+
+    @Test
+    public void changesBetweenPollsAreCoalesced() throws Exception {
+        UIControlRegistry registry = new UIControlRegistry(4);
+        registry.publish(label("status", "starting"));
+        UIControlUpdate first = registry.getUpdate(0, 0);
+        assertEquals(1, first.getPatches().size());
+        assertEquals(UIPatch.Op.ADD, first.getPatches().get(0).getOp());
+
+        registry.publish(label("status", "syncing"));
+        registry.publish(label("status", "syncing 50%"));
+        registry.publish(label("status", "idle"));
+        UIControlUpdate second = registry.getUpdate(first.getVersion(), 0);
+        assertFalse(second.isFull());
+        assertEquals("[REPLACE /status/properties/text = idle]", second.getPatches().toString());
+        assertEquals(4, second.getVersion());
+
+        assertTrue(registry.getUpdate(second.getVersion(), 10).getPatches().isEmpty());
+    }
+
+    @Test
+    public void clientTooFarBehindGetsEverything() throws Exception {
+        UIControlRegistry registry = new UIControlRegistry(2);
+        for (int i = 0; i < 5; i++) {
+            registry.publish(label("status", String.valueOf(i)));
+        }
+        registry.remove("missing");
+        UIControlUpdate update = registry.getUpdate(1, 0);
+        assertTrue(update.isFull());
+        assertEquals("[ADD /status label#status]", update.getPatches().toString());
+    }
+
+    private static UIControl label(String id, String text) {
+        return new UIControl(id, "label", props("text", text));
+    }
+
+    private static Map<String, String> props(String key, String value) {
+        return Collections.singletonMap(key, value);
+    }
+}
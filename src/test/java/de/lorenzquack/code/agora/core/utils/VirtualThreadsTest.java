@@ -0,0 +1,78 @@
+/*
+ * Copyright 2015 by Lorenz Quack
+ *
+ * This file is part of agora.
+ *
+ *     agora is free software: you can redistribute it and/or modify
+ *     it under the terms of the GNU General Public License as published by
+ *     the Free Software Foundation, either version 2 of the License, or
+ *     (at your option) any later version.
+ *
+ *     agora is distributed in the hope that it will be useful,
+ *     but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *     MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *     GNU General Public License for more details.
+ *
+ *     You should have received a copy of the GNU General Public License
+ *     along with agora.  If not, see <http://www.gnu.org/licenses/>.
+ */
+package de.lorenzquack.code.agora.core.utils;
+
+import java.util.concurrent.ThreadFactory;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import ch.qos.logback.classic.spi.ILoggingEvent;
+import ch.qos.logback.core.read.ListAppender;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeFalse;
+import static org.junit.Assume.assumeTrue;
+
+
+public class VirtualThreadsTest {
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    @Test
+    public void createsVirtualThreadsFromJava21() throws Exception {
+        assumeTrue(VirtualThreads.isAvailable());
+
+        Thread thread = VirtualThreads.newThreadFactory("test-", true).newThread(NOTHING);
+
+        assertTrue((Boolean) Thread.class.getMethod("isVirtual").invoke(thread));
+        assertEquals("test-0", thread.getName());
+    }
+
+    /**
+     * Nothing else in the tests asks for virtual threads, so the warning has not been logged before.
+     */
+    @Test
+    public void fallsBackToPlatformThreadsAndWarnsOnceBeforeJava21() {
+        assumeFalse(VirtualThreads.isAvailable());
+        Logger logger = (Logger) LoggerFactory.getLogger(VirtualThreads.class);
+        ListAppender<ILoggingEvent> appender = new ListAppender<>();
+        appender.start();
+        logger.addAppender(appender);
+        try {
+            ThreadFactory factory = VirtualThreads.newThreadFactory("test-", true);
+            VirtualThreads.newThreadFactory("test-", true);
+
+            Thread thread = factory.newThread(NOTHING);
+            assertTrue(thread.isDaemon());
+            assertEquals("test-0", thread.getName());
+            assertFalse(VirtualThreads.shouldUse(true));
+            assertEquals(1, appender.list.size());
+            assertEquals(Level.WARN, appender.list.get(0).getLevel());
+        } finally {
+            logger.detachAppender(appender);
+        }
+    }
+}